@@ -292,6 +292,13 @@ crystalLine
 	| ii=oilElements                { $crystal::oilNames    = $ii.names;  
 		                	         $crystal::oilNums	= $ii.num;  }
 	| jj=oilDensity	                { $crystal::oilDensity			= $jj.oildens;  }
+	| kk=exposureThreads		{ $crystal::crystalProperties.put(Crystal.CRYSTAL_THREADS, $kk.value); }
+	| ll=depthMapResolution		{ $crystal::crystalProperties.put(Crystal.CRYSTAL_DEPTH_MAP_RESOLUTION, $ll.value); }
+	| mm=summaryHistogram		{ $crystal::crystalProperties.put(Crystal.CRYSTAL_SUMMARY_HISTOGRAM, $mm.value); }
+	| nn=peStencil			{ $crystal::crystalProperties.put(Crystal.CRYSTAL_PE_STENCIL, $nn.value); }
+	| oo=escapeFFT			{ $crystal::crystalProperties.put(Crystal.CRYSTAL_ESCAPE_FFT, $oo.value); }
+	| pp=beamGrid			{ $crystal::crystalProperties.put(Crystal.CRYSTAL_BEAM_GRID, $pp.value); }
+	| qq=geometryCache		{ $crystal::crystalProperties.put(Crystal.CRYSTAL_GEOMETRY_CACHE, $qq.value); }
 							
 	;
 
@@ -547,6 +554,34 @@ OILELEMENTS : ('O'|'o')('I'|'i')('L'|'l')('E'|'e')('L'|'l')('E'|'e')('M'|'m')('E
 oilDensity returns [double oildens]
 	: OILDENSITY a=FLOAT {$oildens = Double.parseDouble($a.text);};
 OILDENSITY : ('O'|'o')('I'|'i')('L'|'l')('D'|'d')('E'|'e')('N'|'n')('S'|'s')('I'|'i')('T'|'t')('Y'|'y') ;
+
+exposureThreads returns [int value]
+	: THREADS a=FLOAT {$value = Integer.parseInt($a.text);};
+THREADS : ('T'|'t')('H'|'h')('R'|'r')('E'|'e')('A'|'a')('D'|'d')('S'|'s') ;
+
+depthMapResolution returns [double value]
+	: DEPTHMAP a=FLOAT {$value = Double.parseDouble($a.text);};
+DEPTHMAP : ('D'|'d')('E'|'e')('P'|'p')('T'|'t')('H'|'h')('M'|'m')('A'|'a')('P'|'p') ;
+
+summaryHistogram returns [int value]
+	: SUMMARYHISTOGRAM a=FLOAT {$value = Integer.parseInt($a.text);};
+SUMMARYHISTOGRAM : ('S'|'s')('U'|'u')('M'|'m')('M'|'m')('A'|'a')('R'|'r')('Y'|'y')('H'|'h')('I'|'i')('S'|'s')('T'|'t')('O'|'o')('G'|'g')('R'|'r')('A'|'a')('M'|'m') ;
+
+peStencil returns [String value]
+	: PESTENCIL a=STRING {$value = $a.text;};
+PESTENCIL : ('P'|'p')('E'|'e')('S'|'s')('T'|'t')('E'|'e')('N'|'n')('C'|'c')('I'|'i')('L'|'l') ;
+
+escapeFFT returns [String value]
+	: ESCAPEFFT a=STRING {$value = $a.text;};
+ESCAPEFFT : ('E'|'e')('S'|'s')('C'|'c')('A'|'a')('P'|'p')('E'|'e')('F'|'f')('F'|'f')('T'|'t') ;
+
+beamGrid returns [double value]
+	: BEAMGRID a=FLOAT {$value = Double.parseDouble($a.text);};
+BEAMGRID : ('B'|'b')('E'|'e')('A'|'a')('M'|'m')('G'|'g')('R'|'r')('I'|'i')('D'|'d') ;
+
+geometryCache returns [double value]
+	: GEOMETRYCACHE a=FLOAT {$value = Double.parseDouble($a.text);};
+GEOMETRYCACHE : ('G'|'g')('E'|'e')('O'|'o')('M'|'m')('E'|'e')('T'|'t')('R'|'r')('Y'|'y')('C'|'c')('A'|'a')('C'|'c')('H'|'h')('E'|'e') ;
 	
 // ------------------------------------------------------------------
 beam returns [Beam bObj]
@@ -0,0 +1,43 @@
+package se.raddo.raddose3D;
+
+/**
+ * A crystal shape known in closed form. A {@link CrystalPolyhedron} given
+ * such a shape finds the occupancy and depth of every voxel from it instead
+ * of from its wireframe faces, which are still used for everything else.
+ *
+ * Coordinates are in um relative to the centre of the crystal bounding box,
+ * before the P and L rotations.
+ */
+public interface AnalyticShape {
+  /** Distance in um by which a point may lie outside the shape. */
+  double TOLERANCE = 1e-9;
+
+  /**
+   * Tests whether a point lies inside the crystal.
+   *
+   * @param size
+   *          size of the crystal bounding box in um along x, y and z
+   * @param x x
+   * @param y y
+   * @param z z
+   * @return true if the point is inside the crystal.
+   */
+  boolean contains(double[] size, double x, double y, double z);
+
+  /**
+   * Finds the distance from a point inside the crystal to its surface along
+   * a direction.
+   *
+   * @param size
+   *          size of the crystal bounding box in um along x, y and z
+   * @param x x
+   * @param y y
+   * @param z z
+   * @param dx x component of the unit direction
+   * @param dy y component of the unit direction
+   * @param dz z component of the unit direction
+   * @return distance in um, or 0 if the point lies outside the crystal.
+   */
+  double depth(double[] size, double x, double y, double z,
+      double dx, double dy, double dz);
+}
@@ -0,0 +1,140 @@
+package se.raddo.raddose3D;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Read-only view of the exposure of a crystal at a single angle, handed to
+ * {@link ExposeAngleObserver}s.
+ *
+ * The per-voxel quantities are read-only buffers indexed by voxel index.
+ * Only the voxels listed by getExposedVoxels() hold valid values; they are
+ * the voxels that received dose at this angle, in the order i, j, k. The
+ * buffers are views of the crystal workspace, which is reused for the next
+ * angle, so their contents must be copied if they are needed later.
+ */
+public final class AngleResult {
+  /** Crystal exposure workspace at this angle. */
+  private final ExposureWorkspace workspace;
+
+  /** Crystal size in voxels along j and k. */
+  private final int               ny, nz;
+
+  /** Running image number. */
+  private final int               image;
+
+  /**
+   * Create a view of the workspace after exposing an image.
+   *
+   * @param workspace
+   *          crystal exposure workspace
+   * @param image
+   *          running image number
+   */
+  AngleResult(final ExposureWorkspace workspace, final int image) {
+    this.workspace = workspace;
+    this.image = image;
+    int[] size = workspace.getSize();
+    ny = size[1];
+    nz = size[2];
+  }
+
+  /** @return running image number, starting at 0. */
+  public int getImage() {
+    return image;
+  }
+
+  /** @return number of voxels exposed at this angle. */
+  public int getExposedCount() {
+    return workspace.exposedCount;
+  }
+
+  /**
+   * @return indices of the voxels exposed at this angle. Only the first
+   *         getExposedCount() entries are valid.
+   */
+  public IntBuffer getExposedVoxels() {
+    return IntBuffer.wrap(workspace.exposed).asReadOnlyBuffer();
+  }
+
+  /**
+   * @param index voxel index
+   * @return voxel i index: perpendicular to rotation axis
+   */
+  public int getI(final int index) {
+    return index / (ny * nz);
+  }
+
+  /**
+   * @param index voxel index
+   * @return voxel j index: rotation axis
+   */
+  public int getJ(final int index) {
+    return (index / nz) % ny;
+  }
+
+  /**
+   * @param index voxel index
+   * @return voxel k index: beam axis
+   */
+  public int getK(final int index) {
+    return index % nz;
+  }
+
+  /** @return dose in MGy added by photoelectric absorption at this angle. */
+  public DoubleBuffer getAddedDose() {
+    return readOnly(workspace.dose);
+  }
+
+  /** @return total dose in MGy at the end of the previous image. */
+  public DoubleBuffer getPreviousDose() {
+    return readOnly(workspace.doseLast);
+  }
+
+  /** @return fluence in J reaching each voxel at this angle. */
+  public DoubleBuffer getFluence() {
+    return readOnly(workspace.fluence);
+  }
+
+  /** @return result of the dose decay model for each voxel. */
+  public DoubleBuffer getRelativeDiffractionEfficiency() {
+    return readOnly(workspace.relativeDiffractionEfficiency);
+  }
+
+  /** @return energy in J absorbed by each voxel at this angle. */
+  public DoubleBuffer getAbsorbedEnergy() {
+    return readOnly(workspace.absorbedEnergy);
+  }
+
+  /** @return elastically scattered photons from each voxel at this angle. */
+  public DoubleBuffer getElastic() {
+    return readOnly(workspace.elastic);
+  }
+
+  /**
+   * @param values workspace array
+   * @return view of the array that cannot be used to modify it.
+   */
+  private static DoubleBuffer readOnly(final double[] values) {
+    return DoubleBuffer.wrap(values).asReadOnlyBuffer();
+  }
+
+  /**
+   * Passes the result on to an observer one voxel at a time, for observers
+   * that only implement exposureObservation.
+   *
+   * @param observer
+   *          per-voxel observer
+   */
+  public void replay(final ExposeObserver observer) {
+    final int[] exposed = workspace.exposed;
+    for (int n = 0; n < workspace.exposedCount; n++) {
+      int idx = exposed[n];
+      observer.exposureObservation(image, getI(idx), getJ(idx), getK(idx),
+          workspace.dose[idx], workspace.doseLast[idx],
+          workspace.fluence[idx],
+          workspace.relativeDiffractionEfficiency[idx],
+          workspace.absorbedEnergy[idx], workspace.elastic[idx]);
+    }
+  }
+}
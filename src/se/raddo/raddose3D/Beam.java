@@ -88,5 +88,16 @@ public interface Beam {
   public double beamMinumumDimension();
   
   public double getBeamArea();
+
+  /**
+   * Returns the half widths of the rectangle, centred on the beam axis,
+   * outside which the beam intensity is always zero. Used to skip voxels
+   * that cannot be in the beam.
+   *
+   * @return
+   *         horizontal and vertical half widths in um, or
+   *         Double.POSITIVE_INFINITY where the beam is not bounded.
+   */
+  public double[] getBeamExtent();
   
 }
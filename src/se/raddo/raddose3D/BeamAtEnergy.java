@@ -0,0 +1,85 @@
+package se.raddo.raddose3D;
+
+/**
+ * Beam with the profile and photon flux of another beam, but a different
+ * photon energy.
+ *
+ * The energy carried by the beam scales with the photon energy, so the
+ * intensity of the underlying beam is multiplied by the ratio of the two
+ * energies. This holds for all beam types, whose intensities are the photon
+ * flux times the photon energy times a profile that does not depend on the
+ * energy. Container attenuation is applied to the underlying beam, and has
+ * to be calculated with this beam so that the new energy is used.
+ */
+public class BeamAtEnergy implements Beam {
+  /** Beam whose profile and flux are used. */
+  private final Beam   beam;
+
+  /** Photon energy in keV. */
+  private final double photonEnergy;
+
+  /** Ratio of the new to the original photon energy. */
+  private final double energyRatio;
+
+  /**
+   * @param beam
+   *          beam whose profile and flux are used
+   * @param photonEnergy
+   *          photon energy in keV
+   */
+  public BeamAtEnergy(final Beam beam, final double photonEnergy) {
+    if (!(photonEnergy > 0)) {
+      throw new IllegalArgumentException("Photon energy must be positive");
+    }
+    this.beam = beam;
+    this.photonEnergy = photonEnergy;
+    energyRatio = photonEnergy / beam.getPhotonEnergy();
+  }
+
+  @Override
+  public double beamIntensity(final double coordX, final double coordY,
+      final double offAxisUM) {
+    return beam.beamIntensity(coordX, coordY, offAxisUM) * energyRatio;
+  }
+
+  @Override
+  public String getDescription() {
+    return beam.getDescription()
+        + String.format("Photon energy changed to %.2f keV.%n", photonEnergy);
+  }
+
+  @Override
+  public double getPhotonsPerSec() {
+    return beam.getPhotonsPerSec();
+  }
+
+  @Override
+  public double getPhotonEnergy() {
+    return photonEnergy;
+  }
+
+  @Override
+  public void generateBeamArray() {
+    beam.generateBeamArray();
+  }
+
+  @Override
+  public void applyContainerAttenuation(final Container sampleContainer) {
+    beam.applyContainerAttenuation(sampleContainer);
+  }
+
+  @Override
+  public double beamMinumumDimension() {
+    return beam.beamMinumumDimension();
+  }
+
+  @Override
+  public double getBeamArea() {
+    return beam.getBeamArea();
+  }
+
+  @Override
+  public double[] getBeamExtent() {
+    return beam.getBeamExtent();
+  }
+}
@@ -211,4 +211,9 @@ public class BeamExperimental implements Beam {
     return 0;
   }
 
+  @Override
+  public double[] getBeamExtent() {
+    return new double[] { beamXSize / 2 - pixXSize, beamYSize / 2 - pixYSize };
+  }
+
 }
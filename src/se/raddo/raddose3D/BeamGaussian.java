@@ -290,4 +290,13 @@ public class BeamGaussian implements Beam {
     // TODO Auto-generated method stub
     return 0;
   }
+
+  @Override
+  public double[] getBeamExtent() {
+    if (collXum == null) {
+      return new double[] { Double.POSITIVE_INFINITY,
+          Double.POSITIVE_INFINITY };
+    }
+    return new double[] { collXum / 2, collYum / 2 };
+  }
 }
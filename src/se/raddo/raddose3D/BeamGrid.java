@@ -0,0 +1,173 @@
+package se.raddo.raddose3D;
+
+/**
+ * Beam whose intensity profile is looked up from a grid instead of being
+ * calculated at every point.
+ *
+ * The profile of another beam is sampled once on a regular grid covering its
+ * extent, and intensities in between are found by bilinear interpolation.
+ * This replaces the exponentials of a Gaussian beam or the interpolation of
+ * an experimental beam by a few array reads per voxel. With a grid spacing h
+ * the interpolation error is at most h^2 / 8 times the largest second
+ * derivative of the profile; at the edge of a collimated or top hat beam the
+ * intensity falls off over one grid spacing instead of abruptly.
+ *
+ * The grid is a snapshot of the beam when it is created, so it has to be
+ * created after the container attenuation has been applied.
+ */
+public class BeamGrid implements Beam {
+  /** Largest number of grid points. */
+  private static final long  MAX_POINTS = 1L << 24;
+
+  /** Beam whose profile is sampled. */
+  private final Beam         beam;
+
+  /** Horizontal and vertical half widths of the grid in um. */
+  private final double       halfX, halfY;
+
+  /** Number of grid points horizontally and vertically. */
+  private final int          nx, ny;
+
+  /** Grid spacing horizontally and vertically in um. */
+  private final double       stepX, stepY;
+
+  /** Intensity at each grid point in J/um^2/s, x varying fastest. */
+  private final double[]     intensity;
+
+  /**
+   * Samples the profile of a beam.
+   *
+   * @param beam
+   *          beam with a bounded extent, see Beam.getBeamExtent()
+   * @param spacing
+   *          largest grid spacing in um
+   */
+  public BeamGrid(final Beam beam, final double spacing) {
+    if (!(spacing > 0)) {
+      throw new IllegalArgumentException(
+          "Beam grid spacing must be positive");
+    }
+    double[] extent = beam.getBeamExtent();
+    if (Double.isInfinite(extent[0]) || Double.isInfinite(extent[1])) {
+      throw new IllegalArgumentException(
+          "Only beams of limited extent can be sampled on a grid");
+    }
+    this.beam = beam;
+    halfX = extent[0];
+    halfY = extent[1];
+    nx = gridPoints(halfX, spacing);
+    ny = gridPoints(halfY, spacing);
+    if ((long) nx * ny > MAX_POINTS) {
+      throw new IllegalArgumentException("Beam grid of " + nx + " x " + ny
+          + " points is too large");
+    }
+    stepX = 2 * halfX / (nx - 1);
+    stepY = 2 * halfY / (ny - 1);
+
+    intensity = new double[nx * ny];
+    for (int b = 0; b < ny; b++) {
+      double y = coordinate(b, ny, halfY, stepY);
+      for (int a = 0; a < nx; a++) {
+        intensity[b * nx + a] = beam.beamIntensity(
+            coordinate(a, nx, halfX, stepX), y, 0);
+      }
+    }
+  }
+
+  /**
+   * @param half
+   *          half width of the grid
+   * @param spacing
+   *          largest grid spacing
+   * @return number of grid points needed across the full width, at least 2.
+   */
+  private static int gridPoints(final double half, final double spacing) {
+    double intervals = Math.ceil(2 * half / spacing);
+    if (intervals >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Beam grid spacing of " + spacing
+          + " um is too fine");
+    }
+    return Math.max(2, (int) intervals + 1);
+  }
+
+  /**
+   * Position of a grid point. The last point is placed exactly on the edge,
+   * so that rounding does not move it out of the beam.
+   *
+   * @param a
+   *          grid point
+   * @param n
+   *          number of grid points
+   * @param half
+   *          half width of the grid
+   * @param step
+   *          grid spacing
+   * @return coordinate in um relative to the beam axis.
+   */
+  private static double coordinate(final int a, final int n,
+      final double half, final double step) {
+    if (a == n - 1) {
+      return half;
+    }
+    return -half + a * step;
+  }
+
+  @Override
+  public double beamIntensity(final double coordX, final double coordY,
+      final double offAxisUM) {
+    double u = (coordX - offAxisUM + halfX) / stepX;
+    double v = (coordY + halfY) / stepY;
+    if (!(u >= 0 && u <= nx - 1 && v >= 0 && v <= ny - 1)) {
+      return 0d;
+    }
+    int a = Math.min((int) u, nx - 2);
+    int b = Math.min((int) v, ny - 2);
+    double fu = u - a;
+    double fv = v - b;
+    int p = b * nx + a;
+    double lower = intensity[p] + fu * (intensity[p + 1] - intensity[p]);
+    double upper = intensity[p + nx]
+        + fu * (intensity[p + nx + 1] - intensity[p + nx]);
+    return lower + fv * (upper - lower);
+  }
+
+  @Override
+  public String getDescription() {
+    return beam.getDescription();
+  }
+
+  @Override
+  public double getPhotonsPerSec() {
+    return beam.getPhotonsPerSec();
+  }
+
+  @Override
+  public double getPhotonEnergy() {
+    return beam.getPhotonEnergy();
+  }
+
+  @Override
+  public void generateBeamArray() {
+    beam.generateBeamArray();
+  }
+
+  @Override
+  public void applyContainerAttenuation(final Container sampleContainer) {
+    beam.applyContainerAttenuation(sampleContainer);
+  }
+
+  @Override
+  public double beamMinumumDimension() {
+    return beam.beamMinumumDimension();
+  }
+
+  @Override
+  public double getBeamArea() {
+    return beam.getBeamArea();
+  }
+
+  @Override
+  public double[] getBeamExtent() {
+    return new double[] { halfX, halfY };
+  }
+}
@@ -144,4 +144,9 @@ public class BeamTophat implements Beam {
     }
     return beamArea;
   }
+
+  @Override
+  public double[] getBeamExtent() {
+    return new double[] { beamXum / 2, beamYum / 2 };
+  }
 }
@@ -111,4 +111,17 @@ public abstract class CoefCalc {
    * @param cryo
    */
   public abstract Set<Element> getPresentElements(boolean cryo);
+
+  /**
+   * Calculates the coefficients for a whole series of beam energies in one
+   * pass, ahead of updateCoefficients() and updateCryoCoefficients() being
+   * called for each of them. The default implementation does nothing, so the
+   * coefficients are calculated for each energy as it is used.
+   *
+   * @param energies
+   *          photon energies in keV
+   */
+  public void prepareEnergies(final double[] energies) {
+    // No preparation by default.
+  }
 }
@@ -6,7 +6,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import se.raddo.raddose3D.Element.CrossSection;
 
 public class CoefCalcCompute extends CoefCalc {
   /**
@@ -188,10 +187,6 @@ public class CoefCalcCompute extends CoefCalc {
    */
   private final ElementDatabase      elementDB;
   
-  private static final String        PHOTOELECTRIC                = "Photoelectric";
-  private static final String        ELASTIC                      = "Elastic";
-  private static final String        TOTAL                        = "Total";
-  private static final String        COMPTON                      = "Compton Attenuation";
   private static final double        MIN_ATOMIC_NUM_FOR_K_SHELL_IONISATION = 11;
   private static final double        MIN_ATOMIC_NUM_FOR_L_SHELL_IONISATION = 16;
 
@@ -216,6 +211,18 @@ public class CoefCalcCompute extends CoefCalc {
   
   private final Map<Element, Double> cryoConcentration;
 
+  /**
+   * Crystal coefficients calculated in advance by prepareEnergies(), by
+   * photon energy in keV.
+   */
+  private final Map<Double, Coefficients> preparedCoefficients;
+
+  /**
+   * Cryo-solution coefficients calculated in advance by prepareEnergies(),
+   * by photon energy in keV.
+   */
+  private final Map<Double, Coefficients> preparedCryoCoefficients;
+
   /**
    * Simple constructor.
    */
@@ -227,6 +234,8 @@ public class CoefCalcCompute extends CoefCalc {
     solventConcentration = new HashMap<Element, Double>();
     cryoOccurrence = new HashMap<Element, Double>();
     cryoConcentration = new HashMap<Element, Double>();
+    preparedCoefficients = new HashMap<Double, Coefficients>();
+    preparedCryoCoefficients = new HashMap<Double, Coefficients>();
   }
   
   /**
@@ -272,22 +281,85 @@ public class CoefCalcCompute extends CoefCalc {
    */
   @Override
   public void updateCoefficients(final Beam b) { 
-    Map<String, Double> absCoefficients = calculateCoefficientsAll(b.getPhotonEnergy());
-    attCoeff = absCoefficients.get(TOTAL);
-    elasCoeff = absCoefficients.get(ELASTIC);
-    absCoeffcomp = absCoefficients.get(COMPTON);
-    absCoeffphoto = absCoefficients.get(PHOTOELECTRIC);
+    Coefficients absCoefficients = preparedCoefficients.get(b.getPhotonEnergy());
+    if (absCoefficients == null) {
+      absCoefficients = calculateCoefficientsAll(b.getPhotonEnergy());
+    }
+    attCoeff = absCoefficients.total;
+    elasCoeff = absCoefficients.elastic;
+    absCoeffcomp = absCoefficients.compton;
+    absCoeffphoto = absCoefficients.photoelectric;
   }
   
   @Override
   public void updateCryoCoefficients(final Beam b) { 
-    Map<String, Double> absCoefficients = calculateCryoCoefficientsAll(b.getPhotonEnergy());
-    cryoAttCoeff = absCoefficients.get(TOTAL);
-    cryoElasCoeff = absCoefficients.get(ELASTIC);
-    cryoAbsCoeffComp = absCoefficients.get(COMPTON);
-    cryoAbsCoeffPhoto = absCoefficients.get(PHOTOELECTRIC);
+    Coefficients absCoefficients =
+        preparedCryoCoefficients.get(b.getPhotonEnergy());
+    if (absCoefficients == null) {
+      absCoefficients = calculateCryoCoefficientsAll(b.getPhotonEnergy());
+    }
+    cryoAttCoeff = absCoefficients.total;
+    cryoElasCoeff = absCoefficients.elastic;
+    cryoAbsCoeffComp = absCoefficients.compton;
+    cryoAbsCoeffPhoto = absCoefficients.photoelectric;
   }
   
+  /**
+   * Calculates the crystal and cryo-solution coefficients for all energies
+   * with the elements in the outer loop, so that each element is looked up
+   * once for the whole series. The sums over elements are taken in the same
+   * order as by calculateCoefficientsAll(), giving identical coefficients.
+   *
+   * @param energies
+   *          photon energies in keV
+   */
+  @Override
+  public void prepareEnergies(final double[] energies) {
+    prepareCoefficients(energies, false, preparedCoefficients);
+    if (isCryo()) {
+      prepareCoefficients(energies, true, preparedCryoCoefficients);
+    }
+  }
+
+  /**
+   * Sums the cross sections of the crystal or cryo-solution elements for a
+   * series of energies.
+   *
+   * @param energies
+   *          photon energies in keV
+   * @param cryo
+   *          true for the cryo-solution, false for the crystal
+   * @param prepared
+   *          map receiving the coefficients for each energy
+   */
+  private void prepareCoefficients(final double[] energies,
+      final boolean cryo, final Map<Double, Coefficients> prepared) {
+    double[] photoElectric = new double[energies.length];
+    double[] coherent = new double[energies.length];
+    double[] total = new double[energies.length];
+    double[] compton = new double[energies.length];
+
+    for (Element e : cryo ? cryoElements : presentElements) {
+      double n = cryo ? getCryoOccurrence(e) : totalAtoms(e);
+      for (int m = 0; m < energies.length; m++) {
+        Element.CrossSections cs = e.getCrossSections(energies[m]);
+        photoElectric[m] += n * cs.getPhotoelectric() / cellVolume
+            / UNITSPERDECIUNIT;
+        coherent[m] += n * cs.getCoherent() / cellVolume / UNITSPERDECIUNIT;
+        total[m] += n * cs.getTotal() / cellVolume / UNITSPERDECIUNIT;
+        compton[m] += n * cs.getCompton() / cellVolume / UNITSPERDECIUNIT;
+      }
+    }
+
+    for (int m = 0; m < energies.length; m++) {
+      prepared.put(energies[m], new Coefficients(
+          photoElectric[m] / UNITSPERMILLIUNIT,
+          coherent[m] / UNITSPERMILLIUNIT,
+          compton[m] / UNITSPERMILLIUNIT,
+          total[m] / UNITSPERMILLIUNIT));
+    }
+  }
+
   /**
    * Calculates the absorption, attenuation and elastic coefficients for
    * the entire crystal.
@@ -295,11 +367,10 @@ public class CoefCalcCompute extends CoefCalc {
    * @param energy
    *          The energy in KeV of the incident photons.
    * @return
-   *         Map containing the calculated coefficient values.
+   *         calculated coefficient values.
    */
-  private Map<String, Double> calculateCoefficientsAll(final double energy) {
+  private Coefficients calculateCoefficientsAll(final double energy) {
     
-    Map<String, Double> absCoeffs = new HashMap<String, Double>();
     double crossSectionPhotoElectric = 0;
     double crossSectionCoherent = 0;
     double crossSectionTotal = 0;
@@ -307,20 +378,20 @@ public class CoefCalcCompute extends CoefCalc {
 
     // take cross section contributions from each individual atom
     // weighted by the cell volume
-    Map<Element.CrossSection, Double> cs;
+    Element.CrossSections cs;
     for (Element e : this.presentElements) {
-      cs = e.getAbsCoefficients(energy);
+      cs = e.getCrossSections(energy);
       crossSectionPhotoElectric += totalAtoms(e)
-          * cs.get(CrossSection.PHOTOELECTRIC) / cellVolume
+          * cs.getPhotoelectric() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionCoherent += totalAtoms(e)
-          * cs.get(CrossSection.COHERENT) / cellVolume
+          * cs.getCoherent() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionTotal += totalAtoms(e)
-          * cs.get(CrossSection.TOTAL) / cellVolume
+          * cs.getTotal() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionComptonAttenuation += totalAtoms(e) 
-          * cs.get(CrossSection.COMPTON) / cellVolume
+          * cs.getCompton() / cellVolume
           / UNITSPERDECIUNIT;  
     }
     crossSectionPhotoElectric = crossSectionPhotoElectric / UNITSPERMILLIUNIT;
@@ -328,12 +399,8 @@ public class CoefCalcCompute extends CoefCalc {
     crossSectionCoherent = crossSectionCoherent / UNITSPERMILLIUNIT;
     crossSectionComptonAttenuation = crossSectionComptonAttenuation/ UNITSPERMILLIUNIT;
     
-    absCoeffs.put(PHOTOELECTRIC, crossSectionPhotoElectric);
-    absCoeffs.put(ELASTIC, crossSectionCoherent);
-    absCoeffs.put(COMPTON, crossSectionComptonAttenuation);
-    absCoeffs.put(TOTAL, crossSectionTotal);
-
-    return absCoeffs;
+    return new Coefficients(crossSectionPhotoElectric, crossSectionCoherent,
+        crossSectionComptonAttenuation, crossSectionTotal);
   }
   
   /**
@@ -347,12 +414,11 @@ public class CoefCalcCompute extends CoefCalc {
    *          calculated from.
    *          
    * @return
-   *         Map containing the calculated coefficient values.
+   *         calculated coefficient values.
    */
-  private Map<String, Double> calculateCoefficientsElement(final double energy, 
+  private Coefficients calculateCoefficientsElement(final double energy, 
       final Element element) {
     
-    Map<String, Double> absCoeffs = new HashMap<String, Double>();
     double crossSectionPhotoElectric = 0;
     double crossSectionCoherent = 0;
     double crossSectionTotal = 0;
@@ -360,19 +426,19 @@ public class CoefCalcCompute extends CoefCalc {
 
     // take cross section contributions from each individual atom
     // weighted by the cell volume
-    Map<Element.CrossSection, Double> cs;
-    cs = element.getAbsCoefficients(energy);
+    Element.CrossSections cs;
+    cs = element.getCrossSections(energy);
     crossSectionPhotoElectric += totalAtoms(element)
-        * cs.get(CrossSection.PHOTOELECTRIC) / cellVolume
+        * cs.getPhotoelectric() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionCoherent += totalAtoms(element)
-        * cs.get(CrossSection.COHERENT) / cellVolume
+        * cs.getCoherent() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionTotal += totalAtoms(element)
-        * cs.get(CrossSection.TOTAL) / cellVolume
+        * cs.getTotal() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionComptonAttenuation += totalAtoms(element)  
-        * cs.get(CrossSection.COMPTON) / cellVolume
+        * cs.getCompton() / cellVolume
         / UNITSPERDECIUNIT;    
     
     crossSectionPhotoElectric = crossSectionPhotoElectric / UNITSPERMILLIUNIT;
@@ -380,12 +446,8 @@ public class CoefCalcCompute extends CoefCalc {
     crossSectionCoherent = crossSectionCoherent / UNITSPERMILLIUNIT;
     crossSectionComptonAttenuation = crossSectionComptonAttenuation/ UNITSPERMILLIUNIT;
     
-    absCoeffs.put(PHOTOELECTRIC, crossSectionPhotoElectric);
-    absCoeffs.put(ELASTIC, crossSectionCoherent);
-    absCoeffs.put(COMPTON, crossSectionComptonAttenuation);
-    absCoeffs.put(TOTAL, crossSectionTotal);
-
-    return absCoeffs;
+    return new Coefficients(crossSectionPhotoElectric, crossSectionCoherent,
+        crossSectionComptonAttenuation, crossSectionTotal);
   }
 
   /**
@@ -395,11 +457,10 @@ public class CoefCalcCompute extends CoefCalc {
    * @param energy
    *          The energy in KeV of the incident photons.
    * @return
-   *         Map containing the calculated coefficient values.
+   *         calculated coefficient values.
    */
-  private Map<String, Double> calculateCryoCoefficientsAll(final double energy) {
+  private Coefficients calculateCryoCoefficientsAll(final double energy) {
     
-    Map<String, Double> absCoeffs = new HashMap<String, Double>();
     double crossSectionPhotoElectric = 0;
     double crossSectionCoherent = 0;
     double crossSectionTotal = 0;
@@ -407,20 +468,20 @@ public class CoefCalcCompute extends CoefCalc {
 
     // take cross section contributions from each individual atom
     // weighted by the cell volume
-    Map<Element.CrossSection, Double> cs;
+    Element.CrossSections cs;
     for (Element e : this.cryoElements) {
-      cs = e.getAbsCoefficients(energy);
+      cs = e.getCrossSections(energy);
       crossSectionPhotoElectric += getCryoOccurrence(e)
-          * cs.get(CrossSection.PHOTOELECTRIC) / cellVolume
+          * cs.getPhotoelectric() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionCoherent += getCryoOccurrence(e)
-          * cs.get(CrossSection.COHERENT) / cellVolume
+          * cs.getCoherent() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionTotal += getCryoOccurrence(e)
-          * cs.get(CrossSection.TOTAL) / cellVolume
+          * cs.getTotal() / cellVolume
           / UNITSPERDECIUNIT;
       crossSectionComptonAttenuation += getCryoOccurrence(e) 
-          * cs.get(CrossSection.COMPTON) / cellVolume
+          * cs.getCompton() / cellVolume
           / UNITSPERDECIUNIT;  
     }
     crossSectionPhotoElectric = crossSectionPhotoElectric / UNITSPERMILLIUNIT;
@@ -428,12 +489,8 @@ public class CoefCalcCompute extends CoefCalc {
     crossSectionCoherent = crossSectionCoherent / UNITSPERMILLIUNIT;
     crossSectionComptonAttenuation = crossSectionComptonAttenuation/ UNITSPERMILLIUNIT;
     
-    absCoeffs.put(PHOTOELECTRIC, crossSectionPhotoElectric);
-    absCoeffs.put(ELASTIC, crossSectionCoherent);
-    absCoeffs.put(COMPTON, crossSectionComptonAttenuation);
-    absCoeffs.put(TOTAL, crossSectionTotal);
-
-    return absCoeffs;
+    return new Coefficients(crossSectionPhotoElectric, crossSectionCoherent,
+        crossSectionComptonAttenuation, crossSectionTotal);
   }
   
   /**
@@ -443,10 +500,9 @@ public class CoefCalcCompute extends CoefCalc {
    * @param element
    * @return
    */
-  private Map<String, Double> calculateCoefficientsCryoElement(final double energy, 
+  private Coefficients calculateCoefficientsCryoElement(final double energy, 
       final Element element) {
     
-    Map<String, Double> absCoeffs = new HashMap<String, Double>();
     double crossSectionPhotoElectric = 0;
     double crossSectionCoherent = 0;
     double crossSectionTotal = 0;
@@ -454,19 +510,19 @@ public class CoefCalcCompute extends CoefCalc {
 
     // take cross section contributions from each individual atom
     // weighted by the cell volume
-    Map<Element.CrossSection, Double> cs;
-    cs = element.getAbsCoefficients(energy);
+    Element.CrossSections cs;
+    cs = element.getCrossSections(energy);
     crossSectionPhotoElectric += getCryoOccurrence(element)
-        * cs.get(CrossSection.PHOTOELECTRIC) / cellVolume
+        * cs.getPhotoelectric() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionCoherent += getCryoOccurrence(element)
-        * cs.get(CrossSection.COHERENT) / cellVolume
+        * cs.getCoherent() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionTotal += getCryoOccurrence(element)
-        * cs.get(CrossSection.TOTAL) / cellVolume
+        * cs.getTotal() / cellVolume
         / UNITSPERDECIUNIT;
     crossSectionComptonAttenuation += getCryoOccurrence(element)  
-        * cs.get(CrossSection.COMPTON) / cellVolume
+        * cs.getCompton() / cellVolume
         / UNITSPERDECIUNIT;    
     
     crossSectionPhotoElectric = crossSectionPhotoElectric / UNITSPERMILLIUNIT;
@@ -474,12 +530,8 @@ public class CoefCalcCompute extends CoefCalc {
     crossSectionCoherent = crossSectionCoherent / UNITSPERMILLIUNIT;
     crossSectionComptonAttenuation = crossSectionComptonAttenuation/ UNITSPERMILLIUNIT;
     
-    absCoeffs.put(PHOTOELECTRIC, crossSectionPhotoElectric);
-    absCoeffs.put(ELASTIC, crossSectionCoherent);
-    absCoeffs.put(COMPTON, crossSectionComptonAttenuation);
-    absCoeffs.put(TOTAL, crossSectionTotal);
-
-    return absCoeffs;
+    return new Coefficients(crossSectionPhotoElectric, crossSectionCoherent,
+        crossSectionComptonAttenuation, crossSectionTotal);
   }
   
   @Override
@@ -488,16 +540,16 @@ public class CoefCalcCompute extends CoefCalc {
     int element_counter = 0;
     double kShellEnergy,kFactorA,kFactorB,escapeMuAbsK,l1ShellEnergy,l1FactorA,l1FactorB,escapeMuAbsL1,l2ShellEnergy,l2FactorA,
     l2FactorB,escapeMuAbsL2,l3ShellEnergy,l3FactorA,l3FactorB,escapeMuAbsL3;
-    Map<String, Double> photonMuAbsK;
+    Coefficients photonMuAbsK;
     
     double m1ShellEnergy, m2ShellEnergy, m3ShellEnergy, m4ShellEnergy, m5ShellEnergy,
            m1FactorA, m2FactorA, m3FactorA, m4FactorA, m5FactorA;
     
-    Map<String, Double> photonMuAbsL1;
-    Map<String, Double> photonMuAbsL2;
-    Map<String, Double> photonMuAbsL3;
+    Coefficients photonMuAbsL1;
+    Coefficients photonMuAbsL2;
+    Coefficients photonMuAbsL3;
     
-    Map<String, Double> elAbsCoeffs;
+    Coefficients elAbsCoeffs;
     
     for (Element e : this.presentElements) {
       elAbsCoeffs = calculateCoefficientsElement(beam.getPhotonEnergy(), e);
@@ -516,7 +568,7 @@ public class CoefCalcCompute extends CoefCalc {
 
         //Fluorescent escape probability. This takes muabs as mupe. 
         //Fluorescence too low energy to consider compton in muabs
-        escapeMuAbsK = photonMuAbsK.get(PHOTOELECTRIC);
+        escapeMuAbsK = photonMuAbsK.photoelectric;
       } 
       else {
         kShellEnergy = 0.0;
@@ -533,7 +585,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l1FactorB = e.getL1ShellFluorescenceYield();
                
       //  photonMuAbsL1 = calculateCoefficientsAll(e.getLFluorescenceAverage());       
-      //  escapeMuAbsL1 = photonMuAbsL1.get(PHOTOELECTRIC);       
+      //  escapeMuAbsL1 = photonMuAbsL1.photoelectric;       
       } 
       else {
         l1ShellEnergy = 0.0;
@@ -550,7 +602,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l2FactorB = e.getL2ShellFluorescenceYield();
 
       //  photonMuAbsL2 = calculateCoefficientsAll(e.getLFluorescenceAverage());       
-      //  escapeMuAbsL2 = photonMuAbsL2.get(PHOTOELECTRIC);
+      //  escapeMuAbsL2 = photonMuAbsL2.photoelectric;
       } 
       else {
         l2ShellEnergy = 0.0;
@@ -567,7 +619,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l3FactorB = e.getL3ShellFluorescenceYield();
 
       //  photonMuAbsL3 = calculateCoefficientsAll(e.getLFluorescenceAverage());       
-      //  escapeMuAbsL3 = photonMuAbsL3.get(PHOTOELECTRIC);
+      //  escapeMuAbsL3 = photonMuAbsL3.photoelectric;
       } 
       else {
         l3ShellEnergy = 0.0;
@@ -623,7 +675,7 @@ public class CoefCalcCompute extends CoefCalc {
         m5FactorA = 0.0;
       }
   
-      double muAbsFrac = elAbsCoeffs.get(PHOTOELECTRIC) / absCoeffphoto;
+      double muAbsFrac = elAbsCoeffs.photoelectric / absCoeffphoto;
       
       //TODO change these to be something more readable, like a map structure
       fluorEscapeFactors[element_counter][0] = muAbsFrac;
@@ -667,12 +719,12 @@ public class CoefCalcCompute extends CoefCalc {
     int element_counter = 0;
     double kShellEnergy,kFactorA,kFactorB,escapeMuAbsK,l1ShellEnergy,l1FactorA,l2ShellEnergy,l2FactorA,
     l3ShellEnergy,l3FactorA;
-    Map<String, Double> photonMuAbsK;
+    Coefficients photonMuAbsK;
     
     double m1ShellEnergy, m2ShellEnergy, m3ShellEnergy, m4ShellEnergy, m5ShellEnergy,
            m1FactorA, m2FactorA, m3FactorA, m4FactorA, m5FactorA;
     
-    Map<String, Double> elAbsCoeffs;
+    Coefficients elAbsCoeffs;
     
     for (Element e : this.cryoElements) {
       elAbsCoeffs = calculateCoefficientsCryoElement(beam.getPhotonEnergy(), e);
@@ -691,7 +743,7 @@ public class CoefCalcCompute extends CoefCalc {
         
         //Fluorescent escape probability. This takes muabs as mupe. 
         //Fluorescence too low energy to consider compton in muabs
-        escapeMuAbsK = photonMuAbsK.get(PHOTOELECTRIC);
+        escapeMuAbsK = photonMuAbsK.photoelectric;
       } 
       else {
         kShellEnergy = 0.0;
@@ -709,7 +761,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l1FactorB = e.getL1ShellFluorescenceYield();
 
       //  photonMuAbsL1 = calculateCoefficientsAll(e.getLFluorescenceAverage());       
-      //  escapeMuAbsL1 = photonMuAbsL1.get(PHOTOELECTRIC);  
+      //  escapeMuAbsL1 = photonMuAbsL1.photoelectric;  
       } 
       else {
         l1ShellEnergy = 0.0;
@@ -725,7 +777,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l2FactorB = e.getL2ShellFluorescenceYield();
 
       //  photonMuAbsL2 = calculateCoefficientsAll(e.getLFluorescenceAverage());     
-      //  escapeMuAbsL2 = photonMuAbsL2.get(PHOTOELECTRIC);
+      //  escapeMuAbsL2 = photonMuAbsL2.photoelectric;
       } 
       else {
         l2ShellEnergy = 0.0;
@@ -740,7 +792,7 @@ public class CoefCalcCompute extends CoefCalc {
       //  l3FactorB = e.getL3ShellFluorescenceYield();
 
       //  photonMuAbsL3 = calculateCoefficientsAll(e.getLFluorescenceAverage());    
-      //  escapeMuAbsL3 = photonMuAbsL3.get(PHOTOELECTRIC);
+      //  escapeMuAbsL3 = photonMuAbsL3.photoelectric;
       } 
       else {
         l3ShellEnergy = 0.0;
@@ -794,7 +846,7 @@ public class CoefCalcCompute extends CoefCalc {
         m5FactorA = 0.0;
       }
 
-      double muAbsFrac = elAbsCoeffs.get(PHOTOELECTRIC) / cryoAbsCoeffPhoto;
+      double muAbsFrac = elAbsCoeffs.photoelectric / cryoAbsCoeffPhoto;
       
       //TODO change these to be something more readable, like a map structure
       fluorEscapeFactors[element_counter][0] = muAbsFrac;
@@ -1409,5 +1461,27 @@ public class CoefCalcCompute extends CoefCalc {
       return cryoElements;
     }
   }
-  
+
+  /**
+   * Absorption, attenuation and elastic coefficients of a set of atoms, in
+   * units of per micrometre.
+   */
+  private static final class Coefficients {
+    /** Absorption by the photoelectric effect. */
+    final double photoelectric;
+    /** Elastic scattering. */
+    final double elastic;
+    /** Compton attenuation. */
+    final double compton;
+    /** Total attenuation. */
+    final double total;
+
+    Coefficients(final double photoelectric, final double elastic,
+        final double compton, final double total) {
+      this.photoelectric = photoelectric;
+      this.elastic = elastic;
+      this.compton = compton;
+      this.total = total;
+    }
+  }
 }
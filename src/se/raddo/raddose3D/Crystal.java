@@ -1,8 +1,11 @@
 package se.raddo.raddose3D;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Crystal abstract class.
@@ -44,6 +47,20 @@ public abstract class Crystal {
   
   /** Constant for data fields in Map constructors: Container Type. */
   public static final String     CRYSTAL_CONTAINER             = "CONTAINER";
+  /** Constant for data fields in Map constructors: Exposure threads. */
+  public static final String     CRYSTAL_THREADS               = "THREADS";
+  /** Constant for data fields in Map constructors: Depth map resolution. */
+  public static final String     CRYSTAL_DEPTH_MAP_RESOLUTION  = "DEPTHMAPRES";
+  /** Constant for data fields in Map constructors: Summary histogram bins. */
+  public static final String     CRYSTAL_SUMMARY_HISTOGRAM     = "SUMMARYHIST";
+  /** Constant for data fields in Map constructors: Photoelectron stencil. */
+  public static final String     CRYSTAL_PE_STENCIL            = "PESTENCIL";
+  /** Constant for data fields in Map constructors: FFT escape convolution. */
+  public static final String     CRYSTAL_ESCAPE_FFT            = "ESCAPEFFT";
+  /** Constant for data fields in Map constructors: Beam grid resolution. */
+  public static final String     CRYSTAL_BEAM_GRID             = "BEAMGRID";
+  /** Constant for data fields in Map constructors: Geometry cache size. */
+  public static final String     CRYSTAL_GEOMETRY_CACHE        = "GEOMETRYCACHE";
 
   /** Default recommended voxel resolution in voxels/micrometre. */
   protected static  Double  CRYSTAL_RESOLUTION_DEF        = 0.5d;
@@ -90,6 +107,18 @@ public abstract class Crystal {
   private double totalPEEnergyToRelease = 0;
   private double totalFlEnergyToRelease   = 0;
   private double totalDoseFromSurrounding = 0;
+
+  /**
+   * Number of crystal and surrounding voxels skipped because they lie outside
+   * the beam footprint, summed over all angles.
+   */
+  private long totalCulledVoxels = 0;
+
+  /**
+   * Widening in um of the beam footprint, on top of one voxel, so that voxels
+   * on its edge are never skipped because of rounding.
+   */
+  private static final double FOOTPRINT_TOLERANCE = 1e-6;
   
   /**
    * crystal minimum and maximum dimensions
@@ -125,6 +154,42 @@ public abstract class Crystal {
    */
   public final boolean verticalGoniometer; 
   
+  /**
+   * Number of threads used to expose the crystal voxels at each angle.
+   * 1 selects the serial voxel loop.
+   */
+  private final int exposureThreads;
+
+  /**
+   * Number of bins per decade of dose used by the exposure summary to find
+   * dose thresholds, or 0 to keep every voxel dose.
+   */
+  private final int summaryHistogramBins;
+
+  /**
+   * Number of beam grid points per voxel width used to look up the beam
+   * intensity, or 0 to calculate it at every voxel.
+   */
+  private final double beamGridPoints;
+
+  /**
+   * Memory in MB available for keeping the voxel geometry of earlier
+   * exposures, or 0 to calculate it at every angle.
+   */
+  private final double geometryCacheMB;
+
+  /**
+   * Voxel positions and depths of earlier exposures, created on the first
+   * exposure if geometryCacheMB is positive.
+   */
+  private ExposureGeometryCache geometryCache;
+  
+  /**
+   * Fork-join pool for the parallel voxel loop. Only exists while a wedge
+   * is being exposed with more than one thread.
+   */
+  private ForkJoinPool exposurePool;
+  
   /**
    * Average photoelectron binding energy to subtract from beam energy to get average photoelectron energy
    */
@@ -142,7 +207,18 @@ public abstract class Crystal {
  // public double[][] fluorescenceProportionEvent;
   public double[] fluorescenceProportionEvent;
   
-  double[][][] voxImageDoseLast;
+  /**
+   * Per-voxel scratch arrays for a single exposure angle, allocated on the
+   * first exposure and reused for every angle and wedge afterwards.
+   */
+  private ExposureWorkspace exposureWorkspace;
+
+  /**
+   * Voxels of the surrounding grid exposed for photoelectron transfer into
+   * the crystal, as linear indices with k varying fastest. Set up for each
+   * beam by calculateCryoSolutionParameters.
+   */
+  private long[] cryoShell;
   /**
    * List of registered exposureObservers. Registered objects will be notified
    * of individual voxel exposure events and can also inspect the Crystal object
@@ -204,6 +280,57 @@ public abstract class Crystal {
     //Get the goniometer axis
     String goniometer =  String.valueOf(properties.get(CRYSTAL_GONIOMETER_AXIS));
     verticalGoniometer = ("90.0".equals(goniometer)); //so horizontal is default 
+    
+    //Get the number of exposure threads, 0 meaning one per processor
+    if (properties.get(CRYSTAL_THREADS) == null) {
+      exposureThreads = 1;
+    } else {
+      int threads = ((Number) properties.get(CRYSTAL_THREADS)).intValue();
+      if (threads < 0) {
+        throw new IllegalArgumentException(
+            "Number of exposure threads must not be negative");
+      }
+      if (threads == 0) {
+        threads = Runtime.getRuntime().availableProcessors();
+      }
+      exposureThreads = threads;
+    }
+
+    //Get the summary dose histogram resolution, 0 meaning exact
+    if (properties.get(CRYSTAL_SUMMARY_HISTOGRAM) == null) {
+      summaryHistogramBins = 0;
+    } else {
+      summaryHistogramBins = ((Number) properties
+          .get(CRYSTAL_SUMMARY_HISTOGRAM)).intValue();
+      if (summaryHistogramBins < 0) {
+        throw new IllegalArgumentException(
+            "Number of summary histogram bins must not be negative");
+      }
+    }
+
+    //Get the beam grid resolution, 0 meaning exact beam intensities
+    if (properties.get(CRYSTAL_BEAM_GRID) == null) {
+      beamGridPoints = 0;
+    } else {
+      beamGridPoints = ((Number) properties.get(CRYSTAL_BEAM_GRID))
+          .doubleValue();
+      if (beamGridPoints < 0) {
+        throw new IllegalArgumentException(
+            "Beam grid resolution must not be negative");
+      }
+    }
+
+    //Get the memory for the geometry cache, 0 meaning no cache
+    if (properties.get(CRYSTAL_GEOMETRY_CACHE) == null) {
+      geometryCacheMB = 0;
+    } else {
+      geometryCacheMB = ((Number) properties.get(CRYSTAL_GEOMETRY_CACHE))
+          .doubleValue();
+      if (geometryCacheMB < 0) {
+        throw new IllegalArgumentException(
+            "Geometry cache size must not be negative");
+      }
+    }
 
     //Check that ppm is sensible
     if ((properties.get(CRYSTAL_RESOLUTION) != null) && (properties.get(CRYSTAL_DIM_X) != null)) {
@@ -260,6 +387,33 @@ public abstract class Crystal {
   public abstract double[] getCrystCoord(int i, int j, int k);
   public abstract double[] getCryoCrystCoord(int i, int j, int k);
 
+  /**
+   * Writes the coordinates of voxel ijk into coord. Crystals that calculate
+   * their coordinates on demand should override this to avoid allocating.
+   *
+   * @param i i coord
+   * @param j j coord
+   * @param k k coord
+   * @param coord 3 element array receiving the crystal coordinates
+   */
+  public void getCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    System.arraycopy(getCrystCoord(i, j, k), 0, coord, 0, 3);
+  }
+
+  /**
+   * Writes the coordinates of voxel ijk of the surrounding into coord.
+   *
+   * @param i i coord
+   * @param j j coord
+   * @param k k coord
+   * @param coord 3 element array receiving the surrounding coordinates
+   */
+  public void getCryoCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    System.arraycopy(getCryoCrystCoord(i, j, k), 0, coord, 0, 3);
+  }
+
   /**
    * returns TRUE if there is a crystal at the coordinates i, j, k.
    *
@@ -314,6 +468,17 @@ public abstract class Crystal {
    */
   public abstract double addDoseAfterFL(int i, int j, int k, double doseIncreaseFL);
 
+  /**
+   * Deposits any escaping dose that addDoseAfterPE and addDoseAfterFL have
+   * held back until every voxel has been exposed at the current angle.
+   *
+   * @return 2 element array with the voxel dose lost from the crystal by PE
+   *         escape and by fluorescence escape
+   */
+  protected double[] finishEscape() {
+    return new double[2];
+  }
+
   /**
    * set new photoelectron trajectory parameters for current beam
    *
@@ -572,8 +737,173 @@ public abstract class Crystal {
   public void calculateCryoSolutionParameters(final Beam beam, double[][] cryoFeFactors) {
     calculatePEEnergySubtraction(cryoFeFactors, true);
     setCryoPEparamsForCurrentBeam(beam, coefCalc, cryoFeFactors); 
+    cryoShell = findCryoShell();
+  }
+
+  /**
+   * Lists the voxels of the surrounding grid that lie outside the crystal but
+   * close enough to it for their photoelectrons to reach it, so that only
+   * this shell has to be visited at every angle. The surrounding extends
+   * getCryoExtraVoxels() beyond the crystal's bounding box, which is the
+   * photoelectron range, so voxels further than that from the bounding box
+   * are left out as well.
+   *
+   * Subclasses may list more voxels outside the crystal, such as the whole
+   * surrounding grid, which only makes the exposure slower.
+   *
+   * @return linear indices of the shell voxels in the surrounding grid, in
+   *         ascending order
+   */
+  protected long[] findCryoShell() {
+    final int[] cryoCrystalSize = getCryoCrystSizeVoxels();
+    final int[] crystalSize = getCrystSizeVoxels();
+    double ppmRatio = (getCrystalPixPerUM() / getCryoCrystalPixPerUM());
+    int extraVoxels = getCryoExtraVoxels();
+    // photoelectron range in crystal voxels, plus one for rounding
+    double range = (extraVoxels + 1) * ppmRatio + 1;
+
+    long[] shell = new long[1024];
+    int count = 0;
+    long index = 0;
+    for (int i = 0; i < cryoCrystalSize[0]; i++) {
+      for (int j = 0; j < cryoCrystalSize[1]; j++) {
+        for (int k = 0; k < cryoCrystalSize[2]; k++, index++) {
+          double iCryst = (i - extraVoxels) * ppmRatio;
+          double jCryst = (j - extraVoxels) * ppmRatio;
+          double kCryst = (k - extraVoxels) * ppmRatio;
+
+          if (isCrystalAt((int) StrictMath.round(iCryst),
+              (int) StrictMath.round(jCryst),
+              (int) StrictMath.round(kCryst))) {
+            continue;
+          }
+          double di = distanceOutside(iCryst, crystalSize[0]);
+          double dj = distanceOutside(jCryst, crystalSize[1]);
+          double dk = distanceOutside(kCryst, crystalSize[2]);
+          if (di * di + dj * dj + dk * dk > range * range) {
+            continue;
+          }
+
+          if (count == shell.length) {
+            shell = Arrays.copyOf(shell, count * 2);
+          }
+          shell[count++] = index;
+        }
+      }
+    }
+    return Arrays.copyOf(shell, count);
+  }
+
+  /**
+   * @param v voxel coordinate along an axis
+   * @param n number of crystal voxels along the axis
+   * @return distance of v from the range 0 to n - 1.
+   */
+  private static double distanceOutside(final double v, final int n) {
+    return Math.max(0, Math.max(-v, v - (n - 1)));
   }
   
+  /**
+   * Returns the crystal to its unexposed state, keeping its geometry, so that
+   * another exposure can be simulated without building the crystal again.
+   * Voxel doses, fluences and elastic yields are cleared along with the
+   * cumulative escape and dose totals.
+   */
+  public void resetExposure() {
+    clearVoxelExposure();
+    totalEscapedDose = 0;
+    totalEscapedDosePE = 0;
+    totalEscapedDoseFL = 0;
+    totalAugerEnergyToRelease = 0;
+    totalPEEnergyToRelease = 0;
+    totalFlEnergyToRelease = 0;
+    totalDoseFromSurrounding = 0;
+    totalCrystalDose = 0;
+    totalCulledVoxels = 0;
+    firstWedge = true;
+  }
+
+  /**
+   * Sets the dose, fluence and elastic yield of every voxel back to zero.
+   */
+  protected abstract void clearVoxelExposure();
+
+  /**
+   * Keeps the voxel geometry of every crystal position in the given wedges,
+   * so that exposing them again after resetExposure() only evaluates the
+   * beam and the attenuation. A smaller cache set with GEOMETRYCACHE is
+   * replaced, unless the Java heap has no room for the larger one.
+   *
+   * @param wedges
+   *          wedges that are going to be exposed repeatedly
+   */
+  public void cacheGeometryFor(final List<Wedge> wedges) {
+    long positions = 0;
+    for (Wedge w : wedges) {
+      if (isStaticExposure(w)) {
+        positions++;
+      } else {
+        positions += exposureAngles(w).length;
+      }
+    }
+    int[] size = getCrystSizeVoxels();
+    int voxels = size[0] * size[1] * size[2];
+    if (geometryCache != null && geometryCache.getCapacity() >= positions) {
+      return;
+    }
+
+    double bytes = (double) positions * ExposureGeometry.bytes(voxels);
+    Runtime runtime = Runtime.getRuntime();
+    long free = runtime.maxMemory()
+        - (runtime.totalMemory() - runtime.freeMemory());
+    if (bytes > free / 2) {
+      System.out.println(String.format(
+          "Geometry of %d crystal positions not cached as it needs %.0f MB.",
+          positions, bytes / (1 << 20)));
+      return;
+    }
+    // Half a position more so that rounding cannot lose the last one.
+    geometryCache = new ExposureGeometryCache(voxels,
+        (bytes + 0.5 * ExposureGeometry.bytes(voxels)) / (1 << 20));
+  }
+
+  /**
+   * @param wedge
+   *          exposure strategy
+   * @return true if the wedge does not rotate the crystal.
+   */
+  private static boolean isStaticExposure(final Wedge wedge) {
+    return Math.abs(wedge.getStartAng() - wedge.getEndAng())
+        < wedge.getAngRes();
+  }
+
+  /**
+   * @param wedge
+   *          exposure strategy
+   * @return angles in radians at which the wedge exposes the crystal.
+   */
+  private static double[] exposureAngles(final Wedge wedge) {
+    double[] angles;
+    if (isStaticExposure(wedge)) {
+      angles = new double[STATICEXPOSURE]; // TODO: something clever
+      for (int i = 0; i < angles.length; i++) {
+        angles[i] = wedge.getStartAng();
+      }
+    } else {
+      Integer sign = 1;
+      if (wedge.getEndAng() < wedge.getStartAng()) {
+        sign = -1;
+      }
+      angles = new double[sign
+          * (int) ((wedge.getEndAng() - wedge.getStartAng())
+              / wedge.getAngRes() + 1)];
+      for (int i = 0; i < angles.length; i++) {
+        angles[i] = wedge.getStartAng() + sign * i * wedge.getAngRes();
+      }
+    }
+    return angles;
+  }
+
   /**
    * Expose this crystal to a given beam according to a strategy.
    *
@@ -584,12 +914,21 @@ public abstract class Crystal {
    *          translational and rotational information.
    */
   public void expose(final Beam beam, final Wedge wedge) {
-    //initialise previous voxel dose for DWD
+    //initialise per-angle workspace and previous voxel dose for DWD
     if (firstWedge == true) {
-      final int[] crystalSize = getCrystSizeVoxels();
-      voxImageDoseLast = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
+      exposureWorkspace = new ExposureWorkspace(getCrystSizeVoxels());
       firstWedge = false;
     }
+    final long culledBefore = totalCulledVoxels;
+    if (geometryCacheMB > 0 && geometryCache == null) {
+      int[] size = getCrystSizeVoxels();
+      geometryCache = new ExposureGeometryCache(size[0] * size[1] * size[2],
+          geometryCacheMB);
+      if (geometryCache.getCapacity() == 0) {
+        System.out.println("Geometry cache not used as it is too small for "
+            + "a single crystal position.");
+      }
+    }
     double fluorescenceEnergyRelease = 0;
     double augerEnergy = 0;   
     double cryoAugerEnergy = 0;
@@ -653,45 +992,51 @@ public abstract class Crystal {
     //for each type of beam.
     beam.generateBeamArray();
 
-    // Set up angles to iterate over.
-    double[] angles;
-    if (Math.abs(wedge.getStartAng() - wedge.getEndAng()) < wedge.getAngRes()) {
-      angles = new double[STATICEXPOSURE]; // TODO: something clever
-      for (int i = 0; i < angles.length; i++) {
-        angles[i] = wedge.getStartAng();
-      }
-    } else {
-      Integer sign = 1;
-      if (wedge.getEndAng() < wedge.getStartAng()) {
-        sign = -1;
-      }
-      angles = new double[sign
-          * (int) ((wedge.getEndAng() - wedge.getStartAng())
-              / wedge.getAngRes() + 1)];
-      for (int i = 0; i < angles.length; i++) {
-        angles[i] = wedge.getStartAng() + sign * i * wedge.getAngRes();
+    //Look up the beam intensity from a grid if requested
+    Beam exposureBeam = beam;
+    if (beamGridPoints > 0) {
+      double[] extent = beam.getBeamExtent();
+      if (Double.isInfinite(extent[0]) || Double.isInfinite(extent[1])) {
+        System.out.println("Beam grid not used as the beam is not collimated.");
+      } else {
+        exposureBeam = new BeamGrid(beam,
+            1 / (beamGridPoints * getCrystalPixPerUM()));
       }
     }
 
+    // Set up angles to iterate over.
+    double[] angles = exposureAngles(wedge);
+
     for (ExposeObserver eo : exposureObservers) {
       eo.exposureStart(angles.length);
     }
 
+    if (exposureThreads > 1) {
+      exposurePool = new ForkJoinPool(exposureThreads);
+    }
+
     // The main meat of it:
-    for (int n = 0; n < angles.length; n++) {
-      // Expose one angle
-      exposeAngle(angles[n], beam, wedge, n, angles.length, fluorescenceEnergyRelease, 
-                  augerEnergy, cryoAugerEnergy, cryoFluorescenceEnergyRelease, feFactors, cryoFeFactors);
-
-      for (ExposeObserver eo : exposureObservers) {
-        double lastAngle = 0;
-        if (n > 0) {
-          lastAngle = angles[n-1];
+    try {
+      for (int n = 0; n < angles.length; n++) {
+        // Expose one angle
+        exposeAngle(angles[n], exposureBeam, wedge, n, angles.length, fluorescenceEnergyRelease, 
+                    augerEnergy, cryoAugerEnergy, cryoFluorescenceEnergyRelease, feFactors, cryoFeFactors);
+
+        for (ExposeObserver eo : exposureObservers) {
+          double lastAngle = 0;
+          if (n > 0) {
+            lastAngle = angles[n-1];
+          }
+          eo.imageComplete(n, angles[n], lastAngle, Math.pow(getCrystalPixPerUM(), -3));
         }
-        eo.imageComplete(n, angles[n], lastAngle, Math.pow(getCrystalPixPerUM(), -3));
-      }
 
-    } // end of looping over angles
+      } // end of looping over angles
+    } finally {
+      if (exposurePool != null) {
+        exposurePool.shutdown();
+        exposurePool = null;
+      }
+    }
 
     double fractionEscapedDose = (totalEscapedDose - totalDoseFromSurrounding)/totalCrystalDose; //Just to test escaped dose
     
@@ -722,6 +1067,11 @@ public abstract class Crystal {
       System.out.print(String.format("Total energy that may escape by Fluorescent Escape: %.2e", totalEscapedDoseFL));
       System.out.println(" J.\n");
     }
+    if (totalCulledVoxels > culledBefore) {
+      System.out.println(String.format(
+          "Voxels skipped as they lie outside the beam footprint: %d",
+          totalCulledVoxels - culledBefore));
+    }
 
     ///////////////////////////////////////////////////////
     // END OF EXPOSE METHOD
@@ -740,7 +1090,16 @@ public abstract class Crystal {
 
     final double anglecos = Math.cos(angle);
     final double anglesin = Math.sin(angle);
-    setupDepthFinding(angle, wedge);
+
+    // With cached geometry the depths may all be known already, so depth
+    // finding is only set up once a depth is needed.
+    ExposureGeometry geometry = null;
+    if (geometryCache != null) {
+      geometry = geometryCache.get(angle, wedgeStart, wedgeTranslation);
+    }
+    if (geometry == null) {
+      setupDepthFinding(angle, wedge);
+    }
     
     
     //Set up tracks in polarised direction for photoelectrons
@@ -792,143 +1151,91 @@ public abstract class Crystal {
     final double beamAttenuationExpFactor = -coefCalc     
         .getAttenuationCoefficient();
     
-    double[] crystCoords;
-    double[] translateRotateCoords = new double[3];
+    final double[] translateRotateCoords = new double[3];
     
-    double[][][] voxImageFluence = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
-    double[][][] voxImageDose = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
-    double[][][] absorbedEnergy = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
-    double[][][] voxElasticYield = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
-    double[][][] voxImageComptonFluence = new double[crystalSize[0]][crystalSize[1]][crystalSize[2]];
+    final ExposureWorkspace workspace = exposureWorkspace;
     
-    for (int i = 0; i < crystalSize[0]; i++) {
-      for (int j = 0; j < crystalSize[1]; j++) {
-        for (int k = 0; k < crystalSize[2]; k++) {
-          if (isCrystalAt(i, j, k)) {
-            // Rotate crystal into position
-            crystCoords = getCrystCoord(i, j, k);
-            translateRotateCoords = translateCrystalToPosition(crystCoords, wedgeStart, wedgeTranslation,
-                                                               anglecos, anglesin) ;
-            
-            /* Unattenuated beam intensity (J/um^2/s) */
-            double unattenuatedBeamIntensity = beam.beamIntensity(
-                translateRotateCoords[0], translateRotateCoords[1],
-                wedge.getOffAxisUm());
-
-            if (unattenuatedBeamIntensity > 0d) {
-              double depth = findDepth(translateRotateCoords, angle, wedge);
-
-              /*
-               * Assigning exposure (joules incident) and dose (J/kg absorbed)
-               * to the voxel.
-               */
-          
-              voxImageFluence[i][j][k] =     // Attenuates the beam for absorption in joules 
-                  unattenuatedBeamIntensity * beamAttenuationFactor // beam attenuation factor includes voxel size
-                      * Math.exp(depth * beamAttenuationExpFactor);   
-              
-              //calculate compton effect
-              double electronweight = 9.10938356E-31;
-              double csquared = 3E8*3E8;
-              double beamenergy = (beam.getPhotonEnergy() * Beam.KEVTOJOULES);
-              double mcsquared = electronweight * csquared;
-              double voxImageElectronEnergyDose = mcsquared / (2*beamenergy + mcsquared);
-              voxImageElectronEnergyDose = (beamenergy * (1 - (Math.pow(voxImageElectronEnergyDose, 0.5)))); //Compton electron energy in joules
-              double numberofphotons = voxImageFluence[i][j][k] / beamenergy; //This gives I0 in equation 9 in Karthik 2010, dividing by beam energy leaves photons per um^2/s
-              voxImageComptonFluence[i][j][k] = numberofphotons * voxImageElectronEnergyDose; //Re-calculate voxImageFluence using Compton electron energy
-              double voxImageDoseCompton = fluenceToDoseFactorCompton * voxImageComptonFluence[i][j][k];
-              
-              
-              //elastic yield
-              voxElasticYield[i][j][k] = fluenceToElasticFactor *
-                  voxImageFluence[i][j][k]; //* beamEnergy;
-              //Dose absorbed by photoelectric effect
-              voxImageDose[i][j][k] = fluenceToDoseFactor * voxImageFluence[i][j][k];
-
-              if (voxImageDose[i][j][k] > 0) {
-                totalCrystalDose += voxImageDose[i][j][k];
-
-                addFluence(i, j, k, voxImageFluence[i][j][k]);
-                
-                if (photoElectronEscape == true && fluorescentEscape == true) {
-                 //Fl part
-                //Energy to be released by voxel
-                  double totFluorescenceEnergyRelease = fluorescenceEnergyRelease * numberofphotons;
-                //convert this to a dose to be released
-                  double voxImageFlDoseRelease = fluenceToDoseFactor * totFluorescenceEnergyRelease;
-                                  
-                  //auger part
-                  //Dose in voxel
-                  double totAugerDose = augerEnergy * numberofphotons * fluenceToDoseFactor;
-                  
-                  //Do PE
-                  double dosePE = voxImageDose[i][j][k] - voxImageFlDoseRelease - totAugerDose;
-                   
-                  double doseLostFromCrystalPE = addDoseAfterPE(i, j, k, dosePE); //to run with new photoelectron escape
-                  double doseLostFromCrytsalFL = 0;
-                  if (voxImageFlDoseRelease > 0) { //necessary to prevent error when 0
-                  doseLostFromCrytsalFL = addDoseAfterFL(i, j, k, voxImageFlDoseRelease);
-                  }
-                  totalEscapedDosePE +=  doseLostFromCrystalPE;
-                  totalEscapedDoseFL += doseLostFromCrytsalFL;
-                  totalEscapedDose += doseLostFromCrystalPE + doseLostFromCrytsalFL;
-                  
-                  //These to test
-                  totalFlEnergyToRelease += voxImageFlDoseRelease;
-                  totalPEEnergyToRelease += dosePE;
-                  totalAugerEnergyToRelease += totAugerDose;
-                  
-                  //add Auger to Voxel
-                  if(totAugerDose > 0) {
-                  addDose(i, j, k, totAugerDose);
-                  }
-                } 
-                else if (photoElectronEscape == true && fluorescentEscape == false) { //only do PE escape
-                  //Dose in voxel
-                  double totAugerDose = augerEnergy * numberofphotons * fluenceToDoseFactor;
-                  //Do PE
-                  double dosePE = voxImageDose[i][j][k] - totAugerDose;
-                  double doseLostFromCrystalPE = addDoseAfterPE(i, j, k, dosePE);
-                  totalEscapedDosePE +=  doseLostFromCrystalPE;
-                  totalEscapedDose += doseLostFromCrystalPE;
-                  //add Auger to Voxel
-                  if(totAugerDose > 0) {
-                  addDose(i, j, k, totAugerDose);
-                  }
-                }
-                else if (photoElectronEscape == false && fluorescentEscape == true) { //only do Fluorescent escape
-                  //Energy to be released by voxel
-                  double totFluorescenceEnergyRelease = fluorescenceEnergyRelease * numberofphotons;
-                //convert this to a dose to be released
-                  double voxImageFlDoseRelease = fluenceToDoseFactor * totFluorescenceEnergyRelease;
-                  double doseLeft = voxImageDose[i][j][k] - voxImageFlDoseRelease;
-                  double doseLostFromCrytsalFL = 0;
-                  if (voxImageFlDoseRelease > 0) {
-                  doseLostFromCrytsalFL = addDoseAfterFL(i, j, k, voxImageFlDoseRelease);
-                  }
-                  addDose(i, j, k, doseLeft);
-                  totalEscapedDoseFL += doseLostFromCrytsalFL;
-                  totalEscapedDose +=  doseLostFromCrytsalFL;
-                  
-                }
-                else { // no escape
-                  addDose(i, j, k, voxImageDose[i][j][k]);
-                }
-
-                addDose(i, j, k, voxImageDoseCompton);
-                addElastic(i, j, k, voxElasticYield[i][j][k]);
-
-              } else if (voxImageDose[i][j][k] < 0) {
-                throw new ArithmeticException(
-                    "negative dose encountered - this should never happen");
+    //calculate compton effect
+    double electronweight = 9.10938356E-31;
+    double csquared = 3E8*3E8;
+    double beamenergy = (beam.getPhotonEnergy() * Beam.KEVTOJOULES);
+    double mcsquared = electronweight * csquared;
+    double voxImageElectronEnergyDose = mcsquared / (2*beamenergy + mcsquared);
+    voxImageElectronEnergyDose = (beamenergy * (1 - (Math.pow(voxImageElectronEnergyDose, 0.5)))); //Compton electron energy in joules
+    
+    final ExposureStep step = new ExposureStep();
+    step.angle = angle;
+    step.beam = beam;
+    step.wedge = wedge;
+    step.wedgeStart = wedgeStart;
+    step.wedgeTranslation = wedgeTranslation;
+    step.anglecos = anglecos;
+    step.anglesin = anglesin;
+    step.beamAttenuationFactor = beamAttenuationFactor;
+    step.beamAttenuationExpFactor = beamAttenuationExpFactor;
+    step.fluenceToDoseFactor = fluenceToDoseFactor;
+    step.fluenceToDoseFactorCompton = fluenceToDoseFactorCompton;
+    step.fluenceToElasticFactor = fluenceToElasticFactor;
+    step.beamEnergy = beamenergy;
+    step.comptonElectronEnergy = voxImageElectronEnergyDose;
+    step.fluorescenceEnergyRelease = fluorescenceEnergyRelease;
+    step.augerEnergy = augerEnergy;
+    step.workspace = workspace;
+    step.beamExtent = beam.getBeamExtent();
+    step.geometry = geometry;
+    step.depthFindingReady = geometry == null;
+    
+    final ExposureTotals angleTotals = new ExposureTotals();
+    if (exposurePool == null) {
+      exposeCrystalSlab(0, crystalSize[0], step, angleTotals, false);
+    } else {
+      // Occupancy may be set up lazily (e.g. polyhedron normals), so make
+      // sure that shared state exists before the slabs are handed out.
+      isCrystalAt(0, 0, 0);
+      
+      // One accumulator per i-plane, summed in plane order afterwards, so
+      // the result does not depend on thread count or scheduling.
+      final ExposureTotals[] planeTotals = new ExposureTotals[crystalSize[0]];
+      exposurePool.invoke(new SlabExposureTask(0, crystalSize[0], step,
+          planeTotals));
+      for (int i = 0; i < crystalSize[0]; i++) {
+        angleTotals.add(planeTotals[i]);
+      }
+      
+      // Escape redistribution writes to neighbouring voxels, so it is done
+      // after the slabs have finished, in the same voxel order as the
+      // serial loop.
+      if (photoElectronEscape || fluorescentEscape) {
+        for (int i = 0; i < crystalSize[0]; i++) {
+          for (int j = 0; j < crystalSize[1]; j++) {
+            for (int k = 0; k < crystalSize[2]; k++) {
+              if (isCrystalAt(i, j, k)
+                  && workspace.dose[workspace.index(i, j, k)] > 0) {
+                depositPrimaryDose(i, j, k, workspace.index(i, j, k), step,
+                    angleTotals);
               }
-            } // IF inbeam
-          } // IF crystOcc
-        } //i
-      } // j
-    } // k : end of looping over crystal voxels
+            }
+          }
+        }
+      }
+    }
+    
+    if (photoElectronEscape || fluorescentEscape) {
+      double[] escaped = finishEscape();
+      angleTotals.escapedDosePE += escaped[0];
+      angleTotals.escapedDoseFL += escaped[1];
+      angleTotals.escapedDose += escaped[0] + escaped[1];
+    }
+
+    totalCrystalDose += angleTotals.crystalDose;
+    totalEscapedDose += angleTotals.escapedDose;
+    totalEscapedDosePE += angleTotals.escapedDosePE;
+    totalEscapedDoseFL += angleTotals.escapedDoseFL;
+    totalFlEnergyToRelease += angleTotals.flEnergyToRelease;
+    totalPEEnergyToRelease += angleTotals.peEnergyToRelease;
+    totalAugerEnergyToRelease += angleTotals.augerEnergyToRelease;
+    totalCulledVoxels += angleTotals.culledVoxels;
     
-  
   //Now I am exposing the surrounding solution   
   boolean aSurface = coefCalc.isCryo(); //iscryo should change
   if (aSurface) {
@@ -961,129 +1268,470 @@ public abstract class Crystal {
       
       final int[] cryoCrystalSize = getCryoCrystSizeVoxels();
  //     final int extraVoxels = getExtraVoxels(int maxPEDistance);
-      double[] cryoCrystCoord;
+      double[] cryoCrystCoord = new double[3];
       double[] depthCoords = new double[3];
       double ppmRatio = (getCrystalPixPerUM() / getCryoCrystalPixPerUM());
       int extraVoxels = getCryoExtraVoxels();
-      for (int i = 0; i < cryoCrystalSize[0]; i++) {
-        for (int j = 0; j < cryoCrystalSize[1]; j++) {
-          for (int k = 0; k < cryoCrystalSize[2]; k++) {
-            //if this is an extra voxel
-            
-            double iCryst = (i - extraVoxels) * ppmRatio;
-            double jCryst = (j - extraVoxels) * ppmRatio;
-            double kCryst = (k - extraVoxels) * ppmRatio;
-            
-            int iconverted = (int) StrictMath.round(iCryst); 
-            int jconverted = (int) StrictMath.round(jCryst);
-            int kconverted = (int) StrictMath.round(kCryst);
-                    
-            if (isCrystalAt(iconverted, jconverted, kconverted) == false) { // if this voxel is not in the original crystal
-              cryoCrystCoord = getCryoCrystCoord(i, j, k);
-              
-              translateRotateCoords = translateCrystalToPosition(cryoCrystCoord, wedgeStart, wedgeTranslation,
-                  anglecos, anglesin) ;
-
-              // Unattenuated beam intensity (J/um^2/s) 
-              double unattenuatedBeamIntensity = beam.beamIntensity(
-                  translateRotateCoords[0], translateRotateCoords[1],
-                  wedge.getOffAxisUm());
-              
-              if (unattenuatedBeamIntensity > 0d) {
-                //Set the depth coordinates based on crystal depth
-                for(int m = 0; m < 3; m++) {
-                  if (translateRotateCoords[m] < minimumDimensions[m]) {
-                    depthCoords[m] = minimumDimensions[m];
-                  }
-                  else if (translateRotateCoords[m] > maximumDimensions[m]) {
-                    depthCoords[m] = maximumDimensions[m];
-                  }
-                  else {
-                    depthCoords[m] = translateRotateCoords[m];
-                  }
-                }
-                
-                double depth = findDepth(depthCoords, angle, wedge);
-                
-                double cryoVoxImageFluence =     // Attenuates the beam for absorption in joules 
-                    unattenuatedBeamIntensity * beamAttenuationFactor
-                        * Math.exp(depth * beamAttenuationExpFactor); 
-                //For Auger
-                double beamEnergy = (beam.getPhotonEnergy() * Beam.KEVTOJOULES);
-                double numberOfPhotons = cryoVoxImageFluence / beamEnergy;
-                
-                double cryoVoxImageEnergy = energyPerFluence * cryoVoxImageFluence; 
-                double cryoVoxImageDose= fluenceToDoseFactor * cryoVoxImageFluence;
-                                                                             
-                if (cryoVoxImageEnergy > 0) {
-            //    if (cryoVoxImageDose > 0) { 
-                  double energyPE = 0;
-                  double dosePE = 0;
-                  double totCryoAugerEnergy = cryoAugerEnergy * numberOfPhotons * energyPerFluence;
-                  double totCryoAugerDose = cryoAugerEnergy * numberOfPhotons * fluenceToDoseFactor;
-                  if (fluorescentEscape == false) {
-                    energyPE = cryoVoxImageEnergy - totCryoAugerEnergy;
-                    dosePE = cryoVoxImageDose - totCryoAugerDose;
-                  }
-                  else {
-                    double totCryoFluorescenceEnergyRelease = cryoFluorescenceEnergyRelease * numberOfPhotons;
-                    //convert this to a dose to be released
-                    double voxImageFlEnergyRelease = energyPerFluence * totCryoFluorescenceEnergyRelease;
-                    double voxImageFlDoseRelease = fluenceToDoseFactor * totCryoFluorescenceEnergyRelease;
-                    energyPE = cryoVoxImageEnergy - totCryoAugerEnergy - voxImageFlEnergyRelease;
-                    dosePE = cryoVoxImageDose - totCryoAugerDose - voxImageFlDoseRelease;
-                  }
-                  double doseAddedBack = addDoseAfterPECryo(iCryst, jCryst, kCryst, energyPE, energyToDoseFactor);
-              //    double doseAddedBack = addDoseAfterPECryo(iconverted, jconverted, kconverted, dosePE, energyToDoseFactor);
-                  totalDoseFromSurrounding += doseAddedBack;
-                } // end if voximage dose > 0
-              } // end if unattenuated beam intensity > 0
-            } // end if crystal not at
-          } //end k
-        } // end j
-      }  //end i
+      final long cryoPlane = (long) cryoCrystalSize[1] * cryoCrystalSize[2];
+      final int cryoLine = cryoCrystalSize[2];
+      final double[] firstCoords = new double[3];
+      final double[] lastCoords = new double[3];
+      final int[] footprint = new int[2];
+      final double[] beamExtent = beam.getBeamExtent();
+      prepareDepthFinding(step);
+      long column = -1;
+      for (long voxel : cryoShell) {
+        int i = (int) (voxel / cryoPlane);
+        int j = (int) ((voxel / cryoLine) % cryoCrystalSize[1]);
+        int k = (int) (voxel % cryoLine);
+
+        // The shell is in voxel order, so each line along k is visited in
+        // one go and its part inside the beam found once.
+        if (voxel / cryoLine != column) {
+          column = voxel / cryoLine;
+          getCryoCrystCoord(i, j, 0, cryoCrystCoord);
+          translateCrystalToPosition(cryoCrystCoord, wedgeStart,
+              wedgeTranslation, anglecos, anglesin, firstCoords);
+          getCryoCrystCoord(i, j, cryoLine - 1, cryoCrystCoord);
+          translateCrystalToPosition(cryoCrystCoord, wedgeStart,
+              wedgeTranslation, anglecos, anglesin, lastCoords);
+          beamFootprint(firstCoords, lastCoords, cryoLine, beamExtent,
+              wedge.getOffAxisUm(), footprint);
+        }
+        if (k < footprint[0] || k >= footprint[1]) {
+          totalCulledVoxels++;
+          continue;
+        }
+
+        double iCryst = (i - extraVoxels) * ppmRatio;
+        double jCryst = (j - extraVoxels) * ppmRatio;
+        double kCryst = (k - extraVoxels) * ppmRatio;
+
+        // the shell only holds voxels outside the crystal
+        getCryoCrystCoord(i, j, k, cryoCrystCoord);
+        
+        translateCrystalToPosition(cryoCrystCoord, wedgeStart, wedgeTranslation,
+            anglecos, anglesin, translateRotateCoords) ;
+
+        // Unattenuated beam intensity (J/um^2/s) 
+        double unattenuatedBeamIntensity = beam.beamIntensity(
+            translateRotateCoords[0], translateRotateCoords[1],
+            wedge.getOffAxisUm());
+        
+        if (unattenuatedBeamIntensity > 0d) {
+          //Set the depth coordinates based on crystal depth
+          for(int m = 0; m < 3; m++) {
+            if (translateRotateCoords[m] < minimumDimensions[m]) {
+              depthCoords[m] = minimumDimensions[m];
+            }
+            else if (translateRotateCoords[m] > maximumDimensions[m]) {
+              depthCoords[m] = maximumDimensions[m];
+            }
+            else {
+              depthCoords[m] = translateRotateCoords[m];
+            }
+          }
+          
+          double depth = findDepth(depthCoords, angle, wedge);
+          
+          double cryoVoxImageFluence =     // Attenuates the beam for absorption in joules 
+              unattenuatedBeamIntensity * beamAttenuationFactor
+                  * Math.exp(depth * beamAttenuationExpFactor); 
+          //For Auger
+          double beamEnergy = (beam.getPhotonEnergy() * Beam.KEVTOJOULES);
+          double numberOfPhotons = cryoVoxImageFluence / beamEnergy;
+          
+          double cryoVoxImageEnergy = energyPerFluence * cryoVoxImageFluence; 
+          double cryoVoxImageDose= fluenceToDoseFactor * cryoVoxImageFluence;
+                                                                       
+          if (cryoVoxImageEnergy > 0) {
+      //    if (cryoVoxImageDose > 0) { 
+            double energyPE = 0;
+            double dosePE = 0;
+            double totCryoAugerEnergy = cryoAugerEnergy * numberOfPhotons * energyPerFluence;
+            double totCryoAugerDose = cryoAugerEnergy * numberOfPhotons * fluenceToDoseFactor;
+            if (fluorescentEscape == false) {
+              energyPE = cryoVoxImageEnergy - totCryoAugerEnergy;
+              dosePE = cryoVoxImageDose - totCryoAugerDose;
+            }
+            else {
+              double totCryoFluorescenceEnergyRelease = cryoFluorescenceEnergyRelease * numberOfPhotons;
+              //convert this to a dose to be released
+              double voxImageFlEnergyRelease = energyPerFluence * totCryoFluorescenceEnergyRelease;
+              double voxImageFlDoseRelease = fluenceToDoseFactor * totCryoFluorescenceEnergyRelease;
+              energyPE = cryoVoxImageEnergy - totCryoAugerEnergy - voxImageFlEnergyRelease;
+              dosePE = cryoVoxImageDose - totCryoAugerDose - voxImageFlDoseRelease;
+            }
+            double doseAddedBack = addDoseAfterPECryo(iCryst, jCryst, kCryst, energyPE, energyToDoseFactor);
+        //    double doseAddedBack = addDoseAfterPECryo(iconverted, jconverted, kconverted, dosePE, energyToDoseFactor);
+            totalDoseFromSurrounding += doseAddedBack;
+          } // end if voximage dose > 0
+        } // end if unattenuated beam intensity > 0
+      }  //end shell voxels
     } // end if pe true
   }//end if there is a surface
  
   //loop through all again for DWD - needs to go after cryo as well!!!
-  for (int i = 0; i < crystalSize[0]; i++) {
-    for (int j = 0; j < crystalSize[1]; j++) {
-      for (int k = 0; k < crystalSize[2]; k++) {
-        if (isCrystalAt(i, j, k)) {
-          if (voxImageDose[i][j][k] > 0) {
-            double totalVoxelDose = getDose(i, j, k); //how can this be done before the whole crystal???
-            //This may need to change - ask what this is
-            double interpolatedVoxelDose = totalVoxelDose + voxImageDose[i][j][k] / 2; // this needs to change for PE escape
-            double relativeDiffractionEfficiency =
+  observeAngle(anglenum, workspace, energyPerFluence);
+  }
+
+  /**
+   * Passes the exposure of every voxel at the current angle on to the
+   * registered observers, then records the total voxel doses for the next
+   * image.
+   *
+   * @param anglenum running image number
+   * @param workspace exposure workspace holding the results of this angle
+   * @param energyPerFluence fraction of the fluence absorbed by a voxel
+   */
+  private void observeAngle(final int anglenum,
+      final ExposureWorkspace workspace, final double energyPerFluence) {
+    final int[] crystalSize = getCrystSizeVoxels();
+    int exposedCount = 0;
+    for (int i = 0; i < crystalSize[0]; i++) {
+      for (int j = 0; j < crystalSize[1]; j++) {
+        int idx = workspace.index(i, j, 0);
+        for (int k = 0; k < crystalSize[2]; k++, idx++) {
+          if (isCrystalAt(i, j, k) && workspace.dose[idx] > 0) {
+            double totalVoxelDose = getDose(i, j, k);
+            double interpolatedVoxelDose = totalVoxelDose
+                + workspace.dose[idx] / 2; // this needs to change for PE escape
+            workspace.relativeDiffractionEfficiency[idx] =
                 getDDM().calcDecay(interpolatedVoxelDose);
-            
-            // Fluence times the fraction of the beam absorbed by the voxel
-            
-//may need to pass in different things or pass in more and change in observer
-
-            absorbedEnergy[i][j][k] = voxImageFluence[i][j][k] * energyPerFluence;
-            double comptonabsorbedEnergy = voxImageComptonFluence[i][j][k] * energyPerFluence;
-            
-            absorbedEnergy[i][j][k] = absorbedEnergy[i][j][k] + comptonabsorbedEnergy;
- 
-         //   relativeDiffractionEfficiency = 1;
-            for (ExposeObserver eo : exposureObservers) {
-              eo.exposureObservation(anglenum, i, j, k, voxImageDose[i][j][k],   //voxImageDose should be added dose (doesn't do Compton or escape)
-                  voxImageDoseLast[i][j][k], voxImageFluence[i][j][k],
-                  relativeDiffractionEfficiency, absorbedEnergy[i][j][k],
-                  voxElasticYield[i][j][k]);
-            }
-            voxImageDoseLast[i][j][k] = totalVoxelDose;
+
+            // Fluence times the fraction of the beam absorbed by the voxel,
+            // both photoelectric and Compton
+            double absorbedEnergy = workspace.fluence[idx] * energyPerFluence;
+            double comptonabsorbedEnergy = workspace.comptonFluence[idx]
+                * energyPerFluence;
+            workspace.absorbedEnergy[idx] = absorbedEnergy
+                + comptonabsorbedEnergy;
+
+            workspace.exposed[exposedCount++] = idx;
           }
         }
       }
     }
+    workspace.exposedCount = exposedCount;
+
+    AngleResult result = new AngleResult(workspace, anglenum);
+    for (ExposeObserver eo : exposureObservers) {
+      if (eo instanceof ExposeAngleObserver) {
+        ((ExposeAngleObserver) eo).angleObservations(result);
+      } else {
+        result.replay(eo);
+      }
+    }
+
+    for (int n = 0; n < exposedCount; n++) {
+      int idx = workspace.exposed[n];
+      workspace.doseLast[idx] = getDose(result.getI(idx), result.getJ(idx),
+          result.getK(idx));
+    }
   }
+
+  /**
+   * Exposes the crystal voxels in the i-planes iStart (inclusive) to iEnd
+   * (exclusive) for a single angle. Voxels in different i-planes are
+   * independent, so disjoint slabs may be exposed concurrently as long as
+   * escape redistribution is deferred.
+   *
+   * @param iStart first i-plane of the slab
+   * @param iEnd i-plane after the last plane of the slab
+   * @param step quantities shared by all voxels at this angle
+   * @param totals accumulator for the running totals of this slab
+   * @param deferEscape if true, photoelectron and fluorescent escape are left
+   *          to the caller as they deposit dose outside the slab
+   */
+  private void exposeCrystalSlab(final int iStart, final int iEnd,
+      final ExposureStep step, final ExposureTotals totals,
+      final boolean deferEscape) {
+    final int[] crystalSize = getCrystSizeVoxels();
+    final boolean escape = photoElectronEscape || fluorescentEscape;
+    final ExposureWorkspace workspace = step.workspace;
+    final double[] fluence = workspace.fluence;
+    final double[] dose = workspace.dose;
+    final double[] crystCoords = new double[3];
+    final double[] translateRotateCoords = new double[3];
+    final double[] lastCoords = new double[3];
+    final int[] footprint = new int[2];
+    final int line = crystalSize[2];
+    final ExposureGeometry geometry = step.geometry;
+
+    for (int i = iStart; i < iEnd; i++) {
+      for (int j = 0; j < crystalSize[1]; j++) {
+        // Only visit the part of the line along k that can be in the beam
+        getCrystCoord(i, j, 0, crystCoords);
+        translateCrystalToPosition(crystCoords,
+            step.wedgeStart, step.wedgeTranslation,
+            step.anglecos, step.anglesin, translateRotateCoords);
+        getCrystCoord(i, j, line - 1, crystCoords);
+        translateCrystalToPosition(crystCoords,
+            step.wedgeStart, step.wedgeTranslation,
+            step.anglecos, step.anglesin, lastCoords);
+        beamFootprint(translateRotateCoords, lastCoords, line,
+            step.beamExtent, step.wedge.getOffAxisUm(), footprint);
+
+        int lineStart = workspace.index(i, j, 0);
+        workspace.clear(lineStart, lineStart + footprint[0]);
+        workspace.clear(lineStart + footprint[1], lineStart + line);
+        totals.culledVoxels += line - (footprint[1] - footprint[0]);
+
+        int idx = lineStart + footprint[0];
+        for (int k = footprint[0]; k < footprint[1]; k++, idx++) {
+          if (isCrystalAt(i, j, k)) {
+            // Rotate crystal into position
+            if (geometry == null || !geometry.hasPosition(idx)) {
+              getCrystCoord(i, j, k, crystCoords);
+              translateCrystalToPosition(crystCoords,
+                  step.wedgeStart, step.wedgeTranslation,
+                  step.anglecos, step.anglesin, translateRotateCoords);
+              if (geometry != null) {
+                geometry.setPosition(idx, translateRotateCoords);
+              }
+            } else {
+              translateRotateCoords[0] = geometry.x[idx];
+              translateRotateCoords[1] = geometry.y[idx];
+            }
+
+            /* Unattenuated beam intensity (J/um^2/s) */
+            double unattenuatedBeamIntensity = step.beam.beamIntensity(
+                translateRotateCoords[0], translateRotateCoords[1],
+                step.wedge.getOffAxisUm());
+
+            if (unattenuatedBeamIntensity > 0d) {
+              double depth;
+              if (geometry == null) {
+                depth = findDepth(translateRotateCoords, step.angle,
+                    step.wedge);
+              } else {
+                depth = cachedDepth(i, j, k, idx, step, crystCoords,
+                    translateRotateCoords);
+              }
+
+              /*
+               * Assigning exposure (joules incident) and dose (J/kg absorbed)
+               * to the voxel.
+               */
+
+              fluence[idx] =     // Attenuates the beam for absorption in joules 
+                  unattenuatedBeamIntensity * step.beamAttenuationFactor // beam attenuation factor includes voxel size
+                      * Math.exp(depth * step.beamAttenuationExpFactor);
+
+              double numberofphotons = fluence[idx] / step.beamEnergy; //This gives I0 in equation 9 in Karthik 2010, dividing by beam energy leaves photons per um^2/s
+              workspace.comptonFluence[idx] = numberofphotons * step.comptonElectronEnergy; //Re-calculate voxImageFluence using Compton electron energy
+              double voxImageDoseCompton = step.fluenceToDoseFactorCompton
+                  * workspace.comptonFluence[idx];
+
+              //elastic yield
+              workspace.elastic[idx] = step.fluenceToElasticFactor *
+                  fluence[idx]; //* beamEnergy;
+              //Dose absorbed by photoelectric effect
+              dose[idx] = step.fluenceToDoseFactor * fluence[idx];
+
+              if (dose[idx] > 0) {
+                totals.crystalDose += dose[idx];
+
+                addFluence(i, j, k, fluence[idx]);
+
+                if (!(deferEscape && escape)) {
+                  depositPrimaryDose(i, j, k, idx, step, totals);
+                }
+
+                addDose(i, j, k, voxImageDoseCompton);
+                addElastic(i, j, k, workspace.elastic[idx]);
+
+              } else if (dose[idx] < 0) {
+                throw new ArithmeticException(
+                    "negative dose encountered - this should never happen");
+              }
+            } else {
+              workspace.clear(idx);
+            } // IF inbeam
+          } // IF crystOcc
+        } // k
+      } // j
+    } // i : end of looping over slab voxels
+  }
+
+  /**
+   * Returns the depth of a voxel from the cached geometry, finding and
+   * storing it if it is not known yet.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param idx workspace index of the voxel
+   * @param step quantities shared by all voxels at this angle
+   * @param crystCoords scratch array for the crystal coordinates
+   * @param translateRotateCoords scratch array for the voxel position
+   * @return depth in um.
+   */
+  private double cachedDepth(final int i, final int j, final int k,
+      final int idx, final ExposureStep step, final double[] crystCoords,
+      final double[] translateRotateCoords) {
+    final ExposureGeometry geometry = step.geometry;
+    if (Double.isNaN(geometry.depth[idx])) {
+      // Only x and y are cached, so find the whole position again
+      getCrystCoord(i, j, k, crystCoords);
+      translateCrystalToPosition(crystCoords,
+          step.wedgeStart, step.wedgeTranslation,
+          step.anglecos, step.anglesin, translateRotateCoords);
+      prepareDepthFinding(step);
+      geometry.depth[idx] = findDepth(translateRotateCoords,
+          step.angle, step.wedge);
+    }
+    return geometry.depth[idx];
+  }
+
+  /**
+   * Sets up depth finding for the angle of an exposure step, unless this
+   * has been done already. Slabs exposed in parallel may get here at the
+   * same time, so the first one does the setup while the others wait.
+   *
+   * @param step quantities shared by all voxels at this angle
+   */
+  private void prepareDepthFinding(final ExposureStep step) {
+    if (!step.depthFindingReady) {
+      synchronized (step) {
+        if (!step.depthFindingReady) {
+          setupDepthFinding(step.angle, step.wedge);
+          step.depthFindingReady = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Deposits the photoelectric dose of a single voxel, redistributing the
+   * photoelectron and fluorescent energy if escape is being modelled.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param idx workspace index of the voxel
+   * @param step quantities shared by all voxels at this angle
+   * @param totals accumulator for the escaped and released energies
+   */
+  private void depositPrimaryDose(final int i, final int j, final int k,
+      final int idx, final ExposureStep step, final ExposureTotals totals) {
+    final double voxImageDose = step.workspace.dose[idx];
+    final double numberofphotons = step.workspace.fluence[idx]
+        / step.beamEnergy;
+
+    if (photoElectronEscape == true && fluorescentEscape == true) {
+     //Fl part
+    //Energy to be released by voxel
+      double totFluorescenceEnergyRelease = step.fluorescenceEnergyRelease * numberofphotons;
+    //convert this to a dose to be released
+      double voxImageFlDoseRelease = step.fluenceToDoseFactor * totFluorescenceEnergyRelease;
+
+      //auger part
+      //Dose in voxel
+      double totAugerDose = step.augerEnergy * numberofphotons * step.fluenceToDoseFactor;
+
+      //Do PE
+      double dosePE = voxImageDose - voxImageFlDoseRelease - totAugerDose;
+
+      double doseLostFromCrystalPE = addDoseAfterPE(i, j, k, dosePE); //to run with new photoelectron escape
+      double doseLostFromCrytsalFL = 0;
+      if (voxImageFlDoseRelease > 0) { //necessary to prevent error when 0
+      doseLostFromCrytsalFL = addDoseAfterFL(i, j, k, voxImageFlDoseRelease);
+      }
+      totals.escapedDosePE +=  doseLostFromCrystalPE;
+      totals.escapedDoseFL += doseLostFromCrytsalFL;
+      totals.escapedDose += doseLostFromCrystalPE + doseLostFromCrytsalFL;
+
+      //These to test
+      totals.flEnergyToRelease += voxImageFlDoseRelease;
+      totals.peEnergyToRelease += dosePE;
+      totals.augerEnergyToRelease += totAugerDose;
+
+      //add Auger to Voxel
+      if(totAugerDose > 0) {
+      addDose(i, j, k, totAugerDose);
+      }
+    } 
+    else if (photoElectronEscape == true && fluorescentEscape == false) { //only do PE escape
+      //Dose in voxel
+      double totAugerDose = step.augerEnergy * numberofphotons * step.fluenceToDoseFactor;
+      //Do PE
+      double dosePE = voxImageDose - totAugerDose;
+      double doseLostFromCrystalPE = addDoseAfterPE(i, j, k, dosePE);
+      totals.escapedDosePE +=  doseLostFromCrystalPE;
+      totals.escapedDose += doseLostFromCrystalPE;
+      //add Auger to Voxel
+      if(totAugerDose > 0) {
+      addDose(i, j, k, totAugerDose);
+      }
+    }
+    else if (photoElectronEscape == false && fluorescentEscape == true) { //only do Fluorescent escape
+      //Energy to be released by voxel
+      double totFluorescenceEnergyRelease = step.fluorescenceEnergyRelease * numberofphotons;
+    //convert this to a dose to be released
+      double voxImageFlDoseRelease = step.fluenceToDoseFactor * totFluorescenceEnergyRelease;
+      double doseLeft = voxImageDose - voxImageFlDoseRelease;
+      double doseLostFromCrytsalFL = 0;
+      if (voxImageFlDoseRelease > 0) {
+      doseLostFromCrytsalFL = addDoseAfterFL(i, j, k, voxImageFlDoseRelease);
+      }
+      addDose(i, j, k, doseLeft);
+      totals.escapedDoseFL += doseLostFromCrytsalFL;
+      totals.escapedDose +=  doseLostFromCrytsalFL;
+
+    }
+    else { // no escape
+      addDose(i, j, k, voxImageDose);
+    }
+  }
+
+  /**
+   * Finds the part of a line of voxels along k that can lie in the beam.
+   * Voxel positions are linear in k, so the beam coordinates along the line
+   * follow from those of its end voxels. The footprint is widened by a voxel
+   * on each side, so voxels outside the range found are certainly out of the
+   * beam, while voxels inside it still have to be checked.
+   *
+   * @param first beam coordinates of the voxel at k = 0
+   * @param last beam coordinates of the voxel at k = n - 1
+   * @param n number of voxels in the line
+   * @param extent beam half widths, as returned by Beam.getBeamExtent()
+   * @param offAxisUM horizontal offset of the beam axis in um
+   * @param range receives the first k and the k after the last voxel that
+   *          may be in the beam
+   */
+  private static void beamFootprint(final double[] first,
+      final double[] last, final int n, final double[] extent,
+      final double offAxisUM, final int[] range) {
+    double low = 0;
+    double high = n - 1;
+    for (int m = 0; m < 2; m++) {
+      double centre = (m == 0) ? offAxisUM : 0;
+      double slope = (n > 1) ? (last[m] - first[m]) / (n - 1) : 0;
+      double halfWidth = extent[m] + Math.abs(slope) + FOOTPRINT_TOLERANCE;
+      double lower = centre - halfWidth - first[m];
+      double upper = centre + halfWidth - first[m];
+      if (slope > 0) {
+        low = Math.max(low, lower / slope);
+        high = Math.min(high, upper / slope);
+      } else if (slope < 0) {
+        low = Math.max(low, upper / slope);
+        high = Math.min(high, lower / slope);
+      } else if (lower > 0 || upper < 0) {
+        low = n;
+      }
+    }
+    if (low > high) {
+      range[0] = 0;
+      range[1] = 0;
+    } else {
+      range[0] = (int) Math.ceil(low);
+      range[1] = (int) Math.floor(high) + 1;
+    }
   }
 
   private double[] translateCrystalToPosition(double[] crystCoords, Double[] wedgeStart, Double[] wedgeTranslation,
-                                               double anglecos, double anglesin) {
-    double[] translateRotateCoords = new double[3];
+                                               double anglecos, double anglesin, double[] translateRotateCoords) {
     // Translate Y
     translateRotateCoords[1] = crystCoords[1]
         + wedgeStart[1] + wedgeTranslation[1];
@@ -1128,7 +1776,12 @@ public abstract class Crystal {
    */
   public synchronized ExposureSummary getExposureSummary() {
     if (exposureSummaryObserver == null) {
-      exposureSummaryObserver = new ExposureSummary();
+      if (summaryHistogramBins > 0) {
+        exposureSummaryObserver = new ExposureSummary(
+            new DoseDistributionHistogram(summaryHistogramBins));
+      } else {
+        exposureSummaryObserver = new ExposureSummary();
+      }
       addObserver(exposureSummaryObserver);
     }
     return exposureSummaryObserver;
@@ -1181,4 +1834,120 @@ public abstract class Crystal {
   public boolean getPEEscapeBool() {
     return photoElectronEscape;
   }
+
+  /**
+   * Returns the number of threads used to expose the crystal voxels.
+   *
+   * @return number of exposure threads, 1 for the serial voxel loop.
+   */
+  public int getExposureThreads() {
+    return exposureThreads;
+  }
+
+  /**
+   * Returns the number of voxels that were not exposed because they lay
+   * outside the beam footprint, counted over all angles so far. Both crystal
+   * voxels and voxels of the surrounding solution are included.
+   *
+   * @return number of culled voxels.
+   */
+  public long getCulledVoxels() {
+    return totalCulledVoxels;
+  }
+
+  /**
+   * Quantities that are constant over all voxels for one exposure angle,
+   * together with the per-voxel results of that angle.
+   */
+  private static final class ExposureStep {
+    double     angle;
+    Beam       beam;
+    Wedge      wedge;
+    Double[]   wedgeStart;
+    Double[]   wedgeTranslation;
+    double     anglecos;
+    double     anglesin;
+    double     beamAttenuationFactor;
+    double     beamAttenuationExpFactor;
+    double     fluenceToDoseFactor;
+    double     fluenceToDoseFactorCompton;
+    double     fluenceToElasticFactor;
+    /** Photon energy in J. */
+    double     beamEnergy;
+    /** Compton electron energy in J. */
+    double     comptonElectronEnergy;
+    double     fluorescenceEnergyRelease;
+    double     augerEnergy;
+    ExposureWorkspace workspace;
+    /** Beam half widths outside which there is no intensity. */
+    double[]   beamExtent;
+    /** Cached voxel geometry at this angle, or null if not cached. */
+    ExposureGeometry geometry;
+    /** Whether setupDepthFinding has been called for this angle. */
+    volatile boolean depthFindingReady;
+  }
+
+  /**
+   * Running totals collected while exposing a set of voxels. The parallel
+   * voxel loop keeps one of these per i-plane.
+   */
+  private static final class ExposureTotals {
+    double crystalDose;
+    double escapedDose;
+    double escapedDosePE;
+    double escapedDoseFL;
+    double flEnergyToRelease;
+    double peEnergyToRelease;
+    double augerEnergyToRelease;
+    long   culledVoxels;
+
+    /**
+     * Adds the totals of another accumulator to this one.
+     *
+     * @param other accumulator to add
+     */
+    void add(final ExposureTotals other) {
+      crystalDose += other.crystalDose;
+      escapedDose += other.escapedDose;
+      escapedDosePE += other.escapedDosePE;
+      escapedDoseFL += other.escapedDoseFL;
+      flEnergyToRelease += other.flEnergyToRelease;
+      peEnergyToRelease += other.peEnergyToRelease;
+      augerEnergyToRelease += other.augerEnergyToRelease;
+      culledVoxels += other.culledVoxels;
+    }
+  }
+
+  /**
+   * Fork-join task exposing a range of i-planes. Ranges are halved until a
+   * single plane remains, which is exposed into its own accumulator.
+   */
+  private final class SlabExposureTask extends RecursiveAction {
+    private static final long      serialVersionUID = 1L;
+    private final int              iStart, iEnd;
+    private final ExposureStep     step;
+    private final ExposureTotals[] planeTotals;
+
+    SlabExposureTask(final int iStart, final int iEnd,
+        final ExposureStep step, final ExposureTotals[] planeTotals) {
+      this.iStart = iStart;
+      this.iEnd = iEnd;
+      this.step = step;
+      this.planeTotals = planeTotals;
+    }
+
+    @Override
+    protected void compute() {
+      if (iEnd - iStart <= 1) {
+        for (int i = iStart; i < iEnd; i++) {
+          planeTotals[i] = new ExposureTotals();
+          exposeCrystalSlab(i, i + 1, step, planeTotals[i], true);
+        }
+      } else {
+        int iMid = (iStart + iEnd) >>> 1;
+        invokeAll(new SlabExposureTask(iStart, iMid, step, planeTotals),
+            new SlabExposureTask(iMid, iEnd, step, planeTotals));
+      }
+    }
+  }
 }
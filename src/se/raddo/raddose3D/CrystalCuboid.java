@@ -64,7 +64,77 @@ public class CrystalCuboid extends CrystalPolyhedron {
   }
 
   public CrystalCuboid(final Map<Object, Object> properties) {
-    super(properties);
+    this(properties, BOX);
+  }
+
+  /**
+   * Constructor for cuboid crystals whose occupancy and depths are found
+   * from a different shape, or from the wireframe faces if it is null.
+   *
+   * @param properties
+   *          Map of type <Object, Object> that contains all crystal properties.
+   *          The keys of the Map are defined by the constants in the
+   *          {@link Crystal} class.
+   * @param shape
+   *          crystal shape in closed form, or null to use the faces
+   */
+  protected CrystalCuboid(final Map<Object, Object> properties,
+      final AnalyticShape shape) {
+    super(properties, shape);
+  }
+
+  /** The box filling the crystal bounding box. */
+  private static final AnalyticShape BOX = new AnalyticShape() {
+    /**
+     * Tests the point against the faces of the box. Like the wireframe, the
+     * box includes its lower x and y faces and its upper z face.
+     */
+    @Override
+    public boolean contains(final double[] size, final double x,
+        final double y, final double z) {
+      double hx = size[0] / 2;
+      double hy = size[1] / 2;
+      double hz = size[2] / 2;
+      return x >= -hx && x < hx && y >= -hy && y < hy && z > -hz && z <= hz;
+    }
+
+    /**
+     * Finds where the ray leaves the slab between each pair of opposite
+     * faces. The nearest of these is where it leaves the box.
+     */
+    @Override
+    public double depth(final double[] size, final double x, final double y,
+        final double z, final double dx, final double dy, final double dz) {
+      double hx = size[0] / 2;
+      double hy = size[1] / 2;
+      double hz = size[2] / 2;
+      if (Math.abs(x) > hx + TOLERANCE
+          || Math.abs(y) > hy + TOLERANCE
+          || Math.abs(z) > hz + TOLERANCE) {
+        return 0;
+      }
+      double depth = slabExit(x, dx, hx);
+      depth = Math.min(depth, slabExit(y, dy, hy));
+      depth = Math.min(depth, slabExit(z, dz, hz));
+      return Math.max(0, depth);
+    }
+  };
+
+  /**
+   * @param position coordinate of the point along one axis
+   * @param direction direction component along the axis
+   * @param halfWidth half the width of the slab
+   * @return distance along the ray to the face of the slab it leaves by.
+   */
+  private static double slabExit(final double position,
+      final double direction, final double halfWidth) {
+    if (direction > 0) {
+      return (halfWidth - position) / direction;
+    } else if (direction < 0) {
+      return (-halfWidth - position) / direction;
+    } else {
+      return Double.POSITIVE_INFINITY;
+    }
   }
 
   /*
@@ -36,16 +36,11 @@ public class CrystalCuboidOld extends Crystal {
   private final int[]          crystSizeVoxels;
 
   /**
-   * Dose and fluence arrays holding the scalar
-   * fields for these values at voxel i,j,k.
+   * Flat voxel storage holding the dose, fluence and elastic fields at voxel
+   * i,j,k. Coordinates of voxel i,j,k in the starting position are calculated
+   * on demand by getCrystCoord.
    */
-  private double[][][]         dose, fluence, elastic;
-
-  /**
-   * 4d array where the 4th dimension is a 3 element array with the coordinates
-   * of the voxel i,j,k in the starting position.
-   */
-  private final double[][][][] crystCoord;
+  private final VoxelGrid      voxels;
 
   /**
    * 8 by 3 double array that defines the xyz coordinates of the crystal in its
@@ -137,48 +132,7 @@ public class CrystalCuboidOld extends Crystal {
     crystSizeVoxels = tempCrystSize; // Final Value
 
     // Initialise dose, elastic, and fluence to the correct size
-    dose = new double[nx][ny][nz];
-    fluence = new double[nx][ny][nz];
-    elastic = new double[nx][ny][nz];
-
-    /*
-     * Calculate Crystal Coordinates, and assign them:
-     */
-
-    double[][][][] tempCrystCoords = new double[nx][ny][nz][3];
-
-    for (int i = 0; i < nx; i++) {
-      for (int j = 0; j < ny; j++) {
-        for (int k = 0; k < nz; k++) {
-
-          /*
-           * Set original coordinate. Temporary variables needed since we use
-           * all of the previous xyz's to set each of the new ones.
-           */
-          double x = -xdim / 2 + i / crystalPixPerUM;
-          double y = -ydim / 2 + j / crystalPixPerUM;
-          double z = -zdim / 2 + k / crystalPixPerUM;
-
-          /*
-           * rotation in plane about [0 0 1] (P) Temporary variables needed
-           * since we use all of the previous xyz's to set each of the new ones.
-           */
-          double x2 = x * Math.cos(p) + y * Math.sin(p);
-          double y2 = -1 * x * Math.sin(p) + y * Math.cos(p);
-          double z2 = z;
-
-          /*
-           * rotation loop about [1 0 0] (L)
-           */
-          tempCrystCoords[i][j][k][0] = x2;
-          tempCrystCoords[i][j][k][1] = y2 * Math.cos(l) + z2 * Math.sin(l);
-          tempCrystCoords[i][j][k][2] = -1 * y2 * Math.sin(l) + z2
-              * Math.cos(l);
-        }
-      }
-    }
-
-    crystCoord = tempCrystCoords; // Final value
+    voxels = new VoxelGrid(nx, ny, nz);
 
     /*
      * Set initial vertex positions. A constant 'delta' is added to each vertex so that the voxels
@@ -373,7 +327,35 @@ public class CrystalCuboidOld extends Crystal {
 
   @Override
   public double[] getCrystCoord(final int i, final int j, final int k) {
-    return crystCoord[i][j][k];
+    double[] coord = new double[3];
+    getCrystCoord(i, j, k, coord);
+    return coord;
+  }
+
+  @Override
+  public void getCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    /*
+     * Set original coordinate. Temporary variables needed since we use
+     * all of the previous xyz's to set each of the new ones.
+     */
+    double x = -crystSizeUM[0] / 2 + i / crystalPixPerUM;
+    double y = -crystSizeUM[1] / 2 + j / crystalPixPerUM;
+    double z = -crystSizeUM[2] / 2 + k / crystalPixPerUM;
+
+    /*
+     * rotation in plane about [0 0 1] (P)
+     */
+    double x2 = x * Math.cos(p) + y * Math.sin(p);
+    double y2 = -1 * x * Math.sin(p) + y * Math.cos(p);
+    double z2 = z;
+
+    /*
+     * rotation loop about [1 0 0] (L)
+     */
+    coord[0] = x2;
+    coord[1] = y2 * Math.cos(l) + z2 * Math.sin(l);
+    coord[2] = -1 * y2 * Math.sin(l) + z2 * Math.cos(l);
   }
 
   @Override
@@ -384,34 +366,39 @@ public class CrystalCuboidOld extends Crystal {
   @Override
   public void addDose(final int i, final int j, final int k,
       final double doseVox) {
-    dose[i][j][k] += doseVox;
+    voxels.addDose(i, j, k, doseVox);
   }
 
   @Override
   public void addElastic(final int i, final int j, final int k,
       final double elasticVox) {
-    elastic[i][j][k] += elasticVox;
+    voxels.addElastic(i, j, k, elasticVox);
   }
 
   @Override
   public void addFluence(final int i, final int j, final int k,
       final double fluenceVox) {
-    fluence[i][j][k] += fluenceVox;
+    voxels.addFluence(i, j, k, fluenceVox);
   }
 
   @Override
   public double getDose(final int i, final int j, final int k) {
-    return dose[i][j][k];
+    return voxels.getDose(i, j, k);
+  }
+
+  @Override
+  protected void clearVoxelExposure() {
+    voxels.clearExposure();
   }
 
   @Override
   public double getElastic(final int i, final int j, final int k) {
-    return elastic[i][j][k];
+    return voxels.getElastic(i, j, k);
   }
 
   @Override
   public double getFluence(final int i, final int j, final int k) {
-    return fluence[i][j][k];
+    return voxels.getFluence(i, j, k);
   }
 
   @Override
@@ -301,9 +301,67 @@ public class CrystalCylinder extends CrystalPolyhedron {
   }
 
   public CrystalCylinder(final Map<Object, Object> properties) {
-    super(properties);
+    super(properties, CYLINDER);
   }
 
+  /**
+   * The cylinder filling the crystal bounding box, with its axis along y.
+   * The wireframe is a 32 sided prism that only approximates this shape.
+   */
+  private static final AnalyticShape CYLINDER = new AnalyticShape() {
+    /**
+     * Tests the point against the circular cross section and the end faces
+     * of the cylinder.
+     */
+    @Override
+    public boolean contains(final double[] size, final double x,
+        final double y, final double z) {
+      double radius = size[0] / 2;
+      double halfHeight = size[1] / 2;
+      return y >= -halfHeight && y < halfHeight
+          && x * x + z * z <= radius * radius;
+    }
+
+    /**
+     * Finds where the ray leaves the curved surface by solving the quadratic
+     * for its distance to the axis, and where it leaves the end faces.
+     */
+    @Override
+    public double depth(final double[] size, final double x, final double y,
+        final double z, final double dx, final double dy, final double dz) {
+      double radius = size[0] / 2;
+      double halfHeight = size[1] / 2;
+      double c = x * x + z * z - radius * radius;
+      if (Math.abs(y) > halfHeight + TOLERANCE
+          || c > 2 * radius * TOLERANCE) {
+        return 0;
+      }
+
+      double depth = Double.POSITIVE_INFINITY;
+      if (dy > 0) {
+        depth = (halfHeight - y) / dy;
+      } else if (dy < 0) {
+        depth = (-halfHeight - y) / dy;
+      }
+
+      // |(x, z) + s (dx, dz)|^2 = radius^2 is a s^2 + 2 b s + c = 0, whose
+      // larger root is the exit as c <= 0 inside the cylinder.
+      double a = dx * dx + dz * dz;
+      if (a > 0) {
+        double b = x * dx + z * dz;
+        double root = Math.sqrt(Math.max(0, b * b - a * c));
+        double exit;
+        if (b > 0) {
+          exit = -c / (b + root);
+        } else {
+          exit = (root - b) / a;
+        }
+        depth = Math.min(depth, exit);
+      }
+      return Math.max(0, depth);
+    }
+  };
+
   /*
    * (non-Javadoc)
    *
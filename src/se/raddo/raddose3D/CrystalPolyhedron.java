@@ -3,10 +3,9 @@
  */
 package se.raddo.raddose3D;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -44,16 +43,10 @@ public class CrystalPolyhedron extends Crystal {
   private int[]           cryoCrystSizeVoxels;
 
   /**
-   * Dose and fluence arrays holding the scalar
-   * fields for these values at voxel i,j,k.
+   * Flat voxel storage holding crystal occupancy and the dose, fluence
+   * and elastic fields at voxel i,j,k.
    */
-  private final double[][][]    dose, fluence, elastic;
-
-  /**
-   * Escape factor (% of photoelectrons which remain within the crystal)
-   * for each voxel coordinate i, j, k.
-   */
-  private final double[][][]    escapeFactor;
+  private final VoxelGrid       voxels;
 
   /**
    * Constants for calculation of Gumbel distribution mu and beta parameters.
@@ -121,6 +114,18 @@ public class CrystalPolyhedron extends Crystal {
    * Stores the indexes of the tracks, biased so a more likely tracks is stored proportionally more times
    */
   private int [] trackNumberBias;
+  private int [] cryoTrackNumberBias;
+
+  /**
+   * Unrotated unit direction of each photoelectron track.
+   */
+  private double[][] peTrackDirections;
+
+  /**
+   * Position of each track in the angular distribution, from its angle to
+   * the polarisation vector.
+   */
+  private int[] peTrackPlace;
   
   /**
    * 3d array for voxels where photoelectrons can reach
@@ -163,19 +168,15 @@ public class CrystalPolyhedron extends Crystal {
  // private double[][][] flDistanceDistribution; 
   private double[][] flDistanceDistribution;
   /**
-   * A boolean (int for extensibility to deeper segmentation) array.
-   * Fourth dimension is a two element array, first element
-   * is a flag (calculated/not calculated) and second element is
-   * a boolean (crystal/not crystal).
+   * Offset subtracted from i/j/k divided by the resolution to give the
+   * unrotated voxel coordinates, for the crystal and the surrounding.
+   * The coordinates themselves are calculated on demand rather than stored.
    */
-  private final boolean[][][][] crystOcc;
+  private final double[]        coordShift;
+  private double[]              cryoCoordShift;
 
-  /**
-   * 4d array where the 4th dimension is a 3 element array with the coordinates
-   * of the voxel i,j,k in the starting position.
-   */
-  private final double[][][][]  crystCoord;
-  private double[][][][]  cryoCrystCoord;
+  /** Sines and cosines of the P and L angles. */
+  private final double          cosP, sinP, cosL, sinL;
 
   /**
    * Vertex array containing a variable number of 3-dimension vertices.
@@ -201,6 +202,83 @@ public class CrystalPolyhedron extends Crystal {
    */
   private double[][][]          expandedRotatedVertices;
 
+  /**
+   * Grid over the x, y projection of expandedRotatedVertices, rebuilt with it
+   * for every angle so that findDepth only tests the faces a ray may cross.
+   */
+  private TriangleGrid          rotatedTriangleGrid;
+
+  /**
+   * Pixels per um of the depth map built at every angle, or 0 to cast a ray
+   * for every depth instead.
+   */
+  private final double          depthMapResolution;
+
+  /** Depth map of the crystal at the current angle, if enabled. */
+  private DepthMap              depthMap;
+
+  /**
+   * Whether photoelectron escape deposits the expected dose along all tracks
+   * instead of sampling a random track for every voxel.
+   */
+  private final boolean         peStencilMode;
+
+  /** Photoelectron redistribution at the current angle, if enabled. */
+  private EscapeStencil         peStencil;
+
+  /** Voxels lying further inside the crystal than the stencil reaches. */
+  private BitSet                peStencilInterior;
+
+  /** Radius for which peStencilInterior was found, or -1. */
+  private int                   peStencilInteriorRadius = -1;
+
+  /**
+   * Whether escaping photoelectron and fluorescent dose is redistributed by
+   * FFT convolution once per angle.
+   */
+  private final boolean         escapeFFTMode;
+
+  /** Photoelectron escape convolution at the current angle, if enabled. */
+  private EscapeConvolution     peConvolution;
+
+  /**
+   * Fluorescent escape convolution for the current beam, if enabled. It is
+   * set up when first needed.
+   */
+  private EscapeConvolution     flConvolution;
+
+  /** Direction of the beam, along which depths are measured. */
+  private static final double[] Z_AXIS = { 0, 0, 1 };
+
+  /**
+   * Crystal shape in closed form, from which the occupancy and depths are
+   * found instead of the wireframe faces, or null if the crystal is only
+   * known by its faces.
+   */
+  private final AnalyticShape   shape;
+
+  /**
+   * Affine map from the rotated coordinates used by findDepth to the
+   * centred crystal frame of an analytic shape at the current angle: the
+   * rows of the 3 x 3 matrix followed by the offset.
+   */
+  private final double[]        shapeTransform = new double[12];
+
+  /**
+   * Direction towards the beam source, along which depths are measured, in
+   * the centred crystal frame at the current angle.
+   */
+  private final double[]        shapeDirection = new double[3];
+
+  /** Scratch buffer for the face distances found by findDepth. */
+  private final ThreadLocal<double[]> depthBuffer =
+      new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+          return new double[16];
+        }
+      };
+
   /**
    * Normal array holding normalised direction vectors for
    * each triangle specified by the index array.
@@ -489,7 +567,26 @@ public class CrystalPolyhedron extends Crystal {
    *          {@link Crystal} class.
    */
   public CrystalPolyhedron(final Map<Object, Object> properties) {
+    this(properties, null);
+  }
+
+  /**
+   * Constructor for polyhedron crystals whose shape is also known in closed
+   * form. The shape then replaces the wireframe for the occupancy and depth
+   * of every voxel. The wireframe is still used for everything else.
+   *
+   * @param properties
+   *          Map of type <Object, Object> that contains all crystal properties.
+   *          The keys of the Map are defined by the constants in the
+   *          {@link Crystal} class.
+   * @param shape
+   *          crystal shape in closed form, or null if the crystal is only
+   *          known by its faces
+   */
+  protected CrystalPolyhedron(final Map<Object, Object> properties,
+      final AnalyticShape shape) {
     super(properties);
+    this.shape = shape;
     // Pass properties to Crystal()-constructor
 
     // Check if optional values are initialized, otherwise set to defaults.
@@ -511,6 +608,27 @@ public class CrystalPolyhedron extends Crystal {
     p = Math.toRadians((Double) mergedProperties.get(Crystal.CRYSTAL_ANGLE_P));
     l = Math.toRadians((Double) mergedProperties.get(Crystal.CRYSTAL_ANGLE_L));
 
+    if (mergedProperties.get(Crystal.CRYSTAL_DEPTH_MAP_RESOLUTION) == null) {
+      depthMapResolution = 0;
+    } else {
+      depthMapResolution = ((Number) mergedProperties
+          .get(Crystal.CRYSTAL_DEPTH_MAP_RESOLUTION)).doubleValue();
+      if (depthMapResolution < 0) {
+        throw new IllegalArgumentException(
+            "Depth map resolution must not be negative");
+      }
+    }
+    if (depthMapResolution > 0 && shape != null) {
+      System.out.println("Depth map not used as the depths of this crystal "
+          + "are calculated exactly.");
+    }
+
+    String peStencil = (String) mergedProperties.get(Crystal.CRYSTAL_PE_STENCIL);
+    peStencilMode = peStencil != null && "TRUE".equals(peStencil.toUpperCase());
+
+    String escapeFFT = (String) mergedProperties.get(Crystal.CRYSTAL_ESCAPE_FFT);
+    escapeFFTMode = escapeFFT != null && "TRUE".equals(escapeFFT.toUpperCase());
+
     loadVertices(mergedProperties);
 
     double[] xMinMax = this.minMaxVertices(0, vertices);
@@ -568,55 +686,22 @@ public class CrystalPolyhedron extends Crystal {
     int[] tempCrystSize = { nx, ny, nz };
     crystSizeVoxels = tempCrystSize; // Final Value
 
-    // Initialise dose, elastic, and fluence to the correct size
-    dose = new double[nx][ny][nz];
-    fluence = new double[nx][ny][nz];
-    elastic = new double[nx][ny][nz];
-
-    // Initialise crystal occupancy to correct size
-    crystOcc = new boolean[nx][ny][nz][2];
+    // Initialise occupancy, dose, elastic, and fluence to the correct size
+    voxels = new VoxelGrid(nx, ny, nz);
 
     /*
-     * Calculate Crystal Coordinates, and assign them:
-     * (This needs to be turned into a rotation-based subroutine!)
+     * Crystal Coordinates are calculated from these on demand,
+     * see calculateCoordinates.
      */
-
-    double[][][][] tempCrystCoords = new double[nx][ny][nz][3];
-
-    for (int i = 0; i < nx; i++) {
-      for (int j = 0; j < ny; j++) {
-        for (int k = 0; k < nz; k++) {
-
-          /*
-           * Set original coordinate. Temporary variables needed since we use
-           * all of the previous xyz's to set each of the new ones.
-           */
-          double x = -xshift + i / crystalPixPerUM;
-          double y = -yshift + j / crystalPixPerUM;
-          double z = -zshift + k / crystalPixPerUM;
-
-          /*
-           * rotation in plane about [0 0 1] (P) Temporary variables needed
-           * since we use all of the previous xyz's to set each of the new ones.
-           */
-          double x2 = x * Math.cos(p) + y * Math.sin(p);
-          double y2 = -1 * x * Math.sin(p) + y * Math.cos(p);
-          double z2 = z;
-
-          /*
-           * rotation loop about [1 0 0] (L)
-           */
-          tempCrystCoords[i][j][k][0] = x2;
-          tempCrystCoords[i][j][k][1] = y2 * Math.cos(l) + z2 * Math.sin(l);
-          tempCrystCoords[i][j][k][2] = -1 * y2 * Math.sin(l) + z2
-              * Math.cos(l);
-        }
-      }
-    }
-
-    crystCoord = tempCrystCoords; // Final value
-
-    escapeFactor = new double[nx][ny][nz];
+    double[] tempShift = { xshift, yshift, zshift };
+    coordShift = tempShift; // Final value
+    cosP = Math.cos(p);
+    sinP = Math.sin(p);
+    cosL = Math.cos(l);
+    sinL = Math.sin(l);
+
+    // The occupancy only depends on the wireframe, so find it once here.
+    calculateCrystalOccupancy();
     
     // Initialise beam-independent crystal photoelectron escape properties
     //Get fl bins  
@@ -682,39 +767,47 @@ public class CrystalPolyhedron extends Crystal {
     Double yshift = -yMinMax[0] + (extraVoxels/pixelsPerMicron);
     Double zshift = -zMinMax[0] + (extraVoxels/pixelsPerMicron);
     
-    double[][][][] tempCrystCoords = new double[nx][ny][nz][3];
-    
-    for (int i = 0; i < nx ; i++) {
-      for (int j = 0; j < ny ; j++) { 
-        for (int k = 0; k < nz ; k++) { //loop through voxels for this crystal
-          /*
-           * Set original coordinate. Temporary variables needed since we use
-           * all of the previous xyz's to set each of the new ones.
-           */
-          
-            double x = -xshift + (i / pixelsPerMicron);
-            double y = -yshift + (j / pixelsPerMicron);
-            double z = -zshift + (k / pixelsPerMicron);
-
-          /*
-           * rotation in plane about [0 0 1] (P) Temporary variables needed
-           * since we use all of the previous xyz's to set each of the new ones.
-           */
-          double x2 = x * Math.cos(p) + y * Math.sin(p);
-          double y2 = -1 * x * Math.sin(p) + y * Math.cos(p);
-          double z2 = z;
-
-          /*
-           * rotation loop about [1 0 0] (L)
-           */
-          tempCrystCoords[i][j][k][0] = x2;
-          tempCrystCoords[i][j][k][1] = y2 * Math.cos(l) + z2 * Math.sin(l);
-          tempCrystCoords[i][j][k][2] = -1 * y2 * Math.sin(l) + z2
-              * Math.cos(l); 
-        }
-      }
-    }  
-    cryoCrystCoord = tempCrystCoords;
+    // Coordinates of the surrounding are calculated on demand
+    double[] tempShift = { xshift, yshift, zshift };
+    cryoCoordShift = tempShift;
+  }
+
+  /**
+   * Calculates the starting position coordinates of voxel i, j, k in a grid
+   * with the given shift and resolution, rotated by the P and L angles.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param shift offset of the grid origin in um
+   * @param pixelsPerMicron resolution of the grid
+   * @param coord 3 element array the coordinates are written to
+   */
+  private void calculateCoordinates(final int i, final int j, final int k,
+      final double[] shift, final double pixelsPerMicron,
+      final double[] coord) {
+    /*
+     * Set original coordinate. Temporary variables needed since we use
+     * all of the previous xyz's to set each of the new ones.
+     */
+    double x = -shift[0] + i / pixelsPerMicron;
+    double y = -shift[1] + j / pixelsPerMicron;
+    double z = -shift[2] + k / pixelsPerMicron;
+
+    /*
+     * rotation in plane about [0 0 1] (P) Temporary variables needed
+     * since we use all of the previous xyz's to set each of the new ones.
+     */
+    double x2 = x * cosP + y * sinP;
+    double y2 = -1 * x * sinP + y * cosP;
+    double z2 = z;
+
+    /*
+     * rotation loop about [1 0 0] (L)
+     */
+    coord[0] = x2;
+    coord[1] = y2 * cosL + z2 * sinL;
+    coord[2] = -1 * y2 * sinL + z2 * cosL;
   }
   
   private double setCryoPPM(final Beam beam, final int maxPEDistance,
@@ -820,8 +913,189 @@ public class CrystalPolyhedron extends Crystal {
   }
 
   /**
-   * Calculates crystal occupancy at i, j, k, returns value
-   * and sets crystOcc at a given i, j, k.
+   * Fills the occupancy of every voxel in the crystal bounding box.
+   *
+   * The voxels of an (i, j) column share their x and y coordinates unless the
+   * crystal is tilted by L, so each triangle is tested once per column rather
+   * than once per voxel. The crossings of each column are sorted and the
+   * voxels between them filled by parity. This gives exactly the same result
+   * as calculateCrystalOccupancy(i, j, k) for every voxel.
+   */
+  private void calculateCrystalOccupancy() {
+    int[] size = voxels.getSize();
+    if (shape != null || sinL != 0 || cosL != 1) {
+      // Analytic shapes are cheap to test at each voxel. Otherwise columns
+      // are not parallel to the ray, so fall back to testing each voxel.
+      for (int i = 0; i < size[0]; i++) {
+        for (int j = 0; j < size[1]; j++) {
+          for (int k = 0; k < size[2]; k++) {
+            voxels.setOccupied(i, j, k, calculateCrystalOccupancy(i, j, k));
+          }
+        }
+      }
+      return;
+    }
+
+    if (normals == null) {
+      calculateNormals(false);
+    }
+
+    int nx = size[0], ny = size[1], nz = size[2];
+    double[] directionVector = { 0, 0, 1 };
+    double[] origin = new double[3];
+    double[][] triangleVertices = new double[3][];
+
+    /*
+     * Each crossing is stored as (column << 32 | (kLast + 1)), where kLast is
+     * the last voxel of the column that lies below the triangle. Sorting the
+     * keys groups them by column and orders the crossings within a column.
+     */
+    long[] crossings = new long[Math.max(16, indices.length * 2)];
+    int crossingCount = 0;
+
+    for (int l = 0; l < indices.length; l++) {
+      if (normals[l][2] == 0 || Double.isNaN(normals[l][2])) {
+        // The ray can never hit a triangle parallel to it.
+        continue;
+      }
+      for (int m = 0; m < 3; m++) {
+        triangleVertices[m] = vertices[indices[l][m] - 1];
+      }
+
+      // Columns whose x, y lie within the triangle's bounding box, give or
+      // take a voxel for rounding.
+      double[] xMinMax = minMaxVertices(0, triangleVertices);
+      double[] yMinMax = minMaxVertices(1, triangleVertices);
+      double uMin = Double.POSITIVE_INFINITY, uMax = Double.NEGATIVE_INFINITY;
+      double vMin = Double.POSITIVE_INFINITY, vMax = Double.NEGATIVE_INFINITY;
+      for (int corner = 0; corner < 4; corner++) {
+        double x = xMinMax[corner & 1];
+        double y = yMinMax[corner >> 1];
+        // inverse of the P rotation in calculateCoordinates
+        double u = x * cosP - y * sinP;
+        double v = x * sinP + y * cosP;
+        uMin = Math.min(uMin, u);
+        uMax = Math.max(uMax, u);
+        vMin = Math.min(vMin, v);
+        vMax = Math.max(vMax, v);
+      }
+      int iMin = Math.max(0,
+          (int) Math.floor((uMin + coordShift[0]) * crystalPixPerUM) - 1);
+      int iMax = Math.min(nx - 1,
+          (int) Math.ceil((uMax + coordShift[0]) * crystalPixPerUM) + 1);
+      int jMin = Math.max(0,
+          (int) Math.floor((vMin + coordShift[1]) * crystalPixPerUM) - 1);
+      int jMax = Math.min(ny - 1,
+          (int) Math.ceil((vMax + coordShift[1]) * crystalPixPerUM) + 1);
+
+      for (int i = iMin; i <= iMax; i++) {
+        for (int j = jMin; j <= jMax; j++) {
+          calculateCoordinates(i, j, 0, coordShift, crystalPixPerUM, origin);
+          if (!Vector.polygonInclusionTest(triangleVertices, origin)) {
+            continue;
+          }
+
+          int kLast = lastVoxelBelow(i, j, l, directionVector, origin);
+
+          if (crossingCount == crossings.length) {
+            crossings = Arrays.copyOf(crossings, crossingCount * 2);
+          }
+          crossings[crossingCount++] = ((long) (i * ny + j) << 32)
+              | (kLast + 1);
+        }
+      }
+    }
+
+    Arrays.sort(crossings, 0, crossingCount);
+
+    int start = 0;
+    while (start < crossingCount) {
+      int column = (int) (crossings[start] >>> 32);
+      int end = start;
+      while (end < crossingCount && (int) (crossings[end] >>> 32) == column) {
+        end++;
+      }
+
+      /*
+       * A voxel is inside if an odd number of crossings lie above it. Below
+       * the lowest crossing all of them do, and each crossing passed removes
+       * one.
+       */
+      int i = column / ny;
+      int j = column % ny;
+      int kStart = 0;
+      for (int c = start; c < end; c++) {
+        int kEnd = (int) (crossings[c] & 0xFFFFFFFFL);
+        if (((end - c) & 1) == 1) {
+          voxels.setOccupied(i, j, kStart, kEnd);
+        }
+        kStart = kEnd;
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Finds the highest voxel of column i, j from which a ray cast along z still
+   * reaches the plane of triangle l, evaluating the distance exactly as
+   * calculateCrystalOccupancy(i, j, k) does.
+   *
+   * @param i i
+   * @param j j
+   * @param l triangle index
+   * @param directionVector ray direction
+   * @param origin coordinate buffer
+   * @return last k with a non-negative distance to the plane, or -1 if none.
+   */
+  private int lastVoxelBelow(final int i, final int j, final int l,
+      final double[] directionVector, final double[] origin) {
+    int nz = crystSizeVoxels[2];
+
+    // Estimate from the plane height at this column, then correct for
+    // rounding. The distance decreases monotonically with k.
+    calculateCoordinates(i, j, 0, coordShift, crystalPixPerUM, origin);
+    double zPlane = -(normals[l][0] * origin[0] + normals[l][1] * origin[1]
+        + originDistances[l]) / normals[l][2];
+    double kPlane = (zPlane + coordShift[2]) * crystalPixPerUM;
+    int k;
+    if (kPlane < 0) {
+      k = -1;
+    } else if (kPlane >= nz - 1) {
+      k = nz - 1;
+    } else {
+      k = (int) kPlane;
+    }
+
+    while (k >= 0 && rayDistance(i, j, k, l, directionVector, origin) < 0) {
+      k--;
+    }
+    while (k + 1 < nz
+        && rayDistance(i, j, k + 1, l, directionVector, origin) >= 0) {
+      k++;
+    }
+    return k;
+  }
+
+  /**
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param l triangle index
+   * @param directionVector ray direction
+   * @param origin coordinate buffer
+   * @return distance along the ray from voxel i, j, k to the plane of
+   *         triangle l.
+   */
+  private double rayDistance(final int i, final int j, final int k,
+      final int l, final double[] directionVector, final double[] origin) {
+    calculateCoordinates(i, j, k, coordShift, crystalPixPerUM, origin);
+    return Vector.rayTraceDistance(normals[l], directionVector, origin,
+        originDistances[l]);
+  }
+
+  /**
+   * Calculates crystal occupancy at i, j, k by casting a ray along z
+   * and counting the triangles it crosses.
    *
    * @param i i
    * @param j j
@@ -830,6 +1104,13 @@ public class CrystalPolyhedron extends Crystal {
    */
   public boolean calculateCrystalOccupancy(final int i, final int j, final int k)
   {
+    if (shape != null) {
+      return shape.contains(crystSizeUM,
+          i / crystalPixPerUM - crystSizeUM[0] / 2,
+          j / crystalPixPerUM - crystSizeUM[1] / 2,
+          k / crystalPixPerUM - crystSizeUM[2] / 2);
+    }
+
     if (normals == null) {
       calculateNormals(false);
     }
@@ -837,29 +1118,24 @@ public class CrystalPolyhedron extends Crystal {
     boolean inside = false;
 
     double[] directionVector = { 0, 0, 1 };
-    double[] origin = crystCoord[i][j][k];
+    double[] origin = getCrystCoord(i, j, k);
+    double[][] triangleVertices = new double[3][];
 
     for (int l = 0; l < indices.length; l++) {
       double intersectionDistance = Vector.rayTraceDistance(normals[l],
           directionVector, origin, originDistances[l]);
 
-      Double distanceObject = Double.valueOf(intersectionDistance);
-
-      if (intersectionDistance < 0 || distanceObject.isNaN()
-          || distanceObject.isInfinite()) {
+      if (intersectionDistance < 0 || Double.isNaN(intersectionDistance)
+          || Double.isInfinite(intersectionDistance)) {
         continue;
       }
 
       double[] intersectionPoint = Vector.rayTraceToPointWithDistance(
           directionVector, origin, intersectionDistance);
 
-      double[][] triangleVertices = new double[3][3];
-
-      // copy vertices referenced by indices into single array for
-      // passing onto the polygon inclusion test.
+      // vertices referenced by indices, for the polygon inclusion test.
       for (int m = 0; m < 3; m++) {
-        System.arraycopy(vertices[indices[l][m] - 1], 0, triangleVertices[m],
-            0, 3);
+        triangleVertices[m] = vertices[indices[l][m] - 1];
       }
 
       boolean crosses = Vector.polygonInclusionTest(triangleVertices,
@@ -881,6 +1157,10 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public void setupDepthFinding(final double angrad, final Wedge wedge) {
+    if (shape != null) {
+      setupShapeTransform(angrad, wedge);
+      return;
+    }
 
     rotatedVertices = new double[vertices.length][3];
 
@@ -923,6 +1203,104 @@ public class CrystalPolyhedron extends Crystal {
             expandedRotatedVertices[i][j], 0, 3);
       }
     }
+
+    rotatedTriangleGrid = new TriangleGrid(expandedRotatedVertices);
+
+    if (depthMapResolution > 0) {
+      depthMap = calculateDepthMap();
+    }
+  }
+
+  /**
+   * Finds the map from the rotated coordinates at an angle back to the
+   * centred crystal frame, by undoing the goniometer rotation and wedge
+   * translation of setupDepthFinding, then the P and L rotations.
+   *
+   * @param angrad rotation angle in radians
+   * @param wedge wedge giving the crystal translation
+   */
+  private void setupShapeTransform(final double angrad, final Wedge wedge) {
+    double cosA = Math.cos(angrad);
+    double sinA = Math.sin(angrad);
+    double[] column = new double[3];
+
+    // Matrix columns are the images of the rotated frame's axes.
+    for (int axis = 0; axis < 3; axis++) {
+      double qx = (axis == 0) ? 1 : 0;
+      double qy = (axis == 1) ? 1 : 0;
+      double qz = (axis == 2) ? 1 : 0;
+      unrotateLoop(qx * cosA - qz * sinA, qy, qx * sinA + qz * cosA, column);
+      for (int row = 0; row < 3; row++) {
+        shapeTransform[row * 3 + axis] = column[row];
+      }
+    }
+
+    // The translation is applied before the goniometer rotation.
+    unrotateLoop(wedge.getStartX() + wedge.getTransX(angrad),
+        wedge.getStartY() + wedge.getTransY(angrad),
+        wedge.getStartZ() + wedge.getTransZ(angrad), column);
+    for (int row = 0; row < 3; row++) {
+      shapeTransform[9 + row] = -column[row]
+          - (crystSizeUM[row] / 2 - coordShift[row]);
+      shapeDirection[row] = -shapeTransform[row * 3 + 2];
+    }
+  }
+
+  /**
+   * Undoes the P and L rotations of calculateCoordinates.
+   *
+   * @param x x in the rotated frame
+   * @param y y in the rotated frame
+   * @param z z in the rotated frame
+   * @param coord 3 element array the unrotated vector is written to
+   */
+  private void unrotateLoop(final double x, final double y, final double z,
+      final double[] coord) {
+    double y2 = y * cosL - z * sinL;
+    coord[0] = x * cosP - y2 * sinP;
+    coord[1] = x * sinP + y2 * cosP;
+    coord[2] = y * sinL + z * cosL;
+  }
+
+  /**
+   * Rasterizes the rotated crystal into a depth map by finding, for every
+   * pixel, the heights at which a ray along z crosses the faces.
+   *
+   * @return depth map at the current angle
+   */
+  private DepthMap calculateDepthMap() {
+    double[] xMinMax = minMaxVertices(0, rotatedVertices);
+    double[] yMinMax = minMaxVertices(1, rotatedVertices);
+    DepthMap map = new DepthMap(xMinMax[0], xMinMax[1], yMinMax[0],
+        yMinMax[1], depthMapResolution);
+
+    double[] pixel = new double[3];
+    double[] heights = new double[16];
+    for (int a = 0; a < map.getWidth(); a++) {
+      pixel[0] = map.pixelX(a);
+      for (int b = 0; b < map.getHeight(); b++) {
+        pixel[1] = map.pixelY(b);
+        int count = 0;
+        int cell = rotatedTriangleGrid.cell(pixel[0], pixel[1]);
+        for (int pos = rotatedTriangleGrid.first(cell); pos < rotatedTriangleGrid
+            .end(cell); pos++) {
+          int i = rotatedTriangleGrid.triangle(pos);
+          double[] normal = rotatedNormals[i];
+          if (normal[2] == 0 || Double.isNaN(normal[2])
+              || !Vector.polygonInclusionTest(expandedRotatedVertices[i],
+                  pixel)) {
+            continue;
+          }
+          if (count == heights.length) {
+            heights = Arrays.copyOf(heights, count * 2);
+          }
+          heights[count++] = -(normal[0] * pixel[0] + normal[1] * pixel[1]
+              + rotatedOriginDistances[i]) / normal[2];
+        }
+        map.addPixel(heights, count);
+      }
+    }
+    return map;
   }
 
   /*
@@ -934,59 +1312,67 @@ public class CrystalPolyhedron extends Crystal {
   @Override
   public double findDepth(final double[] voxCoord, final double deltaPhi,
       final Wedge myWedge) {
-    double[] zAxis = { 0, 0, 1 };
+    if (shape != null) {
+      double[] m = shapeTransform;
+      double x = m[0] * voxCoord[0] + m[1] * voxCoord[1] + m[2] * voxCoord[2]
+          + m[9];
+      double y = m[3] * voxCoord[0] + m[4] * voxCoord[1] + m[5] * voxCoord[2]
+          + m[10];
+      double z = m[6] * voxCoord[0] + m[7] * voxCoord[1] + m[8] * voxCoord[2]
+          + m[11];
+      return shape.depth(crystSizeUM, x, y, z,
+          shapeDirection[0], shapeDirection[1], shapeDirection[2]);
+    }
+    if (depthMap != null) {
+      return depthMap.depth(voxCoord[0], voxCoord[1], voxCoord[2]);
+    }
+
+    // Distances to the faces crossed, kept in a per-thread buffer since
+    // exposure slabs may call this concurrently.
+    double[] distancesFound = depthBuffer.get();
+    int distanceCount = 0;
 
-    List<Double> distancesFound = new ArrayList<Double>();
-
-    for (int i = 0; i < indices.length; i++) {
+    /*
+     * The intersection point of a ray along z has the same x and y as the
+     * voxel, so only triangles listed in the voxel's grid cell can contain it.
+     */
+    int cell = rotatedTriangleGrid.cell(voxCoord[0], voxCoord[1]);
+    for (int pos = rotatedTriangleGrid.first(cell); pos < rotatedTriangleGrid
+        .end(cell); pos++) {
+      int i = rotatedTriangleGrid.triangle(pos);
       double intersectionDistance = (-1)
           * Vector.rayTraceDistance(rotatedNormals[i],
-              zAxis, voxCoord, rotatedOriginDistances[i]);
-
-      Double distanceObject = Double.valueOf(intersectionDistance);
+              Z_AXIS, voxCoord, rotatedOriginDistances[i]);
 
-      if (intersectionDistance <= 0 || distanceObject.isNaN()
-          || distanceObject.isInfinite()) {
+      if (intersectionDistance <= 0 || Double.isNaN(intersectionDistance)
+          || Double.isInfinite(intersectionDistance)) {
         continue;
       }
 
-      double[] intersectionPoint = Vector.rayTraceToPointWithDistance(
-          zAxis, voxCoord, intersectionDistance);
-
       boolean crosses = Vector.polygonInclusionTest(expandedRotatedVertices[i],
-          intersectionPoint);
+          voxCoord);
 
       if (crosses) {
-        distancesFound.add(Double.valueOf(intersectionDistance));
+        if (distanceCount == distancesFound.length) {
+          distancesFound = Arrays.copyOf(distancesFound, distanceCount * 2);
+          depthBuffer.set(distancesFound);
+        }
+        distancesFound[distanceCount++] = intersectionDistance;
       }
     }
 
-    Collections.sort(distancesFound);
-
-    for (int i = 0; i < distancesFound.size() - 1; i++) {
-      if (distancesFound.get(i + 1) == distancesFound.get(i)) {
-        distancesFound.remove(i + 1);
-      }
-    }
+    Arrays.sort(distancesFound, 0, distanceCount);
 
     // sanity check that point is within crystal
-    if (distancesFound.isEmpty() || distancesFound.size() % 2 == 0) {
+    if (distanceCount == 0 || distanceCount % 2 == 0) {
       return 0;
     }
 
-    double depth = distancesFound.get(0).doubleValue();
+    double depth = distancesFound[0];
 
-    for (int i = 1; i < distancesFound.size(); i += 2) {
-      Double addition = distancesFound.get(i + 1) - distancesFound.get(i);
-
-      depth += addition.doubleValue();
+    for (int i = 1; i < distanceCount; i += 2) {
+      depth += distancesFound[i + 1] - distancesFound[i];
     }
-    /*
-     * if (deltaPhi == 0) {
-     * System.out.println(voxCoord[0] + "\t" + voxCoord[1] + "\t" + voxCoord[2]
-     * + "\t" + depth);
-     * }
-     */
     return depth;
   }
   
@@ -1026,10 +1412,12 @@ public class CrystalPolyhedron extends Crystal {
    * @return
    */
   private double[] calculateEnergyDistn(final double[] distancesTravelled, final int bins, final double peEnergy) {
-    ReadEnergyCSV rdCSV = new ReadEnergyCSV();
-    double[] lowCoefficients = rdCSV.openCSV("constants/EnergyCoefsLow.txt", peEnergy);
-    double[] mediumCoefficients = rdCSV.openCSV("constants/EnergyCoefsMed.txt", peEnergy);
-    double[] highCoefficients = rdCSV.openCSV("constants/EnergyCoefsHigh.txt", peEnergy);
+    double[] lowCoefficients = EnergyCoefficientTable.getTable(
+        EnergyCoefficientTable.LOW_FILE).getCoefficients(peEnergy);
+    double[] mediumCoefficients = EnergyCoefficientTable.getTable(
+        EnergyCoefficientTable.MED_FILE).getCoefficients(peEnergy);
+    double[] highCoefficients = EnergyCoefficientTable.getTable(
+        EnergyCoefficientTable.HIGH_FILE).getCoefficients(peEnergy);
     
     double[] energyDeposited = new double[bins];
     
@@ -1192,7 +1580,10 @@ public class CrystalPolyhedron extends Crystal {
     } 
     
    propnDoseDepositedAtDist = new double[peDistBins];
-   relativeVoxXYZ = new double[peDistBins][PE_ANGLE_RES_LIMIT * PE_ANGLE_RES_LIMIT][3];
+   if (peTrackDirections == null) {
+     setUpPETracks();
+   }
+   relativeVoxXYZ = new double[peDistBins][peTrackDirections.length][3];
   }
   
   /**
@@ -1229,7 +1620,10 @@ public class CrystalPolyhedron extends Crystal {
     } 
     
     propnDoseDepositedAtDistCryo = new double[peDistBins];
-    relativeVoxXYZCryoCrystal = new double[peDistBins][PE_ANGLE_RES_LIMIT * PE_ANGLE_RES_LIMIT][3];
+    if (peTrackDirections == null) {
+      setUpPETracks();
+    }
+    relativeVoxXYZCryoCrystal = new double[peDistBins][peTrackDirections.length][3];
   }
   /*
    * (non-Javadoc)
@@ -1295,6 +1689,7 @@ public class CrystalPolyhedron extends Crystal {
     //first of all need to get PE distances 
     setMaxPEDistance(beamEnergy);
     angularDistribution = setUpPEPolarisation(coefCalc, beamEnergy, feFactors, false);
+    trackNumberBias = biasPETracks(angularDistribution);
  //   findVoxelsReachedByPE(false, coefCalc, beamEnergy, feFactors, 0);
     calcProportionVoxDoseDepositedByDist(beamEnergy);  
     
@@ -1324,6 +1719,7 @@ public class CrystalPolyhedron extends Crystal {
     
   //  findVoxelsReachedByPE(true, coefCalc, beamEnergy, feFactors);
     cryoAngularDistribution = setUpPEPolarisation(coefCalc, beamEnergy, feFactors, true);
+    cryoTrackNumberBias = biasPETracks(cryoAngularDistribution);
     calcProportionVoxDoseDepositedByDistCryo(beamEnergy);  
   }
   
@@ -1334,6 +1730,7 @@ public class CrystalPolyhedron extends Crystal {
     //find voxels is done with pe
     calcFluorescenceDistribution(feFactors);  
     findVoxelsReachedByFL(feFactors);
+    flConvolution = null;
   }
   
   /**Sets the Location parameters for the Gumbel distribution based on density
@@ -1543,63 +1940,36 @@ public class CrystalPolyhedron extends Crystal {
   }
 
   /**
-   * finds voxels that lie along the PE tracks
+   * Sets up the photoelectron track directions, which do not depend on the
+   * beam or the angle. The directions are spaced evenly in theta and phi,
+   * with the tracks along the poles only listed once.
    */
-  @Override
-  public void findVoxelsReachedByPE(boolean cryo, CoefCalc coefCalc, final double energy, double[][] feFactors, final double angle) {
-    //way 2
-    //Convert angle to less than 360 if it is more
-    int timesOver = (int) (angle/(2*Math.PI));
-    double thisAngle = angle - (timesOver * 2 *Math.PI);
-    
-    //flip the angle to be opposite direction
-    thisAngle = 2*Math.PI - thisAngle;
-    
-    double[] distribution = null;
-    if (cryo == false) {
-      distribution = angularDistribution;
-    }
-    else {
-      distribution = cryoAngularDistribution;
-    }
-    //sum
-    int numbersInArray = 0;
-    for (int i = 0; i < distribution.length; i++){
-      numbersInArray += distribution[i];
-    }
-    numbersInArray *= PE_ANGLE_RES_LIMIT;
-    
-    numbersInArray *= 1.5;  // This is a messy fix to index out of bounds change properly later
-    
+  private void setUpPETracks() {
     double step = 2*Math.PI / PE_ANGLE_RES_LIMIT;
-    int counter = -1;
-    int bigArrayIndex = 0;
-    int[] theBigArray = new int[numbersInArray];
-    
+    int tracks = 0;
     for (double theta = 0*Math.PI; theta < 2*Math.PI; theta += step) {
       for (double phi = 0; phi <= PE_ANGLE_LIMIT/2 ; phi += step) {
-        //Check if this track has already been assigned       
-        boolean replicateTrack = false;
-        
-        if (theta == 0 || theta == (PE_ANGLE_LIMIT / 2)) {
-          if (phi == 0) {
-            replicateTrack = false;
-          }
-          else {
-            replicateTrack = true;
-          }
+        if (!isReplicateTrack(theta, phi)) {
+          tracks += 1;
         }
-        
-        if (replicateTrack == false) {
+      }
+    }
+
+    peTrackDirections = new double[tracks][3];
+    peTrackPlace = new int[tracks];
+    int counter = -1;
+    for (double theta = 0*Math.PI; theta < 2*Math.PI; theta += step) {
+      for (double phi = 0; phi <= PE_ANGLE_LIMIT/2 ; phi += step) {
+        if (!isReplicateTrack(theta, phi)) {
           counter += 1;
 
           double xNorm = Math.sin(theta) * Math.cos(phi);
           double yNorm = Math.sin(theta) * Math.sin(phi);
           double zNorm = Math.cos(theta);
+          peTrackDirections[counter][0] = xNorm;
+          peTrackDirections[counter][1] = yNorm;
+          peTrackDirections[counter][2] = zNorm;
 
-          //weight track in bigarray
-          int runningCheck = 0;
-          
           //calculate the angle to the x axis (or y axis if horizontal)
           //using cartesian vectors, cos(theta) = dot product / multiple of magnitudes
           //x axis vector = (1, 0, 0) so dot product is just xnorm, just yNorm if horizontal
@@ -1612,62 +1982,109 @@ public class CrystalPolyhedron extends Crystal {
           double magnitude = Math.sqrt(Math.pow(xNorm, 2) + Math.pow(yNorm, 2) + Math.pow(zNorm, 2));
           double cosAngleToX = dotProduct / magnitude;
           double angleToX = Math.acos(cosAngleToX);
-          //find where angle is in distribution
-          int place = (int) Math.rint((angleToX * PE_ANGLE_RES_LIMIT)/PE_ANGLE_LIMIT);
-          
-          if (distribution[place] > 0) {
-            while (runningCheck < distribution[place]) {
-              theBigArray[bigArrayIndex] = counter;
-              runningCheck += 1;
-              bigArrayIndex += 1;
-            }
-          }
-          
-          //Need to apply the rotation matrix here so I shift the x and z axes - shift opposite way to rotation 
-          double xNormrot = xNorm * Math.cos(thisAngle) + zNorm * Math.sin(thisAngle);
-          double zNormrot = -1 * xNorm * Math.sin(thisAngle) + zNorm * Math.cos(thisAngle);
-          
-          for (int m = 0; m < peDistBins; m++) {
-            // calculate r in voxel coordinates rather than pixels
-            double r = 0;
-            if (cryo == false)  {  
-              r = PE_DISTANCES_TRAVELLED[m] * this.crystalPixPerUM; 
-              relativeVoxXYZ[m][counter][0] = r * xNormrot;
-              relativeVoxXYZ[m][counter][1] = r * yNorm;
-              relativeVoxXYZ[m][counter][2] = r * zNormrot;
-            }
-            else {
-              //the r here is for crystal ppm, this is old way
-              r = CRYO_PE_DISTANCES_TRAVELLED[m] * this.crystalPixPerUM;
-              relativeVoxXYZCryoCrystal[m][counter][0] = r * xNormrot;
-              relativeVoxXYZCryoCrystal[m][counter][1] = r * yNorm;
-              relativeVoxXYZCryoCrystal[m][counter][2] = r * zNormrot;
-            }
-          }
+          //find where angle is in the angular distribution
+          peTrackPlace[counter] = (int) Math.rint((angleToX * PE_ANGLE_RES_LIMIT)/PE_ANGLE_LIMIT);
         }
       }
     }
+  }
+
+  /**
+   * @param theta theta of the track direction
+   * @param phi phi of the track direction
+   * @return true if the track lies along a pole and has already been listed.
+   */
+  private static boolean isReplicateTrack(final double theta,
+      final double phi) {
+    return (theta == 0 || theta == (PE_ANGLE_LIMIT / 2)) && phi != 0;
+  }
+
+  /**
+   * Weights the photoelectron tracks by the angular distribution, listing
+   * each track once for every unit of probability at its angle to the
+   * polarisation vector (rounded up).
+   *
+   * @param distribution angular distribution from setUpPEPolarisation
+   * @return track indices, each track listed in proportion to its probability
+   */
+  private int[] biasPETracks(final double[] distribution) {
+    int entries = 0;
+    for (int place : peTrackPlace) {
+      if (distribution[place] > 0) {
+        entries += (int) Math.ceil(distribution[place]);
+      }
+    }
+    int[] bias = new int[entries];
+    int n = 0;
+    for (int track = 0; track < peTrackPlace.length; track++) {
+      double weight = distribution[peTrackPlace[track]];
+      for (int copy = 0; copy < weight; copy++) {
+        bias[n++] = track;
+      }
+    }
+    return bias;
+  }
+
+  /**
+   * finds voxels that lie along the PE tracks
+   */
+  @Override
+  public void findVoxelsReachedByPE(boolean cryo, CoefCalc coefCalc, final double energy, double[][] feFactors, final double angle) {
+    //Convert angle to less than 360 if it is more
+    int timesOver = (int) (angle/(2*Math.PI));
+    double thisAngle = angle - (timesOver * 2 *Math.PI);
     
-    //count numbers in array, not zeroes at the end - a stupid way of doing it so clean up later
-    boolean pastFirst = false;
-    int actualNumber = 0;
-    for (int j = 0; j < theBigArray.length; j++) {
-        if (pastFirst == true) {
-          if (theBigArray[j] == 0) { //if it goes back to nought this is junk at the end
-            actualNumber = j;
-            break;
-          }
-        }        
-        if (theBigArray[j] > 0) {
-          pastFirst = true;
+    //flip the angle to be opposite direction
+    thisAngle = 2*Math.PI - thisAngle;
+    final double cosAngle = Math.cos(thisAngle);
+    final double sinAngle = Math.sin(thisAngle);
+
+    // The tracks and their bias are set up for each beam, so only the
+    // rotation changes here.
+    for (int counter = 0; counter < peTrackDirections.length; counter++) {
+      double xNorm = peTrackDirections[counter][0];
+      double yNorm = peTrackDirections[counter][1];
+      double zNorm = peTrackDirections[counter][2];
+
+      //Need to apply the rotation matrix here so I shift the x and z axes - shift opposite way to rotation 
+      double xNormrot = xNorm * cosAngle + zNorm * sinAngle;
+      double zNormrot = -1 * xNorm * sinAngle + zNorm * cosAngle;
+
+      for (int m = 0; m < peDistBins; m++) {
+        // calculate r in voxel coordinates rather than pixels
+        double r = 0;
+        if (cryo == false)  {  
+          r = PE_DISTANCES_TRAVELLED[m] * this.crystalPixPerUM; 
+          relativeVoxXYZ[m][counter][0] = r * xNormrot;
+          relativeVoxXYZ[m][counter][1] = r * yNorm;
+          relativeVoxXYZ[m][counter][2] = r * zNormrot;
+        }
+        else {
+          //the r here is for crystal ppm, this is old way
+          r = CRYO_PE_DISTANCES_TRAVELLED[m] * this.crystalPixPerUM;
+          relativeVoxXYZCryoCrystal[m][counter][0] = r * xNormrot;
+          relativeVoxXYZCryoCrystal[m][counter][1] = r * yNorm;
+          relativeVoxXYZCryoCrystal[m][counter][2] = r * zNormrot;
         }
+      }
     }
-    int[] actualTrackBias = new int[actualNumber];
-    for (int i = 0; i < actualNumber; i++) {
-      actualTrackBias[i] = theBigArray[i];
+
+    if (escapeFFTMode && !cryo) {
+      EscapeStencil stencil = EscapeStencil.forPhotoelectrons(relativeVoxXYZ,
+          peDistBins, trackNumberBias, propnDoseDepositedAtDist);
+      if (peConvolution == null || !peConvolution.setKernel(stencil)) {
+        peConvolution = new EscapeConvolution(voxels, stencil);
+      }
+    } else if (peStencilMode && !cryo) {
+      peStencil = EscapeStencil.forPhotoelectrons(relativeVoxXYZ, peDistBins,
+          trackNumberBias, propnDoseDepositedAtDist);
+      // The occupancy never changes, so the interior only needs finding again
+      // if the photoelectrons reach further.
+      if (peStencil.getRadius() != peStencilInteriorRadius) {
+        peStencilInterior = voxels.interior(peStencil.getRadius());
+        peStencilInteriorRadius = peStencil.getRadius();
+      }
     }
-    
-    trackNumberBias = actualTrackBias;
   }
 
   /**
@@ -1781,6 +2198,16 @@ public class CrystalPolyhedron extends Crystal {
   @Override
   public double addDoseAfterPE(final int i, final int j, final int k,
       final double doseIncreasePE) {
+    if (peConvolution != null) {
+      peConvolution.add(i, j, k, doseIncreasePE);
+      return 0;
+    }
+    if (peStencil != null) {
+      double doseLostFromCrystalPE = peStencil.deposit(voxels,
+          peStencilInterior, i, j, k, doseIncreasePE);
+      peRelease += doseLostFromCrystalPE;
+      return doseLostFromCrystalPE;
+    }
        
     double doseLostFromCrystalPE = 0;  
       for (int q = 0; q < PE_ANGLE_RESOLUTION*PE_ANGLE_RESOLUTION; q++) { //for every tracks i'm choosing
@@ -1813,9 +2240,40 @@ public class CrystalPolyhedron extends Crystal {
     return doseLostFromCrystalPE;
   } 
   
+  /*
+   * (non-Javadoc)
+   *
+   * @see se.raddo.raddose3D.Crystal#finishEscape()
+   */
+  @Override
+  protected double[] finishEscape() {
+    double[] escaped = new double[2];
+    if (peConvolution != null) {
+      escaped[0] = peConvolution.apply();
+      peRelease += escaped[0];
+    }
+    if (flConvolution != null) {
+      escaped[1] = flConvolution.apply();
+      flRelease += escaped[1];
+    }
+    return escaped;
+  }
+
   @Override
   public double addDoseAfterFL(final int i, final int j, final int k, 
       final double doseIncreaseFL) {
+   if (escapeFFTMode) {
+     // fluorescence is emitted equally in all directions, so the kernel only
+     // changes with the beam
+     if (flConvolution == null) {
+       flConvolution = new EscapeConvolution(voxels,
+           EscapeStencil.forFluorescence(flRelativeVoxXYZ, flDistBins,
+               numberOfTracksFL, fluorescenceProportionEvent,
+               flDistanceDistribution));
+     }
+     flConvolution.add(i, j, k, doseIncreaseFL);
+     return 0;
+   }
    double doseLostFromCrystalFL = 0;
    //choose a random track
    int randomTrack = ThreadLocalRandom.current().nextInt(0, numberOfTracksFL);
@@ -1876,8 +2334,8 @@ public class CrystalPolyhedron extends Crystal {
     
     for (int q = 0; q < PE_ANGLE_RESOLUTION*PE_ANGLE_RESOLUTION; q++) { //for every tracks i'm choosing
     //     int randomTrack = ThreadLocalRandom.current().nextInt(0, numberOfTracksPE); //choose one at random
-      int randomIndex = ThreadLocalRandom.current().nextInt(0, trackNumberBias.length);
-      int randomTrack = trackNumberBias[randomIndex];
+      int randomIndex = ThreadLocalRandom.current().nextInt(0, cryoTrackNumberBias.length);
+      int randomTrack = cryoTrackNumberBias[randomIndex];
 
       for (int m = 0; m < peDistBins; m++) { 
      
@@ -1913,12 +2371,28 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public double[] getCrystCoord(final int i, final int j, final int k) {
-    return crystCoord[i][j][k];
+    double[] coord = new double[3];
+    getCrystCoord(i, j, k, coord);
+    return coord;
+  }
+
+  @Override
+  public void getCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    calculateCoordinates(i, j, k, coordShift, crystalPixPerUM, coord);
   }
   
   @Override
   public double[] getCryoCrystCoord(final int i, final int j, final int k) {
-    return cryoCrystCoord[i][j][k];
+    double[] coord = new double[3];
+    getCryoCrystCoord(i, j, k, coord);
+    return coord;
+  }
+
+  @Override
+  public void getCryoCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    calculateCoordinates(i, j, k, cryoCoordShift, cryoPPM, coord);
   }
 
   /*
@@ -1928,26 +2402,7 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public boolean isCrystalAt(final int i, final int j, final int k) {
-    final int[] crystalSize = getCrystSizeVoxels();
-
-    if (i < 0 || i >= crystalSize[0]) {
-      return false;
-    }
-    if (j < 0 || j >= crystalSize[1]) {
-      return false;
-    }
-    if (k < 0 || k >= crystalSize[2]) {
-      return false;
-    }
-
-    boolean[] occ = crystOcc[i][j][k];
-
-    if (!occ[0]) {
-      occ[1] = calculateCrystalOccupancy(i, j, k);
-      occ[0] = true;
-    }
-
-    return occ[1];
+    return voxels.isOccupied(i, j, k);
   }
 
   /*
@@ -1958,7 +2413,7 @@ public class CrystalPolyhedron extends Crystal {
   @Override
   public void addDose(final int i, final int j, final int k,
       final double doseIncrease) {
-    dose[i][j][k] += doseIncrease; //* escapeFactor[i][j][k];
+    voxels.addDose(i, j, k, doseIncrease);
   }
 
   /*
@@ -1969,7 +2424,7 @@ public class CrystalPolyhedron extends Crystal {
   @Override
   public void addFluence(final int i, final int j, final int k,
       final double fluenceIncrease) {
-    fluence[i][j][k] += fluenceIncrease;
+    voxels.addFluence(i, j, k, fluenceIncrease);
 
   }
 
@@ -1981,7 +2436,7 @@ public class CrystalPolyhedron extends Crystal {
   @Override
   public void addElastic(final int i, final int j, final int k,
       final double elasticIncrease) {
-    elastic[i][j][k] += elasticIncrease;
+    voxels.addElastic(i, j, k, elasticIncrease);
 
   }
 
@@ -2048,7 +2503,15 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public double getDose(final int i, final int j, final int k) {
-    return dose[i][j][k];
+    return voxels.getDose(i, j, k);
+  }
+
+  @Override
+  protected void clearVoxelExposure() {
+    voxels.clearExposure();
+    fldose = 0;
+    flRelease = 0;
+    peRelease = 0;
   }
 
   /*
@@ -2058,7 +2521,7 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public double getFluence(final int i, final int j, final int k) {
-    return fluence[i][j][k];
+    return voxels.getFluence(i, j, k);
   }
 
   /*
@@ -2068,7 +2531,7 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public double getElastic(final int i, final int j, final int k) {
-    return elastic[i][j][k];
+    return voxels.getElastic(i, j, k);
   }
 
   /*
@@ -2093,7 +2556,8 @@ public class CrystalPolyhedron extends Crystal {
    */
   @Override
   public double getEscapeFactor(final int i, final int j, final int k) {
-    return escapeFactor[i][j][k];
+    // The escape factor is not modelled per voxel, see addDoseAfterPE.
+    return 0;
   }
 
   /**
@@ -17,22 +17,10 @@ public class CrystalSphericalOld extends Crystal {
   private final int[]          crystSizeVoxels;
 
   /**
-   * 4d array where the 4th dimension is a 3 element array with the coordinates
-   * of the voxel i,j,k.
+   * Flat voxel storage holding crystal occupancy and the dose, fluence and
+   * elastic fields at voxel i,j,k. Voxel coordinates are calculated on demand.
    */
-  private final double[][][][] crystCoord;
-
-  /**
-   * Dose and fluence arrays holding the scalar fields for these values at voxel
-   * i,j,k.
-   */
-  private double[][][]         dose, fluence, elastic;
-
-  /**
-   * A boolean (int for extensibility to deeper segmentation) array. 0 = empty,
-   * 1 = crystal.
-   */
-  private final boolean[][][]  crystOcc;
+  private final VoxelGrid      voxels;
 
   /**
    * Generic property constructor for spherical crystals. Extracts all required
@@ -76,50 +64,27 @@ public class CrystalSphericalOld extends Crystal {
     int[] tempSizeArray = { nVox, nVox, nVox };
     crystSizeVoxels = tempSizeArray;
 
-    dose = new double[nVox][nVox][nVox];
-    fluence = new double[nVox][nVox][nVox];
-    elastic = new double[nVox][nVox][nVox];
-
-    /*
-     * initialise an array to store the voxel coordinates and occupancies before
-     * setting the final crystCoord.
-     */
-    double[][][][] tempCrystCoords = new double[nVox][nVox][nVox][3];
-    boolean[][][] tempCrystOcc = new boolean[nVox][nVox][nVox];
+    voxels = new VoxelGrid(nVox, nVox, nVox);
+    double[] coord = new double[3];
 
     // Loop over all voxels to define their centre position and occupancy
     for (int i = 0; i < nVox; i++) {
       for (int j = 0; j < nVox; j++) {
         for (int k = 0; k < nVox; k++) {
 
-          /*
-           * Coordinates should be far side of box (-diameter/2) + how far along
-           * we are (i/crystRes).
-           */
-          tempCrystCoords[i][j][k][0] = -diameter / 2 + i / crystalPixPerUM;
-          tempCrystCoords[i][j][k][1] = -diameter / 2 + j / crystalPixPerUM;
-          tempCrystCoords[i][j][k][2] = -diameter / 2 + k / crystalPixPerUM;
+          getCrystCoord(i, j, k, coord);
 
           /*
            * Occupancy (=1 if they are in the crystal)finds distance to origin,
            * and tests if it's smaller than the radius. Occ = 1 if so, 0
            * otherwise.
            */
-          double distanceFromOrigin = Math.sqrt(tempCrystCoords[i][j][k][0]
-              * tempCrystCoords[i][j][k][0]
-              + tempCrystCoords[i][j][k][1] * tempCrystCoords[i][j][k][1]
-              + tempCrystCoords[i][j][k][2] * tempCrystCoords[i][j][k][2]);
-          if (distanceFromOrigin <= (diameter / 2)) {
-            tempCrystOcc[i][j][k] = true;
-          } else {
-            tempCrystOcc[i][j][k] = false;
-          }
+          double distanceFromOrigin = Math.sqrt(coord[0] * coord[0]
+              + coord[1] * coord[1] + coord[2] * coord[2]);
+          voxels.setOccupied(i, j, k, distanceFromOrigin <= (diameter / 2));
         }
       }
     }
-
-    crystCoord = tempCrystCoords;
-    crystOcc = tempCrystOcc;
   }
 
   @Override
@@ -164,45 +129,64 @@ public class CrystalSphericalOld extends Crystal {
 
   @Override
   public double[] getCrystCoord(final int i, final int j, final int k) {
-    return crystCoord[i][j][k];
+    double[] coord = new double[3];
+    getCrystCoord(i, j, k, coord);
+    return coord;
+  }
+
+  @Override
+  public void getCrystCoord(final int i, final int j, final int k,
+      final double[] coord) {
+    /*
+     * Coordinates should be far side of box (-diameter/2) + how far along
+     * we are (i/crystRes).
+     */
+    coord[0] = -crystSizeUM[0] / 2 + i / crystalPixPerUM;
+    coord[1] = -crystSizeUM[1] / 2 + j / crystalPixPerUM;
+    coord[2] = -crystSizeUM[2] / 2 + k / crystalPixPerUM;
   }
 
   @Override
   public boolean isCrystalAt(final int i, final int j, final int k) {
-    return crystOcc[i][j][k];
+    return voxels.isOccupied(i, j, k);
   }
 
   @Override
   public void addDose(final int i, final int j, final int k,
       final double doseVox) {
-    dose[i][j][k] += doseVox;
+    voxels.addDose(i, j, k, doseVox);
   }
 
   @Override
   public void addFluence(final int i, final int j, final int k,
       final double fluenceVox) {
-    fluence[i][j][k] += fluenceVox;
+    voxels.addFluence(i, j, k, fluenceVox);
   }
 
   @Override
   public void addElastic(final int i, final int j, final int k,
       final double elasticVox) {
-    elastic[i][j][k] += elasticVox;
+    voxels.addElastic(i, j, k, elasticVox);
   }
 
   @Override
   public double getDose(final int i, final int j, final int k) {
-    return dose[i][j][k];
+    return voxels.getDose(i, j, k);
+  }
+
+  @Override
+  protected void clearVoxelExposure() {
+    voxels.clearExposure();
   }
 
   @Override
   public double getElastic(final int i, final int j, final int k) {
-    return elastic[i][j][k];
+    return voxels.getElastic(i, j, k);
   }
 
   @Override
   public double getFluence(final int i, final int j, final int k) {
-    return fluence[i][j][k];
+    return voxels.getFluence(i, j, k);
   }
 
   @Override
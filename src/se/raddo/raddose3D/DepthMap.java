@@ -0,0 +1,190 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+
+/**
+ * Depth map of a crystal at a single angle.
+ *
+ * For each pixel of a regular grid perpendicular to the beam it holds the
+ * sorted heights (z) at which a ray along the beam crosses the crystal
+ * surface. The depth of a point is the length of crystal the beam has passed
+ * through before reaching it, which for concave crystals includes every
+ * re-entry segment. Depths are interpolated bilinearly between the four
+ * pixels surrounding the point, so a lookup costs the same no matter how many
+ * faces the crystal has.
+ */
+final class DepthMap {
+  /** Position of pixel 0, 0 in um. */
+  private final double minX, minY;
+
+  /** Number of pixels along x and y. */
+  private final int    width, height;
+
+  /** Pixels per um. */
+  private final double pixelsPerMicron;
+
+  /**
+   * Crossings of pixel p are crossings[start[p]] to crossings[start[p + 1] -
+   * 1], in ascending order.
+   */
+  private final int[]  start;
+
+  /** Surface crossing heights of all pixels, grouped by pixel. */
+  private double[]     crossings;
+
+  /** Number of pixels whose crossings have been set so far. */
+  private int          pixelsSet;
+
+  /**
+   * Creates an empty map covering the given area.
+   *
+   * @param minX
+   *          smallest x covered, in um
+   * @param maxX
+   *          largest x covered, in um
+   * @param minY
+   *          smallest y covered, in um
+   * @param maxY
+   *          largest y covered, in um
+   * @param pixelsPerMicron
+   *          resolution of the map
+   */
+  DepthMap(final double minX, final double maxX, final double minY,
+      final double maxY, final double pixelsPerMicron) {
+    if (!(pixelsPerMicron > 0)) {
+      throw new IllegalArgumentException(
+          "Depth map resolution must be positive");
+    }
+    long w = (long) Math.ceil((maxX - minX) * pixelsPerMicron) + 1;
+    long h = (long) Math.ceil((maxY - minY) * pixelsPerMicron) + 1;
+    if (w * h >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Depth map of " + w + " x " + h
+          + " pixels is too large, reduce its resolution");
+    }
+    this.minX = minX;
+    this.minY = minY;
+    this.pixelsPerMicron = pixelsPerMicron;
+    width = (int) w;
+    height = (int) h;
+    start = new int[width * height + 1];
+    crossings = new double[Math.max(16, 2 * width * height)];
+  }
+
+  /** @return number of pixels along x. */
+  int getWidth() {
+    return width;
+  }
+
+  /** @return number of pixels along y. */
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * @param a
+   *          pixel column
+   * @return x coordinate of the column in um.
+   */
+  double pixelX(final int a) {
+    return minX + a / pixelsPerMicron;
+  }
+
+  /**
+   * @param b
+   *          pixel row
+   * @return y coordinate of the row in um.
+   */
+  double pixelY(final int b) {
+    return minY + b / pixelsPerMicron;
+  }
+
+  /**
+   * Stores the surface crossings of the next pixel. Pixels must be set in
+   * order, row b of column a being pixel a * height + b.
+   *
+   * @param heights
+   *          crossing heights in um, sorted here
+   * @param count
+   *          number of valid entries in heights
+   */
+  void addPixel(final double[] heights, final int count) {
+    Arrays.sort(heights, 0, count);
+    int offset = start[pixelsSet];
+    if (offset + count > crossings.length) {
+      crossings = Arrays.copyOf(crossings,
+          Math.max(offset + count, crossings.length * 2));
+    }
+    System.arraycopy(heights, 0, crossings, offset, count);
+    start[++pixelsSet] = offset + count;
+  }
+
+  /**
+   * Returns the beam path length through the crystal up to point x, y, z.
+   * Points outside the crystal at every surrounding pixel have depth 0.
+   *
+   * @param x
+   *          x in um
+   * @param y
+   *          y in um
+   * @param z
+   *          z in um
+   * @return interpolated depth in um.
+   */
+  double depth(final double x, final double y, final double z) {
+    double fx = (x - minX) * pixelsPerMicron;
+    double fy = (y - minY) * pixelsPerMicron;
+    int a = (int) Math.max(0, Math.min(width - 2, Math.floor(fx)));
+    int b = (int) Math.max(0, Math.min(height - 2, Math.floor(fy)));
+    double wx = Math.max(0, Math.min(1, fx - a));
+    double wy = Math.max(0, Math.min(1, fy - b));
+
+    double depth = 0;
+    double weight = 0;
+    for (int corner = 0; corner < 4; corner++) {
+      int ca = a + (corner & 1);
+      int cb = b + (corner >> 1);
+      if (ca >= width || cb >= height) {
+        continue;
+      }
+      double w = ((corner & 1) == 0 ? 1 - wx : wx)
+          * ((corner >> 1) == 0 ? 1 - wy : wy);
+      double pixelDepth = pixelDepth(ca * height + cb, z);
+      if (w > 0 && pixelDepth >= 0) {
+        depth += w * pixelDepth;
+        weight += w;
+      }
+    }
+    if (weight == 0) {
+      return 0;
+    }
+    return depth / weight;
+  }
+
+  /**
+   * Returns the beam path length through the crystal up to height z at one
+   * pixel.
+   *
+   * @param pixel
+   *          pixel index
+   * @param z
+   *          z in um
+   * @return depth in um, or -1 if z is not inside the crystal at this pixel.
+   */
+  private double pixelDepth(final int pixel, final double z) {
+    int first = start[pixel];
+    int below = first;
+    int end = start[pixel + 1];
+    while (below < end && crossings[below] < z) {
+      below++;
+    }
+    // An odd number of crossings below z means z is inside the crystal.
+    if (((below - first) & 1) == 0) {
+      return -1;
+    }
+    double depth = z - crossings[below - 1];
+    for (int c = below - 2; c > first; c -= 2) {
+      depth += crossings[c] - crossings[c - 1];
+    }
+    return depth;
+  }
+}
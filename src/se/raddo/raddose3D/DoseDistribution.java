@@ -0,0 +1,41 @@
+package se.raddo.raddose3D;
+
+/**
+ * Distribution of final voxel doses over a crystal, from which
+ * ExposureSummary derives its dose threshold and dose contrast metrics.
+ */
+public interface DoseDistribution {
+  /**
+   * Removes all recorded doses.
+   */
+  void clear();
+
+  /**
+   * Records the final dose of one voxel.
+   *
+   * @param dose
+   *          voxel dose in MGy, greater than 0.
+   */
+  void add(double dose);
+
+  /**
+   * Returns the highest recorded dose.
+   *
+   * @return
+   *         dose in MGy, or 0 if no doses have been recorded.
+   */
+  double getMaxDose();
+
+  /**
+   * Walks the recorded doses in ascending order, summing them until doseCutoff
+   * is reached.
+   *
+   * @param doseCutoff
+   *          summed dose in MGy that should lie below the threshold.
+   * @return
+   *         2 element array of the dose threshold in MGy (infinite if the
+   *         cutoff is never reached) and the number of voxels with a dose
+   *         above it.
+   */
+  double[] findThreshold(double doseCutoff);
+}
@@ -0,0 +1,71 @@
+package se.raddo.raddose3D;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Dose distribution that keeps every distinct voxel dose, giving exact dose
+ * thresholds at the cost of memory proportional to the number of voxels.
+ */
+public class DoseDistributionExact implements DoseDistribution {
+  /**
+   * A red-black tree for dose observations to identify threshold boundaries.
+   */
+  private final NavigableMap<Double, Integer> voxelDoses;
+
+  /**
+   * Create an empty distribution.
+   */
+  public DoseDistributionExact() {
+    voxelDoses = new TreeMap<Double, Integer>();
+    clear();
+  }
+
+  @Override
+  public void clear() {
+    voxelDoses.clear();
+    // record a single 0-dose observation, so getMaxDose() is defined
+    voxelDoses.put(0d, 1);
+  }
+
+  @Override
+  public void add(final double dose) {
+    Integer voxelDoseSeenCount = voxelDoses.get(dose);
+    if (voxelDoseSeenCount == null) {
+      voxelDoses.put(dose, 1);
+    } else {
+      voxelDoses.put(dose, 1 + voxelDoseSeenCount);
+    }
+  }
+
+  @Override
+  public double getMaxDose() {
+    return voxelDoses.lastKey();
+  }
+
+  @Override
+  public double[] findThreshold(final double doseCutoff) {
+    double threshold = Double.POSITIVE_INFINITY;
+    int voxelsAboveThreshold = 0;
+    double doseSeen = 0;
+    boolean thresholdFound = false;
+
+    for (Map.Entry<Double, Integer> e : voxelDoses.entrySet()) {
+      if (thresholdFound) {
+        voxelsAboveThreshold += e.getValue();
+      } else {
+        if (doseSeen < doseCutoff) {
+          doseSeen += e.getKey() * e.getValue();
+        }
+        if (doseSeen >= doseCutoff) {
+          threshold = e.getKey();
+          thresholdFound = true;
+        }
+      }
+    }
+
+    double[] result = { threshold, voxelsAboveThreshold };
+    return result;
+  }
+}
@@ -0,0 +1,153 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+
+/**
+ * Dose distribution that sorts voxel doses into logarithmically spaced bins,
+ * so that its memory use does not depend on the number of voxels.
+ *
+ * Each bin keeps the number of voxels in it and their summed dose, so summed
+ * doses are exact and the dose threshold is found to within one bin. With B
+ * bins per decade a threshold is accurate to a factor of 10^(1/B), e.g. 2.3%
+ * for 100 bins per decade. Doses between 10^-12 and 10^6 MGy are binned,
+ * doses outside this range are counted in the first or last bin.
+ * Distributions with the same binning can be merged.
+ */
+public class DoseDistributionHistogram implements DoseDistribution {
+  /** Decimal logarithm of the lower edge of the first bin. */
+  private static final int MIN_DECADE = -12;
+  /** Decimal logarithm of the upper edge of the last bin. */
+  private static final int MAX_DECADE = 6;
+
+  /** Number of bins per decade of dose. */
+  private final int        binsPerDecade;
+
+  /** Number of voxels in each bin. */
+  private final long[]     counts;
+
+  /** Summed dose of the voxels in each bin in MGy. */
+  private final double[]   doses;
+
+  /** Highest recorded dose in MGy. */
+  private double           maxDose;
+
+  /**
+   * Create an empty distribution.
+   *
+   * @param binsPerDecade
+   *          number of bins per factor of ten in dose.
+   */
+  public DoseDistributionHistogram(final int binsPerDecade) {
+    if (binsPerDecade <= 0) {
+      throw new IllegalArgumentException(
+          "Number of dose histogram bins per decade must be positive");
+    }
+    this.binsPerDecade = binsPerDecade;
+    counts = new long[(MAX_DECADE - MIN_DECADE) * binsPerDecade];
+    doses = new double[counts.length];
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(counts, 0);
+    Arrays.fill(doses, 0);
+    maxDose = 0;
+  }
+
+  /**
+   * Returns the bin holding a dose.
+   *
+   * @param dose
+   *          dose in MGy
+   * @return
+   *         bin index
+   */
+  private int bin(final double dose) {
+    double position = (Math.log10(dose) - MIN_DECADE) * binsPerDecade;
+    if (!(position > 0)) {
+      return 0;
+    }
+    return (int) Math.min(counts.length - 1, position);
+  }
+
+  /**
+   * @param b
+   *          bin index
+   * @return
+   *         lower edge of bin b in MGy.
+   */
+  private double lowerEdge(final int b) {
+    return Math.pow(10, MIN_DECADE + (double) b / binsPerDecade);
+  }
+
+  @Override
+  public void add(final double dose) {
+    int b = bin(dose);
+    counts[b]++;
+    doses[b] += dose;
+    if (dose > maxDose) {
+      maxDose = dose;
+    }
+  }
+
+  /**
+   * Adds all doses recorded in another distribution to this one.
+   *
+   * @param other
+   *          distribution with the same number of bins per decade.
+   */
+  public void merge(final DoseDistributionHistogram other) {
+    if (other.binsPerDecade != binsPerDecade) {
+      throw new IllegalArgumentException(
+          "Cannot merge dose histograms with different binning");
+    }
+    for (int b = 0; b < counts.length; b++) {
+      counts[b] += other.counts[b];
+      doses[b] += other.doses[b];
+    }
+    maxDose = Math.max(maxDose, other.maxDose);
+  }
+
+  @Override
+  public double getMaxDose() {
+    return maxDose;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Within the bin where the cutoff is reached, doses are taken to be spread
+   * evenly between the bin edges, and the threshold and number of voxels
+   * above it are interpolated accordingly.
+   */
+  @Override
+  public double[] findThreshold(final double doseCutoff) {
+    double doseSeen = 0;
+    int b = 0;
+    while (b < counts.length
+        && (counts[b] == 0 || doseSeen + doses[b] < doseCutoff)) {
+      doseSeen += doses[b];
+      b++;
+    }
+    if (b == counts.length) {
+      double[] result = { Double.POSITIVE_INFINITY, 0 };
+      return result;
+    }
+
+    double fraction = 0;
+    if (doses[b] > 0) {
+      fraction = Math.max(0, (doseCutoff - doseSeen) / doses[b]);
+    }
+    double lower = Math.min(lowerEdge(b), maxDose);
+    double upper = Math.min(lowerEdge(b + 1), maxDose);
+    double threshold = lower + fraction * (upper - lower);
+
+    double voxelsAbove = (1 - fraction) * counts[b];
+    for (int above = b + 1; above < counts.length; above++) {
+      voxelsAbove += counts[above];
+    }
+
+    double[] result = { threshold, voxelsAbove };
+    return result;
+  }
+}
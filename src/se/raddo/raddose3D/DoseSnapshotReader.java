@@ -0,0 +1,274 @@
+package se.raddo.raddose3D;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the dose snapshots written by {@link OutputDoseSnapshots}.
+ *
+ * The file holds the dose of the crystal after every few images as a series
+ * of chunks, followed by an index of all chunks. A chunk is either a
+ * keyframe, holding the dose of every voxel of the grid, or a sparse chunk,
+ * holding the dose of only those voxels whose dose changed since the
+ * previous snapshot. The dose at any snapshot is therefore found by reading
+ * the last keyframe before it and the sparse chunks in between, without
+ * reading the rest of the file.
+ *
+ * Layout, all numbers little-endian:
+ * <pre>
+ *   0  8 bytes   magic "RD3DSNAP"
+ *   8  int       format version
+ *  12  int[3]    grid size nx, ny, nz in voxels
+ *  24  long      offset of the index, 0 if the file was not completed
+ *  32  chunks
+ *
+ * keyframe chunk:  nx * ny * nz float dose in MGy,
+ *                  voxel i, j, k at position (i * ny + j) * nz + k
+ * sparse chunk:    count int voxel positions, in increasing order,
+ *                  followed by count float dose in MGy
+ *
+ * index:           int number of snapshots, followed per snapshot by
+ *                  int wedge number, starting at 1
+ *                  int image number within the wedge, starting at 0
+ *                  double rotation angle in degrees
+ *                  long chunk offset
+ *                  int voxels in chunk
+ *                  int 1 for keyframes, 0 for sparse chunks
+ * </pre>
+ */
+public class DoseSnapshotReader {
+  /** First bytes of every file. */
+  static final byte[]    MAGIC       = { 'R', 'D', '3', 'D', 'S', 'N', 'A',
+      'P' };
+  /** Version of the file format. */
+  static final int       VERSION     = 1;
+  /** Length of the header, the offset of the first chunk. */
+  static final int       HEADER      = 32;
+  /** Position of the index offset in the header. */
+  static final int       INDEX_FIELD = 24;
+  /** Length of an index entry. */
+  static final int       ENTRY       = 32;
+
+  /** Grid size in voxels. */
+  private final int[]    size        = new int[3];
+
+  /** Wedge and image number of each snapshot. */
+  private final int[]    wedges, images;
+
+  /** Rotation angle of each snapshot in degrees. */
+  private final double[] angles;
+
+  /** Position of each chunk in the file. */
+  private final long[]   offsets;
+
+  /** Number of voxels in each chunk. */
+  private final int[]    counts;
+
+  /** Whether each chunk is a keyframe. */
+  private final boolean[] keyframes;
+
+  /** The file, kept open for reading chunks. */
+  private final FileChannel channel;
+
+  /** Name of the file, used for meaningful error messages. */
+  private final String   filename;
+
+  /**
+   * Opens a dose snapshot file and reads its index.
+   *
+   * @param filename
+   *          Name of the file, may include absolute or relative path.
+   * @throws IOException
+   *           thrown if the file cannot be read or is not a dose snapshot
+   *           file.
+   */
+  public DoseSnapshotReader(final String filename) throws IOException {
+    this.filename = filename;
+    channel = new RandomAccessFile(filename, "r").getChannel();
+    try {
+      if (channel.size() < HEADER) {
+        throw new IOException(filename + " is not a dose snapshot file");
+      }
+      ByteBuffer header = read(0, HEADER);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(filename + " is not a dose snapshot file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(filename + " has unsupported format version "
+            + version);
+      }
+      for (int n = 0; n < 3; n++) {
+        size[n] = header.getInt();
+      }
+      long indexOffset = header.getLong();
+      if (indexOffset < HEADER || indexOffset + 4 > channel.size()) {
+        throw new IOException(filename + " was not completed");
+      }
+
+      int count = read(indexOffset, 4).getInt();
+      if (count < 0 || indexOffset + 4 + (long) count * ENTRY
+          > channel.size()) {
+        throw new IOException(filename + " is truncated");
+      }
+      ByteBuffer index = read(indexOffset + 4, count * ENTRY);
+      wedges = new int[count];
+      images = new int[count];
+      angles = new double[count];
+      offsets = new long[count];
+      counts = new int[count];
+      keyframes = new boolean[count];
+      for (int n = 0; n < count; n++) {
+        wedges[n] = index.getInt();
+        images[n] = index.getInt();
+        angles[n] = index.getDouble();
+        offsets[n] = index.getLong();
+        counts[n] = index.getInt();
+        keyframes[n] = index.getInt() != 0;
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads part of the file.
+   *
+   * @param position
+   *          offset in the file
+   * @param length
+   *          number of bytes
+   * @return little-endian buffer holding the bytes.
+   * @throws IOException
+   *           thrown if the file cannot be read.
+   */
+  private ByteBuffer read(final long position, final int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException(filename + " is truncated");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * @return grid size in voxels along i, j and k.
+   */
+  public int[] getSize() {
+    return size.clone();
+  }
+
+  /**
+   * @return number of snapshots in the file.
+   */
+  public int getSnapshotCount() {
+    return offsets.length;
+  }
+
+  /**
+   * @param snapshot
+   *          snapshot number, starting at 0
+   * @return wedge number of the snapshot, starting at 1.
+   */
+  public int getWedge(final int snapshot) {
+    return wedges[snapshot];
+  }
+
+  /**
+   * @param snapshot
+   *          snapshot number, starting at 0
+   * @return image number of the snapshot within its wedge, starting at 0.
+   */
+  public int getImage(final int snapshot) {
+    return images[snapshot];
+  }
+
+  /**
+   * @param snapshot
+   *          snapshot number, starting at 0
+   * @return rotation angle of the snapshot in degrees.
+   */
+  public double getAngle(final int snapshot) {
+    return angles[snapshot];
+  }
+
+  /**
+   * Finds the snapshot showing the dose after an image. Snapshots are only
+   * taken every few images, so this is the last snapshot taken at or before
+   * the image.
+   *
+   * @param wedge
+   *          wedge number, starting at 1
+   * @param image
+   *          image number within the wedge, starting at 0
+   * @return snapshot number, or -1 if there is no snapshot before the image.
+   */
+  public int findSnapshot(final int wedge, final int image) {
+    int found = -1;
+    for (int n = 0; n < offsets.length
+        && (wedges[n] < wedge || (wedges[n] == wedge && images[n] <= image));
+        n++) {
+      found = n;
+    }
+    return found;
+  }
+
+  /**
+   * Reconstructs the dose of every voxel at a snapshot.
+   *
+   * @param snapshot
+   *          snapshot number, starting at 0
+   * @return dose in MGy, voxel i, j, k at position (i * ny + j) * nz + k.
+   * @throws IOException
+   *           thrown if the file cannot be read.
+   */
+  public float[] getDose(final int snapshot) throws IOException {
+    if (snapshot < 0 || snapshot >= offsets.length) {
+      throw new IllegalArgumentException("No snapshot " + snapshot);
+    }
+    // Before the first keyframe the crystal has not received any dose.
+    int keyframe = snapshot;
+    while (keyframe >= 0 && !keyframes[keyframe]) {
+      keyframe--;
+    }
+
+    float[] dose = new float[size[0] * size[1] * size[2]];
+    if (keyframe >= 0) {
+      read(offsets[keyframe], 4 * dose.length).asFloatBuffer().get(dose);
+    }
+
+    for (int n = keyframe + 1; n <= snapshot; n++) {
+      ByteBuffer chunk = read(offsets[n], 8 * counts[n]);
+      IntBuffer voxels = chunk.asIntBuffer();
+      chunk.position(4 * counts[n]);
+      FloatBuffer values = chunk.asFloatBuffer();
+      for (int m = 0; m < counts[n]; m++) {
+        dose[voxels.get(m)] = values.get(m);
+      }
+    }
+    return dose;
+  }
+
+  /**
+   * Closes the file.
+   *
+   * @throws IOException
+   *           thrown if the file cannot be closed.
+   */
+  public void close() throws IOException {
+    channel.close();
+  }
+}
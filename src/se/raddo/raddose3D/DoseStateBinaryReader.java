@@ -0,0 +1,260 @@
+package se.raddo.raddose3D;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the binary dose state written by {@link OutputFinalDoseStateBinary}.
+ *
+ * The file starts with a header describing the voxel grid, followed by one
+ * plane of little-endian floats per quantity, with one value for every voxel
+ * of the grid. Voxel i, j, k is at index (i * ny + j) * nz + k of each plane.
+ * The planes are memory mapped and returned as views on the file, so
+ * nothing is copied when the file is opened.
+ *
+ * Header layout, all numbers little-endian:
+ * <pre>
+ *   0  8 bytes   magic "RD3DDOSE"
+ *   8  int       format version
+ *  12  int       header length in bytes, the offset of the first plane
+ *  16  int[3]    grid size nx, ny, nz in voxels
+ *  28  int       number of planes
+ *  32  double    voxel size in um
+ *  40  double[2] P and L angles of the crystal in degrees
+ *  56  double[3] crystal coordinates of voxel 0, 0, 0 in um
+ *  80  double[9] change in crystal coordinates in um along i, j and k
+ * 152  per plane, a 16 byte name and a 16 byte unit in US-ASCII,
+ *      padded with zeros
+ * </pre>
+ */
+public class DoseStateBinaryReader {
+  /** Name of the plane holding the dose in each voxel. */
+  public static final String  DOSE           = "dose";
+  /** Name of the plane holding the incident energy in each voxel. */
+  public static final String  FLUENCE        = "fluence";
+  /** Name of the plane holding the elastic yield of each voxel. */
+  public static final String  ELASTIC        = "elastic";
+  /** Name of the plane holding 1 for voxels in the crystal, 0 elsewhere. */
+  public static final String  OCCUPANCY      = "occupancy";
+
+  /** First bytes of every file. */
+  static final byte[]         MAGIC          = { 'R', 'D', '3', 'D', 'D', 'O',
+      'S', 'E' };
+  /** Version of the file format. */
+  static final int            VERSION        = 1;
+  /** Length of the header before the plane descriptions. */
+  static final int            FIXED_HEADER   = 152;
+  /** Bytes in a plane name or unit. */
+  static final int            LABEL_LENGTH   = 16;
+  /** Character set of plane names and units. */
+  static final Charset        LABEL_CHARSET  = Charset.forName("US-ASCII");
+
+  /** Grid size in voxels. */
+  private final int[]         size           = new int[3];
+
+  /** Voxel size in um. */
+  private final double        voxelSize;
+
+  /** P and L angles in degrees. */
+  private final double        angleP, angleL;
+
+  /** Coordinates of voxel 0, 0, 0 followed by the steps along i, j, k. */
+  private final double[]      geometry       = new double[12];
+
+  /** Plane names, units and contents, in file order. */
+  private final String[]      names, units;
+  private final FloatBuffer[] planes;
+
+  /**
+   * Opens a binary dose state file.
+   *
+   * @param filename
+   *          Name of the file, may include absolute or relative path.
+   * @throws IOException
+   *           thrown if the file cannot be read or is not a dose state.
+   */
+  public DoseStateBinaryReader(final String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < FIXED_HEADER) {
+        throw new IOException(filename + " is not a binary dose state");
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          FIXED_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(filename + " is not a binary dose state");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(filename + " has unsupported format version "
+            + version);
+      }
+      int headerLength = header.getInt();
+      for (int n = 0; n < 3; n++) {
+        size[n] = header.getInt();
+      }
+      int planeCount = header.getInt();
+      voxelSize = header.getDouble();
+      angleP = header.getDouble();
+      angleL = header.getDouble();
+      for (int n = 0; n < geometry.length; n++) {
+        geometry[n] = header.getDouble();
+      }
+
+      long planeBytes = 4L * size[0] * size[1] * size[2];
+      if (headerLength < FIXED_HEADER + 2 * LABEL_LENGTH * planeCount
+          || channel.size() < headerLength + planeCount * planeBytes) {
+        throw new IOException(filename + " is truncated");
+      }
+
+      ByteBuffer labels = channel.map(FileChannel.MapMode.READ_ONLY,
+          FIXED_HEADER, 2 * LABEL_LENGTH * planeCount);
+      names = new String[planeCount];
+      units = new String[planeCount];
+      planes = new FloatBuffer[planeCount];
+      for (int p = 0; p < planeCount; p++) {
+        names[p] = readLabel(labels);
+        units[p] = readLabel(labels);
+        planes[p] = channel.map(FileChannel.MapMode.READ_ONLY,
+            headerLength + p * planeBytes, planeBytes)
+            .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+    } finally {
+      // Mapped buffers stay valid after the file is closed.
+      file.close();
+    }
+  }
+
+  /**
+   * @param buffer
+   *          buffer positioned at a label
+   * @return label with padding removed.
+   */
+  private static String readLabel(final ByteBuffer buffer) {
+    byte[] label = new byte[LABEL_LENGTH];
+    buffer.get(label);
+    int length = 0;
+    while (length < LABEL_LENGTH && label[length] != 0) {
+      length++;
+    }
+    return new String(label, 0, length, LABEL_CHARSET);
+  }
+
+  /**
+   * @return grid size in voxels along i, j and k.
+   */
+  public int[] getSize() {
+    return size.clone();
+  }
+
+  /**
+   * @return voxel size in um.
+   */
+  public double getVoxelSize() {
+    return voxelSize;
+  }
+
+  /**
+   * @return P angle of the crystal in degrees.
+   */
+  public double getAngleP() {
+    return angleP;
+  }
+
+  /**
+   * @return L angle of the crystal in degrees.
+   */
+  public double getAngleL() {
+    return angleL;
+  }
+
+  /**
+   * @return names of the planes in the file.
+   */
+  public String[] getPlaneNames() {
+    return names.clone();
+  }
+
+  /**
+   * @param name
+   *          plane name
+   * @return unit of the values in the plane.
+   */
+  public String getUnit(final String name) {
+    return units[planeIndex(name)];
+  }
+
+  /**
+   * Returns the values of a plane as a view on the file.
+   *
+   * @param name
+   *          plane name
+   * @return read-only buffer of all voxel values of the plane.
+   */
+  public FloatBuffer getPlane(final String name) {
+    return planes[planeIndex(name)].duplicate();
+  }
+
+  /**
+   * @param name
+   *          plane name
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return value of voxel i, j, k in the plane.
+   */
+  public float get(final String name, final int i, final int j, final int k) {
+    return planes[planeIndex(name)].get((i * size[1] + j) * size[2] + k);
+  }
+
+  /**
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return true if voxel i, j, k lies in the crystal.
+   */
+  public boolean isCrystalAt(final int i, final int j, final int k) {
+    return get(OCCUPANCY, i, j, k) != 0;
+  }
+
+  /**
+   * Calculates the crystal coordinates of a voxel, as given by
+   * {@link Crystal#getCrystCoord(int, int, int)}.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return coordinates in um.
+   */
+  public double[] getCrystCoord(final int i, final int j, final int k) {
+    double[] coord = new double[3];
+    for (int n = 0; n < 3; n++) {
+      coord[n] = geometry[n] + i * geometry[3 + n] + j * geometry[6 + n]
+          + k * geometry[9 + n];
+    }
+    return coord;
+  }
+
+  /**
+   * @param name
+   *          plane name
+   * @return position of the plane in the file.
+   */
+  private int planeIndex(final String name) {
+    for (int p = 0; p < names.length; p++) {
+      if (names[p].equals(name)) {
+        return p;
+      }
+    }
+    throw new IllegalArgumentException("No plane named " + name);
+  }
+}
@@ -0,0 +1,225 @@
+package se.raddo.raddose3D;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writes the dose array of the R dose state scripts, one
+ * dose[,,k]&lt;-c(...) line per k-slice.
+ *
+ * Slices are rendered into separate byte buffers by a fork-join pool, a
+ * batch at a time, and each batch is then written in slice order. The
+ * output is therefore the same as rendering the slices one after another,
+ * while only a batch of rendered slices is held in memory.
+ *
+ * The array may be a reduced grid of the crystal: each axis is sampled at
+ * the voxels listed for it, with the dose of the nearest voxel. Both R
+ * outputs find these voxels with {@link #sampleGrid}.
+ */
+public final class DoseStateRSlices {
+  /** Slices rendered per batch for each thread. */
+  private static final int SLICES_PER_THREAD = 4;
+
+  /** Crystal that is written. */
+  private final Crystal    crystal;
+
+  /** Crystal voxels sampled along i, j and k. */
+  private final int[][]    samples;
+
+  /** Whether doses are written as %.4e instead of as floats. */
+  private final boolean    scientific;
+
+  /** Rendered slices of the current batch. */
+  private final byte[][]   rendered;
+
+  /**
+   * @param crystal
+   *          crystal that is written
+   * @param samples
+   *          crystal voxels sampled along i, j and k
+   * @param scientific
+   *          true to write doses as %.4e, false to write them as floats
+   * @param batch
+   *          number of slices rendered at a time
+   */
+  private DoseStateRSlices(final Crystal crystal, final int[][] samples,
+      final boolean scientific, final int batch) {
+    this.crystal = crystal;
+    this.samples = samples;
+    this.scientific = scientific;
+    rendered = new byte[batch][];
+  }
+
+  /**
+   * Calculates the crystal voxels sampled along each axis of a reduced grid.
+   * Every stride-th voxel is taken along an axis, unless that gives more
+   * than limit voxels, in which case limit voxels are spread evenly over the
+   * axis instead.
+   *
+   * @param voxels
+   *          crystal size in voxels along i, j and k
+   * @param stride
+   *          distance between sampled voxels, at least 1
+   * @param limit
+   *          largest number of voxels sampled along an axis
+   * @return crystal voxel at each reduced grid position, along i, j and k.
+   */
+  static int[][] sampleGrid(final int[] voxels, final int stride,
+      final int limit) {
+    int[][] samples = new int[3][];
+    for (int n = 0; n < 3; n++) {
+      int reduced = (voxels[n] + stride - 1) / stride;
+      if (reduced <= limit) {
+        samples[n] = new int[reduced];
+        for (int m = 0; m < reduced; m++) {
+          samples[n][m] = m * stride;
+        }
+      } else {
+        samples[n] = new int[limit];
+        for (int m = 0; m < limit; m++) {
+          samples[n][m] = (int) ((long) m * voxels[n] / limit);
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Writes the dose[,,k]&lt;-c(...) lines for all k-slices.
+   *
+   * @param w
+   *          where the lines should be written to
+   * @param crystal
+   *          crystal that is written
+   * @param samples
+   *          crystal voxels sampled along i, j and k
+   * @param scientific
+   *          true to write doses as %.4e, false to write them as floats
+   */
+  static void write(final Writer w, final Crystal crystal,
+      final int[][] samples, final boolean scientific) {
+    write(w, crystal, samples, scientific,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Writes the dose[,,k]&lt;-c(...) lines for all k-slices, rendering them
+   * with a given number of threads. The output does not depend on it.
+   *
+   * @param w
+   *          where the lines should be written to
+   * @param crystal
+   *          crystal that is written
+   * @param samples
+   *          crystal voxels sampled along i, j and k
+   * @param scientific
+   *          true to write doses as %.4e, false to write them as floats
+   * @param threads
+   *          number of threads, 1 to render the slices one after another
+   */
+  public static void write(final Writer w, final Crystal crystal,
+      final int[][] samples, final boolean scientific, final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Number of threads must be at "
+          + "least 1");
+    }
+    int slices = samples[2].length;
+    int batch = Math.max(1, Math.min(slices, SLICES_PER_THREAD * threads));
+    DoseStateRSlices r = new DoseStateRSlices(crystal, samples, scientific,
+        batch);
+
+    ForkJoinPool pool = null;
+    if (threads > 1 && slices > 1) {
+      pool = new ForkJoinPool(threads);
+    }
+    try {
+      for (int start = 0; start < slices; start += batch) {
+        int end = Math.min(slices, start + batch);
+        if (pool == null) {
+          for (int k = start; k < end; k++) {
+            r.rendered[k - start] = r.render(k);
+          }
+        } else {
+          pool.invoke(r.new SliceTask(start, end, start));
+        }
+        for (int k = start; k < end; k++) {
+          w.write(r.rendered[k - start]);
+          r.rendered[k - start] = null;
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Renders the dose[,,k]&lt;-c(...) line of a single slice.
+   *
+   * @param k
+   *          slice number in the reduced grid
+   * @return line as US-ASCII bytes.
+   */
+  private byte[] render(final int k) {
+    int[] iSample = samples[0], jSample = samples[1];
+    int kVoxel = samples[2][k];
+    StringBuilder line = new StringBuilder(
+        16 + 12 * iSample.length * jSample.length);
+    line.append("dose[,,").append(k + 1).append("]<-c(");
+    for (int j = 0; j < jSample.length; j++) {
+      for (int i = 0; i < iSample.length; i++) {
+        if ((i != 0) || (j != 0)) {
+          line.append(',');
+        }
+        double dose = crystal.getDose(iSample[i], jSample[j], kVoxel);
+        if (scientific) {
+          if (dose <= Double.MIN_VALUE) {
+            line.append('0');
+          } else {
+            line.append(String.format(Locale.ROOT, "%.4e", dose));
+          }
+        } else {
+          float fdose = (float) dose;
+          if (fdose <= Float.MIN_VALUE) {
+            line.append('0');
+          } else {
+            line.append(fdose);
+          }
+        }
+      }
+    }
+    line.append(")\n");
+    return line.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Fork-join task rendering a range of slices. Ranges are halved until a
+   * single slice remains.
+   */
+  private final class SliceTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int         kStart, kEnd, batchStart;
+
+    SliceTask(final int kStart, final int kEnd, final int batchStart) {
+      this.kStart = kStart;
+      this.kEnd = kEnd;
+      this.batchStart = batchStart;
+    }
+
+    @Override
+    protected void compute() {
+      if (kEnd - kStart <= 1) {
+        for (int k = kStart; k < kEnd; k++) {
+          rendered[k - batchStart] = render(k);
+        }
+      } else {
+        int kMid = (kStart + kEnd) >>> 1;
+        invokeAll(new SliceTask(kStart, kMid, batchStart),
+            new SliceTask(kMid, kEnd, batchStart));
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package se.raddo.raddose3D;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import se.raddo.raddose3D.ElementDatabase.DatabaseFields;
@@ -29,6 +30,12 @@ public class Element {
    * Stored absorption edge coefficients.
    */
   private final Map<AbsorptionEdge, Double[]>               coefficients;
+
+  /**
+   * Recently calculated cross-sections by energy, least recently used first.
+   * Access must be synchronized on the map.
+   */
+  private final Map<Double, CrossSections>                  crossSectionCache;
   
   /**
    * Probability of K, L1, L2, L3 shell ionisation
@@ -76,6 +83,9 @@ public class Element {
   /** Number of expansions of the polynomial. */
   private static final int    POLYNOMIAL_EXPANSION      = 4;
 
+  /** Number of energies for which cross-sections are kept. */
+  private static final int    CROSS_SECTION_CACHE_SIZE  = 256;
+
   /** Different types of calculated cross-sections. */
   public enum CrossSection {
     /**
@@ -97,6 +107,50 @@ public class Element {
     TOTAL
   }
 
+  /**
+   * Cross-sections of an element at one energy, in units Barns/Atom.
+   */
+  public static final class CrossSections {
+    /** Photoelectric cross-section. */
+    private final double photoelectric;
+    /** Coherent (elastic) scattering cross-section. */
+    private final double coherent;
+    /** Incoherent (Compton) scattering cross-section. */
+    private final double compton;
+
+    /**
+     * @param photoelectric photoelectric cross-section
+     * @param coherent coherent scattering cross-section
+     * @param compton incoherent scattering cross-section
+     */
+    private CrossSections(final double photoelectric, final double coherent,
+        final double compton) {
+      this.photoelectric = photoelectric;
+      this.coherent = coherent;
+      this.compton = compton;
+    }
+
+    /** @return photoelectric cross-section. */
+    public double getPhotoelectric() {
+      return photoelectric;
+    }
+
+    /** @return coherent (elastic) scattering cross-section. */
+    public double getCoherent() {
+      return coherent;
+    }
+
+    /** @return incoherent (Compton) scattering cross-section. */
+    public double getCompton() {
+      return compton;
+    }
+
+    /** @return total cross-section. */
+    public double getTotal() {
+      return photoelectric + coherent + compton;
+    }
+  }
+
   /**
    * Create a new element with name, atomic number and associated information.
    * 
@@ -114,6 +168,16 @@ public class Element {
     elementData = new HashMap<ElementDatabase.DatabaseFields, Double>(
         elementInformation);
     coefficients = edgeCoefficients(elementInformation);
+    crossSectionCache = new LinkedHashMap<Double, CrossSections>(
+        CROSS_SECTION_CACHE_SIZE, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<Double, CrossSections> eldest) {
+        return size() > CROSS_SECTION_CACHE_SIZE;
+      }
+    };
   }
   
   public void EdgeRatio (){
@@ -296,6 +360,51 @@ public class Element {
    *         cross sections in units Barns/Atom.
    */
   public Map<CrossSection, Double> getAbsCoefficients(final double energy) {
+    CrossSections xs = getCrossSections(energy);
+
+    Map<CrossSection, Double> results = new HashMap<CrossSection, Double>();
+    results.put(CrossSection.COHERENT, xs.getCoherent());
+    results.put(CrossSection.PHOTOELECTRIC, xs.getPhotoelectric());
+    results.put(CrossSection.COMPTON, xs.getCompton());
+    results.put(CrossSection.TOTAL, xs.getTotal());
+
+    return results;
+  }
+
+  /**
+   * Obtain the photoelectric, elastic and incoherent cross-sections for a given
+   * energy. Cross-sections for recently used energies are kept, so repeated
+   * calls for the same energy are cheap.
+   *
+   * @param energy
+   *          X-ray photon energy in keV
+   * @return
+   *         cross sections in units Barns/Atom.
+   */
+  public CrossSections getCrossSections(final double energy) {
+    synchronized (crossSectionCache) {
+      CrossSections xs = crossSectionCache.get(energy);
+      if (xs != null) {
+        return xs;
+      }
+    }
+    CrossSections xs = calculateCrossSections(energy);
+    synchronized (crossSectionCache) {
+      crossSectionCache.put(energy, xs);
+    }
+    return xs;
+  }
+
+  /**
+   * Calculate the photoelectric, elastic and incoherent cross-sections for a
+   * given energy.
+   *
+   * @param energy
+   *          X-ray photon energy in keV
+   * @return
+   *         cross sections in units Barns/Atom.
+   */
+  private CrossSections calculateCrossSections(final double energy) {
     double photoelectric = getPhotoelectricXSForEnergy(energy);
 
     double elastic = 0;
@@ -313,15 +422,7 @@ public class Element {
       comptonAttenuation = baxForEdge(energy, AbsorptionEdge.I);
     }
     
-    double attenuation = photoelectric + elastic + comptonAttenuation;
-
-    Map<CrossSection, Double> results = new HashMap<CrossSection, Double>();
-    results.put(CrossSection.COHERENT, elastic);
-    results.put(CrossSection.PHOTOELECTRIC, photoelectric);   
-     results.put(CrossSection.COMPTON,comptonAttenuation);
-    results.put(CrossSection.TOTAL, attenuation);
-    
-    return results;
+    return new CrossSections(photoelectric, elastic, comptonAttenuation);
   }
 
   /**
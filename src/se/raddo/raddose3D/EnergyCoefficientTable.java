@@ -0,0 +1,188 @@
+package se.raddo.raddose3D;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable table of the polynomial coefficients describing energy deposition
+ * along a photoelectron track, indexed by photoelectron energy.
+ *
+ * Each constants file is read once and shared by all crystals, instead of
+ * being parsed again for every photoelectron distance bin.
+ */
+public final class EnergyCoefficientTable {
+  /** Coefficients for the start of the track. */
+  public static final String                               LOW_FILE  =
+      "constants/EnergyCoefsLow.txt";
+  /** Coefficients for the middle of the track. */
+  public static final String                               MED_FILE  =
+      "constants/EnergyCoefsMed.txt";
+  /** Coefficients for the end of the track. */
+  public static final String                               HIGH_FILE =
+      "constants/EnergyCoefsHigh.txt";
+
+  /** Number of polynomial coefficients per energy. */
+  private static final int                                 COEFFICIENTS = 7;
+
+  /** Tables loaded so far, by file name. */
+  private static final Map<String, EnergyCoefficientTable> TABLES    =
+      new HashMap<String, EnergyCoefficientTable>();
+
+  /** Photoelectron energies in keV, ascending. */
+  private final double[]                                   energies;
+
+  /**
+   * Coefficients for each energy, in increasing order of power (element 0 is
+   * the constant term).
+   */
+  private final double[][]                                 coefficients;
+
+  /**
+   * Returns the table held in the given constants file, reading it on first
+   * use.
+   *
+   * @param csvFileName
+   *          name of the constants file, e.g. LOW_FILE
+   * @return
+   *         coefficient table
+   */
+  @SuppressWarnings("PMD.AvoidSynchronizedAtMethodLevel")
+  public static synchronized EnergyCoefficientTable getTable(
+      final String csvFileName) {
+    EnergyCoefficientTable table = TABLES.get(csvFileName);
+    if (table == null) {
+      try {
+        table = new EnergyCoefficientTable(csvFileName);
+      } catch (IOException e) {
+        throw new IllegalStateException("Error accessing energy coefficient "
+            + "file " + csvFileName, e);
+      }
+      TABLES.put(csvFileName, table);
+    }
+    return table;
+  }
+
+  /**
+   * Reads a constants file. Each line holds an energy followed by the
+   * coefficients from the highest power down to the constant term.
+   *
+   * @param csvFileName
+   *          name of the constants file
+   * @throws IOException
+   *           the file could not be read
+   */
+  private EnergyCoefficientTable(final String csvFileName) throws IOException {
+    List<double[]> rows = new ArrayList<double[]>();
+
+    BufferedReader br = new BufferedReader(locateConstantsFile(csvFileName));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0) {
+          continue;
+        }
+        String[] wholeLine = line.split(",");
+        double[] row = new double[COEFFICIENTS + 1];
+        row[0] = Double.parseDouble(wholeLine[0]);
+        for (int i = 1; i <= COEFFICIENTS; i++) {
+          row[COEFFICIENTS + 1 - i] = Double.parseDouble(wholeLine[i]);
+        }
+        rows.add(row);
+      }
+    } finally {
+      br.close();
+    }
+
+    energies = new double[rows.size()];
+    coefficients = new double[rows.size()][COEFFICIENTS];
+    for (int r = 0; r < rows.size(); r++) {
+      energies[r] = rows.get(r)[0];
+      System.arraycopy(rows.get(r), 1, coefficients[r], 0, COEFFICIENTS);
+      if (r > 0 && energies[r] < energies[r - 1]) {
+        throw new IOException("Energies in " + csvFileName
+            + " are not in ascending order");
+      }
+    }
+  }
+
+  /**
+   * Try to locate a constants file. This may be in the class path (ie. within
+   * a .jar file), or in the file system.
+   *
+   * @param csvFileName
+   *          name of the constants file
+   * @return
+   *         InputStreamReader pointing to the correct resource.
+   * @throws FileNotFoundException
+   *           The file could not be found.
+   * @throws UnsupportedEncodingException
+   *           The file charset cannot be interpreted.
+   */
+  private InputStreamReader locateConstantsFile(final String csvFileName)
+      throws UnsupportedEncodingException, FileNotFoundException {
+    // Try to find it within class path;
+    InputStream is = getClass().getResourceAsStream("/" + csvFileName);
+
+    if (is == null) {
+      // If it is not within the class path, try via the file system.
+      is = new FileInputStream(csvFileName);
+    }
+
+    return new InputStreamReader(is, "US-ASCII");
+  }
+
+  /**
+   * Returns the coefficients tabulated for the energy nearest to peEnergy.
+   * Energies outside the table are clamped to 1.01 - 99.99 keV, and if
+   * peEnergy lies beyond the last tabulated energy all coefficients are 0.
+   *
+   * @param peEnergy
+   *          photoelectron energy in keV
+   * @return
+   *         7 coefficients in increasing order of power. The array is shared
+   *         and must not be modified.
+   */
+  public double[] getCoefficients(final double peEnergy) {
+    double usedEnergy;
+    if (peEnergy <= 1.0) {
+      usedEnergy = 1.01;
+    } else if (peEnergy >= 100) {
+      usedEnergy = 99.99;
+    } else {
+      usedEnergy = peEnergy;
+    }
+    double roundedEnergy = Math.round(usedEnergy * 100.0) / 100.0;
+
+    // first tabulated energy above roundedEnergy
+    int low = 0;
+    int high = energies.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (energies[mid] > roundedEnergy) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    if (low == energies.length || low == 0) {
+      return new double[COEFFICIENTS];
+    }
+
+    // check how far in between values it is
+    double interpolation = (usedEnergy - energies[low - 1])
+        / (energies[low] - energies[low - 1]);
+    if (interpolation <= 0.5) {
+      return coefficients[low - 1];
+    }
+    return coefficients[low];
+  }
+}
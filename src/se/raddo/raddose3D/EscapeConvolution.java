@@ -0,0 +1,315 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+
+/**
+ * Redistributes escaping dose over a crystal by FFT convolution.
+ *
+ * The dose released by every voxel at one angle is collected in a field,
+ * which is then convolved with the escape stencil in a single step. The
+ * field is zero padded to a power of two along each axis, at least the
+ * stencil radius beyond the crystal, so dose carried out of the voxel grid
+ * lands in the padding instead of wrapping around. The result is masked by
+ * the crystal occupancy, and whatever does not land on an occupied voxel is
+ * lost from the crystal. The cost no longer depends on the number of offsets
+ * in the stencil, which makes this worthwhile for long escape tracks.
+ */
+public final class EscapeConvolution {
+  /** Voxels receiving the dose. */
+  private final VoxelGrid     voxels;
+
+  /** Crystal size in voxels. */
+  private final int           nx, ny, nz;
+
+  /** Padded grid size, a power of two along each axis. */
+  private final int           px, py, pz;
+
+  /** Transform of the stencil, real and imaginary parts. */
+  private final double[][]    kernel;
+
+  /** Released dose, and after apply() its transform, on the padded grid. */
+  private final double[][]    field;
+
+  /** Transforms along i, j and k. */
+  private final Axis          axisI, axisJ, axisK;
+
+  /** Sum of the stencil weights. */
+  private double              kernelWeight;
+
+  /** Dose released since the last call to apply(). */
+  private double              released;
+
+  /**
+   * Sets up the padded grid for a crystal and a stencil.
+   *
+   * @param voxels
+   *          crystal voxels receiving the dose
+   * @param stencil
+   *          redistribution of the dose released by one voxel
+   */
+  public EscapeConvolution(final VoxelGrid voxels, final EscapeStencil stencil) {
+    this.voxels = voxels;
+    int[] size = voxels.getSize();
+    nx = size[0];
+    ny = size[1];
+    nz = size[2];
+    px = paddedSize(nx, stencil.getRadius());
+    py = paddedSize(ny, stencil.getRadius());
+    pz = paddedSize(nz, stencil.getRadius());
+    if ((long) px * py * pz > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Escape convolution grid of " + px
+          + " x " + py + " x " + pz + " voxels is too large");
+    }
+    axisI = new Axis(px);
+    axisJ = new Axis(py);
+    axisK = new Axis(pz);
+    kernel = new double[2][px * py * pz];
+    field = new double[2][px * py * pz];
+    setKernel(stencil);
+  }
+
+  /**
+   * @param n
+   *          crystal size along an axis
+   * @param radius
+   *          stencil radius
+   * @return smallest power of two of at least n + radius.
+   */
+  private static int paddedSize(final int n, final int radius) {
+    int p = 1;
+    while (p < n + radius) {
+      p <<= 1;
+    }
+    return p;
+  }
+
+  /**
+   * Replaces the stencil, keeping the padded grid.
+   *
+   * @param stencil
+   *          redistribution of the dose released by one voxel
+   * @return
+   *         false if the stencil reaches too far for the padding, in which
+   *         case a new EscapeConvolution must be created.
+   */
+  public boolean setKernel(final EscapeStencil stencil) {
+    if (stencil.getRadius() > Math.min(px - nx,
+        Math.min(py - ny, pz - nz))) {
+      return false;
+    }
+    Arrays.fill(kernel[0], 0);
+    Arrays.fill(kernel[1], 0);
+    stencil.fillPeriodic(kernel[0], px, py, pz);
+    kernelWeight = stencil.getTotalWeight();
+    forward(kernel, px, py);
+    return true;
+  }
+
+  /**
+   * Records dose released by a voxel, to be redistributed by apply().
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param dose
+   *          dose released by the voxel
+   */
+  public void add(final int i, final int j, final int k, final double dose) {
+    field[0][(i * py + j) * pz + k] += dose;
+    released += dose;
+  }
+
+  /**
+   * Deposits all dose recorded since the last call over the crystal.
+   *
+   * @return dose lost from the crystal.
+   */
+  public double apply() {
+    if (released == 0) {
+      return 0;
+    }
+
+    forward(field, nx, ny);
+    double[] re = field[0];
+    double[] im = field[1];
+    double scale = 1.0 / re.length;
+    for (int n = 0; n < re.length; n++) {
+      double r = (re[n] * kernel[0][n] - im[n] * kernel[1][n]) * scale;
+      im[n] = (re[n] * kernel[1][n] + im[n] * kernel[0][n]) * scale;
+      re[n] = r;
+    }
+    inverse(field, nx, ny);
+
+    // Voxels the stencil does not reach come out as rounding errors of
+    // either sign, around 1e-16 of the largest value. Negative ones are not
+    // deposited. Positive ones are, so no dose the stencil does deposit is
+    // dropped, however small it is next to the largest.
+    double deposited = 0;
+    for (int i = 0; i < nx; i++) {
+      for (int j = 0; j < ny; j++) {
+        for (int k = 0; k < nz; k++) {
+          double dose = re[(i * py + j) * pz + k];
+          if (dose > 0 && voxels.isOccupied(i, j, k)) {
+            voxels.addDose(i, j, k, dose);
+            deposited += dose;
+          }
+        }
+      }
+    }
+
+    double lost = released * kernelWeight - deposited;
+    Arrays.fill(re, 0);
+    Arrays.fill(im, 0);
+    released = 0;
+    return lost;
+  }
+
+  /**
+   * Forward transform of a padded grid whose non-zero values all lie below
+   * the given limits along i and j.
+   *
+   * @param data
+   *          real and imaginary parts, transformed in place
+   * @param limitI
+   *          number of non-zero planes along i
+   * @param limitJ
+   *          number of non-zero rows along j
+   */
+  private void forward(final double[][] data, final int limitI,
+      final int limitJ) {
+    for (int i = 0; i < limitI; i++) {
+      for (int j = 0; j < limitJ; j++) {
+        axisK.transform(data, (i * py + j) * pz, 1, false);
+      }
+    }
+    for (int i = 0; i < limitI; i++) {
+      axisJ.transform(data, i * py * pz, pz, false);
+    }
+    axisI.transform(data, 0, py * pz, false);
+  }
+
+  /**
+   * Inverse transform, without the 1 / (px * py * pz) normalisation, of a
+   * padded grid, computing only the values lying below the given limits
+   * along i and j.
+   *
+   * @param data
+   *          real and imaginary parts, transformed in place
+   * @param limitI
+   *          number of planes needed along i
+   * @param limitJ
+   *          number of rows needed along j
+   */
+  private void inverse(final double[][] data, final int limitI,
+      final int limitJ) {
+    axisI.transform(data, 0, py * pz, true);
+    for (int i = 0; i < limitI; i++) {
+      axisJ.transform(data, i * py * pz, pz, true);
+    }
+    for (int i = 0; i < limitI; i++) {
+      for (int j = 0; j < limitJ; j++) {
+        axisK.transform(data, (i * py + j) * pz, 1, true);
+      }
+    }
+  }
+
+  /**
+   * Radix 2 fast Fourier transform along one axis of the padded grid.
+   *
+   * A grid axis is transformed for a whole block of neighbouring lines at
+   * once, so the innermost loop always runs over contiguous elements. This
+   * keeps the strided axes cache friendly without copying lines out.
+   */
+  private static final class Axis {
+    /** Number of elements along the axis, a power of two. */
+    private final int      n;
+
+    /** Bit reversed position of each element. */
+    private final int[]    reversed;
+
+    /** cos and sin of 2 pi t / n for t &lt; n / 2. */
+    private final double[] cos, sin;
+
+    /**
+     * @param n
+     *          number of elements along the axis, a power of two
+     */
+    Axis(final int n) {
+      this.n = n;
+      reversed = new int[n];
+      int bits = Integer.numberOfTrailingZeros(n);
+      for (int a = 1; a < n; a++) {
+        reversed[a] = Integer.reverse(a) >>> (Integer.SIZE - bits);
+      }
+      cos = new double[n / 2];
+      sin = new double[n / 2];
+      for (int t = 0; t < n / 2; t++) {
+        cos[t] = Math.cos(2 * Math.PI * t / n);
+        sin[t] = Math.sin(2 * Math.PI * t / n);
+      }
+    }
+
+    /**
+     * Transforms the block data[offset + (a * inner) + x] for a &lt; n and
+     * x &lt; inner along a. Blocks that are entirely zero are left alone.
+     *
+     * @param data
+     *          real and imaginary parts of the grid
+     * @param offset
+     *          index of the first element of the block
+     * @param inner
+     *          index increment between elements along the axis, and number
+     *          of lines transformed together
+     * @param inverse
+     *          true for the inverse transform
+     */
+    void transform(final double[][] data, final int offset, final int inner,
+        final boolean inverse) {
+      final double[] re = data[0];
+      final double[] im = data[1];
+      boolean zero = true;
+      for (int x = offset; x < offset + n * inner && zero; x++) {
+        zero = re[x] == 0 && im[x] == 0;
+      }
+      if (zero) {
+        return;
+      }
+
+      for (int a = 1; a < n; a++) {
+        int b = reversed[a];
+        if (b > a) {
+          int p = offset + a * inner;
+          int q = offset + b * inner;
+          for (int x = 0; x < inner; x++) {
+            double t = re[p + x];
+            re[p + x] = re[q + x];
+            re[q + x] = t;
+            t = im[p + x];
+            im[p + x] = im[q + x];
+            im[q + x] = t;
+          }
+        }
+      }
+
+      for (int half = 1; half < n; half <<= 1) {
+        int step = n / (2 * half);
+        for (int start = 0; start < n; start += 2 * half) {
+          for (int m = 0; m < half; m++) {
+            final double wr = cos[m * step];
+            final double wi = inverse ? sin[m * step] : -sin[m * step];
+            final int p = offset + (start + m) * inner;
+            final int q = p + half * inner;
+            for (int x = 0; x < inner; x++) {
+              double tr = wr * re[q + x] - wi * im[q + x];
+              double ti = wr * im[q + x] + wi * re[q + x];
+              re[q + x] = re[p + x] - tr;
+              im[q + x] = im[p + x] - ti;
+              re[p + x] += tr;
+              im[p + x] += ti;
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Expected redistribution of the photoelectron or fluorescent dose released
+ * by one voxel, as a list of integer voxel offsets and the fraction of the
+ * dose deposited at each.
+ *
+ * Instead of sending the dose along one randomly chosen track, every track is
+ * followed at once, weighted by its probability. Track points rounding to the
+ * same voxel are merged, so applying the stencil costs one addition per
+ * distinct voxel reached and gives the same result on every run.
+ */
+public final class EscapeStencil {
+  /** Offset added to each coordinate when packing an offset into a key. */
+  private static final int    KEY_OFFSET = 1 << 20;
+
+  /** Bits used for each coordinate of a packed offset. */
+  private static final int    KEY_BITS   = 21;
+
+  /** Voxel offsets along i, j and k, in ascending order. */
+  private final int[]         di, dj, dk;
+
+  /** Fraction of the released dose deposited at each offset. */
+  private final double[]      weight;
+
+  /** Largest offset along any axis. */
+  private final int           radius;
+
+  /**
+   * Builds the stencil for photoelectrons, whose tracks are chosen with a
+   * bias set by the beam polarisation.
+   *
+   * @param relativeVoxXYZ
+   *          position of each track point in voxels relative to the releasing
+   *          voxel, as [distance bin][track][xyz]
+   * @param distBins
+   *          number of distance bins in use
+   * @param trackBias
+   *          track indices, each track listed in proportion to its
+   *          probability
+   * @param propnAtDist
+   *          fraction of the dose deposited in each distance bin
+   * @return
+   *         stencil
+   */
+  public static EscapeStencil forPhotoelectrons(final double[][][] relativeVoxXYZ,
+      final int distBins, final int[] trackBias, final double[] propnAtDist) {
+    int[] multiplicity = new int[relativeVoxXYZ[0].length];
+    for (int track : trackBias) {
+      multiplicity[track]++;
+    }
+
+    Map<Long, double[]> merged = new HashMap<Long, double[]>();
+    for (int track = 0; track < multiplicity.length; track++) {
+      if (multiplicity[track] == 0) {
+        continue;
+      }
+      double probability = (double) multiplicity[track] / trackBias.length;
+      for (int m = 0; m < distBins; m++) {
+        merge(merged, relativeVoxXYZ[m][track], probability * propnAtDist[m]);
+      }
+    }
+    return new EscapeStencil(merged);
+  }
+
+  /**
+   * Builds the stencil for fluorescent photons, which are emitted equally in
+   * all directions.
+   *
+   * @param flRelativeVoxXYZ
+   *          position of each track point in voxels relative to the releasing
+   *          voxel, as [element][distance bin][track][xyz]
+   * @param distBins
+   *          number of distance bins in use
+   * @param tracks
+   *          number of tracks in use
+   * @param proportionEvent
+   *          fraction of the dose released by each element
+   * @param distanceDistribution
+   *          fraction of the dose of each element deposited in each distance
+   *          bin
+   * @return
+   *         stencil
+   */
+  public static EscapeStencil forFluorescence(final double[][][][] flRelativeVoxXYZ,
+      final int distBins, final int tracks, final double[] proportionEvent,
+      final double[][] distanceDistribution) {
+    Map<Long, double[]> merged = new HashMap<Long, double[]>();
+    for (int n = 0; n < proportionEvent.length; n++) {
+      for (int m = 0; m < distBins; m++) {
+        double w = proportionEvent[n] * distanceDistribution[n][m] / tracks;
+        for (int track = 0; track < tracks; track++) {
+          merge(merged, flRelativeVoxXYZ[n][m][track], w);
+        }
+      }
+    }
+    return new EscapeStencil(merged);
+  }
+
+  /**
+   * Adds a track point to the weights of the voxel offsets found so far.
+   *
+   * @param merged
+   *          weight of each packed voxel offset
+   * @param point
+   *          track point in voxels relative to the releasing voxel
+   * @param w
+   *          fraction of the released dose deposited at the point
+   */
+  private static void merge(final Map<Long, double[]> merged,
+      final double[] point, final double w) {
+    if (w == 0) {
+      return;
+    }
+    Long key = pack((int) StrictMath.round(point[0]),
+        (int) StrictMath.round(point[1]), (int) StrictMath.round(point[2]));
+    double[] sum = merged.get(key);
+    if (sum == null) {
+      sum = new double[1];
+      merged.put(key, sum);
+    }
+    sum[0] += w;
+  }
+
+  /**
+   * Creates the stencil from merged weights.
+   *
+   * @param merged
+   *          weight of each packed voxel offset
+   */
+  private EscapeStencil(final Map<Long, double[]> merged) {
+    long[] keys = new long[merged.size()];
+    int n = 0;
+    for (Long key : merged.keySet()) {
+      keys[n++] = key;
+    }
+    Arrays.sort(keys);
+
+    di = new int[keys.length];
+    dj = new int[keys.length];
+    dk = new int[keys.length];
+    weight = new double[keys.length];
+    int r = 0;
+    for (n = 0; n < keys.length; n++) {
+      di[n] = unpack(keys[n], 2);
+      dj[n] = unpack(keys[n], 1);
+      dk[n] = unpack(keys[n], 0);
+      weight[n] = merged.get(keys[n])[0];
+      r = Math.max(r, Math.max(Math.abs(di[n]),
+          Math.max(Math.abs(dj[n]), Math.abs(dk[n]))));
+    }
+    radius = r;
+  }
+
+  /**
+   * Packs an offset into a key that sorts by i, then j, then k.
+   *
+   * @param i offset along i
+   * @param j offset along j
+   * @param k offset along k
+   * @return packed offset
+   */
+  private static long pack(final int i, final int j, final int k) {
+    if (Math.max(Math.abs(i), Math.max(Math.abs(j), Math.abs(k)))
+        >= KEY_OFFSET) {
+      throw new IllegalArgumentException("Escape track of " + i + ", "
+          + j + ", " + k + " voxels is too long");
+    }
+    return ((long) (i + KEY_OFFSET) << (2 * KEY_BITS))
+        | ((long) (j + KEY_OFFSET) << KEY_BITS) | (k + KEY_OFFSET);
+  }
+
+  /**
+   * @param key packed offset
+   * @param field 2 for i, 1 for j, 0 for k
+   * @return offset along the axis.
+   */
+  private static int unpack(final long key, final int field) {
+    return (int) ((key >>> (field * KEY_BITS)) & ((1L << KEY_BITS) - 1))
+        - KEY_OFFSET;
+  }
+
+  /** @return largest offset along any axis, in voxels. */
+  public int getRadius() {
+    return radius;
+  }
+
+  /** @return number of distinct voxel offsets. */
+  public int size() {
+    return weight.length;
+  }
+
+  /**
+   * @return sum of all weights, ie. the fraction of the released dose that
+   *         would be deposited in an infinite crystal.
+   */
+  public double getTotalWeight() {
+    double total = 0;
+    for (double w : weight) {
+      total += w;
+    }
+    return total;
+  }
+
+  /**
+   * Writes the weights into a periodic grid, with offset 0, 0, 0 at the
+   * origin and negative offsets wrapped around to the far end. Offsets that
+   * coincide after wrapping are summed.
+   *
+   * @param grid
+   *          zeroed grid of ni * nj * nk elements, k varying fastest
+   * @param ni
+   *          grid size along i
+   * @param nj
+   *          grid size along j
+   * @param nk
+   *          grid size along k
+   */
+  public void fillPeriodic(final double[] grid, final int ni, final int nj,
+      final int nk) {
+    for (int n = 0; n < weight.length; n++) {
+      int i = ((di[n] % ni) + ni) % ni;
+      int j = ((dj[n] % nj) + nj) % nj;
+      int k = ((dk[n] % nk) + nk) % nk;
+      grid[(i * nj + j) * nk + k] += weight[n];
+    }
+  }
+
+  /**
+   * Deposits the dose released by voxel i, j, k over the voxels reached.
+   * Dose reaching voxels outside the crystal is lost.
+   *
+   * @param voxels
+   *          crystal voxels receiving the dose
+   * @param interior
+   *          voxels at least getRadius() voxels inside the crystal, for which
+   *          no occupancy checks are needed
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param dose
+   *          dose released by the voxel
+   * @return dose lost from the crystal.
+   */
+  public double deposit(final VoxelGrid voxels, final BitSet interior, final int i,
+      final int j, final int k, final double dose) {
+    if (interior.get(voxels.index(i, j, k))) {
+      for (int n = 0; n < weight.length; n++) {
+        voxels.addDose(i + di[n], j + dj[n], k + dk[n], dose * weight[n]);
+      }
+      return 0;
+    }
+
+    double lost = 0;
+    for (int n = 0; n < weight.length; n++) {
+      int ni = i + di[n];
+      int nj = j + dj[n];
+      int nk = k + dk[n];
+      if (voxels.isOccupied(ni, nj, nk)) {
+        voxels.addDose(ni, nj, nk, dose * weight[n]);
+      } else {
+        lost += dose * weight[n];
+      }
+    }
+    return lost;
+  }
+}
@@ -93,6 +93,12 @@ public class ExperimentDummy extends Experiment {
       public double getBeamArea() {
         return 0;
       }
+
+      @Override
+      public double[] getBeamExtent() {
+        return new double[] { Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY };
+      }
     }
   }
 
@@ -191,6 +197,11 @@ public class ExperimentDummy extends Experiment {
         // No implementation required
       }
 
+      @Override
+      protected void clearVoxelExposure() {
+        // No implementation required
+      }
+
       @Override
       public String crystalInfo() {
         return "";
@@ -0,0 +1,232 @@
+package se.raddo.raddose3D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Experiment that repeats the whole exposure strategy for a series of beam
+ * energies, and tabulates the summary dose metrics against energy.
+ *
+ * Crystals, beams and wedges are only recorded while the input is
+ * processed. When the experiment is closed, the absorption coefficients of
+ * every crystal are calculated for all energies in one pass, and the
+ * recorded exposures are then replayed at each energy. Crystals are reset
+ * between energies instead of being built again, so their voxel occupancy is
+ * only set up once, and they keep the geometry of every crystal position in
+ * a geometry cache if the Java heap has room for it. Beams keep their
+ * profile and photon flux at every energy.
+ *
+ * Subscribers are only told about the replay at the last energy, so the
+ * usual outputs describe that energy.
+ */
+public class ExperimentEnergyScan extends Experiment {
+  /** Photon energies in keV. */
+  private final double[]       energies;
+
+  /** Writer receiving the table of metrics against energy. */
+  private final Writer         table;
+
+  /** Reference to the currently used crystal object. */
+  private Crystal              scanCrystal;
+
+  /** Crystals, beams and wedges recorded for replay, in order. */
+  private final List<Step>     steps     = new ArrayList<Step>();
+
+  /** Exposed crystals, in order of their first exposure. */
+  private final List<Crystal>  crystals  = new ArrayList<Crystal>();
+
+  /**
+   * @param energies
+   *          photon energies in keV to scan
+   * @param table
+   *          Writer receiving one row of metrics per crystal and energy
+   */
+  public ExperimentEnergyScan(final double[] energies, final Writer table) {
+    if (energies.length == 0) {
+      throw new IllegalArgumentException("No energies given for the scan");
+    }
+    for (double e : energies) {
+      if (!(e > 0)) {
+        throw new IllegalArgumentException(
+            "Scan energies must be positive");
+      }
+    }
+    this.energies = energies.clone();
+    this.table = table;
+  }
+
+  /**
+   * Creates the series of energies from start to end, both included, in
+   * steps of the given size.
+   *
+   * @param start
+   *          first energy in keV
+   * @param end
+   *          last energy in keV
+   * @param step
+   *          energy increment in keV
+   * @return energies in keV.
+   */
+  public static double[] energyRange(final double start, final double end,
+      final double step) {
+    if (!(step > 0) || end < start) {
+      throw new IllegalArgumentException("Invalid energy range " + start
+          + " to " + end + " keV in steps of " + step + " keV");
+    }
+    // Allow for rounding in the step so that the end point is included
+    int count = (int) Math.floor((end - start) / step + 1e-9) + 1;
+    double[] range = new double[count];
+    for (int n = 0; n < count; n++) {
+      range[n] = start + n * step;
+    }
+    return range;
+  }
+
+  /**
+   * Records the exposure of a wedge, to be replayed at each energy when the
+   * experiment is closed. Subscribers are notified during the replay at the
+   * last energy.
+   *
+   * @param w
+   *          Wedge object for exposure
+   */
+  @Override
+  public void exposeWedge(final Wedge w) {
+    if (w != null) {
+      steps.add(new Step(scanCrystal, null, w));
+      if (!crystals.contains(scanCrystal)) {
+        crystals.add(scanCrystal);
+      }
+    }
+  }
+
+  /**
+   * Records the crystal used by the following wedges. Subscribers are
+   * notified during the replay at the last energy.
+   *
+   * @param c
+   *          Crystal object
+   */
+  @Override
+  public void setCrystal(final Crystal c) {
+    if (c != null) {
+      scanCrystal = c;
+      steps.add(new Step(c, null, null));
+      // Register the summary before any exposure takes place.
+      c.getExposureSummary();
+    }
+  }
+
+  /**
+   * Records the beam used by the following wedges. Subscribers are notified
+   * of the beam at the last energy during its replay.
+   *
+   * @param b
+   *          Beam object
+   */
+  @Override
+  public void setBeam(final Beam b) {
+    if (b != null) {
+      steps.add(new Step(null, b, null));
+    }
+  }
+
+  /**
+   * Runs the scan, writes the table and ends the experiment.
+   */
+  @Override
+  public void close() {
+    try {
+      runScan();
+    } finally {
+      table.close();
+      steps.clear();
+      crystals.clear();
+      scanCrystal = null;
+      super.close();
+    }
+  }
+
+  /**
+   * Replays the recorded exposures at every energy.
+   */
+  private void runScan() {
+    table.write("Energy (keV), Crystal, Average DWD, Last DWD, AD-WC, "
+        + "AD-ExpRegion, Max Dose\n");
+
+    for (Crystal c : crystals) {
+      c.getCoefCalc().prepareEnergies(energies);
+      if (energies.length > 1) {
+        List<Wedge> wedges = new ArrayList<Wedge>();
+        for (Step s : steps) {
+          if (s.wedge != null && s.crystal == c) {
+            wedges.add(s.wedge);
+          }
+        }
+        c.cacheGeometryFor(wedges);
+      }
+    }
+
+    for (int n = 0; n < energies.length; n++) {
+      boolean last = n == energies.length - 1;
+      if (n > 0) {
+        for (Crystal c : crystals) {
+          c.resetExposure();
+        }
+      }
+      Beam beam = null;
+      for (Step s : steps) {
+        if (s.wedge != null) {
+          s.crystal.expose(beam, s.wedge);
+          if (last) {
+            notifyObserver(s.wedge);
+          }
+        } else if (s.beam != null) {
+          beam = new BeamAtEnergy(s.beam, energies[n]);
+          if (last) {
+            notifyObserver(beam);
+          }
+        } else if (last) {
+          notifyObserver(s.crystal);
+        }
+      }
+      for (int c = 0; c < crystals.size(); c++) {
+        ExposureSummary summary = crystals.get(c).getExposureSummary();
+        table.write(String.format(Locale.ROOT,
+            "%f, %d, %f, %f, %f, %f, %f%n",
+            energies[n],
+            c + 1,
+            summary.getAvgDiffractedDose(),
+            summary.getLastDWD(),
+            summary.getAvgDoseWholeCrystal(),
+            summary.getAvgDoseExposedRegion(),
+            summary.getMaxDose()));
+      }
+    }
+  }
+
+  /**
+   * Input event to replay: a new crystal, a new beam, or the exposure of the
+   * current crystal according to a wedge.
+   */
+  private static final class Step {
+    /** New or exposed crystal. */
+    private final Crystal crystal;
+    /** New beam at its original energy, or null. */
+    private final Beam    beam;
+    /** Exposure strategy, or null. */
+    private final Wedge   wedge;
+
+    /**
+     * @param crystal new or exposed crystal
+     * @param beam new beam at its original energy
+     * @param wedge exposure strategy
+     */
+    Step(final Crystal crystal, final Beam beam, final Wedge wedge) {
+      this.crystal = crystal;
+      this.beam = beam;
+      this.wedge = wedge;
+    }
+  }
+}
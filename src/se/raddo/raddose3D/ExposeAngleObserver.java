@@ -0,0 +1,21 @@
+package se.raddo.raddose3D;
+
+/**
+ * An {@link ExposeObserver} that receives the exposure of all voxels at an
+ * angle in a single call, instead of one exposureObservation call per voxel.
+ * Observers that do not implement this interface keep receiving per-voxel
+ * calls.
+ */
+public interface ExposeAngleObserver extends ExposeObserver {
+
+  /**
+   * Exposure of all voxels at one angular step. Called once for every angle,
+   * before imageComplete, in place of exposureObservation. The result is a
+   * read-only view of the crystal workspace, and is only valid for the
+   * duration of the call.
+   * 
+   * @param result
+   *          doses, fluences and yields of every voxel exposed at this angle
+   */
+  public void angleObservations(AngleResult result);
+}
@@ -4,7 +4,9 @@ package se.raddo.raddose3D;
  * Interface for listening in on exposure activity on a crystal. Once registered
  * with an instance of {@link Crystal} the method exposureObservation will be
  * called for each voxel exposure, and after exposure, the method
- * summaryObservation will be called for each voxel.
+ * summaryObservation will be called for each voxel. Observers implementing
+ * {@link ExposeAngleObserver} receive the voxel exposures of each angle in a
+ * single angleObservations call instead.
  */
 public interface ExposeObserver {
 
@@ -0,0 +1,72 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+
+/**
+ * Beam-independent geometry of every crystal voxel at one crystal position:
+ * the voxel position in the beam plane and its depth below the crystal
+ * surface along the beam.
+ *
+ * The arrays are flat, indexed like an ExposureWorkspace, and kept in full
+ * precision so that exposures with and without the cache give exactly the
+ * same doses. Entries are NaN until they have been calculated. Positions
+ * and depths are filled in separately, as depths are only needed for voxels
+ * that are in the beam.
+ */
+public final class ExposureGeometry {
+  /** Bytes stored per voxel. */
+  private static final int BYTES_PER_VOXEL = 3 * 8;
+
+  /** Horizontal and vertical beam coordinates in um of each voxel. */
+  final double[]           x, y;
+
+  /** Depth in um of each voxel below the crystal surface. */
+  final double[]           depth;
+
+  /**
+   * Allocates empty geometry for a number of voxels.
+   *
+   * @param voxels
+   *          number of voxels in the crystal
+   */
+  ExposureGeometry(final int voxels) {
+    x = new double[voxels];
+    y = new double[voxels];
+    depth = new double[voxels];
+    Arrays.fill(x, Double.NaN);
+    Arrays.fill(y, Double.NaN);
+    Arrays.fill(depth, Double.NaN);
+  }
+
+  /**
+   * @param voxels
+   *          number of voxels in the crystal
+   * @return memory in bytes taken up by the geometry of a crystal.
+   */
+  static long bytes(final int voxels) {
+    return (long) BYTES_PER_VOXEL * voxels;
+  }
+
+  /**
+   * @param idx
+   *          workspace index of the voxel
+   * @return true if the position of the voxel has been stored.
+   */
+  boolean hasPosition(final int idx) {
+    return !Double.isNaN(x[idx]);
+  }
+
+  /**
+   * Stores the position of a voxel in the beam plane.
+   *
+   * @param idx
+   *          workspace index of the voxel
+   * @param coords
+   *          translated and rotated voxel coordinates, of which x and y are
+   *          stored
+   */
+  void setPosition(final int idx, final double[] coords) {
+    x[idx] = coords[0];
+    y[idx] = coords[1];
+  }
+}
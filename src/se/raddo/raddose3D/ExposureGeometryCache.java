@@ -0,0 +1,136 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used store of the voxel geometry of a crystal at the
+ * positions it has been exposed at.
+ *
+ * The geometry only depends on the rotation angle and the translation of
+ * the crystal, so wedges that repeat the angular sampling of an earlier
+ * wedge with a different beam, or the same wedge at another energy, find
+ * the voxel positions and depths already calculated. Only the beam
+ * intensity and attenuation then need to be evaluated again.
+ */
+public final class ExposureGeometryCache {
+  /** Bytes in a megabyte. */
+  private static final long                          BYTES_PER_MB = 1L << 20;
+
+  /** Number of voxels in the crystal. */
+  private final int                                  voxels;
+
+  /** Largest number of positions kept. */
+  private final int                                  capacity;
+
+  /** Stored geometry by crystal position, least recently used first. */
+  private final Map<Position, ExposureGeometry>      entries;
+
+  /** Number of positions found in, and added to, the cache. */
+  private long                                       hits, misses;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param voxels
+   *          number of voxels in the crystal
+   * @param megabytes
+   *          memory available to the cache in MB
+   */
+  public ExposureGeometryCache(final int voxels, final double megabytes) {
+    this.voxels = voxels;
+    capacity = (int) Math.min(Integer.MAX_VALUE,
+        megabytes * BYTES_PER_MB / Math.max(1, ExposureGeometry.bytes(voxels)));
+    entries = new LinkedHashMap<Position, ExposureGeometry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<Position, ExposureGeometry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * @return largest number of crystal positions kept.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the geometry at a crystal position, adding empty geometry if the
+   * position has not been seen or has been evicted.
+   *
+   * @param angle
+   *          rotation angle in radians
+   * @param start
+   *          wedge start vector
+   * @param translation
+   *          wedge translation vector at this angle
+   * @return geometry at this position, or null if the cache cannot hold the
+   *         geometry of a single position.
+   */
+  public ExposureGeometry get(final double angle, final Double[] start,
+      final Double[] translation) {
+    if (capacity == 0) {
+      return null;
+    }
+    Position p = new Position(angle, start, translation);
+    ExposureGeometry geometry = entries.get(p);
+    if (geometry == null) {
+      misses++;
+      geometry = new ExposureGeometry(voxels);
+      entries.put(p, geometry);
+    } else {
+      hits++;
+    }
+    return geometry;
+  }
+
+  /**
+   * @return number of positions whose geometry was found in the cache.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return number of positions whose geometry had to be calculated.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Rotation angle and translation of the crystal.
+   */
+  private static final class Position {
+    /** Angle followed by the start and translation vectors. */
+    private final double[] values;
+
+    /**
+     * @param angle rotation angle in radians
+     * @param start wedge start vector
+     * @param translation wedge translation vector
+     */
+    Position(final double angle, final Double[] start,
+        final Double[] translation) {
+      values = new double[] { angle, start[0], start[1], start[2],
+          translation[0], translation[1], translation[2] };
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return o instanceof Position
+          && Arrays.equals(values, ((Position) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+  }
+}
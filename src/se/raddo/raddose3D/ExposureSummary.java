@@ -1,37 +1,36 @@
 package se.raddo.raddose3D;
 
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 
 /**
  * Generate generic summary statistics for an single wedge exposure of a
  * crystal.
  */
-public class ExposureSummary implements ExposeObserver {
+public class ExposureSummary implements ExposeAngleObserver {
   /** How many % are in 100%. */
   private static final Integer                PERCENT = 100;
 
   /**
-   * A red-black tree for dose observations to identify threshold boundaries.
+   * Distribution of voxel doses used to identify threshold boundaries.
    */
-  private final NavigableMap<Double, Integer> voxelDoses;
+  private final DoseDistribution              voxelDoses;
 
   // per voxel exposure variables exposureObservation()
-  private Double                              totalAbsorbedEnergy;
-  private Double                              diffNum;
-  private Double                              diffDenom;
-  private Double                              wedgeElastic;
+  private double                              totalAbsorbedEnergy;
+  private double                              diffNum;
+  private double                              diffDenom;
+  private double                              wedgeElastic;
 
   // per image exposure variables imageComplete()
-  private Double                              runningSumDiffDose;
+  private double                              runningSumDiffDose;
   /** Internal counter of individual exposures. */
   private int                                 images;
 
   /** Total absorbed dose over all crystal voxels in MGy. */
-  private Double                              totalDose;
+  private double                              totalDose;
   /** Total deposited energy over all crystal voxels in J. */
-  private Double                              totalEnergy;
+  private double                              totalEnergy;
   
   /** Total number of exposed voxels in the crystal (voxel dose > 0). */
   private int                                 exposedVoxels;
@@ -67,7 +66,7 @@ public class ExposureSummary implements ExposeObserver {
    * The number of voxels found above the absolute dose threshold.
    * For caching of dose quantile dependent summary statistics.
    */
-  private Integer                             cachedVoxelsAboveThreshold;
+  private double                              cachedVoxelsAboveThreshold;
   /**
    * Last calculated average dose within dose quantile volume.
    * For caching of dose quantile dependent summary statistics.
@@ -82,19 +81,19 @@ public class ExposureSummary implements ExposeObserver {
   /**
    * Stores the average Relative diffraction efficiency of a particular image
    */
-  private Double                              averageRDE;
+  private double                              averageRDE;
   
-  private Double                              fluenceWeightedAvgRDE;
+  private double                              fluenceWeightedAvgRDE;
   
-  private Double                              runningSumRDE;
+  private double                              runningSumRDE;
   
-  private Double                              fluenceWeightedRunningSumRDE;
+  private double                              fluenceWeightedRunningSumRDE;
   
-  private Double                              fluenceSum;
+  private double                              fluenceSum;
   /**
    * Stores the worst/minimum voxel RDE in an image
    */
-  private Double                              minRDE;
+  private double                              minRDE;
   private double[][]  minRDEArray;
   
   private double[][] fluenceWeightedRDEArray;
@@ -111,10 +110,22 @@ public class ExposureSummary implements ExposeObserver {
 
   /**
    * Create an observer object for a crystal that records simple summary
-   * statistics.
+   * statistics. Every voxel dose is kept, so dose thresholds are exact.
    */
   public ExposureSummary() {
-    voxelDoses = new TreeMap<Double, Integer>();
+    this(new DoseDistributionExact());
+  }
+
+  /**
+   * Create an observer object for a crystal that records simple summary
+   * statistics, using the given distribution to find dose thresholds.
+   *
+   * @param doseDistribution
+   *          distribution the final voxel doses are recorded in, e.g. a
+   *          DoseDistributionHistogram to bound memory use on large crystals.
+   */
+  public ExposureSummary(final DoseDistribution doseDistribution) {
+    voxelDoses = doseDistribution;
   }
 
   @Override
@@ -160,10 +171,8 @@ public class ExposureSummary implements ExposeObserver {
     exposedVoxels = 0;
     occupiedVoxels = 0;
 
-    // Clear the observation tree
+    // Clear the dose observations
     voxelDoses.clear();
-    // record a single 0-dose observation, so getMaxDose() is defined
-    voxelDoses.put(0d, 1);
 
     // reset cached values
     cachedDoseQuantile = null;
@@ -183,8 +192,8 @@ public class ExposureSummary implements ExposeObserver {
     // updating the diffracted intensity for this image/iteration equation
  //   diffNum += (totalVoxDose + addedDose / 2) * fluence * doseDecay;
  //   diffDenom += fluence * doseDecay;
-    double decay = getRTDecay(totalVoxDose, addedDose);
-    decay = 1;
+    // Radiation damage decay (getRTDecay) is not applied to the DWD yet.
+    double decay = 1;
     diffNum += (totalVoxDose + addedDose / 2) * fluence * decay;  //Why addedDose/2? Need to understand before changing
     diffDenom += fluence * decay;
      
@@ -206,6 +215,56 @@ public class ExposureSummary implements ExposeObserver {
 
   }
 
+  @Override
+  public void angleObservations(final AngleResult result) {
+    final IntBuffer exposed = result.getExposedVoxels();
+    final DoubleBuffer addedDose = result.getAddedDose();
+    final DoubleBuffer previousDose = result.getPreviousDose();
+    final DoubleBuffer fluence = result.getFluence();
+    final DoubleBuffer doseDecay = result.getRelativeDiffractionEfficiency();
+    final DoubleBuffer absorbedEnergy = result.getAbsorbedEnergy();
+    final DoubleBuffer elastic = result.getElastic();
+
+    // Same sums as exposureObservation, kept in locals for the whole angle
+    double num = diffNum, denom = diffDenom;
+    double sumRDE = runningSumRDE, sumFluence = fluenceSum;
+    double weightedSumRDE = fluenceWeightedRunningSumRDE;
+    double minimumRDE = minRDE;
+    double energy = totalAbsorbedEnergy, elasticYield = wedgeElastic;
+    int voxels = imageExposedVoxels;
+
+    for (int n = 0; n < result.getExposedCount(); n++) {
+      int idx = exposed.get(n);
+      double voxelFluence = fluence.get(idx);
+      num += (previousDose.get(idx) + addedDose.get(idx) / 2) * voxelFluence;
+      denom += voxelFluence;
+
+      if (voxelFluence > 0) {
+        double rde = doseDecay.get(idx);
+        voxels += 1;
+        sumRDE += rde;
+        sumFluence += voxelFluence;
+        weightedSumRDE += voxelFluence * rde;
+        if (rde < minimumRDE) {
+          minimumRDE = rde;
+        }
+      }
+
+      energy += absorbedEnergy.get(idx);
+      elasticYield += elastic.get(idx);
+    }
+
+    diffNum = num;
+    diffDenom = denom;
+    runningSumRDE = sumRDE;
+    fluenceSum = sumFluence;
+    fluenceWeightedRunningSumRDE = weightedSumRDE;
+    minRDE = minimumRDE;
+    totalAbsorbedEnergy = energy;
+    wedgeElastic = elasticYield;
+    imageExposedVoxels = voxels;
+  }
+
   @Override
   public void imageComplete(final int image, final double angle, final double lastAngle, final double voxVol) {
     if (diffDenom != 0) {
@@ -250,12 +309,7 @@ public class ExposureSummary implements ExposeObserver {
     if (voxelDose > 0) {
       // Record dose observation in voxelDoses, so that dose thresholds
       // can be found
-      Integer voxelDoseSeenCount = voxelDoses.get(voxelDose);
-      if (voxelDoseSeenCount == null) {
-        voxelDoses.put(voxelDose, 1);
-      } else {
-        voxelDoses.put(voxelDose, 1 + voxelDoseSeenCount);
-      }
+      voxelDoses.add(voxelDose);
 
       // Data for avDose
       totalDose += voxelDose;
@@ -316,24 +370,10 @@ public class ExposureSummary implements ExposeObserver {
     cachedAbsDoseThreshold = Double.POSITIVE_INFINITY;
     cachedVoxelsAboveThreshold = 0;
 
-    Double doseCutoff = (1 - doseQuantile) * totalDose;
-    Double doseSeen = 0.;
-
-    Boolean thresholdFound = false;
-
-    for (Map.Entry<Double, Integer> e : voxelDoses.entrySet()) {
-      if (thresholdFound) {
-        cachedVoxelsAboveThreshold += e.getValue();
-      } else {
-        if (doseSeen < doseCutoff) {
-          doseSeen += e.getKey() * e.getValue();
-        }
-        if (doseSeen >= doseCutoff) {
-          cachedAbsDoseThreshold = e.getKey();
-          thresholdFound = true;
-        }
-      }
-    }
+    double[] threshold = voxelDoses.findThreshold((1 - doseQuantile)
+        * totalDose);
+    cachedAbsDoseThreshold = threshold[0];
+    cachedVoxelsAboveThreshold = threshold[1];
 
     return cachedAbsDoseThreshold;
   }
@@ -356,7 +396,7 @@ public class ExposureSummary implements ExposeObserver {
    *         dose value in MGy.
    */
   public Double getMaxDose() {
-    return voxelDoses.lastKey();
+    return voxelDoses.getMaxDose();
   }
 
   /**
@@ -0,0 +1,119 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+
+/**
+ * Scratch storage for the quantities calculated for each crystal voxel at a
+ * single exposure angle.
+ *
+ * The arrays are flat, indexed by index(i, j, k), and allocated once per
+ * crystal so that exposing an angle does not create any garbage. Entries are
+ * only meaningful for voxels inside the crystal. Voxels inside the beam
+ * footprint are overwritten at every angle; those culled outside it must be
+ * cleared with clear(idx) or clear(from, to), so that nothing is left over
+ * from an earlier angle. There is no need to clear the whole workspace.
+ */
+final class ExposureWorkspace {
+  /** Crystal size in voxels. */
+  private final int      nx, ny, nz;
+
+  /** Fluence (J) reaching each voxel at the current angle. */
+  final double[]         fluence;
+
+  /** Dose (MGy) absorbed by photoelectric effect at the current angle. */
+  final double[]         dose;
+
+  /** Elastically scattered photons at the current angle. */
+  final double[]         elastic;
+
+  /** Energy (J) carried by Compton electrons at the current angle. */
+  final double[]         comptonFluence;
+
+  /** Total voxel dose (MGy) at the end of the last exposed image. */
+  final double[]         doseLast;
+
+  /** Relative diffraction efficiency at the current angle. */
+  final double[]         relativeDiffractionEfficiency;
+
+  /** Energy (J) absorbed by photoelectric and Compton events. */
+  final double[]         absorbedEnergy;
+
+  /**
+   * Indices of the voxels that received dose at the current angle, in voxel
+   * order. Only the first exposedCount entries are valid.
+   */
+  final int[]            exposed;
+
+  /** Number of voxels that received dose at the current angle. */
+  int                    exposedCount;
+
+  /**
+   * Allocates a workspace for a crystal of the given size.
+   *
+   * @param crystalSize
+   *          crystal size in voxels along i, j and k.
+   */
+  ExposureWorkspace(final int[] crystalSize) {
+    nx = crystalSize[0];
+    ny = crystalSize[1];
+    nz = crystalSize[2];
+
+    long voxels = (long) nx * ny * nz;
+    if (voxels > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Crystal of " + voxels
+          + " voxels is too large for the exposure workspace");
+    }
+
+    fluence = new double[(int) voxels];
+    dose = new double[(int) voxels];
+    elastic = new double[(int) voxels];
+    comptonFluence = new double[(int) voxels];
+    doseLast = new double[(int) voxels];
+    relativeDiffractionEfficiency = new double[(int) voxels];
+    absorbedEnergy = new double[(int) voxels];
+    exposed = new int[(int) voxels];
+  }
+
+  /** @return crystal size in voxels along i, j and k. */
+  int[] getSize() {
+    int[] size = { nx, ny, nz };
+    return size;
+  }
+
+  /**
+   * Returns the position of voxel i, j, k in the workspace arrays.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return array index
+   */
+  int index(final int i, final int j, final int k) {
+    return (i * ny + j) * nz + k;
+  }
+
+  /**
+   * Marks a voxel as unexposed at the current angle.
+   *
+   * @param idx array index of the voxel
+   */
+  void clear(final int idx) {
+    fluence[idx] = 0;
+    dose[idx] = 0;
+    elastic[idx] = 0;
+    comptonFluence[idx] = 0;
+  }
+
+  /**
+   * Marks a run of voxels as unexposed at the current angle.
+   *
+   * @param from array index of the first voxel
+   * @param to array index after the last voxel
+   */
+  void clear(final int from, final int to) {
+    Arrays.fill(fluence, from, to, 0);
+    Arrays.fill(dose, from, to, 0);
+    Arrays.fill(elastic, from, to, 0);
+    Arrays.fill(comptonFluence, from, to, 0);
+  }
+}
@@ -18,6 +18,20 @@ public interface Output {
    */
   public static final String OUTPUT_WRITER_EXTFILE    = "OUT_WRITER_EXT";
 
+  /**
+   * Constant for data fields in Map constructors: File name. Only relevant
+   * for output modules that write binary files directly instead of through
+   * a Writer, eg. OutputFinalDoseStateBinary
+   */
+  public static final String OUTPUT_FILE              = "OUT_FILE";
+
+  /**
+   * Constant for data fields in Map constructors: String array of module
+   * parameters given on the command line, eg. the image interval of
+   * OutputDoseSnapshots or the downsampling factor of OutputFinalDoseStateR
+   */
+  public static final String OUTPUT_PARAMETERS        = "OUT_PARAMS";
+
   /** Constant for data fields in Map constructors: Command line options. */
   // not yet used
   // public static final String OUTPUT_COMMANDLINE       = "OUT_COMMANDLINE";
@@ -48,10 +48,14 @@ public class OutputDWDs implements Output{
     for(int i = 0; i < angleDWD.length; i++) {
       double image = i+1;
       double angle = angleDWD[i] * (180/Math.PI);
-      w.write(image + ",");
-      w.write(angle + ",");
-      w.write(imageDWD[i] + ",");
-      w.write(imageVol[i] + "\n");
+      w.print(image);
+      w.print(',');
+      w.print(angle);
+      w.print(',');
+      w.print(imageDWD[i]);
+      w.print(',');
+      w.print(imageVol[i]);
+      w.print('\n');
     }
     expSummary = null;
     w.close();
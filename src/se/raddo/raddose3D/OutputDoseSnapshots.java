@@ -0,0 +1,414 @@
+package se.raddo.raddose3D;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Produces a binary file recording how the dose distribution within the
+ * crystal evolves during the experiment.
+ *
+ * Every few images the dose of all voxels whose dose changed since the
+ * previous snapshot is recorded. Changes are found by comparing with the
+ * dose last written, so dose from photoelectron and fluorescent escape or
+ * from the surrounding solution is recorded as well as direct absorption.
+ * Every KEYFRAME_INTERVAL snapshots, or when it is smaller, the dose of the
+ * whole grid is recorded instead, and an index of all snapshots is written
+ * at the end. See {@link DoseSnapshotReader} for the layout. Snapshots are
+ * handed over a bounded queue to a background thread that writes them, so
+ * exposure only waits for the disk when it falls several snapshots behind.
+ */
+public class OutputDoseSnapshots implements Output, ExposeAngleObserver {
+  /** Number of images between snapshots, if not given. */
+  private static final int        DEFAULT_INTERVAL  = 1;
+
+  /** Maximum number of sparse snapshots between two keyframes. */
+  private static final int        KEYFRAME_INTERVAL = 16;
+
+  /** Snapshots that may wait for the background writer. */
+  private static final int        QUEUE_CAPACITY    = 4;
+
+  /** Marker asking the background writer to finish. */
+  private static final ByteBuffer END               = ByteBuffer.allocate(0);
+
+  /** Name of the output file. */
+  private final String            filename;
+
+  /** Number of images between snapshots. */
+  private final int               interval;
+
+  /** Snapshots waiting to be written. */
+  private final BlockingQueue<ByteBuffer> queue =
+      new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+
+  /** Index entries of all snapshots taken so far. */
+  private final List<ByteBuffer>  index             =
+      new ArrayList<ByteBuffer>();
+
+  /** A reference to the current Crystal object. */
+  private Crystal                 crystal;
+
+  /** Grid size in voxels. */
+  private int[]                   size;
+
+  /** Dose of each voxel as last written to the file. */
+  private float[]                 written;
+
+  /** Dose of each voxel at the current snapshot. */
+  private float[]                 current;
+
+  /** Number of the current wedge, starting at 1. */
+  private int                     wedgeCounter;
+
+  /** Number of images in the current wedge. */
+  private int                     wedgeImages;
+
+  /** Sparse snapshots since the last keyframe. */
+  private int                     sinceKeyframe;
+
+  /** Position in the file of the next snapshot. */
+  private long                    offset;
+
+  /** Background thread writing the queued snapshots, once started. */
+  private Thread                  writer;
+
+  /** First error raised by the background writer, if any. */
+  private volatile IOException    error;
+
+  /**
+   * Generic property constructor for OutputDoseSnapshots output class.
+   * Extracts all required information from a Map data structure.
+   *
+   * Used properties:
+   * OUTPUT_FILE - name of the file to write.
+   * OUTPUT_PARAMETERS - optional, the number of images between snapshots.
+   *
+   * @param properties
+   *          Map of type <Object, Object> that contains all output properties.
+   *          The keys of the Map are defined by the constants in the
+   *          {@link Output} class.
+   */
+  public OutputDoseSnapshots(final Map<Object, Object> properties) {
+    // Check for valid parameters
+    Assertions a = new Assertions("Could not create OutputDoseSnapshots: ");
+    a.checkIsClass(properties.get(Output.OUTPUT_FILE), String.class,
+        "no file name given");
+    filename = (String) properties.get(Output.OUTPUT_FILE);
+
+    String[] parameters = new String[0];
+    if (properties.get(Output.OUTPUT_PARAMETERS) != null) {
+      a.checkIsClass(properties.get(Output.OUTPUT_PARAMETERS), String[].class,
+          "parameters are not a list of strings");
+      parameters = (String[]) properties.get(Output.OUTPUT_PARAMETERS);
+    }
+    if (parameters.length == 0) {
+      interval = DEFAULT_INTERVAL;
+    } else {
+      try {
+        interval = Integer.parseInt(parameters[0]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Could not create "
+            + "OutputDoseSnapshots: image interval is not a number", e);
+      }
+      if (interval < 1) {
+        throw new IllegalArgumentException("Could not create "
+            + "OutputDoseSnapshots: image interval must be at least 1");
+      }
+    }
+  }
+
+  @Override
+  public void publishCrystal(final Crystal c) {
+    if (crystal != null) {
+      System.err.println(
+          "OutputDoseSnapshots: Only the first crystal is recorded.");
+      return;
+    }
+    crystal = c;
+    size = c.getCrystSizeVoxels();
+    written = new float[size[0] * size[1] * size[2]];
+    current = new float[written.length];
+
+    final FileChannel file;
+    try {
+      file = new FileOutputStream(filename).getChannel();
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.err.println("OutputDoseSnapshots: Could not open file "
+          + filename);
+      crystal = null;
+      return;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(DoseSnapshotReader.HEADER)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.put(DoseSnapshotReader.MAGIC);
+    header.putInt(DoseSnapshotReader.VERSION);
+    for (int n = 0; n < 3; n++) {
+      header.putInt(size[n]);
+    }
+    // The index offset is filled in once the file is complete.
+    header.putLong(0);
+    header.flip();
+    queue.add(header);
+    offset = DoseSnapshotReader.HEADER;
+
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write(file);
+      }
+    }, "OutputDoseSnapshots " + filename);
+    // Do not keep the program alive if the output is never closed.
+    writer.setDaemon(true);
+    writer.start();
+
+    crystal.addObserver(this);
+  }
+
+  /**
+   * Writes queued buffers until the end marker arrives, then fills in the
+   * index offset. After an error the remaining buffers are discarded, so
+   * exposure never waits for a writer that has stopped.
+   *
+   * @param file
+   *          output file
+   */
+  private void write(final FileChannel file) {
+    try {
+      ByteBuffer b;
+      while ((b = take()) != END) {
+        if (error != null) {
+          continue;
+        }
+        try {
+          while (b.hasRemaining()) {
+            file.write(b);
+          }
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+      if (error == null) {
+        ByteBuffer indexOffset = ByteBuffer.allocate(8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        indexOffset.putLong(offset).flip();
+        while (indexOffset.hasRemaining()) {
+          file.write(indexOffset,
+              DoseSnapshotReader.INDEX_FIELD + indexOffset.position());
+        }
+      }
+    } catch (IOException e) {
+      error = e;
+    } finally {
+      try {
+        file.close();
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return next buffer or marker from the queue.
+   */
+  private ByteBuffer take() {
+    while (true) {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        // Keep waiting, as the end marker is guaranteed to arrive.
+      }
+    }
+  }
+
+  /**
+   * Hands a buffer or marker to the background writer, waiting while the
+   * queue is full.
+   *
+   * @param b
+   *          buffer or marker
+   */
+  private void put(final ByteBuffer b) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(b);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void publishBeam(final Beam b) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void publishWedge(final Wedge wdg) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void register(final Crystal c) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void exposureStart(final int imageCount) {
+    wedgeCounter++;
+    wedgeImages = imageCount;
+  }
+
+  @Override
+  public void exposureObservation(final int wedgeImage, final int i,
+      final int j, final int k, final double addedDose,
+      final double totalDose, final double fluence,
+      final double relativeDiffractionEfficiency,
+      final double absorbedEnergy, final double elastic) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void angleObservations(final AngleResult result) {
+    // Exposed voxels are not enough to find changed doses, as escape
+    // redistributes dose to voxels outside the beam.
+  }
+
+  @Override
+  public void imageComplete(final int image, final double angrad,
+      final double lastAngle, final double voxVol) {
+    if ((image + 1) % interval == 0 || image == wedgeImages - 1) {
+      snapshot(image, angrad);
+    }
+  }
+
+  /**
+   * Records the current dose and hands it to the background writer.
+   *
+   * @param image
+   *          image number within the wedge
+   * @param angrad
+   *          rotation angle in radians
+   */
+  private void snapshot(final int image, final double angrad) {
+    int changedCount = 0;
+    int voxel = 0;
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          current[voxel] = (float) crystal.getDose(i, j, k);
+          if (Float.floatToIntBits(current[voxel])
+              != Float.floatToIntBits(written[voxel])) {
+            changedCount++;
+          }
+          voxel++;
+        }
+      }
+    }
+
+    // A sparse chunk takes 8 bytes per voxel, a keyframe 4.
+    boolean keyframe = index.isEmpty() || sinceKeyframe >= KEYFRAME_INTERVAL
+        || 2L * changedCount >= current.length;
+    int count = keyframe ? current.length : changedCount;
+
+    ByteBuffer chunk = ByteBuffer.allocate((keyframe ? 4 : 8) * count)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (keyframe) {
+      chunk.asFloatBuffer().put(current);
+      sinceKeyframe = 0;
+    } else {
+      // Positions first, then doses of the same voxels.
+      int position = 0;
+      for (voxel = 0; voxel < current.length; voxel++) {
+        if (Float.floatToIntBits(current[voxel])
+            != Float.floatToIntBits(written[voxel])) {
+          chunk.putInt(voxel);
+          chunk.putFloat(4 * (count + position++), current[voxel]);
+        }
+      }
+      sinceKeyframe++;
+    }
+    chunk.clear();
+
+    ByteBuffer entry = ByteBuffer.allocate(DoseSnapshotReader.ENTRY)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    entry.putInt(wedgeCounter);
+    entry.putInt(image);
+    entry.putDouble(Math.toDegrees(angrad));
+    entry.putLong(offset);
+    entry.putInt(count);
+    entry.putInt(keyframe ? 1 : 0);
+    entry.flip();
+    index.add(entry);
+
+    float[] swap = written;
+    written = current;
+    current = swap;
+    offset += chunk.capacity();
+    put(chunk);
+  }
+
+  @Override
+  public void summaryObservation(final int i, final int j, final int k,
+      final double totalDose, final double voxelMassKg) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void exposureComplete() {
+    // No implementation needed.
+  }
+
+  @Override
+  public void close() {
+    if (crystal == null) {
+      System.err.println(
+          "OutputDoseSnapshots: No crystal object has been seen.");
+      return;
+    }
+
+    ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    count.putInt(index.size()).flip();
+    put(count);
+    for (ByteBuffer entry : index) {
+      put(entry);
+    }
+    put(END);
+
+    boolean interrupted = false;
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (error != null) {
+      error.printStackTrace();
+      System.err.println("OutputDoseSnapshots: Could not write to file "
+          + filename);
+    }
+    index.clear();
+    written = null;
+    current = null;
+    crystal = null;
+  }
+}
@@ -38,6 +38,10 @@ public class OutputFactory extends ClassFactory {
 
     if ("finaldosestatecsv".equalsIgnoreCase(outputName)) {
       revisedOutputName = "se.raddo.raddose3D.OutputFinalDoseStateCSV";
+    } else if ("finaldosestatebinary".equalsIgnoreCase(outputName)) {
+      revisedOutputName = "se.raddo.raddose3D.OutputFinalDoseStateBinary";
+    } else if ("dosesnapshots".equalsIgnoreCase(outputName)) {
+      revisedOutputName = "se.raddo.raddose3D.OutputDoseSnapshots";
     } else if ("finaldosestater".equalsIgnoreCase(outputName)) {
       revisedOutputName = "se.raddo.raddose3D.OutputFinalDoseStateR";
     } else if ("finaldosestaterpreview".equalsIgnoreCase(outputName)) {
@@ -63,6 +67,22 @@ public class OutputFactory extends ClassFactory {
     return createObject(Output.class, revisedOutputName, properties);
   }
 
+  /**
+   * Checks whether an output type writes its file directly, so has to be
+   * given an {@link Output#OUTPUT_FILE} name instead of a {@link Writer}.
+   *
+   * @param outputName
+   *          the name of the output class.
+   * @return
+   *         true for outputs that produce binary files.
+   */
+  public boolean writesFile(final String outputName) {
+    return "finaldosestatebinary".equalsIgnoreCase(outputName)
+        || "se.raddo.raddose3D.OutputFinalDoseStateBinary".equals(outputName)
+        || "dosesnapshots".equalsIgnoreCase(outputName)
+        || "se.raddo.raddose3D.OutputDoseSnapshots".equals(outputName);
+  }
+
   /**
    * creates and returns an Output type object with only a single {@link Writer}
    * parameter.
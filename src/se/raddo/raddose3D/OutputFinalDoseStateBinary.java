@@ -0,0 +1,201 @@
+package se.raddo.raddose3D;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Produces a binary file describing the final three-dimensional dose
+ * distribution within the crystal at the end of the experiment.
+ *
+ * The file holds the dose, fluence, elastic yield and occupancy of every
+ * voxel of the crystal grid as planes of little-endian floats after a short
+ * header, see {@link DoseStateBinaryReader} for the layout. It is written
+ * through a memory mapped file, so is much faster to write and read than
+ * OutputFinalDoseStateCSV for large crystals.
+ */
+public class OutputFinalDoseStateBinary implements Output {
+  /** Plane names and units, in file order. */
+  private static final String[][] PLANES = {
+      { DoseStateBinaryReader.DOSE, "MGy" },
+      { DoseStateBinaryReader.FLUENCE, "J" },
+      { DoseStateBinaryReader.ELASTIC, "photons" },
+      { DoseStateBinaryReader.OCCUPANCY, "1" } };
+
+  /** Name of the output file. */
+  private final String            filename;
+
+  /**
+   * Private reference to the last seen crystal which will be inspected after
+   * all exposure events on close().
+   */
+  private Crystal                 crystal;
+
+  /**
+   * Generic property constructor for OutputFinalDoseStateBinary output class.
+   * Extracts all required information from a Map data structure.
+   *
+   * Used properties:
+   * OUTPUT_FILE - name of the file to write.
+   *
+   * @param properties
+   *          Map of type <Object, Object> that contains all output properties.
+   *          The keys of the Map are defined by the constants in the
+   *          {@link Output} class.
+   */
+  public OutputFinalDoseStateBinary(final Map<Object, Object> properties) {
+    // Check for valid parameters
+    Assertions a = new Assertions(
+        "Could not create OutputFinalDoseStateBinary: ");
+    a.checkIsClass(properties.get(Output.OUTPUT_FILE), String.class,
+        "no file name given");
+    filename = (String) properties.get(Output.OUTPUT_FILE);
+  }
+
+  @Override
+  public void publishCrystal(final Crystal c) {
+    crystal = c;
+  }
+
+  @Override
+  public void publishWedge(final Wedge wdg) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void publishBeam(final Beam b) {
+    // No implementation needed.
+  }
+
+  @Override
+  public void close() {
+    if (crystal == null) {
+      System.err.println(
+          "OutputFinalDoseStateBinary: No crystal object has been seen.");
+      return;
+    }
+
+    try {
+      write();
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.err.println("OutputFinalDoseStateBinary: Could not write to file "
+          + filename);
+    }
+    crystal = null;
+  }
+
+  /**
+   * Writes the header and all planes.
+   *
+   * @throws IOException
+   *           thrown if the file cannot be written.
+   */
+  private void write() throws IOException {
+    int[] size = crystal.getCrystSizeVoxels();
+    int headerLength = DoseStateBinaryReader.FIXED_HEADER
+        + 2 * DoseStateBinaryReader.LABEL_LENGTH * PLANES.length;
+    long planeBytes = 4L * size[0] * size[1] * size[2];
+
+    RandomAccessFile file = new RandomAccessFile(filename, "rw");
+    try {
+      file.setLength(headerLength + PLANES.length * planeBytes);
+      FileChannel channel = file.getChannel();
+
+      writeHeader(channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength)
+          .order(ByteOrder.LITTLE_ENDIAN), size, headerLength);
+
+      // Fill all planes in a single pass over the voxels.
+      FloatBuffer[] planes = new FloatBuffer[PLANES.length];
+      for (int p = 0; p < PLANES.length; p++) {
+        planes[p] = channel.map(FileChannel.MapMode.READ_WRITE,
+            headerLength + p * planeBytes, planeBytes)
+            .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+      FloatBuffer dose = planes[0], fluence = planes[1], elastic = planes[2],
+          occupancy = planes[3];
+      for (int i = 0; i < size[0]; i++) {
+        for (int j = 0; j < size[1]; j++) {
+          for (int k = 0; k < size[2]; k++) {
+            dose.put((float) crystal.getDose(i, j, k));
+            fluence.put((float) crystal.getFluence(i, j, k));
+            elastic.put((float) crystal.getElastic(i, j, k));
+            occupancy.put(crystal.isCrystalAt(i, j, k) ? 1f : 0f);
+          }
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes the description of the voxel grid and the planes.
+   *
+   * @param header
+   *          buffer for the header
+   * @param size
+   *          grid size in voxels
+   * @param headerLength
+   *          length of the header in bytes
+   */
+  private void writeHeader(final ByteBuffer header, final int[] size,
+      final int headerLength) {
+    header.put(DoseStateBinaryReader.MAGIC);
+    header.putInt(DoseStateBinaryReader.VERSION);
+    header.putInt(headerLength);
+    for (int n = 0; n < 3; n++) {
+      header.putInt(size[n]);
+    }
+    header.putInt(PLANES.length);
+
+    // Coordinates change linearly along each axis of the grid.
+    double[] origin = crystal.getCrystCoord(0, 0, 0);
+    double[][] steps = new double[3][];
+    for (int axis = 0; axis < 3; axis++) {
+      int last = size[axis] - 1;
+      double[] end = crystal.getCrystCoord((axis == 0) ? last : 0,
+          (axis == 1) ? last : 0, (axis == 2) ? last : 0);
+      steps[axis] = new double[3];
+      for (int n = 0; n < 3 && last > 0; n++) {
+        steps[axis][n] = (end[n] - origin[n]) / last;
+      }
+    }
+
+    // The i step is the x axis rotated by P then L, and k the z axis by L.
+    header.putDouble(1 / crystal.getCrystalPixPerUM());
+    header.putDouble(Math.toDegrees(Math.atan2(steps[1][0], steps[0][0])));
+    header.putDouble(Math.toDegrees(Math.atan2(steps[2][1], steps[2][2])));
+    for (double value : origin) {
+      header.putDouble(value);
+    }
+    for (double[] step : steps) {
+      for (double value : step) {
+        header.putDouble(value);
+      }
+    }
+
+    for (String[] plane : PLANES) {
+      putLabel(header, plane[0]);
+      putLabel(header, plane[1]);
+    }
+  }
+
+  /**
+   * @param buffer
+   *          buffer positioned at a label
+   * @param label
+   *          label to write, padded with zeros
+   */
+  private static void putLabel(final ByteBuffer buffer, final String label) {
+    byte[] bytes = label.getBytes(DoseStateBinaryReader.LABEL_CHARSET);
+    buffer.put(bytes);
+    for (int n = bytes.length; n < DoseStateBinaryReader.LABEL_LENGTH; n++) {
+      buffer.put((byte) 0);
+    }
+  }
+}
@@ -61,33 +61,25 @@ public class OutputFinalDoseStateCSV implements Output {
       return;
     }
 
-    for (int i = 0; i < crystal.getCrystSizeVoxels()[0]; i++) {
-      for (int j = 0; j < crystal.getCrystSizeVoxels()[1]; j++) {
-        for (int k = 0; k < crystal.getCrystSizeVoxels()[2]; k++) {
+    int[] size = crystal.getCrystSizeVoxels();
+    double[] coord = new double[3];
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
           if (crystal.isCrystalAt(i, j, k)) {   //Added to prevent voxels outside of crystal being included in the .csv output
-            w.write(((float) crystal.getCrystCoord(i, j, k)[0]) + ","
-                + ((float) crystal.getCrystCoord(i, j, k)[1]) + ","
-                + ((float) crystal.getCrystCoord(i, j, k)[2]) + ",");
-            float dose = (float) crystal.getDose(i, j, k);
-            if (dose <= Float.MIN_VALUE) {
-            w.write("0,");
-            } else {
-              w.write(dose + ",");
-            }
-
-            float fluence = (float) crystal.getFluence(i, j, k);
-            if (fluence <= Float.MIN_VALUE) {
-              w.write("0,");
-            } else {
-              w.write(fluence + ",");
-            }
-
-            float elastic = (float) crystal.getElastic(i, j, k);
-            if (elastic <= Float.MIN_VALUE) {
-              w.write("0\n");
-            } else {
-              w.write(elastic + "\n");
-            }
+            crystal.getCrystCoord(i, j, k, coord);
+            w.print((float) coord[0]);
+            w.print(',');
+            w.print((float) coord[1]);
+            w.print(',');
+            w.print((float) coord[2]);
+            w.print(',');
+            writeValue((float) crystal.getDose(i, j, k));
+            w.print(',');
+            writeValue((float) crystal.getFluence(i, j, k));
+            w.print(',');
+            writeValue((float) crystal.getElastic(i, j, k));
+            w.print('\n');
           }
         }
       }
@@ -96,4 +88,18 @@ public class OutputFinalDoseStateCSV implements Output {
     crystal = null;
     w.close();
   }
+
+  /**
+   * Writes a voxel value, with values too small for a float written as 0.
+   *
+   * @param value
+   *          voxel value
+   */
+  private void writeValue(final float value) {
+    if (value <= Float.MIN_VALUE) {
+      w.print('0');
+    } else {
+      w.print(value);
+    }
+  }
 }
@@ -13,6 +13,9 @@ public class OutputFinalDoseStateR implements Output {
   /** Where output should be directed to. */
   private final Writer w;
 
+  /** Only every downsample-th voxel along each axis is written. */
+  private final int    downsample;
+
   /**
    * Private reference to the last seen crystal which will be inspected after
    * all exposure events on close().
@@ -25,6 +28,8 @@ public class OutputFinalDoseStateR implements Output {
    * *
    * Used properties:
    * OUTPUT_WRITER - writer class to which output will be directed.
+   * OUTPUT_PARAMETERS - optional, a downsampling factor. Only every n-th
+   * voxel along each axis is written, for previews of large crystals.
    * 
    * @param properties
    *          Map of type <Object, Object> that contains all output properties.
@@ -37,6 +42,43 @@ public class OutputFinalDoseStateR implements Output {
     a.checkIsClass(properties.get(Output.OUTPUT_WRITER), Writer.class,
         "no writer class given");
     w = (Writer) properties.get(Output.OUTPUT_WRITER);
+    downsample = parseDownsample(properties, a);
+  }
+
+  /**
+   * Reads the optional downsampling factor from the output parameters.
+   *
+   * @param properties
+   *          output properties
+   * @param a
+   *          assertions for the calling output class
+   * @return downsampling factor, 1 if none was given.
+   * @throws IllegalArgumentException
+   *           the factor is not a positive integer
+   */
+  static int parseDownsample(final Map<Object, Object> properties,
+      final Assertions a) {
+    Object parameters = properties.get(Output.OUTPUT_PARAMETERS);
+    if (parameters == null) {
+      return 1;
+    }
+    a.checkIsClass(parameters, String[].class,
+        "parameters are not a list of strings");
+    if (((String[]) parameters).length == 0) {
+      return 1;
+    }
+    int factor;
+    try {
+      factor = Integer.parseInt(((String[]) parameters)[0]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          "Downsampling factor is not a number", e);
+    }
+    if (factor < 1) {
+      throw new IllegalArgumentException(
+          "Downsampling factor must be at least 1");
+    }
+    return factor;
   }
 
   @Override
@@ -73,6 +115,16 @@ public class OutputFinalDoseStateR implements Output {
     w.write("# Crystal size: "
         + csize[0] + " x " + csize[1]
         + " x " + csize[2] + " voxels\n");
+
+    // Write every downsample-th voxel along each axis
+    int[][] samples = DoseStateRSlices.sampleGrid(csize, downsample,
+        Integer.MAX_VALUE);
+    int[] gsize = { samples[0].length, samples[1].length, samples[2].length };
+    if (downsample > 1) {
+      w.write("# Reduced grid size: "
+          + gsize[0] + " x " + gsize[1]
+          + " x " + gsize[2] + " voxels\n");
+    }
     w.write("#\n\n");
 
     w.write("contourlevels <- c(0.1, 20, 30) # MGy\n");
@@ -84,32 +136,16 @@ public class OutputFinalDoseStateR implements Output {
 
     w.write("# Three dimensional dose array (MGy)\n");
     w.write(String.format("dose <- array(0, c(%d, %d, %d))%n",
-        csize[0], csize[1], csize[2]));
-    for (int k = 0; k < csize[2]; k++) {
-      w.write(String.format("dose[,,%d]<-c(", (k + 1)));
-      for (int j = 0; j < csize[1]; j++) {
-        for (int i = 0; i < csize[0]; i++) {
-          if ((i != 0) || (j != 0)) {
-            w.write(",");
-          }
-          float dose = (float) crystal.getDose(i, j, k);
-          if (dose <= Float.MIN_VALUE) {
-            w.write("0");
-          } else {
-            w.write(String.valueOf(dose));
-          }
-        }
-      }
-      w.write(")\n");
-    }
+        gsize[0], gsize[1], gsize[2]));
+    DoseStateRSlices.write(w, crystal, samples, false);
 
     w.write("contour3d(dose, level=contourlevels, color=contourcolours, "
         + "alpha=contouropacity)\n");
     w.write("# axes3d()\n");
     w.write("wire3d(translate3d("
         + String.format("scale3d(cube3d(),%d/2,%d/2,%d/2),",
-            csize[0], csize[1], csize[2])
-        + String.format("%d/2,%d/2,%d/2),", csize[0], csize[1], csize[2])
+            gsize[0], gsize[1], gsize[2])
+        + String.format("%d/2,%d/2,%d/2),", gsize[0], gsize[1], gsize[2])
         + "col = 'grey')");
 
     crystal = null;
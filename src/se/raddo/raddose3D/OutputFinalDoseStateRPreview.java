@@ -24,12 +24,17 @@ public class OutputFinalDoseStateRPreview implements Output {
   /** Maximum grid length output. */
   private static final int RESOLUTION_LIMIT = 91;
 
+  /** Only every downsample-th voxel along each axis is written. */
+  private final int        downsample;
+
   /**
    * Generic property constructor for OutputDoseStateR output class.
    * Extracts all required information from a Map data structure.
    * *
    * Used properties:
    * OUTPUT_WRITER - writer class to which output will be directed.
+   * OUTPUT_PARAMETERS - optional, a downsampling factor that further reduces
+   * the grid length.
    * 
    * @param properties
    *          Map of type <Object, Object> that contains all output properties.
@@ -42,6 +47,7 @@ public class OutputFinalDoseStateRPreview implements Output {
     a.checkIsClass(properties.get(Output.OUTPUT_WRITER), Writer.class,
         "no writer class given");
     w = (Writer) properties.get(Output.OUTPUT_WRITER);
+    downsample = OutputFinalDoseStateR.parseDownsample(properties, a);
   }
 
   @Override
@@ -78,21 +84,13 @@ public class OutputFinalDoseStateRPreview implements Output {
     w.write(String.format("# Crystal size: %dx%dx%d voxels%n",
         csize[0], csize[1], csize[2]));
 
-    // Limit to voxel numbers to keep resource requirements under control
-    int[] csizel = new int[3];
-    csizel[0] = csize[0];
-    csizel[1] = csize[1];
-    csizel[2] = csize[2];
-
-    if (csize[0] > RESOLUTION_LIMIT) {
-      csizel[0] = RESOLUTION_LIMIT;
-    }
-    if (csize[1] > RESOLUTION_LIMIT) {
-      csizel[1] = RESOLUTION_LIMIT;
-    }
-    if (csize[2] > RESOLUTION_LIMIT) {
-      csizel[2] = RESOLUTION_LIMIT;
-    }
+    // Limit to voxel numbers to keep resource requirements under control.
+    // Could put fancy interpolation algorithm here, eg.
+    // trilinear interpolation. For now nearest neighbour will do.
+    int[][] samples = DoseStateRSlices.sampleGrid(csize, downsample,
+        RESOLUTION_LIMIT);
+    int[] csizel = { samples[0].length, samples[1].length,
+        samples[2].length };
 
     w.write(String.format("# Reduced grid size: %dx%dx%d voxels%n",
         csizel[0], csizel[1], csizel[2]));
@@ -107,35 +105,7 @@ public class OutputFinalDoseStateRPreview implements Output {
     w.write("# Three dimensional dose array (MGy)\n");
     w.write(String.format("dose <- array(0, c(%d, %d, %d))%n",
         csizel[0], csizel[1], csizel[2]));
-    for (int k = 0; k < csizel[2]; k++) {
-      w.write(String.format("dose[,,%d]<-c(", (k + 1)));
-      for (int j = 0; j < csizel[1]; j++) {
-        for (int i = 0; i < csizel[0]; i++) {
-          if ((i != 0) || (j != 0)) {
-            w.write(",");
-          }
-
-          // Could put fancy interpolation algorithm here, eg.
-          // trilinear interpolation.
-
-          // For now nearest neighbour will do. Find n.n.:
-          int trueCoordinateX = i * csize[0] / csizel[0];
-          int trueCoordinateY = j * csize[1] / csizel[1];
-          int trueCoordinateZ = k * csize[2] / csizel[2];
-
-          // Use n.n. dose:
-          double dose = crystal.getDose(
-              trueCoordinateX, trueCoordinateY, trueCoordinateZ);
-
-          if (dose <= Double.MIN_VALUE) {
-            w.write("0");
-          } else {
-            w.write(String.format("%.4e", dose));
-          }
-        }
-      }
-      w.write(")\n");
-    }
+    DoseStateRSlices.write(w, crystal, samples, true);
 
     w.write("\n");
     generateBoxFunctions();
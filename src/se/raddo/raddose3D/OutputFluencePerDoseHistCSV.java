@@ -1,5 +1,7 @@
 package se.raddo.raddose3D;
 
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,7 +15,8 @@ import java.util.Map;
  */
 // This file is not part of the RD3D release
 
-public class OutputFluencePerDoseHistCSV implements Output, ExposeObserver {
+public class OutputFluencePerDoseHistCSV implements Output,
+    ExposeAngleObserver {
   /** Default number of bins for the fluence per dose histogram. */
   private static final Integer DEFAULT_HISTOGRAM_BINS = 199;
   /**
@@ -143,6 +146,28 @@ public class OutputFluencePerDoseHistCSV implements Output, ExposeObserver {
     diffractedIntensityDenom += elastic * decay;
   }
 
+  @Override
+  public void angleObservations(final AngleResult result) {
+    final IntBuffer exposed = result.getExposedVoxels();
+    final DoubleBuffer addedDose = result.getAddedDose();
+    final DoubleBuffer previousDose = result.getPreviousDose();
+    final DoubleBuffer elastic = result.getElastic();
+    final DDM ddm = crystal.getDDM();
+
+    for (int n = 0; n < result.getExposedCount(); n++) {
+      int idx = exposed.get(n);
+      double halfDose = previousDose.get(idx) + (addedDose.get(idx) / 2d);
+      double decay = ddm.calcDecay(halfDose);
+      double voxelElastic = elastic.get(idx);
+
+      h.addValue(halfDose, voxelElastic * decay);
+
+      // updating the diffracted intensity for this image/iteration equation
+      diffractedIntensityNum += halfDose * voxelElastic * decay;
+      diffractedIntensityDenom += voxelElastic * decay;
+    }
+  }
+
   @Override
   public void imageComplete(final int image, final double angle, final double lastAngle, final double voxVol) {
     double avgDiffDose;
@@ -5,7 +5,8 @@ import java.util.Map;
 /**
  * A simple progress indicator for lengthy simulations.
  */
-public class OutputProgressIndicator implements Output, ExposeObserver {
+public class OutputProgressIndicator implements Output,
+    ExposeAngleObserver {
   /** Where output should be directed to. */
   private final Writer w;
 
@@ -84,6 +85,11 @@ public class OutputProgressIndicator implements Output, ExposeObserver {
     // No implementation required
   }
 
+  @Override
+  public void angleObservations(final AngleResult result) {
+    // No implementation required
+  }
+
   @Override
   public void imageComplete(final int image, final double angle, final double lastAngle, final double voxVol) {
     while (PERCENT_100 * (image + 1) / imageCount > wedgeProgress) {
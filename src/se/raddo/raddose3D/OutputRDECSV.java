@@ -47,10 +47,14 @@ public class OutputRDECSV implements Output{
     for(int i = 0; i < arrayRDE.length; i++) {
       double image = i+1;
       double angle = arrayRDE[i][0] * (180/Math.PI);
-      w.write(image + ",");
-      w.write(angle + ",");
-      w.write(arrayRDE[i][1] + ",");
-      w.write(minArrayRDE[i][1] + "\n");
+      w.print(image);
+      w.print(',');
+      w.print(angle);
+      w.print(',');
+      w.print(arrayRDE[i][1]);
+      w.print(',');
+      w.print(minArrayRDE[i][1]);
+      w.print('\n');
     }
     expSummary = null;
     w.close();
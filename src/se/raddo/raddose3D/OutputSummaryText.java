@@ -6,7 +6,7 @@ import java.util.List;
 import java.util.Map;
 
 /** Summary text output module for the PNAS 2013 release of the code. */
-public class OutputSummaryText implements ExposeObserver, Output,
+public class OutputSummaryText implements ExposeAngleObserver, Output,
     ExperimentNotices {
   /** Where output should be directed to. */
   private final Writer         w;
@@ -116,6 +116,11 @@ public class OutputSummaryText implements ExposeObserver, Output,
     // No implementation required
   }
 
+  @Override
+  public void angleObservations(final AngleResult result) {
+    // No implementation required
+  }
+
   @Override
   public void imageComplete(final int image, final double angle, final double lastAngle, final double voxVol) {
     // No implementation required
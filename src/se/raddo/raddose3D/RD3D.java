@@ -25,6 +25,10 @@ public final class RD3D {
   private Experiment        exp                  = new Experiment();
   /** Common prefix for output files. */
   private String            prefix               = "output-";
+  /** Compression applied to output files, or null for plain files. */
+  private WriterCompress.Codec compression       = null;
+  /** Beam energies in keV of an energy scan, or null for a single run. */
+  private double[]          scanEnergies         = null;
 
   /**
    * Private class constructor. Only the class itself needs to instantiate it.
@@ -44,6 +48,16 @@ public final class RD3D {
         // Now parse all command line options.
         parseCommandLineParameters(args);
 
+        // The energy scan table is only opened once all options are known.
+        if (scanEnergies != null) {
+          try {
+            exp = new ExperimentEnergyScan(scanEnergies,
+                openOutputFile(prefix + "EnergyScan.csv"));
+          } catch (IOException e) {
+            System.err.println("Could not write energy scan table: " + e);
+          }
+        }
+
         // Did the user select specific output modules? If not, set defaults.
         if (outputs.isEmpty()) {
           setDefaultObservers();
@@ -145,11 +159,54 @@ public final class RD3D {
           prefix = cmdLineParams[++i];
           System.out.println("Output file prefix set to " + prefix);
         }
+
+      } else if ("-z".equalsIgnoreCase(command)
+          || "--compress".equalsIgnoreCase(command)) {
+        compression = WriterCompress.Codec.GZIP;
+        if ((i + 1) < cmdLineParams.length
+            && isCodec(cmdLineParams[i + 1])) {
+          compression = WriterCompress.Codec.valueOf(
+              cmdLineParams[++i].toUpperCase());
+        }
+        System.out.println("Output files compressed with "
+            + compression.name().toLowerCase());
       }
     }
     return true;
   }
 
+  /**
+   * @param name
+   *          command line parameter
+   * @return true if the parameter names a compression format.
+   */
+  private static boolean isCodec(final String name) {
+    for (WriterCompress.Codec codec : WriterCompress.Codec.values()) {
+      if (codec.name().equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Opens an output file, compressing it if this was requested on the
+   * command line. Compressed files get the extension of the codec added.
+   *
+   * @param filename
+   *          Name of the file, including the prefix.
+   * @return Writer for the file.
+   * @throws IOException
+   *           thrown, if file cannot be opened for writing.
+   */
+  private Writer openOutputFile(final String filename) throws IOException {
+    if (compression == null) {
+      return new WriterFile(filename);
+    }
+    return new WriterCompress(filename + compression.getExtension(),
+        compression);
+  }
+
   /**
    * Parse all regular command line parameters.
    * Populates the two lists inputs and outputs.
@@ -195,9 +252,39 @@ public final class RD3D {
           // so that it can affect earlier -o commands
         }
 
+      } else if ("-z".equals(command) || "--compress".equals(command)) {
+        // compression is a priority parameter, skip its format if given
+        if ((i + 1) < cmdLineParams.length && isCodec(cmdLineParams[i + 1])) {
+          i++;
+        }
+
       } else if ("-t".equals(command) || "--test".equals(command)) {
         System.out.println("Test run. No actual calculations will take place.");
         exp = new ExperimentDummy();
+        scanEnergies = null;
+
+      } else if ("-e".equals(command) || "--energyscan".equals(command)) {
+        //        start:end:step
+        if ((i + 1) >= cmdLineParams.length) {
+          System.err.println("No energy range given");
+        } else {
+          i++;
+          String[] range = cmdLineParams[i].split(":");
+          try {
+            if (range.length != 3) {
+              throw new IllegalArgumentException(
+                  "Energy range must be given as start:end:step");
+            }
+            scanEnergies = ExperimentEnergyScan.energyRange(
+                Double.parseDouble(range[0]), Double.parseDouble(range[1]),
+                Double.parseDouble(range[2]));
+            System.out.println("Energy scan over " + scanEnergies.length
+                + " energies from " + range[0] + " to " + range[1] + " keV");
+          } catch (IllegalArgumentException e) {
+            System.err.println("Invalid energy range '" + cmdLineParams[i]
+                + "': " + e.getMessage());
+          }
+        }
 
       } else if ("-r".equals(command) || "--raddose".equals(command)) {
         if ((i + 1) >= cmdLineParams.length) {
@@ -220,6 +307,21 @@ public final class RD3D {
           if (specification.length < 2) {
             System.err.println("Invalid output specification: "
                 + cmdLineParams[i]);
+          } else if (of.writesFile(specification[0])) {
+            // Binary outputs write a single file themselves
+            String destination = specification[specification.length - 1];
+            if ("-".equals(destination) || destination.contains(",")) {
+              System.err.println("Output " + specification[0]
+                  + " can only be written to a single file: "
+                  + cmdLineParams[i]);
+            } else {
+              HashMap<Object, Object> properties =
+                  new HashMap<Object, Object>();
+              properties.put(Output.OUTPUT_FILE, prefix.concat(destination));
+              properties.put(Output.OUTPUT_PARAMETERS, Arrays.copyOfRange(
+                  specification, 1, specification.length - 1));
+              outputs.add(of.createOutput(specification[0], properties));
+            }
           } else {
             Writer w;
             w = parseOutputDestinations(specification[specification.length - 1]
@@ -230,13 +332,13 @@ public final class RD3D {
             } else {
 
               String module = specification[0];
-              /* Unused so far: */
-              // String[] parameters = Arrays.copyOfRange(specification, 1,
-              //    specification.length - 1);
+              String[] parameters = Arrays.copyOfRange(specification, 1,
+                  specification.length - 1);
 
               HashMap<Object, Object> properties =
                   new HashMap<Object, Object>();
               properties.put(Output.OUTPUT_WRITER, w);
+              properties.put(Output.OUTPUT_PARAMETERS, parameters);
 
               Output observer = of.createOutput(module, properties);
               outputs.add(observer);
@@ -260,7 +362,7 @@ public final class RD3D {
     OutputFactory of = new OutputFactory();
 
     try {
-      Writer w = new WriterFile(prefix + "Summary.csv");
+      Writer w = openOutputFile(prefix + "Summary.csv");
       outputs.add(of.createOutputSimple("SummaryCSV", w));
     } catch (IOException e) {
       e.printStackTrace();
@@ -269,7 +371,7 @@ public final class RD3D {
 
     try {
       Writer w = new WriterMultiple(Arrays.asList(
-          new WriterConsole(), new WriterFile(prefix + "Summary.txt")));
+          new WriterConsole(), openOutputFile(prefix + "Summary.txt")));
       outputs.add(of.createOutputSimple("SummaryText", w));
     } catch (IOException e) {
       e.printStackTrace();
@@ -277,7 +379,7 @@ public final class RD3D {
     }
 
     try {
-      Writer w = new WriterFile(prefix + "DoseState.csv");
+      Writer w = openOutputFile(prefix + "DoseState.csv");
       outputs.add(of.createOutputSimple("FinalDoseStateCSV", w));
     } catch (IOException e) {
       e.printStackTrace();
@@ -285,21 +387,21 @@ public final class RD3D {
     }
 
     try {
-      Writer w = new WriterFile(prefix + "DoseState.R");
+      Writer w = openOutputFile(prefix + "DoseState.R");
       outputs.add(of.createOutputSimple("FinalDoseStateR", w));
     } catch (IOException e) {
       e.printStackTrace();
       System.err.println("Could not initialize OutputDoseStateR");
     }
     try {
-      Writer w = new WriterFile(prefix + "RDE.csv");
+      Writer w = openOutputFile(prefix + "RDE.csv");
       outputs.add(of.createOutputSimple("RDECSV", w));
     } catch (IOException e) {
       e.printStackTrace();
       System.err.println("Could not initialize RDECSV");
     }
     try {
-      Writer w = new WriterFile(prefix + "DWDs.csv");
+      Writer w = openOutputFile(prefix + "DWDs.csv");
       outputs.add(of.createOutputSimple("DWDs", w));
     } catch (IOException e) {
       e.printStackTrace();
@@ -328,6 +430,15 @@ public final class RD3D {
     System.out.println(" -p   or --prefix name  prefix for output files");
     System.out.println(" -r   or --raddose path path to RaddoseV3 executable");
     System.out.println(" -t   or --test         test run with no simulation");
+    System.out.println(" -z   or --compress [gzip|deflate]");
+    System.out.println("                        compress output files, gzip by"
+        + " default");
+    System.out.println(" -e   or --energyscan start:end:step");
+    System.out.println("                        repeat the simulation for a range"
+        + " of beam energies");
+    System.out.println("                        (keV), writing EnergyScan.csv");
+    System.out.println("                        other outputs show the last"
+        + " energy only");
     System.out.println();
     System.out.println(" -o   or --out <output> for user-defined output");
     // System.out.println("      see manual or use -o? for complete syntax");
@@ -339,6 +450,12 @@ public final class RD3D {
     System.out.println("       -o SummaryCSV:SummaryCSV.csv");
     System.out.println("       -o Summary:Summary.txt,-");
     System.out.println("       -o DoseStateCSV:DoseState.csv");
+    System.out.println("     Binary dose state for large crystals:");
+    System.out.println("       -o FinalDoseStateBinary:DoseState.bin");
+    System.out.println("     R dose state of every 4th voxel:");
+    System.out.println("       -o FinalDoseStateR:4:DoseState.R");
+    System.out.println("     Dose snapshots every 10 images:");
+    System.out.println("       -o DoseSnapshots:10:DoseSnapshots.bin");
 
     System.out.println();
     System.out
@@ -369,7 +486,7 @@ public final class RD3D {
       } else {
         String filename = prefix.concat(destination);
         try {
-          writers.add(new WriterFile(filename));
+          writers.add(openOutputFile(filename));
         } catch (IOException e) {
           System.err.println("Could not open file " + filename
               + " for writing.");
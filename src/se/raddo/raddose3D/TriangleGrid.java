@@ -0,0 +1,193 @@
+package se.raddo.raddose3D;
+
+/**
+ * Uniform 2D grid over the x, y projection of a triangle mesh, used to find
+ * the triangles a ray cast along z may cross without testing all of them.
+ *
+ * Each triangle is listed in every cell its x, y bounding box overlaps, so
+ * the triangles listed in the cell containing a point are a superset of the
+ * triangles whose projection contains that point. Points outside the grid are
+ * assigned to the nearest edge cell.
+ */
+final class TriangleGrid {
+  /** Number of cells along x and y. */
+  private final int      cellsX, cellsY;
+
+  /** Lower corner of the grid. */
+  private final double   minX, minY;
+
+  /** Reciprocal cell size along x and y. */
+  private final double   scaleX, scaleY;
+
+  /**
+   * Margin added to each triangle's bounding box so that rounding in the
+   * inclusion test cannot place a point just outside the cells listing it.
+   */
+  private final double   margin;
+
+  /**
+   * Triangles in cell c are cellTriangles[cellStart[c]] to
+   * cellTriangles[cellStart[c + 1] - 1].
+   */
+  private final int[]    cellStart;
+
+  /** Triangle indices, grouped by cell. */
+  private final int[]    cellTriangles;
+
+  /**
+   * Builds the grid for the given triangles.
+   *
+   * @param triangles
+   *          triangles as [triangle][vertex][xyz]
+   */
+  TriangleGrid(final double[][][] triangles) {
+    double loX = Double.POSITIVE_INFINITY, hiX = Double.NEGATIVE_INFINITY;
+    double loY = Double.POSITIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+    for (double[][] triangle : triangles) {
+      for (double[] vertex : triangle) {
+        loX = Math.min(loX, vertex[0]);
+        hiX = Math.max(hiX, vertex[0]);
+        loY = Math.min(loY, vertex[1]);
+        hiY = Math.max(hiY, vertex[1]);
+      }
+    }
+    if (triangles.length == 0) {
+      loX = 0;
+      hiX = 0;
+      loY = 0;
+      hiY = 0;
+    }
+
+    // Roughly one triangle per cell, in proportion to the extent.
+    double width = Math.max(hiX - loX, Double.MIN_NORMAL);
+    double height = Math.max(hiY - loY, Double.MIN_NORMAL);
+    double cellSize = Math.sqrt(width * height / Math.max(1,
+        triangles.length));
+    cellsX = (int) Math.max(1, Math.min(1024, Math.ceil(width / cellSize)));
+    cellsY = (int) Math.max(1, Math.min(1024, Math.ceil(height / cellSize)));
+    minX = loX;
+    minY = loY;
+    scaleX = cellsX / width;
+    scaleY = cellsY / height;
+    margin = 1e-9 * Math.max(Math.max(width, height), Math.max(
+        Math.max(Math.abs(loX), Math.abs(hiX)),
+        Math.max(Math.abs(loY), Math.abs(hiY))));
+
+    // Count, then fill, the entries of each cell.
+    cellStart = new int[cellsX * cellsY + 1];
+    int[] bounds = new int[4];
+    for (double[][] triangle : triangles) {
+      cellBounds(triangle, bounds);
+      for (int cx = bounds[0]; cx <= bounds[1]; cx++) {
+        for (int cy = bounds[2]; cy <= bounds[3]; cy++) {
+          cellStart[cx * cellsY + cy + 1]++;
+        }
+      }
+    }
+    for (int c = 0; c < cellsX * cellsY; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+
+    cellTriangles = new int[cellStart[cellsX * cellsY]];
+    int[] fill = new int[cellsX * cellsY];
+    for (int t = 0; t < triangles.length; t++) {
+      cellBounds(triangles[t], bounds);
+      for (int cx = bounds[0]; cx <= bounds[1]; cx++) {
+        for (int cy = bounds[2]; cy <= bounds[3]; cy++) {
+          int c = cx * cellsY + cy;
+          cellTriangles[cellStart[c] + fill[c]++] = t;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the range of cells covered by the bounding box of a triangle.
+   *
+   * @param triangle
+   *          triangle vertices
+   * @param bounds
+   *          receives the first and last cell along x, then along y
+   */
+  private void cellBounds(final double[][] triangle, final int[] bounds) {
+    double loX = Math.min(triangle[0][0], Math.min(triangle[1][0],
+        triangle[2][0]));
+    double hiX = Math.max(triangle[0][0], Math.max(triangle[1][0],
+        triangle[2][0]));
+    double loY = Math.min(triangle[0][1], Math.min(triangle[1][1],
+        triangle[2][1]));
+    double hiY = Math.max(triangle[0][1], Math.max(triangle[1][1],
+        triangle[2][1]));
+    bounds[0] = cellX(loX - margin);
+    bounds[1] = cellX(hiX + margin);
+    bounds[2] = cellY(loY - margin);
+    bounds[3] = cellY(hiY + margin);
+  }
+
+  /**
+   * @param x
+   *          x coordinate
+   * @return grid column containing x, clamped to the grid.
+   */
+  private int cellX(final double x) {
+    double cx = (x - minX) * scaleX;
+    if (!(cx > 0)) {
+      return 0;
+    }
+    return (int) Math.min(cellsX - 1, cx);
+  }
+
+  /**
+   * @param y
+   *          y coordinate
+   * @return grid row containing y, clamped to the grid.
+   */
+  private int cellY(final double y) {
+    double cy = (y - minY) * scaleY;
+    if (!(cy > 0)) {
+      return 0;
+    }
+    return (int) Math.min(cellsY - 1, cy);
+  }
+
+  /**
+   * Returns the cell containing point x, y.
+   *
+   * @param x
+   *          x coordinate
+   * @param y
+   *          y coordinate
+   * @return cell index, for use with first() and end().
+   */
+  int cell(final double x, final double y) {
+    return cellX(x) * cellsY + cellY(y);
+  }
+
+  /**
+   * @param cell
+   *          cell index
+   * @return position in the triangle list of the first triangle in the cell.
+   */
+  int first(final int cell) {
+    return cellStart[cell];
+  }
+
+  /**
+   * @param cell
+   *          cell index
+   * @return position in the triangle list after the last triangle in the
+   *         cell.
+   */
+  int end(final int cell) {
+    return cellStart[cell + 1];
+  }
+
+  /**
+   * @param position
+   *          position in the triangle list
+   * @return triangle index at that position.
+   */
+  int triangle(final int position) {
+    return cellTriangles[position];
+  }
+}
@@ -0,0 +1,307 @@
+package se.raddo.raddose3D;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Voxel storage shared by the crystal classes.
+ *
+ * Dose, fluence and elastic yield are kept in single flat arrays with linear
+ * indexing (i slowest, k fastest) and crystal occupancy in a bitset, instead
+ * of nested double[][][] and boolean[][][] arrays. This keeps the per-voxel
+ * fields contiguous in memory and avoids one heap object per voxel row.
+ */
+public class VoxelGrid {
+  /** Number of voxels along i, j and k. */
+  private final int      nx, ny, nz;
+
+  /** Occupancy flag for each voxel, set if the voxel is inside the crystal. */
+  private final BitSet   occupancy;
+
+  /** Scalar fields for dose (MGy), fluence (J) and elastic yield (photons). */
+  private final double[] dose, fluence, elastic;
+
+  /**
+   * Creates an empty grid of nx * ny * nz voxels.
+   *
+   * @param nx number of voxels along i
+   * @param ny number of voxels along j
+   * @param nz number of voxels along k
+   */
+  public VoxelGrid(final int nx, final int ny, final int nz) {
+    long voxels = (long) nx * ny * nz;
+    if (nx < 0 || ny < 0 || nz < 0 || voxels > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Cannot create a voxel grid of "
+          + nx + " x " + ny + " x " + nz + " voxels");
+    }
+    this.nx = nx;
+    this.ny = ny;
+    this.nz = nz;
+
+    occupancy = new BitSet((int) voxels);
+    dose = new double[(int) voxels];
+    fluence = new double[(int) voxels];
+    elastic = new double[(int) voxels];
+  }
+
+  /**
+   * Returns the number of voxels along i, j and k.
+   *
+   * @return 3 element array with the grid size in voxels.
+   */
+  public int[] getSize() {
+    int[] size = { nx, ny, nz };
+    return size;
+  }
+
+  /**
+   * Returns the total number of voxels in the grid.
+   *
+   * @return nx * ny * nz
+   */
+  public int getVoxelCount() {
+    return dose.length;
+  }
+
+  /**
+   * Returns whether i, j, k lies within the grid.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return true if the voxel exists.
+   */
+  public boolean contains(final int i, final int j, final int k) {
+    return i >= 0 && i < nx && j >= 0 && j < ny && k >= 0 && k < nz;
+  }
+
+  /**
+   * Returns the linear index of voxel i, j, k. No bounds checking is done.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return linear index into the flat voxel arrays.
+   */
+  public int index(final int i, final int j, final int k) {
+    return (i * ny + j) * nz + k;
+  }
+
+  /**
+   * Returns whether voxel i, j, k is inside the crystal. Voxels outside the
+   * grid are never occupied.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return occupancy flag
+   */
+  public boolean isOccupied(final int i, final int j, final int k) {
+    return contains(i, j, k) && occupancy.get(index(i, j, k));
+  }
+
+  /**
+   * Sets the occupancy of voxel i, j, k.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param occupied true if the voxel is inside the crystal.
+   */
+  public void setOccupied(final int i, final int j, final int k,
+      final boolean occupied) {
+    occupancy.set(index(i, j, k), occupied);
+  }
+
+  /**
+   * Sets the occupancy of voxels i, j, kStart (inclusive) to i, j, kEnd
+   * (exclusive).
+   *
+   * @param i i
+   * @param j j
+   * @param kStart first k of the run
+   * @param kEnd k after the last voxel of the run
+   */
+  public void setOccupied(final int i, final int j, final int kStart,
+      final int kEnd) {
+    if (kEnd > kStart) {
+      occupancy.set(index(i, j, kStart), index(i, j, kEnd - 1) + 1);
+    }
+  }
+
+  /**
+   * Returns the number of occupied voxels.
+   *
+   * @return number of voxels inside the crystal.
+   */
+  public int getOccupiedCount() {
+    return occupancy.cardinality();
+  }
+
+  /**
+   * Finds the voxels lying at least radius voxels inside the crystal, ie.
+   * those for which every voxel of the (2 * radius + 1)^3 cube centred on
+   * them is occupied. Voxels outside the grid count as unoccupied.
+   *
+   * @param radius half width of the cube in voxels
+   * @return set of the linear indices of the interior voxels.
+   */
+  public BitSet interior(final int radius) {
+    boolean[] inside = new boolean[dose.length];
+    for (int v = occupancy.nextSetBit(0); v >= 0;
+        v = occupancy.nextSetBit(v + 1)) {
+      inside[v] = true;
+    }
+
+    // A cube erosion is a line erosion along each axis in turn.
+    int[] run = new int[Math.max(nx, Math.max(ny, nz))];
+    for (int i = 0; i < nx; i++) {
+      for (int j = 0; j < ny; j++) {
+        erodeLine(inside, index(i, j, 0), 1, nz, radius, run);
+      }
+    }
+    for (int i = 0; i < nx; i++) {
+      for (int k = 0; k < nz; k++) {
+        erodeLine(inside, index(i, 0, k), nz, ny, radius, run);
+      }
+    }
+    for (int j = 0; j < ny; j++) {
+      for (int k = 0; k < nz; k++) {
+        erodeLine(inside, index(0, j, k), ny * nz, nx, radius, run);
+      }
+    }
+
+    BitSet interior = new BitSet(dose.length);
+    for (int v = 0; v < inside.length; v++) {
+      if (inside[v]) {
+        interior.set(v);
+      }
+    }
+    return interior;
+  }
+
+  /**
+   * Clears every flag along a line of voxels that has an unset flag, or the
+   * end of the line, within radius voxels of it.
+   *
+   * @param flags flags to erode in place
+   * @param first index of the first voxel of the line
+   * @param stride index increment between neighbouring voxels of the line
+   * @param length number of voxels in the line
+   * @param radius erosion radius in voxels
+   * @param run scratch array of at least length elements
+   */
+  private static void erodeLine(final boolean[] flags, final int first,
+      final int stride, final int length, final int radius, final int[] run) {
+    // run[n] is the number of consecutive set flags ending at n.
+    int count = 0;
+    for (int n = 0; n < length; n++) {
+      count = flags[first + n * stride] ? count + 1 : 0;
+      run[n] = count;
+    }
+    count = 0;
+    for (int n = length - 1; n >= 0; n--) {
+      int v = first + n * stride;
+      count = flags[v] ? count + 1 : 0;
+      flags[v] = run[n] > radius && count > radius;
+    }
+  }
+
+  /**
+   * Increments the dose at voxel i, j, k.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param doseIncrease dose to add in MGy
+   */
+  public void addDose(final int i, final int j, final int k,
+      final double doseIncrease) {
+    dose[index(i, j, k)] += doseIncrease;
+  }
+
+  /**
+   * Increments the fluence at voxel i, j, k.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param fluenceIncrease fluence to add in J
+   */
+  public void addFluence(final int i, final int j, final int k,
+      final double fluenceIncrease) {
+    fluence[index(i, j, k)] += fluenceIncrease;
+  }
+
+  /**
+   * Increments the elastic yield at voxel i, j, k.
+   *
+   * @param i i
+   * @param j j
+   * @param k k
+   * @param elasticIncrease number of elastically scattered photons to add
+   */
+  public void addElastic(final int i, final int j, final int k,
+      final double elasticIncrease) {
+    elastic[index(i, j, k)] += elasticIncrease;
+  }
+
+  /**
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return dose at voxel i, j, k in MGy
+   */
+  public double getDose(final int i, final int j, final int k) {
+    return dose[index(i, j, k)];
+  }
+
+  /**
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return fluence at voxel i, j, k in J
+   */
+  public double getFluence(final int i, final int j, final int k) {
+    return fluence[index(i, j, k)];
+  }
+
+  /**
+   * @param i i
+   * @param j j
+   * @param k k
+   * @return elastic yield at voxel i, j, k in photons
+   */
+  public double getElastic(final int i, final int j, final int k) {
+    return elastic[index(i, j, k)];
+  }
+
+  /**
+   * Sets the dose, fluence and elastic yield of every voxel back to zero,
+   * keeping the occupancy.
+   */
+  public void clearExposure() {
+    Arrays.fill(dose, 0);
+    Arrays.fill(fluence, 0);
+    Arrays.fill(elastic, 0);
+  }
+
+  /**
+   * Allocates an additional double field with the same layout as the grid.
+   *
+   * @return zeroed array of getVoxelCount() elements.
+   */
+  public double[] newDoubleField() {
+    return new double[dose.length];
+  }
+
+  /**
+   * Allocates an additional single precision field with the same layout as
+   * the grid, for quantities where memory matters more than precision.
+   *
+   * @return zeroed array of getVoxelCount() elements.
+   */
+  public float[] newFloatField() {
+    return new float[dose.length];
+  }
+}
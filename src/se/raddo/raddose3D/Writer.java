@@ -8,6 +8,11 @@ import java.io.UnsupportedEncodingException;
  * implementing classes which may then write these data to the console,
  * different files, strings or other targets. Implementing classes should expect
  * any number of write-calls followed by a single call of the close() method.
+ *
+ * Numbers and characters can also be written directly with the print
+ * methods, which give the same text as String.valueOf. Implementing classes
+ * that handle large outputs should override these, and the CharSequence and
+ * byte array methods, so that no intermediate Strings are created.
  */
 public abstract class Writer extends OutputStream {
   /**
@@ -35,6 +40,66 @@ public abstract class Writer extends OutputStream {
   @Override
   public abstract void close();
 
+  /**
+   * Write a sequence of characters, such as a StringBuilder.
+   *
+   * @param s
+   *          characters to be written
+   */
+  public void write(final CharSequence s) {
+    write(s.toString());
+  }
+
+  /**
+   * Write a character.
+   *
+   * @param c
+   *          character to be written
+   */
+  public void print(final char c) {
+    write(String.valueOf(c));
+  }
+
+  /**
+   * Write an integer in decimal notation.
+   *
+   * @param i
+   *          number to be written
+   */
+  public void print(final int i) {
+    write(String.valueOf(i));
+  }
+
+  /**
+   * Write a long integer in decimal notation.
+   *
+   * @param l
+   *          number to be written
+   */
+  public void print(final long l) {
+    write(String.valueOf(l));
+  }
+
+  /**
+   * Write a float as given by Float.toString.
+   *
+   * @param f
+   *          number to be written
+   */
+  public void print(final float f) {
+    write(String.valueOf(f));
+  }
+
+  /**
+   * Write a double as given by Double.toString.
+   *
+   * @param d
+   *          number to be written
+   */
+  public void print(final double d) {
+    write(String.valueOf(d));
+  }
+
   @Override
   public void write(final int i) {
     write(String.valueOf(Character.toChars(i)));
@@ -42,9 +107,24 @@ public abstract class Writer extends OutputStream {
 
   @Override
   public void write(final byte[] b) {
+    write(b, 0, b.length);
+  }
+
+  /**
+   * Write UTF-8 encoded text.
+   *
+   * @param b
+   *          array holding the text
+   * @param off
+   *          offset of the text in the array
+   * @param len
+   *          length of the text in bytes
+   */
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
     // Use the string based write method instead of individual write(int) calls
     try {
-      write(new String(b, "UTF-8"));
+      write(new String(b, off, len, "UTF-8"));
     } catch (UnsupportedEncodingException ex) {
       throw new IllegalArgumentException(
           "Could not convert byte-array to string for output", ex);
@@ -1,45 +1,322 @@
 package se.raddo.raddose3D;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * WriterCompress applies ZIP compression to any output, and passes it on to
- * another Writer instance.
+ * WriterCompress compresses all received data and writes it to a file or
+ * another output stream.
+ *
+ * Text is collected into chunks, which are handed over a bounded queue to a
+ * background thread that encodes and compresses them. The writing thread
+ * therefore only waits for the compressor when it falls more than a few
+ * chunks behind. Errors in the background thread are reported when the
+ * writer is closed.
  */
 public class WriterCompress extends Writer {
-  /** The Writer class that output should be directed to. */
-  private final Writer output;
+  /**
+   * Compression formats.
+   */
+  public enum Codec {
+    /** gzip file format, readable by gzip and zcat. */
+    GZIP(".gz"),
+    /** Raw deflate stream without header or checksum. */
+    DEFLATE(".deflate");
+
+    /** Conventional file name extension. */
+    private final String extension;
+
+    /**
+     * @param extension conventional file name extension
+     */
+    Codec(final String extension) {
+      this.extension = extension;
+    }
+
+    /**
+     * @return conventional file name extension, including the dot.
+     */
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  /** Characters collected before a chunk is handed to the compressor. */
+  private static final int      CHUNK_SIZE     = 1 << 16;
+
+  /** Chunks that may wait for the compressor. */
+  private static final int      QUEUE_CAPACITY = 16;
+
+  /** Marker asking the compressor to flush its output. */
+  private static final String   FLUSH          = new String("flush");
+
+  /** Marker asking the compressor to finish and close its output. */
+  private static final String   END            = new String("end");
+
+  /** Text waiting to be handed to the compressor. */
+  private final StringBuilder   chunk          = new StringBuilder(CHUNK_SIZE);
+
+  /** Chunks waiting to be compressed. */
+  private final BlockingQueue<String> queue =
+      new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+
+  /** Background thread compressing the queued chunks. */
+  private final Thread          compressor;
+
+  /** Description of the destination, used for meaningful error messages. */
+  private final String          destination;
+
+  /** First error raised by the compressor, if any. */
+  private volatile IOException  error;
+
+  /**
+   * Compress any output and write it to a file.
+   *
+   * @param filename
+   *          Name of the file, may include absolute or relative path.
+   * @param codec
+   *          compression format
+   * @throws IOException
+   *           thrown, if file cannot be opened for writing.
+   */
+  public WriterCompress(final String filename, final Codec codec)
+      throws IOException {
+    this(new FileOutputStream(filename), codec, filename);
+  }
+
+  /**
+   * Compress any output and send it on to a stream.
+   *
+   * @param out
+   *          stream, where the compressed output should end up. It is closed
+   *          when the writer is closed.
+   * @param codec
+   *          compression format
+   * @throws IOException
+   *           thrown, if the compressed stream cannot be started.
+   */
+  public WriterCompress(final OutputStream out, final Codec codec)
+      throws IOException {
+    this(out, codec, "output stream");
+  }
+
+  /**
+   * @param out
+   *          stream, where the compressed output should end up
+   * @param codec
+   *          compression format
+   * @param destination
+   *          description of the destination for error messages
+   * @throws IOException
+   *           thrown, if the compressed stream cannot be started.
+   */
+  private WriterCompress(final OutputStream out, final Codec codec,
+      final String destination) throws IOException {
+    this.destination = destination;
+
+    OutputStream buffered = new BufferedOutputStream(out, CHUNK_SIZE);
+    final OutputStream compressed;
+    if (codec == Codec.GZIP) {
+      compressed = new GZIPOutputStream(buffered, CHUNK_SIZE, true);
+    } else {
+      compressed = new DeflaterOutputStream(buffered,
+          new Deflater(Deflater.DEFAULT_COMPRESSION, true), CHUNK_SIZE, true);
+    }
+    final java.io.Writer text = new OutputStreamWriter(compressed, "UTF-8");
+
+    compressor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        compress(text);
+      }
+    }, "WriterCompress " + destination);
+    // Do not keep the program alive if the writer is never closed.
+    compressor.setDaemon(true);
+    compressor.start();
+  }
+
+  /**
+   * Compresses queued chunks until the end marker arrives. After an error
+   * the remaining chunks are discarded, so the writing thread never waits
+   * for a compressor that has stopped.
+   *
+   * @param text
+   *          encoding and compressing stream
+   */
+  private void compress(final java.io.Writer text) {
+    try {
+      String s;
+      while ((s = take()) != END) {
+        if (error != null) {
+          continue;
+        }
+        try {
+          if (s == FLUSH) {
+            text.flush();
+          } else {
+            text.write(s);
+          }
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+    } finally {
+      try {
+        text.close();
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+  }
 
   /**
-   * Compress any output and send it on to another Writer instance.
-   * 
-   * @param w
-   *          Writer instance, where the compressed output stream should end up.
+   * @return next chunk or marker from the queue.
    */
-  public WriterCompress(final Writer w) {
-    output = w;
+  private String take() {
+    while (true) {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        // Keep waiting, as the end marker is guaranteed to arrive.
+      }
+    }
+  }
+
+  /**
+   * Hands a chunk or marker to the compressor, waiting while the queue is
+   * full.
+   *
+   * @param s
+   *          chunk or marker
+   */
+  private void put(final String s) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(s);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Hands the collected text to the compressor.
+   */
+  private void handOver() {
+    if (chunk.length() > 0) {
+      put(chunk.toString());
+      chunk.setLength(0);
+    }
   }
 
   @Override
   public void write(final String s) {
-    // TODO Auto-generated method stub
-    output.write(s);
+    if (s.length() >= CHUNK_SIZE) {
+      handOver();
+      put(s);
+    } else {
+      chunk.append(s);
+      handOverIfFull();
+    }
   }
 
   @Override
   public void write(final StringBuffer b) {
-    // TODO Auto-generated method stub
-    output.write(b);
+    write((CharSequence) b);
+  }
+
+  @Override
+  public void write(final CharSequence s) {
+    if (s.length() >= CHUNK_SIZE) {
+      write(s.toString());
+    } else {
+      chunk.append(s);
+      handOverIfFull();
+    }
+  }
+
+  @Override
+  public void print(final char c) {
+    chunk.append(c);
+    handOverIfFull();
+  }
+
+  @Override
+  public void print(final int i) {
+    chunk.append(i);
+    handOverIfFull();
+  }
+
+  @Override
+  public void print(final long l) {
+    chunk.append(l);
+    handOverIfFull();
+  }
+
+  @Override
+  public void print(final float f) {
+    chunk.append(f);
+    handOverIfFull();
+  }
+
+  @Override
+  public void print(final double d) {
+    chunk.append(d);
+    handOverIfFull();
+  }
+
+  /**
+   * Hands the collected text to the compressor once there is a chunk of it.
+   */
+  private void handOverIfFull() {
+    if (chunk.length() >= CHUNK_SIZE) {
+      handOver();
+    }
   }
 
+  /**
+   * Asks the compressor to write out everything received so far. This does
+   * not wait for the compressor to do so.
+   */
   @Override
-  public void flush() throws IOException {
-    output.flush();
+  public void flush() {
+    handOver();
+    put(FLUSH);
   }
 
   @Override
   public void close() {
-    // TODO Auto-generated method stub
-    output.close();
+    handOver();
+    put(END);
+    boolean interrupted = false;
+    while (compressor.isAlive()) {
+      try {
+        compressor.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (error != null) {
+      error.printStackTrace();
+      System.err.println("WriterCompress: Could not write to " + destination);
+    }
   }
 }
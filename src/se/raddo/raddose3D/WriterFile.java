@@ -1,23 +1,55 @@
 package se.raddo.raddose3D;
 
-import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * WriterFile writes all received data to a predefined file.
+ *
+ * Text is encoded as UTF-8 straight into a reusable buffer, which is written
+ * to the file whenever it fills up. Numbers are formatted into a reusable
+ * StringBuilder, so writing does not create any objects.
  */
 public class WriterFile extends Writer {
+  /** Size of the output buffer in bytes. */
+  private static final int     BUFFER_SIZE    = 1 << 16;
+
+  /** Characters copied out of a CharSequence at a time. */
+  private static final int     CHUNK_SIZE     = 1 << 10;
+
+  /** Longest UTF-8 encoding of a single character. */
+  private static final int     MAX_CHAR_BYTES = 4;
+
+  /** Written in place of characters that cannot be encoded. */
+  private static final byte    REPLACEMENT    = '?';
+
   /** Reference to the output file. */
-  private final BufferedWriter outFile;
+  private final FileChannel    outFile;
 
   /** Name of the output file, used for meaningful error messages. */
   private final String         outFileName;
 
+  /** Encoded text waiting to be written to the file. */
+  private final ByteBuffer     buffer         =
+      ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  /** Characters of the CharSequence being written. */
+  private final char[]         chars          = new char[CHUNK_SIZE];
+
+  /** Text of the number being written. */
+  private final StringBuilder  number         = new StringBuilder(32);
+
+  /**
+   * High surrogate from the end of the previous write, or 0. It is encoded
+   * with the low surrogate that starts the next write.
+   */
+  private char                 highSurrogate;
+
   /**
    * Constructor that opens a specified file for writing.
-   * 
+   *
    * @param filename
    *          Name of the file, may include absolute or relative path.
    * @throws IOException
@@ -25,37 +57,182 @@ public class WriterFile extends Writer {
    */
   public WriterFile(final String filename) throws IOException {
     outFileName = filename;
-    outFile = new BufferedWriter(new OutputStreamWriter(
-        new FileOutputStream(filename), "UTF-8"));
+    outFile = new FileOutputStream(filename).getChannel();
   }
 
   @Override
   public void write(final String s) {
-    try {
-      outFile.write(s);
-    } catch (IOException e) {
-      e.printStackTrace();
-      System.err.println("WriterFile: Could not write to file " + outFileName);
-    }
+    write((CharSequence) s);
   }
 
   @Override
   public void write(final StringBuffer b) {
-    write(new String(b));
+    write((CharSequence) b);
   }
 
   @Override
-  public void flush() {
+  public void write(final CharSequence s) {
+    int length = s.length();
+    for (int start = 0; start < length; start += CHUNK_SIZE) {
+      int end = Math.min(length, start + CHUNK_SIZE);
+      if (s instanceof String) {
+        ((String) s).getChars(start, end, chars, 0);
+      } else if (s instanceof StringBuilder) {
+        ((StringBuilder) s).getChars(start, end, chars, 0);
+      } else if (s instanceof StringBuffer) {
+        ((StringBuffer) s).getChars(start, end, chars, 0);
+      } else {
+        for (int n = start; n < end; n++) {
+          chars[n - start] = s.charAt(n);
+        }
+      }
+      encode(end - start);
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    // The bytes are UTF-8 already
+    finishSurrogate();
+    int position = off;
+    int remaining = len;
+    while (remaining > 0) {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      int count = Math.min(remaining, buffer.remaining());
+      buffer.put(b, position, count);
+      position += count;
+      remaining -= count;
+    }
+  }
+
+  @Override
+  public void print(final char c) {
+    chars[0] = c;
+    encode(1);
+  }
+
+  @Override
+  public void print(final int i) {
+    number.setLength(0);
+    number.append(i);
+    putNumber();
+  }
+
+  @Override
+  public void print(final long l) {
+    number.setLength(0);
+    number.append(l);
+    putNumber();
+  }
+
+  @Override
+  public void print(final float f) {
+    number.setLength(0);
+    number.append(f);
+    putNumber();
+  }
+
+  @Override
+  public void print(final double d) {
+    number.setLength(0);
+    number.append(d);
+    putNumber();
+  }
+
+  /**
+   * Copies the formatted number into the buffer. Numbers are plain ASCII.
+   */
+  private void putNumber() {
+    finishSurrogate();
+    int length = number.length();
+    if (buffer.remaining() < length) {
+      drain();
+    }
+    for (int n = 0; n < length; n++) {
+      buffer.put((byte) number.charAt(n));
+    }
+  }
+
+  /**
+   * Encodes the first characters of the character buffer as UTF-8.
+   *
+   * @param count
+   *          number of characters
+   */
+  private void encode(final int count) {
+    for (int n = 0; n < count; n++) {
+      if (buffer.remaining() < MAX_CHAR_BYTES) {
+        drain();
+      }
+      char c = chars[n];
+      if (c < 0x80) {
+        finishSurrogate();
+        buffer.put((byte) c);
+      } else if (Character.isLowSurrogate(c) && highSurrogate != 0) {
+        int codePoint = Character.toCodePoint(highSurrogate, c);
+        highSurrogate = 0;
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        finishSurrogate();
+        if (c < 0x800) {
+          buffer.put((byte) (0xC0 | (c >> 6)));
+          buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c)) {
+          highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+          buffer.put(REPLACEMENT);
+        } else {
+          buffer.put((byte) (0xE0 | (c >> 12)));
+          buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces a high surrogate that is not followed by a low surrogate.
+   */
+  private void finishSurrogate() {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put(REPLACEMENT);
+    }
+  }
+
+  /**
+   * Writes the buffered text to the file and empties the buffer.
+   */
+  private void drain() {
+    buffer.flip();
     try {
-      outFile.flush();
+      while (buffer.hasRemaining()) {
+        outFile.write(buffer);
+      }
     } catch (IOException e) {
       e.printStackTrace();
-      System.err.println("WriterFile: Could not flush file " + outFileName);
+      System.err.println("WriterFile: Could not write to file " + outFileName);
     }
+    buffer.clear();
+  }
+
+  @Override
+  public void flush() {
+    drain();
   }
 
   @Override
   public void close() {
+    finishSurrogate();
+    drain();
     try {
       outFile.close();
     } catch (IOException e) {
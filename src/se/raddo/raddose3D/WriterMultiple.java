@@ -34,6 +34,55 @@ public class WriterMultiple extends Writer {
     }
   }
 
+  @Override
+  public void write(final CharSequence s) {
+    for (Writer w : children) {
+      w.write(s);
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    for (Writer w : children) {
+      w.write(b, off, len);
+    }
+  }
+
+  @Override
+  public void print(final char c) {
+    for (Writer w : children) {
+      w.print(c);
+    }
+  }
+
+  @Override
+  public void print(final int i) {
+    for (Writer w : children) {
+      w.print(i);
+    }
+  }
+
+  @Override
+  public void print(final long l) {
+    for (Writer w : children) {
+      w.print(l);
+    }
+  }
+
+  @Override
+  public void print(final float f) {
+    for (Writer w : children) {
+      w.print(f);
+    }
+  }
+
+  @Override
+  public void print(final double d) {
+    for (Writer w : children) {
+      w.print(d);
+    }
+  }
+
   @Override
   public void flush() throws IOException {
     for (Writer w : children) {
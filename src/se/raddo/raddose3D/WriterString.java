@@ -11,18 +11,60 @@ public class WriterString extends Writer {
 
   @Override
   public void write(final String s) {
-    if (readonly) {
-      throw new IllegalStateException("Writer has been closed");
-    }
+    checkOpen();
     data.append(s);
   }
 
   @Override
   public void write(final StringBuffer b) {
+    checkOpen();
+    data.append(b);
+  }
+
+  @Override
+  public void write(final CharSequence s) {
+    checkOpen();
+    data.append(s);
+  }
+
+  @Override
+  public void print(final char c) {
+    checkOpen();
+    data.append(c);
+  }
+
+  @Override
+  public void print(final int i) {
+    checkOpen();
+    data.append(i);
+  }
+
+  @Override
+  public void print(final long l) {
+    checkOpen();
+    data.append(l);
+  }
+
+  @Override
+  public void print(final float f) {
+    checkOpen();
+    data.append(f);
+  }
+
+  @Override
+  public void print(final double d) {
+    checkOpen();
+    data.append(d);
+  }
+
+  /**
+   * @throws IllegalStateException
+   *           if the writer has been closed.
+   */
+  private void checkOpen() {
     if (readonly) {
       throw new IllegalStateException("Writer has been closed");
     }
-    data.append(b);
   }
 
   @Override
@@ -2,7 +2,8 @@ package se.raddo.raddose3D.server;
 
 import se.raddo.raddose3D.Beam;
 import se.raddo.raddose3D.Crystal;
-import se.raddo.raddose3D.ExposeObserver;
+import se.raddo.raddose3D.AngleResult;
+import se.raddo.raddose3D.ExposeAngleObserver;
 import se.raddo.raddose3D.Output;
 import se.raddo.raddose3D.Wedge;
 
@@ -34,7 +35,7 @@ public class ExperimentYielder implements Output {
   /**
    * Class that forces thread switching during exposure.
    */
-  private static class ExposeYielder implements ExposeObserver {
+  private static class ExposeYielder implements ExposeAngleObserver {
     @Override
     public void register(final Crystal c) {
       // Nothing to register.
@@ -54,6 +55,11 @@ public class ExperimentYielder implements Output {
       // Nothing to observe.
     }
 
+    @Override
+    public void angleObservations(final AngleResult result) {
+      // Nothing to observe.
+    }
+
     @Override
     public void imageComplete(final int image, final double angle, final double lastAngle, final double voxVol) {
       Thread.yield();
@@ -56,4 +56,10 @@ public class BeamDummy implements Beam {
   public double getBeamArea() {
     return 0;
   }
+
+  @Override
+  public double[] getBeamExtent() {
+    return new double[] { Double.POSITIVE_INFINITY,
+        Double.POSITIVE_INFINITY };
+  }
 }
@@ -132,4 +132,18 @@ public class BeamExperimentalTest {
         BeamExperimental.bilinearInterpolate(0, 1, 2, 3, 0.9, 0.9),
         2.7, "Bilinear Interpolation at x=0.9, y=0.9", tolerance);
   }
+
+  @Test
+  /** Checks that there is no intensity outside the beam extent */
+  public void testExtent() {
+    BeamExperimental beam = new BeamExperimental(evenBeamBothChange,
+        defaultFlux, defaultE, defaultHorizSize, defaultVertSize);
+    beam.generateBeamArray();
+    double[] extent = beam.getBeamExtent();
+    assertEquals(extent[0], 10, tolerance);
+    assertEquals(extent[1], 10, tolerance);
+    assertEquals(beam.beamIntensity(extent[0] + 0.01, 0, 0), 0d);
+    assertEquals(beam.beamIntensity(0, -extent[1] - 0.01, 0), 0d);
+    assertEquals(beam.beamIntensity(extent[0] + 3.01, 0, 3), 0d);
+  }
 }
@@ -0,0 +1,65 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Beam;
+import se.raddo.raddose3D.BeamGaussian;
+import se.raddo.raddose3D.BeamGrid;
+import se.raddo.raddose3D.BeamTophat;
+import se.raddo.raddose3D.ContainerTransparent;
+
+/**
+ * Checks that beam intensities looked up from a grid match the beam.
+ */
+public class BeamGridTest {
+
+  private Map<Object, Object> beamProperties() {
+    Map<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Beam.BEAM_FLUX, 2e12);
+    properties.put(Beam.BEAM_ENERGY, 12.1);
+    properties.put(Beam.BEAM_FWHM_X, 20d);
+    properties.put(Beam.BEAM_FWHM_Y, 10d);
+    properties.put(Beam.BEAM_COLL_H, 60d);
+    properties.put(Beam.BEAM_COLL_V, 40d);
+    return properties;
+  }
+
+  @Test
+  public void gaussianWithinInterpolationError() {
+    Beam gaussian = new BeamGaussian(beamProperties());
+    gaussian.applyContainerAttenuation(new ContainerTransparent());
+    BeamGrid grid = new BeamGrid(gaussian, 0.25);
+
+    double peak = gaussian.beamIntensity(0, 0, 0);
+    Random r = new Random(3);
+    for (int n = 0; n < 1000; n++) {
+      double x = (r.nextDouble() - 0.5) * 60;
+      double y = (r.nextDouble() - 0.5) * 40;
+      assertEquals(grid.beamIntensity(x + 5, y, 5),
+          gaussian.beamIntensity(x + 5, y, 5), peak * 1e-3,
+          "intensity at " + x + ", " + y);
+    }
+  }
+
+  @Test
+  public void nothingOutsideExtent() {
+    Beam tophat = new BeamTophat(beamProperties());
+    tophat.applyContainerAttenuation(new ContainerTransparent());
+    BeamGrid grid = new BeamGrid(tophat, 1);
+
+    assertEquals(grid.getBeamExtent()[0], 30d);
+    assertEquals(grid.getBeamExtent()[1], 20d);
+    assertEquals(grid.beamIntensity(0, 0, 0), tophat.beamIntensity(0, 0, 0));
+    assertEquals(grid.beamIntensity(30, 20, 0),
+        tophat.beamIntensity(30, 20, 0));
+    assertEquals(grid.beamIntensity(30.01, 0, 0), 0d);
+    assertEquals(grid.beamIntensity(0, -20.01, 0), 0d);
+    assertEquals(grid.beamIntensity(25, 0, -5.01), 0d);
+  }
+}
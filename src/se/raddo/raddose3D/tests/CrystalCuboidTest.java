@@ -1,10 +1,16 @@
 package se.raddo.raddose3D.tests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.testng.Assert.*;
 import org.testng.annotations.*;
 
+import se.raddo.raddose3D.CoefCalcFromParams;
 import se.raddo.raddose3D.Crystal;
 import se.raddo.raddose3D.CrystalCuboid;
 import se.raddo.raddose3D.Wedge;
@@ -242,4 +248,277 @@ public class CrystalCuboidTest {
       }
     }
   }
+
+  /**
+   * Exposes the same cuboid once with the serial voxel loop and once with
+   * the fork-join voxel loop and checks that the dose states agree.
+   */
+  @Test
+  public static void testParallelExposureMatchesSerial() {
+    Crystal[] crystals = new Crystal[2];
+    for (int n = 0; n < crystals.length; n++) {
+      HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+      properties.put(Crystal.CRYSTAL_THREADS, 1 + 3 * n);
+      crystals[n] = new CrystalCuboid(properties);
+      crystals[n].expose(ExposureFixture.tophat(20, 12.4),
+          new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    }
+    assertTrue(crystals[1].getExposureThreads() == 4,
+        "thread count set incorrectly");
+
+    int[] size = crystals[0].getCrystSizeVoxels();
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          double serial = crystals[0].getDose(i, j, k);
+          assertTrue(Math.abs(crystals[1].getDose(i, j, k) - serial)
+              <= 1e-12 * Math.max(1, serial),
+              "parallel dose differs at " + i + "," + j + "," + k);
+        }
+      }
+    }
+  }
+
+  /**
+   * A beam narrower than the crystal skips the voxels outside its footprint
+   * and gives the voxels it covers the same dose as a wide beam of the same
+   * intensity.
+   */
+  @Test
+  public static void testCulledVoxelsMatchWideBeam() {
+    Crystal[] crystals = new Crystal[2];
+    double[] collimation = { 6, 60 };
+    for (int n = 0; n < crystals.length; n++) {
+      crystals[n] = new CrystalCuboid(ExposureFixture.cuboidProperties());
+      crystals[n].expose(ExposureFixture.tophat(collimation[n],
+          1e10 * collimation[n] * collimation[n], 12.4),
+          new Wedge(0d, 0d, 0d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    }
+    Crystal narrow = crystals[0];
+    Crystal wide = crystals[1];
+    assertTrue(narrow.getCulledVoxels() > 0, "no voxels culled");
+    assertTrue(wide.getCulledVoxels() == 0, "voxels culled in a wide beam");
+
+    int covered = 0;
+    int[] size = narrow.getCrystSizeVoxels();
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          double dose = narrow.getDose(i, j, k);
+          if (dose > 0) {
+            covered++;
+            assertTrue(dose == wide.getDose(i, j, k),
+                "dose differs at " + i + "," + j + "," + k);
+          }
+        }
+      }
+    }
+    assertTrue(covered > 0, "no voxels in the narrow beam");
+  }
+
+  /**
+   * Cuboid in a surrounding solution that records the energy photoelectrons
+   * from the surrounding bring into each crystal voxel. The photoelectrons
+   * follow fixed tracks out to the full photoelectron range instead of
+   * randomly chosen ones, so that two exposures can be compared.
+   */
+  private static class SurroundedCuboid extends CrystalCuboid {
+    /** Whether every surrounding voxel outside the crystal is visited. */
+    private final boolean  wholeBox;
+
+    /** Energy brought into each crystal voxel from the surrounding. */
+    private final double[] surroundingEnergy;
+
+    SurroundedCuboid(final Map<Object, Object> properties,
+        final boolean wholeBox) {
+      super(properties);
+      this.wholeBox = wholeBox;
+      int[] size = getCrystSizeVoxels();
+      surroundingEnergy = new double[size[0] * size[1] * size[2]];
+    }
+
+    /**
+     * @return every surrounding voxel outside the crystal, as visited before
+     *         the surrounding was reduced to a shell, or the shell.
+     */
+    @Override
+    protected long[] findCryoShell() {
+      if (!wholeBox) {
+        return super.findCryoShell();
+      }
+      int[] size = getCryoCrystSizeVoxels();
+      int extraVoxels = getCryoExtraVoxels();
+      double ppmRatio = getCrystalPixPerUM() / getCryoCrystalPixPerUM();
+      List<Long> box = new ArrayList<Long>();
+      long index = 0;
+      for (int i = 0; i < size[0]; i++) {
+        for (int j = 0; j < size[1]; j++) {
+          for (int k = 0; k < size[2]; k++, index++) {
+            if (!isCrystalAt(
+                (int) StrictMath.round((i - extraVoxels) * ppmRatio),
+                (int) StrictMath.round((j - extraVoxels) * ppmRatio),
+                (int) StrictMath.round((k - extraVoxels) * ppmRatio))) {
+              box.add(index);
+            }
+          }
+        }
+      }
+      long[] indices = new long[box.size()];
+      for (int n = 0; n < indices.length; n++) {
+        indices[n] = box.get(n);
+      }
+      return indices;
+    }
+
+    @Override
+    public double addDoseAfterPECryo(final double i, final double j,
+        final double k, final double energy,
+        final double energyToDoseFactor) {
+      // Photoelectron range in crystal voxels
+      double range = (getCryoExtraVoxels() + 1) * getCrystalPixPerUM()
+          / getCryoCrystalPixPerUM();
+      int[] size = getCrystSizeVoxels();
+      for (int di = -1; di <= 1; di++) {
+        for (int dj = -1; dj <= 1; dj++) {
+          for (int dk = -1; dk <= 1; dk++) {
+            double norm = Math.sqrt(di * di + dj * dj + dk * dk);
+            for (int step = 1; step <= 2 && norm > 0; step++) {
+              double r = range * step / 2 / norm;
+              int ci = (int) StrictMath.round(i + r * di);
+              int cj = (int) StrictMath.round(j + r * dj);
+              int ck = (int) StrictMath.round(k + r * dk);
+              if (isCrystalAt(ci, cj, ck)) {
+                surroundingEnergy[(ci * size[1] + cj) * size[2] + ck] +=
+                    energy;
+              }
+            }
+          }
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Visiting only the shell of the surrounding solution within photoelectron
+   * range of the crystal gives the same dose from the surrounding as
+   * visiting the whole enlarged box around the crystal.
+   */
+  @Test
+  public static void testSurroundingShellMatchesWholeBox() {
+    List<String> none = new ArrayList<String>();
+    List<Double> noNumbers = new ArrayList<Double>();
+    List<String> heavyAtoms = Arrays.asList("S", "Zn");
+    List<Double> heavyNumbers = Arrays.asList(10d, 2d);
+    List<String> surrounding = Arrays.asList("Na", "Cl");
+    List<Double> concentrations = Arrays.asList(500d, 500d);
+
+    SurroundedCuboid[] crystals = new SurroundedCuboid[2];
+    for (int n = 0; n < crystals.length; n++) {
+      HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+      properties.put(Crystal.CRYSTAL_COEFCALC, new CoefCalcFromParams(
+          79.2, 79.2, 38.1, 90.0, 90.0, 90.0, 8, 129, 0, 0, heavyAtoms,
+          heavyNumbers, none, noNumbers, surrounding, concentrations, 0.5,
+          null, "TRUE", 0, none, noNumbers, 0));
+      properties.put(Crystal.CRYSTAL_DIM_X, 16d);
+      properties.put(Crystal.CRYSTAL_DIM_Y, 12d);
+      properties.put(Crystal.CRYSTAL_DIM_Z, 8d);
+      properties.put(Crystal.CRYSTAL_ELECTRON_ESCAPE, "TRUE");
+      crystals[n] = new SurroundedCuboid(properties, n == 1);
+      crystals[n].expose(ExposureFixture.tophat(12, 9),
+          new Wedge(45d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    }
+    SurroundedCuboid shell = crystals[0];
+    SurroundedCuboid box = crystals[1];
+
+    double total = 0;
+    for (int idx = 0; idx < shell.surroundingEnergy.length; idx++) {
+      assertTrue(shell.surroundingEnergy[idx] == box.surroundingEnergy[idx],
+          "surrounding dose differs at voxel " + idx);
+      total += shell.surroundingEnergy[idx];
+    }
+    assertTrue(total > 0, "no dose from the surrounding");
+  }
+
+  /**
+   * Cuboid that finds occupancy and depths from its wireframe faces, like any
+   * other polyhedron.
+   */
+  private static class WireframeCuboid extends CrystalCuboid {
+    WireframeCuboid(final Map<Object, Object> properties) {
+      super(properties, null);
+    }
+  }
+
+  private static HashMap<Object, Object> cuboidProperties(final double p,
+      final double l) {
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Crystal.CRYSTAL_DIM_X, 30d);
+    properties.put(Crystal.CRYSTAL_DIM_Y, 20d);
+    properties.put(Crystal.CRYSTAL_DIM_Z, 10d);
+    properties.put(Crystal.CRYSTAL_RESOLUTION, 0.7d);
+    properties.put(Crystal.CRYSTAL_ANGLE_P, p);
+    properties.put(Crystal.CRYSTAL_ANGLE_L, l);
+    return properties;
+  }
+
+  /**
+   * The box faces give the same occupancy as casting rays at the wireframe.
+   */
+  @Test
+  public static void testAnalyticOccupancyMatchesWireframe() {
+    Crystal analytic = new CrystalCuboid(cuboidProperties(0, 0));
+    Crystal wireframe = new WireframeCuboid(cuboidProperties(0, 0));
+
+    int[] size = analytic.getCrystSizeVoxels();
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          assertTrue(analytic.isCrystalAt(i, j, k)
+              == wireframe.isCrystalAt(i, j, k),
+              "occupancy differs at " + i + "," + j + "," + k);
+        }
+      }
+    }
+  }
+
+  /**
+   * The slab intersection gives the same depths as casting rays at the
+   * wireframe, for a tilted crystal at several angles and positions.
+   */
+  @Test
+  public static void testAnalyticDepthMatchesWireframe() {
+    Crystal analytic = new CrystalCuboid(cuboidProperties(20, 35));
+    Crystal wireframe = new WireframeCuboid(cuboidProperties(20, 35));
+    Wedge w = new Wedge(2d, 10d, 300d, 50d, 3d, -4d, 5d, 0.5d, 1d, -2d, 0d);
+
+    Random random = new Random(0);
+    int[] size = analytic.getCrystSizeVoxels();
+    double[] crystCoords = new double[3];
+    double[] position = new double[3];
+    for (double angle : new double[] { 0, 0.4, 1.5, 2.7, 4.2 }) {
+      analytic.setupDepthFinding(angle, w);
+      wireframe.setupDepthFinding(angle, w);
+      for (int n = 0; n < 500; n++) {
+        // A random point within an interior voxel, so it is inside the box.
+        analytic.getCrystCoord(1 + random.nextInt(size[0] - 2),
+            1 + random.nextInt(size[1] - 2),
+            1 + random.nextInt(size[2] - 2), crystCoords);
+        for (int m = 0; m < 3; m++) {
+          crystCoords[m] += (random.nextDouble() - 0.5) / 0.7;
+        }
+
+        double x = crystCoords[0] + w.getStartX() + w.getTransX(angle);
+        double z = crystCoords[2] + w.getStartZ() + w.getTransZ(angle);
+        position[0] = x * Math.cos(angle) + z * Math.sin(angle);
+        position[1] = crystCoords[1] + w.getStartY() + w.getTransY(angle);
+        position[2] = -x * Math.sin(angle) + z * Math.cos(angle);
+
+        double expected = wireframe.findDepth(position, angle, w);
+        assertTrue(expected > 0, "point outside crystal");
+        assertTrue(Math.abs(analytic.findDepth(position, angle, w)
+            - expected) < 1e-9, "depth differs at angle " + angle);
+      }
+    }
+  }
 }
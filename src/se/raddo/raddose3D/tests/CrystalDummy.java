@@ -46,6 +46,11 @@ public class CrystalDummy extends Crystal {
     // No implementation required.
   }
 
+  @Override
+  protected void clearVoxelExposure() {
+    // No implementation required.
+  }
+
   @Override
   public String crystalInfo() {
     return null;
@@ -2,10 +2,13 @@ package se.raddo.raddose3D.tests;
 
 import java.util.HashMap;
 
+import static org.testng.Assert.*;
+
 import org.testng.annotations.Test;
 
 import se.raddo.raddose3D.Crystal;
 import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.CrystalCylinder;
 import se.raddo.raddose3D.CrystalPolyhedron;
 import se.raddo.raddose3D.Wedge;
 
@@ -152,4 +155,146 @@ public class CrystalPolyhedronTests {
     Assertion.equals(thinDepth, 40.0, "Thin part of crystal about 20 um", 1.0);
 
   }
+
+  /**
+   * The occupancy filled in by the scanline voxelizer must match casting a ray
+   * from each voxel, for a concave model in plain, rotated and tilted
+   * orientations.
+   */
+  @Test
+  public static void testOccupancyMatchesRayCasting() {
+    String modelFile = "src/se/raddo/raddose3D/tests/CrystalPolyhedron-concave_cuboid-30-20-10.obj";
+    double[][] angles = { { 0, 0 }, { 30, 0 }, { 0, 20 } };
+
+    for (double[] pl : angles) {
+      HashMap<Object, Object> properties = new HashMap<Object, Object>();
+      properties.put(Crystal.CRYSTAL_RESOLUTION, 0.7d);
+      properties.put(Crystal.CRYSTAL_ANGLE_P, pl[0]);
+      properties.put(Crystal.CRYSTAL_ANGLE_L, pl[1]);
+      properties.put(CrystalPolyhedron.CRYSTAL_WIREFRAME_FILE, modelFile);
+      properties.put(CrystalPolyhedron.CRYSTAL_WIREFRAME_TYPE, "obj");
+
+      CrystalPolyhedron c = new CrystalPolyhedron(properties);
+      int[] size = c.getCrystSizeVoxels();
+      int occupied = 0;
+
+      for (int i = 0; i < size[0]; i++) {
+        for (int j = 0; j < size[1]; j++) {
+          for (int k = 0; k < size[2]; k++) {
+            boolean expected = c.calculateCrystalOccupancy(i, j, k);
+            if (c.isCrystalAt(i, j, k) != expected) {
+              throw new AssertionError("Occupancy differs at voxel (" + i
+                  + ", " + j + ", " + k + ") for P = " + pl[0] + ", L = "
+                  + pl[1]);
+            }
+            if (expected) {
+              occupied++;
+            }
+          }
+        }
+      }
+      if (occupied == 0) {
+        throw new AssertionError("No occupied voxels for P = " + pl[0]
+            + ", L = " + pl[1]);
+      }
+    }
+  }
+
+  /**
+   * Depths looked up from the depth map should agree with ray casting, apart
+   * from interpolation near edges where the depth changes abruptly.
+   */
+  @Test
+  public static void testDepthMapMatchesRayCasting() {
+    String modelFile = "src/se/raddo/raddose3D/tests/CrystalPolyhedron-concave_cuboid-30-20-10.obj";
+
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Crystal.CRYSTAL_RESOLUTION, 0.5d);
+    properties.put(CrystalPolyhedron.CRYSTAL_WIREFRAME_FILE, modelFile);
+    properties.put(CrystalPolyhedron.CRYSTAL_WIREFRAME_TYPE, "obj");
+    Crystal exact = new CrystalPolyhedron(properties);
+
+    properties.put(Crystal.CRYSTAL_DEPTH_MAP_RESOLUTION, 2d);
+    Crystal mapped = new CrystalPolyhedron(properties);
+
+    Wedge w = new Wedge(0d, 0d, 0d, 100d, 0d, 0d, 0d, 0d, 0d, 0d, 0d);
+    int[] size = exact.getCrystSizeVoxels();
+
+    for (double angle = 0; angle < 180; angle += 35) {
+      double angrad = Math.toRadians(angle);
+      exact.setupDepthFinding(angrad, w);
+      mapped.setupDepthFinding(angrad, w);
+
+      int voxels = 0, close = 0;
+      for (int i = 0; i < size[0]; i++) {
+        for (int j = 0; j < size[1]; j++) {
+          for (int k = 0; k < size[2]; k++) {
+            if (!exact.isCrystalAt(i, j, k)) {
+              continue;
+            }
+            double[] c = exact.getCrystCoord(i, j, k);
+            double[] rotated = { c[0] * Math.cos(angrad) + c[2]
+                * Math.sin(angrad), c[1], -1 * c[0] * Math.sin(angrad)
+                + c[2] * Math.cos(angrad) };
+
+            double exactDepth = exact.findDepth(rotated, angrad, w);
+            double mappedDepth = mapped.findDepth(rotated, angrad, w);
+            voxels++;
+            if (Math.abs(exactDepth - mappedDepth) < 0.5) {
+              close++;
+            }
+          }
+        }
+      }
+      // At least 95 % of the voxels should be within 0.5 um.
+      assertEquals((double) close / voxels, 1, 0.05,
+          "Depth map differs from ray casting for " + (voxels - close)
+              + " of " + voxels + " voxels at " + angle + " degrees");
+    }
+  }
+
+  /**
+   * Depths in a cylinder should be the distance to its circular cross
+   * section along the beam, not to the faces of the wireframe.
+   */
+  @Test
+  public static void testCylinderDepthIsCircular() {
+    double radius = 20;
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Crystal.CRYSTAL_DIM_X, 2 * radius);
+    properties.put(Crystal.CRYSTAL_DIM_Y, 50d);
+    properties.put(Crystal.CRYSTAL_RESOLUTION, 0.5d);
+    properties.put(Crystal.CRYSTAL_ANGLE_P, 0d);
+    properties.put(Crystal.CRYSTAL_ANGLE_L, 0d);
+    Crystal c = new CrystalCylinder(properties);
+    Wedge w = new Wedge(0d, 0d, 0d, 100d, 0d, 0d, 0d, 0d, 0d, 0d, 0d);
+    int[] size = c.getCrystSizeVoxels();
+
+    int voxels = 0;
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          double[] coord = c.getCrystCoord(i, j, k);
+          double x = coord[0], z = coord[2];
+          if (!c.isCrystalAt(i, j, k)) {
+            assertTrue(x * x + z * z > radius * radius
+                || Math.abs(coord[1]) >= 25, "voxel missing from cylinder");
+            continue;
+          }
+          voxels++;
+
+          // The beam runs along z at 0 degrees, and along -x at 90 degrees.
+          c.setupDepthFinding(0, w);
+          assertEquals(c.findDepth(coord, 0, w),
+              z + Math.sqrt(radius * radius - x * x), 1e-9);
+
+          double[] rotated = { z, coord[1], -x };
+          c.setupDepthFinding(Math.PI / 2, w);
+          assertEquals(c.findDepth(rotated, Math.PI / 2, w),
+              Math.sqrt(radius * radius - z * z) - x, 1e-9);
+        }
+      }
+    }
+    assertTrue(voxels > 0);
+  }
 }
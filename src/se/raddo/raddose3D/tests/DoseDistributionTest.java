@@ -0,0 +1,60 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.Random;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.DoseDistributionExact;
+import se.raddo.raddose3D.DoseDistributionHistogram;
+
+public class DoseDistributionTest {
+
+  @Test
+  public void exactThreshold() {
+    DoseDistributionExact d = new DoseDistributionExact();
+    assertEquals(d.getMaxDose(), 0d);
+    d.add(1);
+    d.add(2);
+    d.add(3);
+    d.add(4);
+    assertEquals(d.getMaxDose(), 4d);
+
+    // 1 + 2 + 3 reaches 6 MGy, leaving one voxel above 3 MGy
+    double[] t = d.findThreshold(6);
+    assertEquals(t[0], 3d);
+    assertEquals(t[1], 1d);
+  }
+
+  @Test
+  public void histogramMatchesExact() {
+    Random r = new Random(42);
+    DoseDistributionExact exact = new DoseDistributionExact();
+    DoseDistributionHistogram first = new DoseDistributionHistogram(100);
+    DoseDistributionHistogram second = new DoseDistributionHistogram(100);
+    double total = 0;
+
+    for (int i = 0; i < 100000; i++) {
+      double dose = 10 * Math.exp(0.5 * r.nextGaussian());
+      total += dose;
+      exact.add(dose);
+      // merged halves should behave as one histogram
+      if (i % 2 == 0) {
+        first.add(dose);
+      } else {
+        second.add(dose);
+      }
+    }
+    first.merge(second);
+
+    assertEquals(first.getMaxDose(), exact.getMaxDose());
+    for (double quantile = 0.15; quantile < 1; quantile += 0.1) {
+      double[] e = exact.findThreshold((1 - quantile) * total);
+      double[] h = first.findThreshold((1 - quantile) * total);
+      // within one bin, i.e. a factor of 10^(1/100)
+      assertEquals(h[0] / e[0], 1, 0.024, "threshold for " + quantile);
+      assertEquals(h[1] / e[1], 1, 0.05, "voxels above for " + quantile);
+    }
+  }
+}
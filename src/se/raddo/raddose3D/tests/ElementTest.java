@@ -1,5 +1,7 @@
 package se.raddo.raddose3D.tests;
 
+import static org.testng.Assert.*;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +28,28 @@ public class ElementTest {
     sulphurTests(s);
   }
 
+  @Test
+  public void crossSectionsAreCached() {
+    Element s = new Element("S", 16, getSulphur());
+
+    Element.CrossSections xs = s.getCrossSections(12.1);
+    assertSame(s.getCrossSections(12.1), xs);
+    Map<CrossSection, Double> map = s.getAbsCoefficients(12.1);
+    assertEquals(map.get(CrossSection.PHOTOELECTRIC).doubleValue(),
+        xs.getPhotoelectric());
+    assertEquals(map.get(CrossSection.COHERENT).doubleValue(),
+        xs.getCoherent());
+    assertEquals(map.get(CrossSection.COMPTON).doubleValue(), xs.getCompton());
+    assertEquals(map.get(CrossSection.TOTAL).doubleValue(), xs.getTotal());
+
+    // Older entries are dropped once the cache is full, but still give the
+    // same result when calculated again.
+    for (int n = 0; n < 1000; n++) {
+      s.getCrossSections(5 + n * 0.01);
+    }
+    assertEquals(s.getCrossSections(12.1).getTotal(), xs.getTotal());
+  }
+
   // Theoretical values obtained from e.g.
   // http://csrri.iit.edu/cgi-bin/period-form?ener=1.1&name=S
   public void sulphurTests(final Element s) {
@@ -0,0 +1,107 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.EnergyCoefficientTable;
+
+/**
+ * Tests that the photoelectron energy coefficient tables give the same
+ * coefficients as reading the constants files line by line did.
+ */
+public class EnergyCoefficientTableTest {
+  private static final String[] FILES = { EnergyCoefficientTable.LOW_FILE,
+      EnergyCoefficientTable.MED_FILE, EnergyCoefficientTable.HIGH_FILE };
+
+  /**
+   * Scans a constants file for the coefficients of one energy, as
+   * ReadEnergyCSV.openCSV did before the tables were introduced.
+   *
+   * @param csvFileName
+   *          name of the constants file
+   * @param peEnergy
+   *          photoelectron energy in keV
+   * @return
+   *         7 coefficients in increasing order of power.
+   */
+  private double[] scanFile(final String csvFileName, final double peEnergy)
+      throws IOException {
+    double[] coefficients = new double[7];
+
+    double usedEnergy = 0;
+    if (peEnergy <= 1.0) {
+      usedEnergy = 1.01;
+    } else if (peEnergy >= 100) {
+      usedEnergy = 99.99;
+    } else {
+      usedEnergy = peEnergy;
+    }
+
+    InputStream is = getClass().getResourceAsStream("/" + csvFileName);
+    if (is == null) {
+      is = new FileInputStream(csvFileName);
+    }
+    BufferedReader br = new BufferedReader(
+        new InputStreamReader(is, "US-ASCII"));
+    try {
+      String line;
+      String[] previousLine = null;
+      while ((line = br.readLine()) != null) {
+        String[] wholeLine = line.split(",");
+        if (Double.parseDouble(wholeLine[0])
+            > Math.round(usedEnergy * 100.0) / 100.0) {
+          double interpolation = (usedEnergy
+              - Double.parseDouble(previousLine[0]))
+              / (Double.parseDouble(wholeLine[0])
+              - Double.parseDouble(previousLine[0]));
+          String[] lineToUse;
+          if (interpolation <= 0.5) {
+            lineToUse = previousLine;
+          } else {
+            lineToUse = wholeLine;
+          }
+          for (int i = 1; i < 8; i++) {
+            coefficients[7 - i] = Double.parseDouble(lineToUse[i]);
+          }
+          break;
+        }
+        previousLine = wholeLine;
+      }
+    } finally {
+      br.close();
+    }
+    return coefficients;
+  }
+
+  @Test
+  public void tableIsShared() {
+    for (String file : FILES) {
+      assertSame(EnergyCoefficientTable.getTable(file),
+          EnergyCoefficientTable.getTable(file));
+    }
+  }
+
+  /**
+   * Every energy from below the clamping range to above it, in steps finer
+   * than the rounding to 10 eV, gives exactly the coefficients of the line
+   * by line scan.
+   */
+  @Test
+  public void lookupMatchesFileScan() throws IOException {
+    for (String file : FILES) {
+      EnergyCoefficientTable table = EnergyCoefficientTable.getTable(file);
+      for (int step = 60; step <= 26000; step++) {
+        double energy = step * 0.005;
+        assertEquals(table.getCoefficients(energy), scanFile(file, energy),
+            file + " at " + energy + " keV");
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Beam;
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.EscapeConvolution;
+import se.raddo.raddose3D.EscapeStencil;
+import se.raddo.raddose3D.VoxelGrid;
+import se.raddo.raddose3D.Wedge;
+
+/**
+ * Tests for the escape stencil and its FFT convolution.
+ */
+public class EscapeConvolutionTest {
+
+  /**
+   * @return stencil sending dose to offsets on either side along every axis,
+   *         with total weight 0.9.
+   */
+  private static EscapeStencil photoelectronStencil() {
+    double[][][] points = {
+        { { 0, 0, 0 }, { 0.3, 0, -0.2 }, { 0, -2, 0.4 } },
+        { { -1.7, 2.1, 0 }, { 2.6, 0.8, 1.5 }, { 0.3, -0.2, -3 } } };
+    return EscapeStencil.forPhotoelectrons(points, 2,
+        new int[] { 0, 0, 1, 2 }, new double[] { 0.6, 0.3 });
+  }
+
+  /**
+   * @return grid with a corner and a hole left unoccupied.
+   */
+  private static VoxelGrid partlyOccupiedGrid() {
+    VoxelGrid voxels = new VoxelGrid(9, 7, 6);
+    for (int i = 0; i < 9; i++) {
+      for (int j = 0; j < 7; j++) {
+        for (int k = 0; k < 6; k++) {
+          boolean corner = i > 6 && j > 4;
+          boolean hole = i == 4 && j == 3 && k > 1 && k < 4;
+          voxels.setOccupied(i, j, k, !corner && !hole);
+        }
+      }
+    }
+    return voxels;
+  }
+
+  @Test
+  public void stencilMergesTrackPoints() {
+    EscapeStencil stencil = photoelectronStencil();
+    assertEquals(stencil.getTotalWeight(), 0.9, 1e-15);
+    assertEquals(stencil.getRadius(), 3);
+    // Tracks 0 and 1 both end their first bin in the releasing voxel.
+    assertEquals(stencil.size(), 5);
+  }
+
+  @Test
+  public void fluorescenceStencilWeights() {
+    double[][][][] points = new double[2][2][4][3];
+    for (int m = 0; m < 2; m++) {
+      for (int track = 0; track < 4; track++) {
+        points[0][m][track][track % 3] = m + 1;
+        points[1][m][track][track % 3] = -(m + 1);
+      }
+    }
+    double[] proportion = { 0.2, 0.1 };
+    double[][] distribution = { { 0.5, 0.25 }, { 1, 0 } };
+    EscapeStencil stencil = EscapeStencil.forFluorescence(points, 2, 4,
+        proportion, distribution);
+    assertEquals(stencil.getTotalWeight(), 0.2 * 0.75 + 0.1, 1e-15);
+    assertEquals(stencil.getRadius(), 2);
+    // Element 1 deposits nothing in its second bin.
+    assertEquals(stencil.size(), 9);
+
+    double[] grid = new double[4 * 4 * 4];
+    stencil.fillPeriodic(grid, 4, 4, 4);
+    // Tracks 0 and 3 of element 0 both lie along i.
+    assertEquals(grid[(1 * 4 + 0) * 4 + 0], 0.2 * 0.5 / 2, 1e-15);
+    assertEquals(grid[(0 * 4 + 0) * 4 + 1], 0.2 * 0.5 / 4, 1e-15);
+  }
+
+  @Test
+  public void fillPeriodicWrapsNegativeOffsets() {
+    double[][][] points = { { { -1, 0, 2 }, { 2, 0, 0 }, { -2, 0, 0 } } };
+    EscapeStencil stencil = EscapeStencil.forPhotoelectrons(points, 1,
+        new int[] { 0, 1, 2, 2 }, new double[] { 1 });
+    double[] grid = new double[4 * 3 * 5];
+    stencil.fillPeriodic(grid, 4, 3, 5);
+    assertEquals(grid[(3 * 3 + 0) * 5 + 2], 0.25, 1e-15);
+    // +2 and -2 coincide on a periodic grid of 4.
+    assertEquals(grid[(2 * 3 + 0) * 5 + 0], 0.75, 1e-15);
+    double total = 0;
+    for (double g : grid) {
+      total += g;
+    }
+    assertEquals(total, 1, 1e-15);
+  }
+
+  /**
+   * A stencil keeping all dose at the releasing voxel has a transform of 1
+   * everywhere, so convolving with it is a forward and an inverse transform.
+   */
+  @Test
+  public void transformRoundTrip() {
+    EscapeStencil identity = EscapeStencil.forPhotoelectrons(
+        new double[1][1][3], 1, new int[] { 0 }, new double[] { 1 });
+    VoxelGrid voxels = new VoxelGrid(11, 6, 13);
+    double[][][] released = new double[11][6][13];
+    Random random = new Random(12);
+    for (int i = 0; i < 11; i++) {
+      for (int j = 0; j < 6; j++) {
+        for (int k = 0; k < 13; k++) {
+          voxels.setOccupied(i, j, k, true);
+          released[i][j][k] = random.nextDouble() * Math.pow(10, k % 4 - 2);
+        }
+      }
+    }
+
+    EscapeConvolution convolution = new EscapeConvolution(voxels, identity);
+    for (int i = 0; i < 11; i++) {
+      for (int j = 0; j < 6; j++) {
+        for (int k = 0; k < 13; k++) {
+          convolution.add(i, j, k, released[i][j][k]);
+        }
+      }
+    }
+    assertEquals(convolution.apply(), 0, 1e-10);
+    for (int i = 0; i < 11; i++) {
+      for (int j = 0; j < 6; j++) {
+        for (int k = 0; k < 13; k++) {
+          assertEquals(voxels.getDose(i, j, k), released[i][j][k], 1e-12,
+              "voxel " + i + ", " + j + ", " + k);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convolutionMatchesStencil() {
+    EscapeStencil stencil = photoelectronStencil();
+    VoxelGrid direct = partlyOccupiedGrid();
+    VoxelGrid convolved = partlyOccupiedGrid();
+    BitSet interior = direct.interior(stencil.getRadius());
+    EscapeConvolution convolution = new EscapeConvolution(convolved, stencil);
+
+    Random random = new Random(3);
+    double released = 0;
+    double directLost = 0;
+    int[] size = direct.getSize();
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          if (direct.isOccupied(i, j, k)) {
+            double dose = random.nextDouble();
+            released += dose;
+            directLost += stencil.deposit(direct, interior, i, j, k, dose);
+            convolution.add(i, j, k, dose);
+          }
+        }
+      }
+    }
+    double convolvedLost = convolution.apply();
+
+    double directTotal = 0;
+    double convolvedTotal = 0;
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          assertEquals(convolved.getDose(i, j, k), direct.getDose(i, j, k),
+              1e-12, "voxel " + i + ", " + j + ", " + k);
+          directTotal += direct.getDose(i, j, k);
+          convolvedTotal += convolved.getDose(i, j, k);
+        }
+      }
+    }
+    assertTrue(directLost > 0);
+    assertEquals(convolvedLost, directLost, 1e-12);
+    assertEquals(convolvedTotal, directTotal, 1e-12);
+    assertEquals(directTotal + directLost, released * 0.9, 1e-12);
+    assertEquals(convolvedTotal + convolvedLost, released * 0.9, 1e-12);
+  }
+
+  private static Crystal escapeCrystal(final String mode) {
+    HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_DIM_X, 12d);
+    properties.put(Crystal.CRYSTAL_DIM_Y, 10d);
+    properties.put(Crystal.CRYSTAL_DIM_Z, 8d);
+    properties.put(Crystal.CRYSTAL_RESOLUTION, 1d);
+    properties.put(Crystal.CRYSTAL_COEFCALC,
+        ExposureFixture.sulphurZincCoefCalc());
+    properties.put(Crystal.CRYSTAL_ELECTRON_ESCAPE, "TRUE");
+    properties.put(mode, "TRUE");
+    return new CrystalCuboid(properties);
+  }
+
+  /**
+   * Photoelectron escape over a whole exposure deposits the same dose
+   * whether the stencil is applied voxel by voxel or by convolution.
+   */
+  @Test
+  public void crystalEscapeModesAgree() {
+    Beam beam = ExposureFixture.tophat(6, 12.4);
+    Wedge wedge = new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d);
+
+    Crystal stencil = escapeCrystal(Crystal.CRYSTAL_PE_STENCIL);
+    Crystal fft = escapeCrystal(Crystal.CRYSTAL_ESCAPE_FFT);
+    stencil.expose(beam, wedge);
+    fft.expose(beam, wedge);
+
+    int[] size = stencil.getCrystSizeVoxels();
+    double stencilTotal = 0;
+    double fftTotal = 0;
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          double expected = stencil.getDose(i, j, k);
+          assertEquals(fft.getDose(i, j, k), expected,
+              1e-9 * Math.max(1, expected),
+              "voxel " + i + ", " + j + ", " + k);
+          stencilTotal += expected;
+          fftTotal += fft.getDose(i, j, k);
+        }
+      }
+    }
+    assertTrue(stencilTotal > 0);
+    assertEquals(fftTotal, stencilTotal, 1e-9 * stencilTotal);
+  }
+}
@@ -0,0 +1,162 @@
+package se.raddo.raddose3D.tests;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Beam;
+import se.raddo.raddose3D.BeamAtEnergy;
+import se.raddo.raddose3D.BeamTophat;
+import se.raddo.raddose3D.ContainerTransparent;
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.ExperimentEnergyScan;
+import se.raddo.raddose3D.Output;
+import se.raddo.raddose3D.Wedge;
+import se.raddo.raddose3D.WriterString;
+
+/**
+ * Tests for the energy scan and the beams it uses.
+ */
+public class ExperimentEnergyScanTest {
+
+  @Test
+  public void rangeIncludesEnd() {
+    double[] energies = ExperimentEnergyScan.energyRange(8, 9, 0.1);
+    assertEquals(energies.length, 11);
+    assertEquals(energies[0], 8d);
+    assertEquals(energies[10], 9d, 1e-12);
+
+    assertEquals(ExperimentEnergyScan.energyRange(12.1, 12.1, 1).length, 1);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void reversedRangeRejected() {
+    ExperimentEnergyScan.energyRange(9, 8, 0.1);
+  }
+
+  @Test
+  public void beamIntensityScalesWithEnergy() {
+    Map<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Beam.BEAM_FLUX, 2e12);
+    properties.put(Beam.BEAM_ENERGY, 12.0);
+    properties.put(Beam.BEAM_COLL_H, 60d);
+    properties.put(Beam.BEAM_COLL_V, 40d);
+    Beam tophat = new BeamTophat(properties);
+    Beam scaled = new BeamAtEnergy(tophat, 9);
+    scaled.applyContainerAttenuation(new ContainerTransparent());
+
+    assertEquals(scaled.getPhotonEnergy(), 9d);
+    assertEquals(scaled.getPhotonsPerSec(), tophat.getPhotonsPerSec());
+    assertEquals(scaled.beamIntensity(5, 5, 0),
+        tophat.beamIntensity(5, 5, 0) * 0.75, 1e-12 * tophat.beamIntensity(
+            5, 5, 0));
+    assertEquals(scaled.beamIntensity(31, 0, 0), 0d);
+  }
+
+  /**
+   * Escape is left off, as it picks electron tracks at random and would
+   * make two identical exposures differ.
+   *
+   * @return crystal with an absorption coefficient that depends on energy.
+   */
+  private static Crystal crystal() {
+    Map<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_COEFCALC,
+        ExposureFixture.sulphurZincCoefCalc());
+    return new CrystalCuboid(properties);
+  }
+
+  private static Beam beam(final double energy) {
+    return ExposureFixture.tophat(10, energy);
+  }
+
+  private static Wedge[] wedges() {
+    return new Wedge[] {
+        new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d),
+        new Wedge(10d, 90d, 180d, 50d, 0d, 4d, 0d, 0d, 0d, 0d, 0d) };
+  }
+
+  private static void expose(final Crystal c, final Beam beam) {
+    for (Wedge w : wedges()) {
+      c.expose(beam, w);
+    }
+  }
+
+  private static void expose(final Crystal c, final double energy) {
+    expose(c, beam(energy));
+  }
+
+  private static void assertSameDoses(final Crystal actual,
+      final Crystal expected) {
+    int[] size = expected.getCrystSizeVoxels();
+    assertEquals(actual.getCrystSizeVoxels(), size);
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          String voxel = "voxel " + i + ", " + j + ", " + k;
+          assertEquals(actual.getDose(i, j, k), expected.getDose(i, j, k),
+              voxel);
+          assertEquals(actual.getFluence(i, j, k),
+              expected.getFluence(i, j, k), voxel);
+          assertEquals(actual.getElastic(i, j, k),
+              expected.getElastic(i, j, k), voxel);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void resetCrystalMatchesFreshCrystal() {
+    Crystal reused = crystal();
+    expose(reused, 9);
+    reused.resetExposure();
+    expose(reused, 12.4);
+
+    Crystal fresh = crystal();
+    expose(fresh, 12.4);
+
+    assertSameDoses(reused, fresh);
+  }
+
+  /**
+   * The scan leaves each crystal exposed at the last energy, with its
+   * geometry taken from the cache, and tells subscribers about that energy
+   * only.
+   */
+  @Test
+  public void scanPublishesLastEnergy() {
+    Output subscriber = mock(Output.class);
+    WriterString table = new WriterString();
+    ExperimentEnergyScan scan = new ExperimentEnergyScan(
+        new double[] { 9, 12.4 }, table);
+    scan.addObserver(subscriber);
+
+    Crystal scanned = crystal();
+    Beam beam = beam(9);
+    scan.setCrystal(scanned);
+    scan.setBeam(beam);
+    for (Wedge w : wedges()) {
+      scan.exposeWedge(w);
+    }
+    verifyZeroInteractions(subscriber);
+    scan.close();
+
+    ArgumentCaptor<Beam> published = ArgumentCaptor.forClass(Beam.class);
+    verify(subscriber, times(1)).publishCrystal(scanned);
+    verify(subscriber, times(1)).publishBeam(published.capture());
+    verify(subscriber, times(2)).publishWedge(any(Wedge.class));
+    verify(subscriber, times(1)).close();
+    assertEquals(published.getValue().getPhotonEnergy(), 12.4);
+    assertEquals(table.getDataString().split("\n").length, 3);
+
+    Crystal fresh = crystal();
+    expose(fresh, new BeamAtEnergy(beam, 12.4));
+    assertSameDoses(scanned, fresh);
+  }
+}
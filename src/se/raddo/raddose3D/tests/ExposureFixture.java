@@ -0,0 +1,87 @@
+package se.raddo.raddose3D.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import se.raddo.raddose3D.Beam;
+import se.raddo.raddose3D.BeamTophat;
+import se.raddo.raddose3D.CoefCalc;
+import se.raddo.raddose3D.CoefCalcAverage;
+import se.raddo.raddose3D.CoefCalcFromParams;
+import se.raddo.raddose3D.Crystal;
+
+/**
+ * Crystal and beam definitions shared by the tests that expose a crystal.
+ * Tests change the returned properties where they need something else.
+ * This class is only for test purposes.
+ */
+public final class ExposureFixture {
+  /** Photon flux of the test beams in photons per second. */
+  public static final double FLUX = 1e12;
+
+  private ExposureFixture() {
+  }
+
+  /**
+   * @return properties of a cuboid crystal of 30 x 20 x 10 um with voxels of
+   *         2 um, and an average absorption coefficient.
+   */
+  public static HashMap<Object, Object> cuboidProperties() {
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Crystal.CRYSTAL_DIM_X, 30d);
+    properties.put(Crystal.CRYSTAL_DIM_Y, 20d);
+    properties.put(Crystal.CRYSTAL_DIM_Z, 10d);
+    properties.put(Crystal.CRYSTAL_RESOLUTION, 0.5d);
+    properties.put(Crystal.CRYSTAL_COEFCALC, new CoefCalcAverage());
+    return properties;
+  }
+
+  /**
+   * @return absorption coefficients of a protein crystal containing sulphur
+   *         and zinc, which change with energy and allow escape.
+   */
+  public static CoefCalc sulphurZincCoefCalc() {
+    List<String> atoms = new ArrayList<String>();
+    List<Double> numbers = new ArrayList<Double>();
+    List<String> heavyAtoms = new ArrayList<String>();
+    List<Double> heavyNumbers = new ArrayList<Double>();
+    heavyAtoms.add("S");
+    heavyNumbers.add(10d);
+    heavyAtoms.add("Zn");
+    heavyNumbers.add(2d);
+    return new CoefCalcFromParams(79.2, 79.2, 38.1, 90.0, 90.0, 90.0, 8, 129,
+        0, 0, heavyAtoms, heavyNumbers, atoms, numbers, atoms, numbers, 0.5,
+        null, null, 0, atoms, numbers, 0);
+  }
+
+  /**
+   * @param collimation
+   *          width and height of the beam in um
+   * @param energy
+   *          photon energy in keV
+   * @return square top hat beam of FLUX photons per second.
+   */
+  public static Beam tophat(final double collimation, final double energy) {
+    return tophat(collimation, FLUX, energy);
+  }
+
+  /**
+   * @param collimation
+   *          width and height of the beam in um
+   * @param flux
+   *          photons per second
+   * @param energy
+   *          photon energy in keV
+   * @return square top hat beam.
+   */
+  public static Beam tophat(final double collimation, final double flux,
+      final double energy) {
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Beam.BEAM_COLL_H, collimation);
+    properties.put(Beam.BEAM_COLL_V, collimation);
+    properties.put(Beam.BEAM_FLUX, flux);
+    properties.put(Beam.BEAM_ENERGY, energy);
+    return new BeamTophat(properties);
+  }
+}
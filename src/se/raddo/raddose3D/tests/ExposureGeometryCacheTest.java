@@ -0,0 +1,115 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.HashMap;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.ExposureGeometry;
+import se.raddo.raddose3D.ExposureGeometryCache;
+import se.raddo.raddose3D.Wedge;
+
+/**
+ * Tests for the cache of voxel geometry at each crystal position.
+ */
+public class ExposureGeometryCacheTest {
+  private static final int      VOXELS    = 1024;
+
+  /** Memory in MB taken up by the geometry of one position. */
+  private static final double   ENTRY_MB  = 24.0 * VOXELS / (1 << 20);
+
+  private static final Double[] ORIGIN    = { 0d, 0d, 0d };
+
+  private static final Double[] SHIFTED   = { 0d, 1.5d, 0d };
+
+  @Test
+  public void samePositionHits() {
+    ExposureGeometryCache cache = new ExposureGeometryCache(VOXELS,
+        10 * ENTRY_MB);
+    assertEquals(cache.getCapacity(), 10);
+    ExposureGeometry first = cache.get(0.25, ORIGIN, SHIFTED);
+    assertNotNull(first);
+    assertSame(cache.get(0.25, new Double[] { 0d, 0d, 0d },
+        new Double[] { 0d, 1.5d, 0d }), first);
+    assertEquals(cache.getMisses(), 1);
+    assertEquals(cache.getHits(), 1);
+  }
+
+  @Test
+  public void changedPositionMisses() {
+    ExposureGeometryCache cache = new ExposureGeometryCache(VOXELS,
+        10 * ENTRY_MB);
+    ExposureGeometry first = cache.get(0.25, ORIGIN, ORIGIN);
+    assertNotSame(cache.get(0.5, ORIGIN, ORIGIN), first);
+    assertNotSame(cache.get(0.25, SHIFTED, ORIGIN), first);
+    assertNotSame(cache.get(0.25, ORIGIN, SHIFTED), first);
+    assertEquals(cache.getMisses(), 4);
+    assertEquals(cache.getHits(), 0);
+  }
+
+  @Test
+  public void leastRecentlyUsedEvicted() {
+    ExposureGeometryCache cache = new ExposureGeometryCache(VOXELS,
+        2 * ENTRY_MB);
+    assertEquals(cache.getCapacity(), 2);
+    ExposureGeometry a = cache.get(0.1, ORIGIN, ORIGIN);
+    ExposureGeometry b = cache.get(0.2, ORIGIN, ORIGIN);
+    // Using a makes b the least recently used, so c evicts b.
+    assertSame(cache.get(0.1, ORIGIN, ORIGIN), a);
+    cache.get(0.3, ORIGIN, ORIGIN);
+    assertSame(cache.get(0.1, ORIGIN, ORIGIN), a);
+    assertNotSame(cache.get(0.2, ORIGIN, ORIGIN), b);
+    assertEquals(cache.getHits(), 2);
+    assertEquals(cache.getMisses(), 4);
+  }
+
+  @Test
+  public void zeroCapacityDisablesCache() {
+    ExposureGeometryCache cache = new ExposureGeometryCache(VOXELS,
+        0.5 * ENTRY_MB);
+    assertEquals(cache.getCapacity(), 0);
+    assertNull(cache.get(0.1, ORIGIN, ORIGIN));
+    assertNull(cache.get(0.1, ORIGIN, ORIGIN));
+    assertEquals(cache.getHits(), 0);
+    assertEquals(cache.getMisses(), 0);
+  }
+
+  private static Crystal exposedCrystal(final Double cacheMB) {
+    HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_GEOMETRY_CACHE, cacheMB);
+    Crystal c = new CrystalCuboid(properties);
+
+    // The second wedge repeats every position of the first, the third
+    // repeats the angles at another translation.
+    Wedge wedge = new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d);
+    c.expose(ExposureFixture.tophat(12, 12.4), wedge);
+    c.expose(ExposureFixture.tophat(12, 9), wedge);
+    c.expose(ExposureFixture.tophat(12, 12.4),
+        new Wedge(10d, 0d, 90d, 50d, 0d, 3d, 0d, 0d, 0d, 0d, 0d));
+    return c;
+  }
+
+  @Test
+  public void cachedExposureMatchesUncached() {
+    Crystal cached = exposedCrystal(64d);
+    Crystal uncached = exposedCrystal(null);
+
+    int[] size = uncached.getCrystSizeVoxels();
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          String voxel = "voxel " + i + ", " + j + ", " + k;
+          assertEquals(cached.getDose(i, j, k), uncached.getDose(i, j, k),
+              voxel);
+          assertEquals(cached.getFluence(i, j, k),
+              uncached.getFluence(i, j, k), voxel);
+          assertEquals(cached.getElastic(i, j, k),
+              uncached.getElastic(i, j, k), voxel);
+        }
+      }
+    }
+  }
+}
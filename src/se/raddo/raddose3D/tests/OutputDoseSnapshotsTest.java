@@ -0,0 +1,170 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Beam;
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.DoseSnapshotReader;
+import se.raddo.raddose3D.ExposeObserver;
+import se.raddo.raddose3D.Output;
+import se.raddo.raddose3D.OutputFactory;
+import se.raddo.raddose3D.Wedge;
+
+/**
+ * Tests for the dose snapshot output and its reader.
+ */
+public class OutputDoseSnapshotsTest {
+
+  /**
+   * Records the dose of the whole crystal after every second image, as the
+   * output should.
+   */
+  private static class DoseRecorder implements ExposeObserver {
+    private final List<float[]> doses = new ArrayList<float[]>();
+    private Crystal             crystal;
+    private int                 wedgeImages;
+
+    @Override
+    public void register(final Crystal c) {
+      crystal = c;
+    }
+
+    @Override
+    public void exposureStart(final int images) {
+      wedgeImages = images;
+    }
+
+    @Override
+    public void exposureObservation(final int wedgeImage, final int i,
+        final int j, final int k, final double addedDose,
+        final double totalDose, final double fluence,
+        final double relativeDiffractionEfficiency,
+        final double absorbedEnergy, final double elastic) {
+    }
+
+    @Override
+    public void imageComplete(final int image, final double angrad,
+        final double lastAngle, final double voxVol) {
+      if (image % 2 == 1 || image == wedgeImages - 1) {
+        int[] size = crystal.getCrystSizeVoxels();
+        float[] dose = new float[size[0] * size[1] * size[2]];
+        int n = 0;
+        for (int i = 0; i < size[0]; i++) {
+          for (int j = 0; j < size[1]; j++) {
+            for (int k = 0; k < size[2]; k++) {
+              dose[n++] = (float) crystal.getDose(i, j, k);
+            }
+          }
+        }
+        doses.add(dose);
+      }
+    }
+
+    @Override
+    public void summaryObservation(final int i, final int j, final int k,
+        final double totalDose, final double voxelMassKg) {
+    }
+
+    @Override
+    public void exposureComplete() {
+    }
+  }
+
+  private static Output createOutput(final String file,
+      final String... parameters) {
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Output.OUTPUT_FILE, file);
+    properties.put(Output.OUTPUT_PARAMETERS, parameters);
+    return new OutputFactory().createOutput("DoseSnapshots", properties);
+  }
+
+  @Test
+  public void snapshotsReadBack() throws IOException {
+    Beam beam = ExposureFixture.tophat(6, 12.4);
+    Crystal c = new CrystalCuboid(ExposureFixture.cuboidProperties());
+
+    File file = File.createTempFile("DoseSnapshots", ".bin");
+    file.deleteOnExit();
+    Output output = createOutput(file.getPath(), "2");
+    output.publishCrystal(c);
+    DoseRecorder recorder = new DoseRecorder();
+    c.addObserver(recorder);
+
+    // 46 images, then 5 images with the crystal moved along the axis.
+    c.expose(beam, new Wedge(2d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    c.expose(beam, new Wedge(2d, 90d, 99d, 10d, 0d, 6d, 0d, 0d, 0d, 0d, 0d));
+    output.close();
+
+    DoseSnapshotReader r = new DoseSnapshotReader(file.getPath());
+    try {
+      assertEquals(r.getSize(), c.getCrystSizeVoxels());
+      assertEquals(r.getSnapshotCount(), 23 + 3);
+      assertEquals(r.getSnapshotCount(), recorder.doses.size());
+
+      assertEquals(r.getWedge(0), 1);
+      assertEquals(r.getImage(0), 1);
+      assertEquals(r.getAngle(0), 2d, 1e-9);
+      assertEquals(r.getWedge(23), 2);
+      assertEquals(r.getImage(25), 4);
+      assertEquals(r.findSnapshot(1, 0), -1);
+      assertEquals(r.findSnapshot(1, 6), 2);
+      assertEquals(r.findSnapshot(1, 7), 3);
+      assertEquals(r.findSnapshot(2, 0), 22);
+      assertEquals(r.findSnapshot(3, 0), 25);
+
+      for (int n = 0; n < r.getSnapshotCount(); n++) {
+        assertEquals(r.getDose(n), recorder.doses.get(n), "snapshot " + n);
+      }
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Escape carries dose to voxels outside the beam footprint, which have to
+   * be recorded as well.
+   */
+  @Test
+  public void escapedDoseRecorded() throws IOException {
+    Beam beam = ExposureFixture.tophat(6, 12.4);
+    HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_COEFCALC,
+        ExposureFixture.sulphurZincCoefCalc());
+    properties.put(Crystal.CRYSTAL_ELECTRON_ESCAPE, "TRUE");
+    properties.put(Crystal.CRYSTAL_FLUORESCENT_ESCAPE, "TRUE");
+    Crystal c = new CrystalCuboid(properties);
+
+    File file = File.createTempFile("DoseSnapshots", ".bin");
+    file.deleteOnExit();
+    Output output = createOutput(file.getPath(), "2");
+    output.publishCrystal(c);
+    DoseRecorder recorder = new DoseRecorder();
+    c.addObserver(recorder);
+    c.expose(beam, new Wedge(2d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    output.close();
+
+    DoseSnapshotReader r = new DoseSnapshotReader(file.getPath());
+    try {
+      assertEquals(r.getSnapshotCount(), recorder.doses.size());
+      for (int n = 0; n < r.getSnapshotCount(); n++) {
+        assertEquals(r.getDose(n), recorder.doses.get(n), "snapshot " + n);
+      }
+    } finally {
+      r.close();
+    }
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void invalidIntervalRejected() {
+    createOutput("DoseSnapshots.bin", "0");
+  }
+}
@@ -0,0 +1,87 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.DoseStateBinaryReader;
+import se.raddo.raddose3D.Output;
+import se.raddo.raddose3D.OutputFactory;
+import se.raddo.raddose3D.Wedge;
+
+/**
+ * Tests for the binary dose state output and its reader.
+ */
+public class OutputFinalDoseStateBinaryTest {
+
+  @Test
+  public void doseStateReadsBack() throws IOException {
+    HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_ANGLE_P, 30d);
+    properties.put(Crystal.CRYSTAL_ANGLE_L, 10d);
+    Crystal c = new CrystalCuboid(properties);
+    c.expose(ExposureFixture.tophat(20, 12.4),
+        new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+
+    File file = File.createTempFile("DoseState", ".bin");
+    file.deleteOnExit();
+    HashMap<Object, Object> outputProperties = new HashMap<Object, Object>();
+    outputProperties.put(Output.OUTPUT_FILE, file.getPath());
+    Output output = new OutputFactory().createOutput("FinalDoseStateBinary",
+        outputProperties);
+    output.publishCrystal(c);
+    output.close();
+
+    DoseStateBinaryReader r = new DoseStateBinaryReader(file.getPath());
+    int[] size = c.getCrystSizeVoxels();
+    assertEquals(r.getSize(), size);
+    assertEquals(r.getVoxelSize(), 2d, 1e-12);
+    assertEquals(r.getAngleP(), 30d, 1e-9);
+    assertEquals(r.getAngleL(), 10d, 1e-9);
+    assertEquals(r.getUnit(DoseStateBinaryReader.DOSE), "MGy");
+
+    FloatBuffer dose = r.getPlane(DoseStateBinaryReader.DOSE);
+    assertEquals(dose.remaining(), size[0] * size[1] * size[2]);
+    boolean exposed = false;
+    for (int i = 0; i < size[0]; i++) {
+      for (int j = 0; j < size[1]; j++) {
+        for (int k = 0; k < size[2]; k++) {
+          assertEquals(r.isCrystalAt(i, j, k), c.isCrystalAt(i, j, k));
+          assertEquals(dose.get(), (float) c.getDose(i, j, k));
+          assertEquals(r.get(DoseStateBinaryReader.FLUENCE, i, j, k),
+              (float) c.getFluence(i, j, k));
+          assertEquals(r.get(DoseStateBinaryReader.ELASTIC, i, j, k),
+              (float) c.getElastic(i, j, k));
+          double[] expected = c.getCrystCoord(i, j, k);
+          double[] coord = r.getCrystCoord(i, j, k);
+          for (int n = 0; n < 3; n++) {
+            assertEquals(coord[n], expected[n], 1e-9);
+          }
+          exposed |= c.getDose(i, j, k) > 0;
+        }
+      }
+    }
+    assertTrue(exposed, "no dose in crystal");
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void otherFilesRejected() throws IOException {
+    File file = File.createTempFile("DoseState", ".csv");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[200]);
+    } finally {
+      out.close();
+    }
+    new DoseStateBinaryReader(file.getPath());
+  }
+}
@@ -0,0 +1,192 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.Crystal;
+import se.raddo.raddose3D.CrystalCuboid;
+import se.raddo.raddose3D.DoseStateRSlices;
+import se.raddo.raddose3D.Output;
+import se.raddo.raddose3D.OutputFactory;
+import se.raddo.raddose3D.Wedge;
+import se.raddo.raddose3D.Writer;
+import se.raddo.raddose3D.WriterString;
+
+/**
+ * Tests for the R dose state output.
+ */
+public class OutputFinalDoseStateRTest {
+
+  private static Output createOutput(final String name, final Writer w,
+      final String... parameters) {
+    HashMap<Object, Object> properties = new HashMap<Object, Object>();
+    properties.put(Output.OUTPUT_WRITER, w);
+    properties.put(Output.OUTPUT_PARAMETERS, parameters);
+    return new OutputFactory().createOutput(name, properties);
+  }
+
+  private static String write(final String name, final Crystal c,
+      final String... parameters) {
+    WriterString w = new WriterString();
+    Output output = createOutput(name, w, parameters);
+    output.publishCrystal(c);
+    output.close();
+    return w.getDataString();
+  }
+
+  private static String writeR(final Crystal c, final String... parameters) {
+    return write("FinalDoseStateR", c, parameters);
+  }
+
+  /**
+   * @param slices
+   *          crystal depth in voxels
+   * @return exposed crystal of 30 x 20 um with voxels of 2 um.
+   */
+  private static Crystal exposedCrystal(final int slices) {
+    HashMap<Object, Object> properties = ExposureFixture.cuboidProperties();
+    properties.put(Crystal.CRYSTAL_DIM_Z, 2d * (slices - 1));
+    Crystal c = new CrystalCuboid(properties);
+    c.expose(ExposureFixture.tophat(20, 12.4),
+        new Wedge(10d, 0d, 90d, 50d, 0d, 0d, 0d, 0d, 0d, 0d, 0d));
+    return c;
+  }
+
+  /** @return values of each dose[,,k] line of an R script. */
+  private static List<String[]> slices(final String script) {
+    List<String[]> slices = new ArrayList<String[]>();
+    for (String line : script.split("\n")) {
+      if (line.startsWith("dose[,,")) {
+        assertEquals(line.substring(0, line.indexOf(']')),
+            "dose[,," + (slices.size() + 1));
+        slices.add(line.substring(line.indexOf('(') + 1, line.length() - 1)
+            .split(","));
+      }
+    }
+    return slices;
+  }
+
+  @Test
+  public void downsampledGridMatchesFullGrid() {
+    Crystal c = exposedCrystal(6);
+
+    int[] size = c.getCrystSizeVoxels();
+    int[] reduced = new int[3];
+    for (int n = 0; n < 3; n++) {
+      reduced[n] = (size[n] + 1) / 2;
+    }
+
+    List<String[]> full = slices(writeR(c));
+    String script = writeR(c, "2");
+    assertTrue(script.contains(String.format("dose <- array(0, c(%d, %d, %d))",
+        reduced[0], reduced[1], reduced[2])));
+    List<String[]> small = slices(script);
+
+    assertEquals(full.size(), size[2]);
+    assertEquals(small.size(), reduced[2]);
+    for (int k = 0; k < reduced[2]; k++) {
+      assertEquals(small.get(k).length, reduced[0] * reduced[1]);
+      for (int j = 0; j < reduced[1]; j++) {
+        for (int i = 0; i < reduced[0]; i++) {
+          assertEquals(small.get(k)[j * reduced[0] + i],
+              full.get(2 * k)[2 * j * size[0] + 2 * i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Slices are rendered in batches of a few slices per thread, so a crystal
+   * deeper than one batch has to come out as if the slices were written one
+   * after another.
+   */
+  @Test
+  public void parallelSlicesMatchSerialReference() {
+    Crystal c = exposedCrystal(45);
+    int[] size = c.getCrystSizeVoxels();
+    assertEquals(size[2], 45);
+
+    StringBuilder reference = new StringBuilder();
+    for (int k = 0; k < size[2]; k++) {
+      reference.append("dose[,,").append(k + 1).append("]<-c(");
+      for (int j = 0; j < size[1]; j++) {
+        for (int i = 0; i < size[0]; i++) {
+          if ((i != 0) || (j != 0)) {
+            reference.append(',');
+          }
+          float dose = (float) c.getDose(i, j, k);
+          if (dose <= Float.MIN_VALUE) {
+            reference.append('0');
+          } else {
+            reference.append(dose);
+          }
+        }
+      }
+      reference.append(")\n");
+    }
+
+    int[][] samples = new int[3][];
+    for (int n = 0; n < 3; n++) {
+      samples[n] = new int[size[n]];
+      for (int m = 0; m < size[n]; m++) {
+        samples[n][m] = m;
+      }
+    }
+    for (int threads : new int[] { 1, 3, 4 }) {
+      WriterString w = new WriterString();
+      DoseStateRSlices.write(w, c, samples, false, threads);
+      w.close();
+      assertEquals(w.getDataString(), reference.toString(),
+          threads + " threads");
+    }
+  }
+
+  @Test
+  public void downsampledPreviewMatchesFullPreview() {
+    Crystal c = exposedCrystal(12);
+    int[] size = c.getCrystSizeVoxels();
+    int[] reduced = new int[3];
+    for (int n = 0; n < 3; n++) {
+      reduced[n] = (size[n] + 2) / 3;
+    }
+
+    List<String[]> full = slices(write("FinalDoseStateRPreview", c));
+    String script = write("FinalDoseStateRPreview", c, "3");
+    assertTrue(script.contains(String.format(
+        "# Reduced grid size: %dx%dx%d voxels", reduced[0], reduced[1],
+        reduced[2])));
+    List<String[]> small = slices(script);
+
+    assertEquals(full.size(), size[2]);
+    assertEquals(small.size(), reduced[2]);
+    for (int k = 0; k < reduced[2]; k++) {
+      assertEquals(small.get(k).length, reduced[0] * reduced[1]);
+      for (int j = 0; j < reduced[1]; j++) {
+        for (int i = 0; i < reduced[0]; i++) {
+          assertEquals(small.get(k)[j * reduced[0] + i],
+              full.get(3 * k)[3 * j * size[0] + 3 * i]);
+        }
+      }
+    }
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void zeroFactorRejected() {
+    createOutput("FinalDoseStateR", new WriterString(), "0");
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void nonNumericFactorRejected() {
+    createOutput("FinalDoseStateR", new WriterString(), "x");
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void zeroPreviewFactorRejected() {
+    createOutput("FinalDoseStateRPreview", new WriterString(), "0");
+  }
+}
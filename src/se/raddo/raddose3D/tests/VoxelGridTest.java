@@ -0,0 +1,60 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.VoxelGrid;
+
+public class VoxelGridTest {
+
+  @Test
+  public void interiorMatchesCubeSearch() {
+    Random r = new Random(7);
+    VoxelGrid grid = new VoxelGrid(9, 11, 13);
+    for (int i = 0; i < 9; i++) {
+      for (int j = 0; j < 11; j++) {
+        for (int k = 0; k < 13; k++) {
+          grid.setOccupied(i, j, k, r.nextDouble() < 0.95);
+        }
+      }
+    }
+
+    for (int radius = 0; radius <= 2; radius++) {
+      BitSet interior = grid.interior(radius);
+      for (int i = 0; i < 9; i++) {
+        for (int j = 0; j < 11; j++) {
+          for (int k = 0; k < 13; k++) {
+            boolean expected = true;
+            for (int a = -radius; a <= radius; a++) {
+              for (int b = -radius; b <= radius; b++) {
+                for (int c = -radius; c <= radius; c++) {
+                  expected &= grid.isOccupied(i + a, j + b, k + c);
+                }
+              }
+            }
+            assertEquals(interior.get(grid.index(i, j, k)), expected,
+                "voxel " + i + ", " + j + ", " + k + " at radius " + radius);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void interiorOfSolidBlock() {
+    VoxelGrid grid = new VoxelGrid(5, 5, 5);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 5; j++) {
+        grid.setOccupied(i, j, 0, 5);
+      }
+    }
+    assertEquals(grid.interior(0).cardinality(), 125);
+    assertEquals(grid.interior(1).cardinality(), 27);
+    assertEquals(grid.interior(2).cardinality(), 1);
+    assertEquals(grid.interior(3).cardinality(), 0);
+  }
+}
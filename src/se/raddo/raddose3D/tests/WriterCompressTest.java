@@ -0,0 +1,75 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.WriterCompress;
+
+/**
+ * Tests for the compressing Writer.
+ */
+public class WriterCompressTest {
+
+  /**
+   * Writes many short lines and a few long ones, as output modules do.
+   */
+  private static String writeText(final WriterCompress w) {
+    StringBuilder expected = new StringBuilder();
+    for (int n = 0; n < 50000; n++) {
+      String line = n + "," + (n * 0.5f) + ",\u00c5\n";
+      w.write(line);
+      expected.append(line);
+      if (n % 10000 == 0) {
+        StringBuffer block = new StringBuffer();
+        for (int m = 0; m < 100000; m++) {
+          block.append((char) ('a' + m % 26));
+        }
+        w.write(block);
+        expected.append(block);
+        w.flush();
+      }
+    }
+    w.close();
+    return expected.toString();
+  }
+
+  private static String read(final InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = in.read(buffer)) > 0) {
+      out.write(buffer, 0, count);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void gzipRoundTrip() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    String expected = writeText(new WriterCompress(compressed,
+        WriterCompress.Codec.GZIP));
+    assertTrue(compressed.size() < expected.length() / 4,
+        "output not compressed");
+    assertEquals(read(new GZIPInputStream(new ByteArrayInputStream(
+        compressed.toByteArray()))), expected);
+  }
+
+  @Test
+  public void deflateRoundTrip() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    String expected = writeText(new WriterCompress(compressed,
+        WriterCompress.Codec.DEFLATE));
+    assertEquals(read(new InflaterInputStream(new ByteArrayInputStream(
+        compressed.toByteArray()), new Inflater(true))), expected);
+  }
+}
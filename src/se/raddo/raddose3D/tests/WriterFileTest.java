@@ -0,0 +1,77 @@
+package se.raddo.raddose3D.tests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.testng.annotations.*;
+
+import se.raddo.raddose3D.WriterFile;
+
+/**
+ * Tests for the file Writer.
+ */
+public class WriterFileTest {
+
+  private static byte[] read(final File file) throws IOException {
+    byte[] content = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int position = 0;
+      while (position < content.length) {
+        position += in.read(content, position, content.length - position);
+      }
+    } finally {
+      in.close();
+    }
+    return content;
+  }
+
+  @Test
+  public void textAndNumbersMatchJava() throws IOException {
+    File file = File.createTempFile("WriterFile", ".txt");
+    file.deleteOnExit();
+    WriterFile w = new WriterFile(file.getPath());
+    StringBuilder expected = new StringBuilder();
+
+    for (int n = 0; n < 20000; n++) {
+      float f = n * 0.37f;
+      double d = n / 3d;
+      w.print(n);
+      w.print(',');
+      w.print(f);
+      w.print(',');
+      w.print(d);
+      w.print(',');
+      w.print(-1L * n);
+      w.write(",\u00c5\u20ac\n");
+      expected.append(n).append(',').append(f).append(',').append(d)
+          .append(',').append(-1L * n).append(",\u00c5\u20ac\n");
+    }
+
+    // A surrogate pair split across two writes is still a single character.
+    w.write("\ud83d");
+    w.write(new StringBuffer("\ude00"));
+    expected.append("\ud83d\ude00");
+    w.write("done".getBytes("UTF-8"));
+    expected.append("done");
+    w.close();
+
+    assertEquals(read(file), expected.toString().getBytes("UTF-8"));
+  }
+
+  @Test
+  public void unpairedSurrogatesReplaced() throws IOException {
+    File file = File.createTempFile("WriterFile", ".txt");
+    file.deleteOnExit();
+    WriterFile w = new WriterFile(file.getPath());
+    w.write("a\ud83d");
+    w.print(1);
+    w.write("\ude00b\ud83d");
+    w.close();
+
+    assertEquals(new String(read(file), "UTF-8"), "a?1?b?");
+  }
+}